@@ -16,6 +16,7 @@
  */
 package org.matrix.androidsdk;
 
+import android.content.ComponentCallbacks2;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -36,9 +37,15 @@ import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.RoomSummary;
 import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.data.store.MXLeftRoomsArchive;
 import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.data.store.RoomSummariesIndex;
+import org.matrix.androidsdk.db.MXLocalSearchIndex;
 import org.matrix.androidsdk.db.MXMediasCache;
 import org.matrix.androidsdk.listeners.IMXEventListener;
+import org.matrix.androidsdk.listeners.IMXEventsBatchListener;
+import org.matrix.androidsdk.listeners.MXEventListenersRegistry;
+import org.matrix.androidsdk.listeners.MXEventsBatch;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
@@ -66,6 +73,8 @@ import org.matrix.androidsdk.ssl.UnrecognizedCertificateException;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXMemoryGovernor;
+import org.matrix.androidsdk.util.MXMetrics;
 import org.matrix.androidsdk.util.MXOsHandler;
 
 import java.lang.reflect.Modifier;
@@ -73,6 +82,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -88,8 +99,22 @@ import java.util.Set;
 public class MXDataHandler implements IMXEventListener {
     private static final String LOG_TAG = MXDataHandler.class.getSimpleName();
 
+    // the sync response processing metrics
+    private static final MXMetrics.Histogram SYNC_PROCESS_MS = MXMetrics.histogram("sync.process.total_ms");
+    private static final MXMetrics.Histogram SYNC_TO_DEVICE_MS = MXMetrics.histogram("sync.process.to_device_ms");
+    private static final MXMetrics.Histogram SYNC_ACCOUNT_DATA_MS = MXMetrics.histogram("sync.process.account_data_ms");
+    private static final MXMetrics.Histogram SYNC_JOINED_ROOMS_MS = MXMetrics.histogram("sync.process.joined_rooms_ms");
+    private static final MXMetrics.Histogram SYNC_INVITED_ROOMS_MS = MXMetrics.histogram("sync.process.invited_rooms_ms");
+    private static final MXMetrics.Histogram SYNC_LEFT_ROOMS_MS = MXMetrics.histogram("sync.process.left_rooms_ms");
+    private static final MXMetrics.Histogram SYNC_PRESENCE_MS = MXMetrics.histogram("sync.process.presence_ms");
+    private static final MXMetrics.Histogram SYNC_CRYPTO_MS = MXMetrics.histogram("sync.process.crypto_ms");
+    private static final MXMetrics.Histogram SYNC_COMMIT_MS = MXMetrics.histogram("sync.process.commit_ms");
+
     private static final String LEFT_ROOMS_FILTER = "{\"room\":{\"timeline\":{\"limit\":1},\"include_leave\":true}}";
 
+    // the max number of left rooms kept in memory while the archive is browsed
+    private static final int MAX_LOADED_LEFT_ROOMS = 20;
+
     public interface RequestNetworkErrorListener {
         /**
          * Call when the access token is corrupted
@@ -105,7 +130,7 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     private IMXEventListener mCryptoEventsListener = null;
-    private final Set<IMXEventListener> mEventListeners = new HashSet<>();
+    private final MXEventListenersRegistry mEventListeners = new MXEventListenersRegistry();
 
     private final IMXStore mStore;
     private final Credentials mCredentials;
@@ -114,6 +139,7 @@ public class MXDataHandler implements IMXEventListener {
     private BingRulesManager mBingRulesManager;
     private MXCallsManager mCallsManager;
     private MXMediasCache mMediasCache;
+    private MXLocalSearchIndex mLocalSearchIndex;
 
     private ProfileRestClient mProfileRestClient;
     private PresenceRestClient mPresenceRestClient;
@@ -141,15 +167,85 @@ public class MXDataHandler implements IMXEventListener {
 
     // the left rooms are managed
     // by default, they are not supported
-    private boolean mAreLeftRoomsSynced;
+    private volatile boolean mAreLeftRoomsSynced;
 
-    //
+    // the pending retrieveLeftRooms() callbacks, it also guards the start and the end of a retrieval
     private final ArrayList<ApiCallback<Void>> mLeftRoomsRefreshCallbacks = new ArrayList<>();
-    private boolean mIsRetrievingLeftRooms;
+    private volatile boolean mIsRetrievingLeftRooms;
 
     // the left rooms are saved in a dedicated store.
+    // it only contains the left rooms which are used, the other ones are in the archive.
     private final MXMemoryStore mLeftRoomsStore;
 
+    // the left rooms archive
+    private final MXLeftRoomsArchive mLeftRoomsArchive;
+
+    // the ids of the left rooms loaded in mLeftRoomsStore, the least recently used first
+    private final LinkedHashMap<String, Boolean> mLoadedLeftRoomIds = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the left rooms are released when the application is in background, they are retrieved again by retrieveLeftRooms()
+    private final MXMemoryGovernor.ITrimmableCache mLeftRoomsTrimmableCache = new MXMemoryGovernor.ITrimmableCache() {
+        @Override
+        public String getName() {
+            return "store.left_rooms_count";
+        }
+
+        @Override
+        public long getRetainedSize() {
+            return mLeftRoomsStore.getRooms().size();
+        }
+
+        @Override
+        public void trim(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                // the left rooms store is updated by the sync thread, the retrieved left rooms included
+                mSyncHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mIsRetrievingLeftRooms) {
+                            releaseLeftRooms();
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    // the store events and users are only reported : they cannot be reloaded from the file system.
+    private final MXMemoryGovernor.ITrimmableCache mStoreEventsCache = new MXMemoryGovernor.ITrimmableCache() {
+        @Override
+        public String getName() {
+            return "store.events_count";
+        }
+
+        @Override
+        public long getRetainedSize() {
+            return (mStore instanceof MXMemoryStore) ? ((MXMemoryStore) mStore).getStoredEventsCount() : 0;
+        }
+
+        @Override
+        public void trim(int level) {
+            // NOP
+        }
+    };
+
+    private final MXMemoryGovernor.ITrimmableCache mStoreUsersCache = new MXMemoryGovernor.ITrimmableCache() {
+        @Override
+        public String getName() {
+            return "store.users_count";
+        }
+
+        @Override
+        public long getRetainedSize() {
+            return (mStore instanceof MXMemoryStore) ? ((MXMemoryStore) mStore).getUsersCount() : 0;
+        }
+
+        @Override
+        public void trim(int level) {
+            // NOP
+        }
+    };
+
     // e2e decoder
     private MXCrypto mCrypto;
 
@@ -173,6 +269,11 @@ public class MXDataHandler implements IMXEventListener {
         mSyncHandler = new MXOsHandler(mSyncHandlerThread.getLooper());
 
         mLeftRoomsStore = new MXMemoryStore(credentials, store.getContext());
+        mLeftRoomsArchive = new MXLeftRoomsArchive(store.getContext(), credentials.userId);
+
+        MXMemoryGovernor.register(mLeftRoomsTrimmableCache, MXMemoryGovernor.PRIORITY_REBUILDABLE);
+        MXMemoryGovernor.register(mStoreEventsCache, MXMemoryGovernor.PRIORITY_REQUIRED);
+        MXMemoryGovernor.register(mStoreUsersCache, MXMemoryGovernor.PRIORITY_REQUIRED);
     }
 
     /**
@@ -497,6 +598,24 @@ public class MXDataHandler implements IMXEventListener {
         return mMediasCache;
     }
 
+    /**
+     * Update the local search index.
+     *
+     * @param localSearchIndex the new local search index.
+     */
+    public void setLocalSearchIndex(MXLocalSearchIndex localSearchIndex) {
+        checkIfAlive();
+        mLocalSearchIndex = localSearchIndex;
+    }
+
+    /**
+     * @return the local search index
+     */
+    public MXLocalSearchIndex getLocalSearchIndex() {
+        checkIfAlive();
+        return mLocalSearchIndex;
+    }
+
     /**
      * @return the used push rules set.
      */
@@ -545,10 +664,20 @@ public class MXDataHandler implements IMXEventListener {
      * @param listener the listener to add.
      */
     public void addListener(IMXEventListener listener) {
+        addListener(null, listener);
+    }
+
+    /**
+     * Add a listener to the listeners list.
+     * When a room id is provided, the listener is only notified of the events of this room,
+     * the presence updates and the live events chunks.
+     *
+     * @param roomId   the room id, null for a global listener.
+     * @param listener the listener to add.
+     */
+    public void addListener(String roomId, IMXEventListener listener) {
         if (isAlive() && (null != listener)) {
-            synchronized (this) {
-                mEventListeners.add(listener);
-            }
+            mEventListeners.addListener(roomId, listener);
 
             if (null != mInitialSyncToToken) {
                 listener.onInitialSyncComplete(mInitialSyncToToken);
@@ -563,9 +692,7 @@ public class MXDataHandler implements IMXEventListener {
      */
     public void removeListener(IMXEventListener listener) {
         if (isAlive() && (null != listener)) {
-            synchronized (this) {
-                mEventListeners.remove(listener);
-            }
+            mEventListeners.removeListener(listener);
         }
     }
 
@@ -579,9 +706,14 @@ public class MXDataHandler implements IMXEventListener {
             mEventListeners.clear();
         }
 
+        MXMemoryGovernor.unregister(mLeftRoomsTrimmableCache);
+        MXMemoryGovernor.unregister(mStoreEventsCache);
+        MXMemoryGovernor.unregister(mStoreUsersCache);
+
         // clear the store
         mStore.close();
         mStore.clear();
+        mLeftRoomsArchive.clear();
 
         if (null != mSyncHandlerThread) {
             mSyncHandlerThread.quit();
@@ -641,6 +773,20 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * Provides the room summaries sorted for the rooms list.
+     * The index listeners receive the list changes, so the list does not need to be reloaded and sorted.
+     *
+     * @return the summaries index, null if the store does not provide it.
+     */
+    public RoomSummariesIndex getRoomSummariesIndex() {
+        if (isAlive() && (mStore instanceof MXMemoryStore)) {
+            return ((MXMemoryStore) mStore).getRoomSummariesIndex();
+        }
+
+        return null;
+    }
+
     /**
      * Provides the store in which the room is stored.
      *
@@ -695,12 +841,172 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     /**
+     * Provides all the left rooms.
+     * They are all loaded from the archive, use getLeftRoomsSummaries() to browse the archive by pages
+     * and getRoom(roomId, true, false) to load a left room.
+     *
      * @return the left rooms
+     * @deprecated use getLeftRoomsSummaries() and getRoom(roomId, true, false)
      */
+    @Deprecated
     public Collection<Room> getLeftRooms() {
+        for (RoomSummary summary : mLeftRoomsArchive.getSummaries()) {
+            if (null == mLeftRoomsStore.getRoom(summary.getRoomId())) {
+                loadLeftRoom(summary.getRoomId());
+            }
+        }
+
         return new ArrayList<>(mLeftRoomsStore.getRooms());
     }
 
+    /**
+     * @return the number of archived left rooms
+     */
+    public int getLeftRoomsCount() {
+        return mLeftRoomsArchive.getCount();
+    }
+
+    /**
+     * Provides a page of the left rooms summaries.
+     * The left rooms are loaded when getRoom(roomId, true, false) is called.
+     *
+     * @param offset the index of the first summary
+     * @param count  the max number of summaries
+     * @return the summaries, the latest activity first
+     */
+    public List<RoomSummary> getLeftRoomsSummaries(int offset, int count) {
+        return mLeftRoomsArchive.getSummaries(offset, count);
+    }
+
+    /**
+     * Provides a left room.
+     * It is loaded from the archive if it is not in memory, and the least recently used left rooms are released.
+     *
+     * @param roomId the room id
+     * @return the left room, null if the room is not archived
+     */
+    private Room getLeftRoom(String roomId) {
+        Room room = mLeftRoomsStore.getRoom(roomId);
+
+        if (null == room) {
+            room = loadLeftRoom(roomId);
+        }
+
+        if (null != room) {
+            List<String> releasedRoomIds = new ArrayList<>();
+
+            synchronized (mLoadedLeftRoomIds) {
+                mLoadedLeftRoomIds.put(roomId, Boolean.TRUE);
+
+                Iterator<String> iterator = mLoadedLeftRoomIds.keySet().iterator();
+
+                while ((mLoadedLeftRoomIds.size() - releasedRoomIds.size()) > MAX_LOADED_LEFT_ROOMS) {
+                    releasedRoomIds.add(iterator.next());
+                }
+
+                for (String releasedRoomId : releasedRoomIds) {
+                    mLoadedLeftRoomIds.remove(releasedRoomId);
+                }
+            }
+
+            for (String releasedRoomId : releasedRoomIds) {
+                mLeftRoomsStore.deleteRoom(releasedRoomId);
+            }
+        }
+
+        return room;
+    }
+
+    /**
+     * Load a left room from the archive into the left rooms store.
+     *
+     * @param roomId the room id
+     * @return the left room, null if the room is not archived
+     */
+    private Room loadLeftRoom(String roomId) {
+        MXLeftRoomsArchive.ArchivedRoom archivedRoom = mLeftRoomsArchive.loadRoom(roomId);
+
+        if (null == archivedRoom) {
+            return null;
+        }
+
+        Room room = createLeftRoom(roomId, archivedRoom.mState);
+
+        for (Event event : archivedRoom.mEvents) {
+            mLeftRoomsStore.storeLiveRoomEvent(event);
+        }
+
+        if (null != archivedRoom.mBackToken) {
+            mLeftRoomsStore.storeBackToken(roomId, archivedRoom.mBackToken);
+        }
+
+        RoomSummary summary = mLeftRoomsArchive.getSummary(roomId);
+
+        if (null != summary) {
+            mLeftRoomsStore.storeSummary(new RoomSummary(summary, summary.getLatestReceivedEvent(), archivedRoom.mState, getUserId()));
+        }
+
+        return room;
+    }
+
+    /**
+     * Create a left room in the left rooms store.
+     *
+     * @param roomId the room id
+     * @param state  the room state
+     * @return the left room
+     */
+    private Room createLeftRoom(String roomId, RoomState state) {
+        Room room = new Room();
+        room.getLiveTimeLine().setState(state);
+        room.init(mLeftRoomsStore, roomId, this);
+        room.setIsLeft(true);
+        mLeftRoomsStore.storeRoom(room);
+
+        return room;
+    }
+
+    /**
+     * Save a left room in the archive.
+     * The archive summaries are saved by MXLeftRoomsArchive.commit().
+     *
+     * @param room the left room, it must be in the left rooms store
+     */
+    private void archiveLeftRoom(Room room) {
+        String roomId = room.getRoomId();
+        RoomState state = room.getState();
+        Collection<Event> events = mLeftRoomsStore.getRoomMessages(roomId);
+        RoomSummary summary = mLeftRoomsStore.getSummary(roomId);
+
+        Event latestEvent = (null != summary) ? summary.getLatestReceivedEvent() : null;
+
+        if ((null == latestEvent) && (null != events) && !events.isEmpty()) {
+            latestEvent = new ArrayList<>(events).get(events.size() - 1);
+        }
+
+        mLeftRoomsArchive.storeRoom(new RoomSummary(summary, latestEvent, state, getUserId()), state, events, mLeftRoomsStore.getBackToken(roomId));
+    }
+
+    /**
+     * Remove a room from the left rooms, when it is joined again.
+     *
+     * @param roomId the room id
+     */
+    private void removeLeftRoom(String roomId) {
+        if (null != mLeftRoomsStore.getRoom(roomId)) {
+            mLeftRoomsStore.deleteRoom(roomId);
+        }
+
+        synchronized (mLoadedLeftRoomIds) {
+            mLoadedLeftRoomIds.remove(roomId);
+        }
+
+        if (mLeftRoomsArchive.contains(roomId)) {
+            mLeftRoomsArchive.deleteRoom(roomId);
+            mLeftRoomsArchive.commit();
+        }
+    }
+
     /**
      * Get the room object for the corresponding room id. Creates and initializes the object if there is none.
      *
@@ -739,7 +1045,7 @@ public class MXDataHandler implements IMXEventListener {
             room = mStore.getRoom(roomId);
 
             if ((null == room) && testLeftRooms) {
-                room = mLeftRoomsStore.getRoom(roomId);
+                room = getLeftRoom(roomId);
             }
 
             if ((null == room) && create) {
@@ -822,7 +1128,7 @@ public class MXDataHandler implements IMXEventListener {
         summaries.addAll(getStore().getSummaries());
 
         if (withLeftOnes) {
-            summaries.addAll(mLeftRoomsStore.getSummaries());
+            summaries.addAll(mLeftRoomsArchive.getSummaries());
         }
 
         return summaries;
@@ -1161,14 +1467,44 @@ public class MXDataHandler implements IMXEventListener {
      * @param isCatchingUp true when there is a pending catch-up
      */
     public void onSyncResponse(final SyncResponse syncResponse, final String fromToken, final boolean isCatchingUp) {
+        onSyncResponse(syncResponse, fromToken, isCatchingUp, null);
+    }
+
+    /**
+     * Manage a syncResponse.
+     *
+     * @param syncResponse the syncResponse to manage.
+     * @param fromToken    the start sync token
+     * @param isCatchingUp true when there is a pending catch-up
+     * @param onProcessed  the runnable to call when the response has been managed (can be null)
+     */
+    public void onSyncResponse(final SyncResponse syncResponse, final String fromToken, final boolean isCatchingUp, final Runnable onProcessed) {
         // perform the sync in background
         // to avoid UI thread lags.
-        mSyncHandler.post(new Runnable() {
+        boolean isPosted = mSyncHandler.post(new Runnable() {
             @Override
             public void run() {
-                manageResponse(syncResponse, fromToken, isCatchingUp);
+                long startNs = System.nanoTime();
+                startEventsBatch();
+
+                try {
+                    manageResponse(syncResponse, fromToken, isCatchingUp);
+                } finally {
+                    flushEventsBatch(true);
+                    SYNC_PROCESS_MS.recordElapsedMs(startNs);
+
+                    if (null != onProcessed) {
+                        onProcessed.run();
+                    }
+                }
             }
         });
+
+        // the sync thread has been stopped
+        if (!isPosted && (null != onProcessed)) {
+            Log.e(LOG_TAG, "## onSyncResponse() : the sync response cannot be managed");
+            onProcessed.run();
+        }
     }
 
     /**
@@ -1245,16 +1581,22 @@ public class MXDataHandler implements IMXEventListener {
                     (syncResponse.toDevice.events.size() > 0)) {
                 Log.d(LOG_TAG, "manageResponse : receives " + syncResponse.toDevice.events.size() + " toDevice events");
 
+                long phaseStartNs = System.nanoTime();
+
                 for (Event toDeviceEvent : syncResponse.toDevice.events) {
                     handleToDeviceEvent(toDeviceEvent);
                 }
+
+                SYNC_TO_DEVICE_MS.recordElapsedMs(phaseStartNs);
             }
 
             // Handle account data before the room events
             // to be able to update direct chats dictionary during invites handling.
             if (null != syncResponse.accountData) {
                 Log.d(LOG_TAG, "Received " + syncResponse.accountData.size() + " accountData events");
+                long phaseStartNs = System.nanoTime();
                 manageAccountData(syncResponse.accountData, isInitialSync);
+                SYNC_ACCOUNT_DATA_MS.recordElapsedMs(phaseStartNs);
             }
 
             // sanity check
@@ -1262,15 +1604,16 @@ public class MXDataHandler implements IMXEventListener {
                 // joined rooms events
                 if ((null != syncResponse.rooms.join) && (syncResponse.rooms.join.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.join.size() + " joined rooms");
+                    long phaseStartNs = System.nanoTime();
 
                     Set<String> roomIds = syncResponse.rooms.join.keySet();
 
                     // Handle first joined rooms
                     for (String roomId : roomIds) {
                         try {
-                            if (null != mLeftRoomsStore.getRoom(roomId)) {
+                            if ((null != mLeftRoomsStore.getRoom(roomId)) || mLeftRoomsArchive.contains(roomId)) {
                                 Log.d(LOG_TAG, "the room " + roomId + " moves from left to the joined ones");
-                                mLeftRoomsStore.deleteRoom(roomId);
+                                removeLeftRoom(roomId);
                             }
 
                             getRoom(roomId).handleJoinedRoomSync(syncResponse.rooms.join.get(roomId), isInitialSync);
@@ -1279,12 +1622,14 @@ public class MXDataHandler implements IMXEventListener {
                         }
                     }
 
+                    SYNC_JOINED_ROOMS_MS.recordElapsedMs(phaseStartNs);
                     isEmptyResponse = false;
                 }
 
                 // invited room management
                 if ((null != syncResponse.rooms.invite) && (syncResponse.rooms.invite.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.invite.size() + " invited rooms");
+                    long phaseStartNs = System.nanoTime();
 
                     Set<String> roomIds = syncResponse.rooms.invite.keySet();
 
@@ -1295,9 +1640,9 @@ public class MXDataHandler implements IMXEventListener {
                         try {
                             Log.d(LOG_TAG, "## manageResponse() : the user has been invited to " + roomId);
 
-                            if (null != mLeftRoomsStore.getRoom(roomId)) {
+                            if ((null != mLeftRoomsStore.getRoom(roomId)) || mLeftRoomsArchive.contains(roomId)) {
                                 Log.d(LOG_TAG, "the room " + roomId + " moves from left to the invited ones");
-                                mLeftRoomsStore.deleteRoom(roomId);
+                                removeLeftRoom(roomId);
                             }
 
                             Room room = getRoom(roomId);
@@ -1349,6 +1694,7 @@ public class MXDataHandler implements IMXEventListener {
                         }
                     }
 
+                    SYNC_INVITED_ROOMS_MS.recordElapsedMs(phaseStartNs);
                     isEmptyResponse = false;
 
                     if (hasChanged) {
@@ -1382,6 +1728,7 @@ public class MXDataHandler implements IMXEventListener {
                 // when inviting after leaving a room, the room is defined in the both leave & invite rooms list.
                 if ((null != syncResponse.rooms.leave) && (syncResponse.rooms.leave.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.leave.size() + " left rooms");
+                    long phaseStartNs = System.nanoTime();
 
                     Set<String> roomIds = syncResponse.rooms.leave.keySet();
 
@@ -1393,6 +1740,7 @@ public class MXDataHandler implements IMXEventListener {
                         // For that create 'handleArchivedRoomSync' method
 
                         String membership = RoomMember.MEMBERSHIP_LEAVE;
+                        RoomState joinedRoomState = null;
                         Room room = this.getStore().getRoom(roomId);
                         // Retrieve existing room
                         // check if the room still exists.
@@ -1406,6 +1754,9 @@ public class MXDataHandler implements IMXEventListener {
                                 membership = member.membership;
                             }
 
+                            // the sync only provides the state changes
+                            joinedRoomState = room.getState().deepCopy();
+
                             Log.d(LOG_TAG, "## manageResponse() : leave the room " + roomId);
                         } else {
                             Log.d(LOG_TAG, "## manageResponse() : Try to leave an unknown room " + roomId);
@@ -1417,11 +1768,17 @@ public class MXDataHandler implements IMXEventListener {
 
                         // don't add to the left rooms if the user has been kicked / banned
                         if ((mAreLeftRoomsSynced) && TextUtils.equals(membership, RoomMember.MEMBERSHIP_LEAVE)) {
-                            Room leftRoom = getRoom(mLeftRoomsStore, roomId, true);
+                            Room leftRoom = (null != joinedRoomState) ? createLeftRoom(roomId, joinedRoomState) : getRoom(mLeftRoomsStore, roomId, true);
                             leftRoom.handleJoinedRoomSync(syncResponse.rooms.leave.get(roomId), isInitialSync);
+
+                            archiveLeftRoom(leftRoom);
+                            mLeftRoomsArchive.commit();
+                            // keep it in memory as a recently used left room
+                            getLeftRoom(roomId);
                         }
                     }
 
+                    SYNC_LEFT_ROOMS_MS.recordElapsedMs(phaseStartNs);
                     isEmptyResponse = false;
                 }
             }
@@ -1429,20 +1786,26 @@ public class MXDataHandler implements IMXEventListener {
             // Handle presence of other users
             if ((null != syncResponse.presence) && (null != syncResponse.presence.events)) {
                 Log.d(LOG_TAG, "Received " + syncResponse.presence.events.size() + " presence events");
+                long phaseStartNs = System.nanoTime();
                 for (Event presenceEvent : syncResponse.presence.events) {
                     handlePresenceEvent(presenceEvent);
                 }
+                SYNC_PRESENCE_MS.recordElapsedMs(phaseStartNs);
             }
 
             if (null != mCrypto) {
+                long phaseStartNs = System.nanoTime();
                 mCrypto.onSyncCompleted(syncResponse, fromToken, isCatchingUp);
+                SYNC_CRYPTO_MS.recordElapsedMs(phaseStartNs);
             }
 
             IMXStore store = getStore();
 
             if (!isEmptyResponse && (null != store)) {
+                long phaseStartNs = System.nanoTime();
                 store.setEventStreamToken(syncResponse.nextBatch);
                 store.commit();
+                SYNC_COMMIT_MS.recordElapsedMs(phaseStartNs);
             }
         }
 
@@ -1512,17 +1875,38 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     /**
-     * Release the left rooms store
+     * Release the left rooms kept in memory.
+     * They remain in the archive, the next retrieveLeftRooms() call only retrieves the rooms left since the previous one.
      */
     public void releaseLeftRooms() {
         if (mAreLeftRoomsSynced) {
             mLeftRoomsStore.clear();
+
+            synchronized (mLoadedLeftRoomIds) {
+                mLoadedLeftRoomIds.clear();
+            }
+
             mAreLeftRoomsSynced = false;
         }
     }
 
     /**
-     * Retrieve the historical rooms
+     * End a left rooms retrieval.
+     *
+     * @return the callbacks to notify
+     */
+    private List<ApiCallback<Void>> onLeftRoomsRetrieved() {
+        synchronized (mLeftRoomsRefreshCallbacks) {
+            List<ApiCallback<Void>> callbacks = new ArrayList<>(mLeftRoomsRefreshCallbacks);
+            mLeftRoomsRefreshCallbacks.clear();
+            mIsRetrievingLeftRooms = false;
+            return callbacks;
+        }
+    }
+
+    /**
+     * Retrieve the historical rooms.
+     * The rooms left since the previous retrieval are added to the left rooms archive.
      *
      * @param callback the asynchronous callback.
      */
@@ -1533,34 +1917,46 @@ public class MXDataHandler implements IMXEventListener {
                 callback.onSuccess(null);
             }
         } else {
-            int count;
+            boolean start;
 
             synchronized (mLeftRoomsRefreshCallbacks) {
                 if (null != callback) {
                     mLeftRoomsRefreshCallbacks.add(callback);
                 }
-                count = mLeftRoomsRefreshCallbacks.size();
-            }
 
-            // start the request only for the first listener
-            if (1 == count) {
+                // start the request only for the first listener
+                start = !mIsRetrievingLeftRooms;
                 mIsRetrievingLeftRooms = true;
+            }
 
+            if (start) {
                 Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : requesting");
 
-                mEventsRestClient.syncFromToken(null, 0, 30000, null, LEFT_ROOMS_FILTER, new ApiCallback<SyncResponse>() {
+                // the archive already contains the rooms left before this token
+                // the full state is requested, so the rooms left since this token are archived with their name, avatar and members
+                mEventsRestClient.syncFromToken(mLeftRoomsArchive.getSyncToken(), 0, 30000, null, LEFT_ROOMS_FILTER, true, new ApiCallback<SyncResponse>() {
                     @Override
                     public void onSuccess(final SyncResponse syncResponse) {
 
                         Runnable r = new Runnable() {
                             @Override
                             public void run() {
-                                if (null != syncResponse.rooms.leave) {
+                                if ((null != syncResponse.rooms) && (null != syncResponse.rooms.leave)) {
                                     Set<String> roomIds = syncResponse.rooms.leave.keySet();
 
                                     // Handle first joined rooms
                                     for (String roomId : roomIds) {
-                                        Room room = getRoom(mLeftRoomsStore, roomId, true);
+                                        // update the archived data
+                                        Room room = mLeftRoomsStore.getRoom(roomId);
+                                        boolean isLoaded = (null != room);
+
+                                        if (null == room) {
+                                            room = loadLeftRoom(roomId);
+                                        }
+
+                                        if (null == room) {
+                                            room = getRoom(mLeftRoomsStore, roomId, true);
+                                        }
 
                                         // sanity check
                                         if (null != room) {
@@ -1572,63 +1968,62 @@ public class MXDataHandler implements IMXEventListener {
                                             // keep only the left rooms (i.e not the banned / kicked ones)
                                             if ((null == selfMember) || !TextUtils.equals(selfMember.membership, RoomMember.MEMBERSHIP_LEAVE)) {
                                                 mLeftRoomsStore.deleteRoom(roomId);
+                                                mLeftRoomsArchive.deleteRoom(roomId);
+                                            } else {
+                                                archiveLeftRoom(room);
+
+                                                // only the used left rooms are kept in memory
+                                                if (!isLoaded) {
+                                                    mLeftRoomsStore.deleteRoom(roomId);
+                                                }
                                             }
                                         }
                                     }
-
-                                    Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : " + mLeftRoomsStore.getRooms().size() + " left rooms");
                                 }
 
-                                mIsRetrievingLeftRooms = false;
+                                mLeftRoomsArchive.setSyncToken(syncResponse.nextBatch);
+                                mLeftRoomsArchive.commit();
+
+                                Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : " + mLeftRoomsArchive.getCount() + " left rooms");
+
                                 mAreLeftRoomsSynced = true;
 
-                                synchronized (mLeftRoomsRefreshCallbacks) {
-                                    for (ApiCallback<Void> c : mLeftRoomsRefreshCallbacks) {
-                                        c.onSuccess(null);
-                                    }
-                                    mLeftRoomsRefreshCallbacks.clear();
+                                for (ApiCallback<Void> c : onLeftRoomsRetrieved()) {
+                                    c.onSuccess(null);
                                 }
                             }
                         };
 
-                        Thread t = new Thread(r);
-                        t.setPriority(Thread.MIN_PRIORITY);
-                        t.start();
+                        // the left rooms store is updated by the sync thread
+                        if (!mSyncHandler.post(r)) {
+                            onUnexpectedError(new Exception("the sync thread is stopped"));
+                        }
                     }
 
                     @Override
                     public void onNetworkError(Exception e) {
-                        synchronized (mLeftRoomsRefreshCallbacks) {
-                            Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
+                        Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
 
-                            for (ApiCallback<Void> c : mLeftRoomsRefreshCallbacks) {
-                                c.onNetworkError(e);
-                            }
-                            mLeftRoomsRefreshCallbacks.clear();
+                        for (ApiCallback<Void> c : onLeftRoomsRetrieved()) {
+                            c.onNetworkError(e);
                         }
                     }
 
                     @Override
                     public void onMatrixError(MatrixError e) {
-                        synchronized (mLeftRoomsRefreshCallbacks) {
-                            Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
+                        Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
 
-                            for (ApiCallback<Void> c : mLeftRoomsRefreshCallbacks) {
-                                c.onMatrixError(e);
-                            }
-                            mLeftRoomsRefreshCallbacks.clear();
+                        for (ApiCallback<Void> c : onLeftRoomsRetrieved()) {
+                            c.onMatrixError(e);
                         }
                     }
 
                     @Override
                     public void onUnexpectedError(Exception e) {
-                        synchronized (mLeftRoomsRefreshCallbacks) {
-                            Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
+                        Log.d(LOG_TAG, "## refreshHistoricalRoomsList() : failed " + e.getMessage());
 
-                            for (ApiCallback<Void> c : mLeftRoomsRefreshCallbacks) {
-                                c.onUnexpectedError(e);
-                            }
-                            mLeftRoomsRefreshCallbacks.clear();
+                        for (ApiCallback<Void> c : onLeftRoomsRetrieved()) {
+                            c.onUnexpectedError(e);
                         }
                     }
                 });
@@ -1696,16 +2091,115 @@ public class MXDataHandler implements IMXEventListener {
     //================================================================================
 
     /**
-     * @return the current MXEvents listeners .
+     * @return all the current MXEvents listeners (read only).
      */
     private List<IMXEventListener> getListenersSnapshot() {
-        List<IMXEventListener> eventListeners;
+        return mEventListeners.getAllListeners();
+    }
 
-        synchronized (this) {
-            eventListeners = new ArrayList<>(mEventListeners);
+    /**
+     * Provides the MXEvents listeners to notify for a room.
+     *
+     * @param roomId the room id
+     * @return the global listeners and the listeners of this room (read only).
+     */
+    private List<IMXEventListener> getListenersSnapshot(String roomId) {
+        return mEventListeners.getListeners(roomId);
+    }
+
+    /**
+     * @return the MXEvents listeners which are not bound to a room (read only).
+     */
+    private List<IMXEventListener> getGlobalListenersSnapshot() {
+        return mEventListeners.getGlobalListeners();
+    }
+
+    /**
+     * Enable or disable the batched dispatch.
+     * When it is enabled, the live events, the bing events, the sent state updates and the receipts
+     * received in a sync response are dispatched to the listeners in a single UI thread pass,
+     * instead of posting a runnable per event.
+     * The listeners which implement IMXEventsBatchListener receive them in a single call.
+     *
+     * @param useBatchedDispatch true to enable the batched dispatch
+     */
+    public void setUseBatchedDispatch(boolean useBatchedDispatch) {
+        mUseBatchedDispatch = useBatchedDispatch;
+    }
+
+    /**
+     * @return true if the batched dispatch is enabled
+     */
+    public boolean useBatchedDispatch() {
+        return mUseBatchedDispatch;
+    }
+
+    /**
+     * Start to collect the events notifications of the current thread.
+     */
+    private void startEventsBatch() {
+        if (mUseBatchedDispatch) {
+            synchronized (mEventsBatchLock) {
+                mEventsBatch = new MXEventsBatch();
+                mEventsBatchThread = Thread.currentThread();
+            }
+        }
+    }
+
+    /**
+     * @return the events batch to fill, null if the events must be dispatched one by one.
+     */
+    private MXEventsBatch getEventsBatch() {
+        synchronized (mEventsBatchLock) {
+            return (Thread.currentThread() == mEventsBatchThread) ? mEventsBatch : null;
+        }
+    }
+
+    /**
+     * Dispatch the collected events notifications.
+     *
+     * @param stopBatch true to stop collecting the events notifications
+     */
+    private void flushEventsBatch(boolean stopBatch) {
+        final MXEventsBatch eventsBatch;
+
+        synchronized (mEventsBatchLock) {
+            if (Thread.currentThread() != mEventsBatchThread) {
+                return;
+            }
+
+            eventsBatch = mEventsBatch;
+
+            if (stopBatch) {
+                mEventsBatch = null;
+                mEventsBatchThread = null;
+            } else {
+                mEventsBatch = new MXEventsBatch();
+            }
+        }
+
+        if ((null == eventsBatch) || eventsBatch.isEmpty()) {
+            return;
         }
 
-        return eventListeners;
+        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (IMXEventListener listener : eventListeners) {
+                    try {
+                        if (listener instanceof IMXEventsBatchListener) {
+                            ((IMXEventsBatchListener) listener).onEventsBatch(eventsBatch);
+                        } else {
+                            eventsBatch.dispatch(listener);
+                        }
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "onEventsBatch " + e.getMessage());
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -1716,7 +2210,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onStoreReady();
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1738,7 +2232,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onAccountInfoUpdate(myUser);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1782,6 +2276,13 @@ public class MXDataHandler implements IMXEventListener {
      */
     private final Set<String> mUpdatedRoomIdList = new HashSet<>();
 
+    // the batched dispatch
+    private volatile boolean mUseBatchedDispatch = false;
+    private final Object mEventsBatchLock = new Object();
+    // the events collected while processing a sync response, and the processing thread
+    private MXEventsBatch mEventsBatch = null;
+    private Thread mEventsBatchThread = null;
+
     /**
      * Tell if a room Id event should be ignored
      *
@@ -1814,7 +2315,18 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onLiveEvent(event, roomState);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        if (null != mLocalSearchIndex) {
+            mLocalSearchIndex.indexEvent(event);
+        }
+
+        MXEventsBatch eventsBatch = getEventsBatch();
+
+        if (null != eventsBatch) {
+            eventsBatch.addLiveEvent(event, roomState);
+            return;
+        }
+
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1838,6 +2350,9 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onLiveEventsChunkProcessed(startToken, toToken);
         }
 
+        // the events must be dispatched before the end of the chunk
+        flushEventsBatch(false);
+
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
@@ -1864,7 +2379,14 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        MXEventsBatch eventsBatch = getEventsBatch();
+
+        if (null != eventsBatch) {
+            eventsBatch.addBingEvent(event, roomState, bingRule);
+            return;
+        }
+
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1899,7 +2421,20 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        IMXStore store = getStore(event.roomId);
+
+        if (null != store) {
+            store.onEventUpdated(event);
+        }
+
+        MXEventsBatch eventsBatch = getEventsBatch();
+
+        if (null != eventsBatch) {
+            eventsBatch.addSentStateUpdatedEvent(event);
+            return;
+        }
+
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1925,7 +2460,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1947,7 +2482,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onBingRulesUpdate();
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1975,7 +2510,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onInitialSyncComplete(toToken);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -1995,7 +2530,7 @@ public class MXDataHandler implements IMXEventListener {
      * Dispatch the OnCryptoSyncComplete event.
      */
     private void dispatchOnCryptoSyncComplete() {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2048,6 +2583,8 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onInitialSyncComplete(String toToken) {
+        // the events must be dispatched before the end of the initial sync
+        flushEventsBatch(false);
         dispatchOnInitialSyncComplete(toToken);
     }
 
@@ -2065,7 +2602,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2091,7 +2628,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2117,7 +2654,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2143,7 +2680,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2169,7 +2706,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2195,7 +2732,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2226,7 +2763,14 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        MXEventsBatch eventsBatch = getEventsBatch();
+
+        if (null != eventsBatch) {
+            eventsBatch.addReceiptEvent(roomId, senderIds);
+            return;
+        }
+
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2252,7 +2796,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2278,7 +2822,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2304,7 +2848,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2326,7 +2870,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onIgnoredUsersListUpdate();
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2352,7 +2896,7 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2370,7 +2914,7 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onDirectMessageChatRoomsListUpdate() {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getGlobalListenersSnapshot();
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -2388,7 +2932,11 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onEventDecrypted(final Event event) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        if (null != mLocalSearchIndex) {
+            mLocalSearchIndex.indexEvent(event);
+        }
+
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
         mUiHandler.post(new Runnable() {
             @Override
@@ -40,7 +40,9 @@ import org.matrix.androidsdk.data.cryptostore.MXFileCryptoStore;
 import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.data.store.MXStoreListener;
 import org.matrix.androidsdk.db.MXLatestChatMessageCache;
+import org.matrix.androidsdk.db.MXLocalSearchIndex;
 import org.matrix.androidsdk.db.MXMediasCache;
+import org.matrix.androidsdk.db.MXURLPreviewCache;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.ApiFailureCallback;
@@ -70,19 +72,25 @@ import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.RoomResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersResponse;
+import org.matrix.androidsdk.rest.model.URLPreview;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.rest.model.login.LoginFlow;
 import org.matrix.androidsdk.rest.model.login.RegistrationFlowResponse;
 import org.matrix.androidsdk.sync.DefaultEventsThreadListener;
+import org.matrix.androidsdk.sync.DefaultSyncPolicy;
 import org.matrix.androidsdk.sync.EventsThread;
 import org.matrix.androidsdk.sync.EventsThreadListener;
+import org.matrix.androidsdk.sync.SyncFilterManager;
+import org.matrix.androidsdk.sync.SyncPolicy;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.ContentUtils;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXMemoryGovernor;
+import org.matrix.androidsdk.util.MXMetrics;
 import org.matrix.androidsdk.util.UnsentEventsManager;
 import org.matrix.olm.OlmManager;
 
@@ -136,6 +144,8 @@ public class MXSession {
     private UnsentEventsManager mUnsentEventsManager;
 
     private MXLatestChatMessageCache mLatestChatMessageCache;
+    private MXLocalSearchIndex mLocalSearchIndex;
+    private MXURLPreviewCache mURLPreviewCache;
     private MXMediasCache mMediasCache;
 
     private BingRulesManager mBingRulesManager = null;
@@ -156,6 +166,12 @@ public class MXSession {
     // tell if the data save mode is enabled
     private boolean mUseDataSaveMode;
 
+    // the sync filters
+    private SyncFilterManager mSyncFilterManager;
+
+    // the sync requests scheduling
+    private SyncPolicy mSyncPolicy = new DefaultSyncPolicy();
+
     // load the crypto libs.
     public static OlmManager mOlmManager = new OlmManager();
 
@@ -312,8 +328,16 @@ public class MXSession {
 
         // return the default cache manager
         mLatestChatMessageCache = new MXLatestChatMessageCache(mCredentials.userId);
+        // load the drafts in background
+        mLatestChatMessageCache.open(appContext, null);
         mMediasCache = new MXMediasCache(mContentManager, mNetworkConnectivityReceiver, mCredentials.userId, appContext);
         mDataHandler.setMediasCache(mMediasCache);
+        mLocalSearchIndex = new MXLocalSearchIndex(appContext, mCredentials.userId);
+        mDataHandler.setLocalSearchIndex(mLocalSearchIndex);
+        mURLPreviewCache = new MXURLPreviewCache(appContext, hsConfig, mCredentials.userId, mEventsRestClient, mMediasCache);
+
+        // trim the memory caches when the system requests it
+        MXMemoryGovernor.attach(appContext);
     }
 
     private void checkIfAlive() {
@@ -563,6 +587,53 @@ public class MXSession {
         return mMediasCache;
     }
 
+    public MXLocalSearchIndex getLocalSearchIndex() {
+        checkIfAlive();
+        return mLocalSearchIndex;
+    }
+
+    public MXURLPreviewCache getURLPreviewCache() {
+        checkIfAlive();
+        return mURLPreviewCache;
+    }
+
+    /**
+     * Provides the SDK metrics (sync requests and processing, store commits, crypto, medias cache, memory caches sizes).
+     * The metrics are shared by the sessions of the application process.
+     *
+     * @return the metrics snapshot, as described by MXMetrics.getSnapshot()
+     */
+    public JsonObject getMetricsSnapshot() {
+        JsonObject snapshot = MXMetrics.getSnapshot();
+
+        // add the store load times
+        if (null != mDataHandler.getStore()) {
+            Map<String, Long> storeStats = mDataHandler.getStore().getStats();
+
+            if (null != storeStats) {
+                JsonObject storeLoadTimes = new JsonObject();
+
+                for (Map.Entry<String, Long> entry : storeStats.entrySet()) {
+                    storeLoadTimes.addProperty(entry.getKey(), entry.getValue());
+                }
+
+                snapshot.add("store_load_ms", storeLoadTimes);
+            }
+        }
+
+        // add the memory caches sizes
+        snapshot.add("memory", MXMemoryGovernor.getRetainedSizes());
+
+        return snapshot;
+    }
+
+    /**
+     * Reset the SDK metrics counters and histograms.
+     */
+    public void resetMetrics() {
+        MXMetrics.reset();
+    }
+
     /**
      * Provides the application caches size.
      *
@@ -620,7 +691,12 @@ public class MXSession {
         mUnsentEventsManager.clear();
 
         mLatestChatMessageCache.clearCache(context);
+        mLatestChatMessageCache.close();
         mMediasCache.clear();
+        mLocalSearchIndex.clear();
+        mLocalSearchIndex.close();
+        mURLPreviewCache.clear();
+        mURLPreviewCache.close();
 
         if (null != mCrypto) {
             mCrypto.close();
@@ -713,7 +789,7 @@ public class MXSession {
                 for (Event event : events) {
                     try {
                         if (TextUtils.equals(Event.EVENT_TYPE_MESSAGE, event.getType())) {
-                            Message message = JsonUtils.toMessage(event.getContent());
+                            Message message = event.getMessage();
 
                             if (message instanceof MediaMessage) {
                                 MediaMessage mediaMessage = (MediaMessage) message;
@@ -859,12 +935,14 @@ public class MXSession {
             mEventsThread.setIsOnline(mIsOnline);
             mEventsThread.setServerLongPollTimeout(mSyncTimeout);
             mEventsThread.setSyncDelay(mSyncDelay);
+            mEventsThread.setSyncPolicy(mSyncPolicy);
 
             if (mFailureCallback != null) {
                 mEventsThread.setFailureCallback(mFailureCallback);
             }
 
             mEventsThread.setUseDataSaveMode(mUseDataSaveMode);
+            mEventsThread.setFilterManager(getSyncFilterManager());
 
             if (mCredentials.accessToken != null && !mEventsThread.isAlive()) {
                 // GA issue
@@ -973,6 +1051,28 @@ public class MXSession {
         return mSyncDelay;
     }
 
+    /**
+     * Set the policy which schedules the sync requests.
+     *
+     * @param syncPolicy the sync policy
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        if (null != syncPolicy) {
+            mSyncPolicy = syncPolicy;
+
+            if (null != mEventsThread) {
+                mEventsThread.setSyncPolicy(syncPolicy);
+            }
+        }
+    }
+
+    /**
+     * @return the policy which schedules the sync requests.
+     */
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
     /**
      * Update the data save mode
      *
@@ -985,6 +1085,19 @@ public class MXSession {
         }
     }
 
+    /**
+     * @return the sync filters manager
+     */
+    public SyncFilterManager getSyncFilterManager() {
+        checkIfAlive();
+
+        if (null == mSyncFilterManager) {
+            mSyncFilterManager = new SyncFilterManager(mDataHandler.getStore(), mEventsRestClient, mCredentials.userId);
+        }
+
+        return mSyncFilterManager;
+    }
+
     /**
      * Refresh the network connection information.
      * On android version older than 6.0, the doze mode might have killed the network connection.
@@ -1515,6 +1628,50 @@ public class MXSession {
         }
     }
 
+    /**
+     * Perform a text search in the messages indexed on the device.
+     * The encrypted rooms messages are also searched.
+     *
+     * @param text      the text to search for.
+     * @param rooms     a list of rooms to search in. nil means all rooms the user is in.
+     * @param nextBatch the token to pass for doing pagination from a previous response.
+     * @param callback  the request callback
+     */
+    public void searchMessagesLocallyByText(String text, List<String> rooms, String nextBatch, final ApiCallback<SearchResponse> callback) {
+        checkIfAlive();
+        if (null != callback) {
+            mLocalSearchIndex.search(text, rooms, false, nextBatch, callback);
+        }
+    }
+
+    /**
+     * Perform a media search by name in the messages indexed on the device.
+     *
+     * @param name      the text to search for.
+     * @param rooms     a list of rooms to search in. nil means all rooms the user is in.
+     * @param nextBatch the token to pass for doing pagination from a previous response.
+     * @param callback  the request callback
+     */
+    public void searchMediasLocallyByName(String name, List<String> rooms, String nextBatch, final ApiCallback<SearchResponse> callback) {
+        checkIfAlive();
+        if (null != callback) {
+            mLocalSearchIndex.search(name, rooms, true, nextBatch, callback);
+        }
+    }
+
+    /**
+     * Retrieve the URL preview information.
+     * The previews are cached, so the same URL is only requested once per time bucket.
+     *
+     * @param URL      the URL
+     * @param ts       the timestamp
+     * @param callback the asynchronous callback
+     */
+    public void getURLPreview(String URL, long ts, ApiCallback<URLPreview> callback) {
+        checkIfAlive();
+        mURLPreviewCache.getURLPreview(URL, ts, callback);
+    }
+
     /**
      * Cancel any pending search request
      */
@@ -1833,9 +1990,9 @@ public class MXSession {
             for (Room r : rooms) {
                 // Show 1:1 chats in separate "Direct Messages" section as long as they haven't
                 // been moved to a different tag section
-                if ((r.getActiveMembers().size() == 2) && (null != r.getAccountData()) && (!r.getAccountData().hasTags())) {
+                if ((r.getReadOnlyActiveMembers().size() == 2) && (null != r.getAccountData()) && (!r.getAccountData().hasTags())) {
                     RoomMember roomMember = r.getMember(getMyUserId());
-                    members = new ArrayList<>(r.getActiveMembers());
+                    members = new ArrayList<>(r.getReadOnlyActiveMembers());
 
                     if (null != roomMember) {
                         String membership = roomMember.membership;
@@ -1927,7 +2084,7 @@ public class MXSession {
                 String chosenUserId;
 
                 if (null == aParticipantUserId) {
-                    List<RoomMember> members = new ArrayList<>(room.getActiveMembers());
+                    List<RoomMember> members = new ArrayList<>(room.getReadOnlyActiveMembers());
 
                     // should never happen but it was reported by a GA issue
                     if (members.isEmpty()) {
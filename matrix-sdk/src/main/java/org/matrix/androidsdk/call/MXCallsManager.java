@@ -521,7 +521,7 @@ public class MXCallsManager {
                             if ((null != room) &&
                                     room.isEncrypted() &&
                                     mSession.getCrypto().warnOnUnknownDevices() &&
-                                    (room.getJoinedMembers().size() == 2)) {
+                                    (room.getReadOnlyJoinedMembers().size() == 2)) {
 
                                 // test if the encrypted events are sent only to the verified devices (any room)
                                 mSession.getCrypto().getGlobalBlacklistUnverifiedDevices(new SimpleApiCallback<Boolean>() {
@@ -537,7 +537,7 @@ public class MXCallsManager {
                                                     if (sendToVerifiedDevicesOnly) {
                                                         dispatchOnIncomingCall(call, null);
                                                     } else {
-                                                        List<RoomMember> members = new ArrayList<>(room.getJoinedMembers());
+                                                        List<RoomMember> members = new ArrayList<>(room.getReadOnlyJoinedMembers());
                                                         String userId1 = members.get(0).getUserId();
                                                         String userId2 = members.get(1).getUserId();
 
@@ -621,7 +621,7 @@ public class MXCallsManager {
         // sanity check
         if (null != room) {
             if (isSupported()) {
-                int joinedMembers = room.getJoinedMembers().size();
+                int joinedMembers = room.getReadOnlyJoinedMembers().size();
 
                 Log.d(LOG_TAG, "createCallInRoom : the room has " + joinedMembers + " joined members");
 
@@ -631,7 +631,7 @@ public class MXCallsManager {
                         // else the call will fail.
                         // So it seems safer to reject the call creation it it will fail.
                         if (room.isEncrypted() && mSession.getCrypto().warnOnUnknownDevices()) {
-                            List<RoomMember> members = new ArrayList<>(room.getJoinedMembers());
+                            List<RoomMember> members = new ArrayList<>(room.getReadOnlyJoinedMembers());
                             String userId1 = members.get(0).getUserId();
                             String userId2 = members.get(1).getUserId();
 
@@ -17,13 +17,17 @@
 
 package org.matrix.androidsdk.crypto;
 
+import android.content.ComponentCallbacks2;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.text.TextUtils;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.crypto.algorithms.IMXDecrypting;
@@ -38,9 +42,11 @@ import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
+import org.matrix.androidsdk.listeners.IMXRoomKeysImportListener;
 import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.EventContent;
 import org.matrix.androidsdk.rest.model.MatrixError;
@@ -52,8 +58,17 @@ import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.rest.model.crypto.KeysUploadResponse;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
-
+import org.matrix.androidsdk.util.MXMemoryGovernor;
+import org.matrix.androidsdk.util.MXMetrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -64,6 +79,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A `MXCrypto` class instance manages the end-to-end crypto for a MXSession instance.
@@ -77,6 +94,13 @@ import java.util.concurrent.CountDownLatch;
 public class MXCrypto {
     private static final String LOG_TAG = MXCrypto.class.getSimpleName();
 
+    // metrics
+    private static final MXMetrics.Histogram ENCRYPT_MS = MXMetrics.histogram("crypto.encrypt_ms");
+    private static final MXMetrics.Gauge ENCRYPT_QUEUE_DEPTH = MXMetrics.gauge("crypto.encrypt_queue_depth");
+    private static final MXMetrics.Histogram DECRYPT_US = MXMetrics.histogram("crypto.decrypt_us");
+    private static final MXMetrics.Gauge DECRYPT_QUEUE_DEPTH = MXMetrics.gauge("crypto.decrypt_queue_depth");
+    private static final MXMetrics.Counter DECRYPT_FAILURES = MXMetrics.counter("crypto.decrypt_failures");
+
     // max number of keys to upload at once
     // Creating keys can be an expensive operation so we limit the
     // number we generate in one go to avoid blocking the application
@@ -86,6 +110,12 @@ public class MXCrypto {
     // frequency with which to check & upload one-time keys
     private static final long ONE_TIME_KEY_UPLOAD_PERIOD = 60 * 1000; // one minute
 
+    // number of sessions imported per batch
+    private static final int IMPORT_ROOM_KEYS_BATCH_SIZE = 100;
+
+    // the max delay to wait for the decrypting thread before releasing the inbound group sessions
+    private static final long RELEASE_INBOUND_GROUP_SESSIONS_TIMEOUT_MS = 2 * 1000;
+
     // The Matrix session.
     private final MXSession mSession;
 
@@ -123,6 +153,13 @@ public class MXCrypto {
     // the UI thread
     private Handler mUIHandler = null;
 
+    // the identity keys of the devices whose one-time keys are being claimed,
+    // with the operations waiting for their olm sessions
+    private final HashMap<String, ArrayList<Runnable>> mOlmSessionsInProgress = new HashMap<>();
+
+    // keep olm sessions with the devices of the recently active encrypted rooms
+    private final MXOlmSessionsPrewarmer mOlmSessionsPrewarmer;
+
     private NetworkConnectivityReceiver mNetworkConnectivityReceiver;
 
     private Integer mOneTimeKeyCount;
@@ -141,6 +178,27 @@ public class MXCrypto {
         }
     };
 
+    // the inbound group sessions are released when the memory is critical or when the application is in background
+    private final MXMemoryGovernor.ITrimmableCache mInboundGroupSessionsTrimmableCache = new MXMemoryGovernor.ITrimmableCache() {
+        @Override
+        public String getName() {
+            return "crypto.inbound_group_sessions_count";
+        }
+
+        @Override
+        public long getRetainedSize() {
+            IMXCryptoStore cryptoStore = mCryptoStore;
+            return (null != cryptoStore) ? cryptoStore.getInboundGroupSessionsCount() : 0;
+        }
+
+        @Override
+        public void trim(int level) {
+            if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+                releaseInboundGroupSessions();
+            }
+        }
+    };
+
     private final MXEventListener mEventListener = new MXEventListener() {
         @Override
         public void onToDeviceEvent(Event event) {
@@ -153,6 +211,8 @@ public class MXCrypto {
                 onCryptoEvent(event);
             } else if (TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
                 onRoomMembership(event);
+            } else if (event.isEncrypted()) {
+                onEncryptedRoomActivity(event.roomId);
             }
         }
     };
@@ -247,6 +307,8 @@ public class MXCrypto {
 
         mUIHandler = new Handler(Looper.getMainLooper());
 
+        mOlmSessionsPrewarmer = new MXOlmSessionsPrewarmer(mSession, this);
+
         if (refreshDevicesList) {
             // ensure to have the up-to-date devices list
             // got some issues when upgrading from Riot < 0.6.4
@@ -254,6 +316,50 @@ public class MXCrypto {
         }
 
         mOutgoingRoomKeyRequestManager = new MXOutgoingRoomKeyRequestManager(mSession, this);
+
+        MXMemoryGovernor.register(mInboundGroupSessionsTrimmableCache, MXMemoryGovernor.PRIORITY_RELOADABLE);
+    }
+
+    /**
+     * Release the inbound group sessions kept in memory.
+     * The sessions are used by the encrypting and the decrypting threads, so the decrypting thread
+     * is paused while they are released from the encrypting thread.
+     */
+    private void releaseInboundGroupSessions() {
+        getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final CountDownLatch pausedLock = new CountDownLatch(1);
+                final CountDownLatch releasedLock = new CountDownLatch(1);
+
+                getDecryptingThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pausedLock.countDown();
+
+                        try {
+                            releasedLock.await(RELEASE_INBOUND_GROUP_SESSIONS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Log.e(LOG_TAG, "## releaseInboundGroupSessions() : await failed " + e.getMessage());
+                        }
+                    }
+                });
+
+                try {
+                    if (pausedLock.await(RELEASE_INBOUND_GROUP_SESSIONS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        if (null != mCryptoStore) {
+                            mCryptoStore.releaseInboundGroupSessions();
+                        }
+                    } else {
+                        Log.e(LOG_TAG, "## releaseInboundGroupSessions() : the decrypting thread is busy");
+                    }
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "## releaseInboundGroupSessions() : await failed " + e.getMessage());
+                }
+
+                releasedLock.countDown();
+            }
+        });
     }
 
     /**
@@ -522,11 +628,15 @@ public class MXCrypto {
      * Close the crypto
      */
     public void close() {
+        MXMemoryGovernor.unregister(mInboundGroupSessionsTrimmableCache);
+
         if (null != mEncryptingHandlerThread) {
             mSession.getDataHandler().removeListener(mEventListener);
             getEncryptingThreadHandler().post(new Runnable() {
                 @Override
                 public void run() {
+                    mOlmSessionsPrewarmer.stop();
+
                     if (null != mOlmDevice) {
                         mOlmDevice.release();
                         mOlmDevice = null;
@@ -907,7 +1017,7 @@ public class MXCrypto {
 
             Room room = mSession.getDataHandler().getRoom(roomId);
             if (null != room) {
-                Collection<RoomMember> members = room.getJoinedMembers();
+                Collection<RoomMember> members = room.getReadOnlyJoinedMembers();
                 List<String> userIds = new ArrayList<>();
 
                 for (RoomMember m : members) {
@@ -999,14 +1109,15 @@ public class MXCrypto {
 
     /**
      * Try to make sure we have established olm sessions for the given devices.
-     * It must be called in getCryptoHandler() thread.
+     * The devices whose one-time keys are already being claimed are not claimed again:
+     * their olm sessions are retrieved once the pending claim is done.
      * The callback is called in the UI thread.
      *
      * @param devicesByUser a map from userid to list of devices.
      * @param callback      teh asynchronous callback
      */
     public void ensureOlmSessionsForDevices(final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser, final ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>> callback) {
-        ArrayList<MXDeviceInfo> devicesWithoutSession = new ArrayList<>();
+        final ArrayList<MXDeviceInfo> devicesWithoutSession = new ArrayList<>();
 
         final MXUsersDevicesMap<MXOlmSessionResult> results = new MXUsersDevicesMap<>();
 
@@ -1042,6 +1153,62 @@ public class MXCrypto {
             return;
         }
 
+        // the devices whose one-time keys are being claimed by another request
+        final ArrayList<MXDeviceInfo> devicesInProgress = new ArrayList<>();
+        final ArrayList<String> claimedDeviceKeys = new ArrayList<>();
+
+        synchronized (mOlmSessionsInProgress) {
+            for (MXDeviceInfo device : devicesWithoutSession) {
+                String key = device.identityKey();
+
+                if (mOlmSessionsInProgress.containsKey(key)) {
+                    devicesInProgress.add(device);
+                } else {
+                    mOlmSessionsInProgress.put(key, new ArrayList<Runnable>());
+                    claimedDeviceKeys.add(key);
+                }
+            }
+        }
+
+        devicesWithoutSession.removeAll(devicesInProgress);
+
+        // the claim and each device in progress
+        final AtomicInteger remainingOperations = new AtomicInteger(devicesInProgress.size() + (devicesWithoutSession.isEmpty() ? 0 : 1));
+
+        // called in getEncryptingThreadHandler() thread
+        final Runnable onOperationDone = new Runnable() {
+            @Override
+            public void run() {
+                if (0 == remainingOperations.decrementAndGet()) {
+                    if (hasBeenReleased()) {
+                        return;
+                    }
+
+                    // the sessions started by the other requests
+                    for (MXDeviceInfo device : devicesInProgress) {
+                        results.getObject(device.deviceId, device.userId).mSessionId = mOlmDevice.getSessionId(device.identityKey());
+                    }
+
+                    if (null != callback) {
+                        getUIHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSuccess(results);
+                            }
+                        });
+                    }
+                }
+            }
+        };
+
+        for (MXDeviceInfo device : devicesInProgress) {
+            waitForOlmSessionInProgress(device.identityKey(), onOperationDone);
+        }
+
+        if (devicesWithoutSession.isEmpty()) {
+            return;
+        }
+
         // Prepare the request for claiming one-time keys
         MXUsersDevicesMap<String> usersDevicesToClaim = new MXUsersDevicesMap<>();
 
@@ -1051,12 +1218,6 @@ public class MXCrypto {
             usersDevicesToClaim.setObject(oneTimeKeyAlgorithm, device.userId, device.deviceId);
         }
 
-        // TODO: this has a race condition - if we try to send another message
-        // while we are claiming a key, we will end up claiming two and setting up
-        // two sessions.
-        //
-        // That should eventually resolve itself, but it's poor form.
-
         Log.d(LOG_TAG, "## claimOneTimeKeysForUsersDevices() : " + usersDevicesToClaim);
 
         mSession.getCryptoRestClient().claimOneTimeKeysForUsersDevices(usersDevicesToClaim, new ApiCallback<MXUsersDevicesMap<MXKey>>() {
@@ -1065,67 +1226,34 @@ public class MXCrypto {
                 getEncryptingThreadHandler().post(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            Log.d(LOG_TAG, "## claimOneTimeKeysForUsersDevices() : keysClaimResponse.oneTimeKeys: " + oneTimeKeys);
-
-                            Set<String> userIds = devicesByUser.keySet();
-
-                            for (String userId : userIds) {
-                                ArrayList<MXDeviceInfo> deviceInfos = devicesByUser.get(userId);
-
-                                for (MXDeviceInfo deviceInfo : deviceInfos) {
-
-                                    MXKey oneTimeKey = null;
-
-                                    List<String> deviceIds = oneTimeKeys.getUserDeviceIds(userId);
-
-                                    if (null != deviceIds) {
-                                        for (String deviceId : deviceIds) {
-                                            MXOlmSessionResult olmSessionResult = results.getObject(deviceId, userId);
-
-                                            if (null != olmSessionResult.mSessionId) {
-                                                // We already have a result for this device
-                                                continue;
-                                            }
-
-                                            MXKey key = oneTimeKeys.getObject(deviceId, userId);
-
-                                            if (TextUtils.equals(key.type, oneTimeKeyAlgorithm)) {
-                                                oneTimeKey = key;
-                                            }
-
-                                            if (null == oneTimeKey) {
-                                                Log.d(LOG_TAG, "## ensureOlmSessionsForDevices() : No one-time keys " + oneTimeKeyAlgorithm + " for device " + userId + " : " + deviceId);
-                                                continue;
-                                            }
-
-                                            // Update the result for this device in results
-                                            olmSessionResult.mSessionId = verifyKeyAndStartSession(oneTimeKey, userId, deviceInfo);
-                                        }
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, "## ensureOlmSessionsForDevices() " + e.getMessage());
-                        }
+                        Log.d(LOG_TAG, "## claimOneTimeKeysForUsersDevices() : keysClaimResponse.oneTimeKeys: " + oneTimeKeys);
 
                         if (!hasBeenReleased()) {
-                            if (null != callback) {
-                                getUIHandler().post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onSuccess(results);
-                                    }
-                                });
-                            }
+                            startOlmSessions(devicesWithoutSession, oneTimeKeys, oneTimeKeyAlgorithm, results);
                         }
+
+                        onOlmSessionsDone(claimedDeviceKeys);
+                        onOperationDone.run();
+                    }
+                });
+            }
+
+            private void onError() {
+                getEncryptingThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onOlmSessionsDone(claimedDeviceKeys);
                     }
                 });
+
+                // the callback must not be called once more
+                remainingOperations.set(-1);
             }
 
             @Override
             public void onNetworkError(Exception e) {
                 Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+                onError();
 
                 if (null != callback) {
                     callback.onNetworkError(e);
@@ -1135,6 +1263,7 @@ public class MXCrypto {
             @Override
             public void onMatrixError(MatrixError e) {
                 Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+                onError();
 
                 if (null != callback) {
                     callback.onMatrixError(e);
@@ -1144,6 +1273,7 @@ public class MXCrypto {
             @Override
             public void onUnexpectedError(Exception e) {
                 Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+                onError();
 
                 if (null != callback) {
                     callback.onUnexpectedError(e);
@@ -1152,6 +1282,105 @@ public class MXCrypto {
         });
     }
 
+    /**
+     * Wait for the end of the one-time key claim of a device.
+     *
+     * @param deviceKey the device identity key
+     * @param onDone    called in getEncryptingThreadHandler() thread when the claim is done
+     */
+    private void waitForOlmSessionInProgress(String deviceKey, Runnable onDone) {
+        synchronized (mOlmSessionsInProgress) {
+            ArrayList<Runnable> waitingOperations = mOlmSessionsInProgress.get(deviceKey);
+
+            if (null != waitingOperations) {
+                waitingOperations.add(onDone);
+                return;
+            }
+        }
+
+        // the claim is already done
+        getEncryptingThreadHandler().post(onDone);
+    }
+
+    /**
+     * The one-time key claim of some devices is done.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param deviceKeys the devices identity keys
+     */
+    private void onOlmSessionsDone(List<String> deviceKeys) {
+        List<Runnable> waitingOperations = new ArrayList<>();
+
+        synchronized (mOlmSessionsInProgress) {
+            for (String deviceKey : deviceKeys) {
+                ArrayList<Runnable> operations = mOlmSessionsInProgress.remove(deviceKey);
+
+                if (null != operations) {
+                    waitingOperations.addAll(operations);
+                }
+            }
+        }
+
+        for (Runnable operation : waitingOperations) {
+            operation.run();
+        }
+    }
+
+    /**
+     * Start the olm sessions with the claimed one-time keys.
+     * The olm account is only used by the crypto threads, so the sessions are started one by one.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param devices             the devices without olm session
+     * @param oneTimeKeys         the claimed one-time keys
+     * @param oneTimeKeyAlgorithm the one-time key algorithm
+     * @param results             the results to update
+     */
+    private void startOlmSessions(List<MXDeviceInfo> devices,
+                                  MXUsersDevicesMap<MXKey> oneTimeKeys,
+                                  String oneTimeKeyAlgorithm,
+                                  MXUsersDevicesMap<MXOlmSessionResult> results) {
+        final long t0 = System.currentTimeMillis();
+        int count = 0;
+
+        for (MXDeviceInfo deviceInfo : devices) {
+            String userId = deviceInfo.userId;
+            String deviceId = deviceInfo.deviceId;
+            MXOlmSessionResult olmSessionResult = results.getObject(deviceId, userId);
+
+            if ((null == olmSessionResult) || (null != olmSessionResult.mSessionId)) {
+                // We already have a result for this device
+                continue;
+            }
+
+            MXKey oneTimeKey = oneTimeKeys.getObject(deviceId, userId);
+
+            if ((null == oneTimeKey) || !TextUtils.equals(oneTimeKey.type, oneTimeKeyAlgorithm)) {
+                Log.d(LOG_TAG, "## ensureOlmSessionsForDevices() : No one-time keys " + oneTimeKeyAlgorithm + " for device " + userId + " : " + deviceId);
+                continue;
+            }
+
+            try {
+                // Update the result for this device in results
+                olmSessionResult.mSessionId = verifyKeyAndStartSession(oneTimeKey, userId, deviceInfo);
+                count++;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## ensureOlmSessionsForDevices() " + e.getMessage());
+            }
+        }
+
+        Log.d(LOG_TAG, "## startOlmSessions() : " + count + " sessions started in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Verify the signature of a claimed one-time key and start an olm session with it.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param oneTimeKey the claimed one-time key
+     * @param userId     the user id
+     * @param deviceInfo the device info
+     * @return the olm session id, null if it fails
+     */
     private String verifyKeyAndStartSession(MXKey oneTimeKey, String userId, MXDeviceInfo deviceInfo) {
         String sessionId = null;
 
@@ -1189,6 +1418,38 @@ public class MXCrypto {
     }
 
 
+    /**
+     * Some activity has been detected in an encrypted room.
+     *
+     * @param roomId the room id
+     */
+    private void onEncryptedRoomActivity(final String roomId) {
+        if (null != mEncryptingHandlerThread) {
+            getEncryptingThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mOlmSessionsPrewarmer.onRoomActivity(roomId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Enable or disable the olm sessions pre-warming.
+     * When it is enabled, the olm sessions with the devices of the recently active encrypted rooms
+     * are established in background, so the first sent message does not wait for them.
+     *
+     * @param isEnabled true to enable it
+     */
+    public void setOlmSessionsPrewarmingEnabled(final boolean isEnabled) {
+        getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mOlmSessionsPrewarmer.setEnabled(isEnabled);
+            }
+        });
+    }
+
     /**
      * Encrypt an event content according to the configuration of the room.
      *
@@ -1242,15 +1503,21 @@ public class MXCrypto {
         // just as you are sending a secret message?
         final ArrayList<String> userdIds = new ArrayList<>();
 
-        Collection<RoomMember> joinedMembers = room.getJoinedMembers();
+        Collection<RoomMember> joinedMembers = room.getReadOnlyJoinedMembers();
 
         for (RoomMember m : joinedMembers) {
             userdIds.add(m.getUserId());
         }
 
+        onEncryptedRoomActivity(room.getRoomId());
+
+        final long fEncryptStartNs = System.nanoTime();
+        ENCRYPT_QUEUE_DEPTH.inc();
+
         getEncryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
+                ENCRYPT_QUEUE_DEPTH.dec();
                 IMXEncrypting alg;
 
                 synchronized (mRoomEncryptors) {
@@ -1277,6 +1544,7 @@ public class MXCrypto {
                         @Override
                         public void onSuccess(final JsonElement encryptedContent) {
                             Log.d(LOG_TAG, "## encryptEventContent() : succeeds after " + (System.currentTimeMillis() - t0) + " ms");
+                            ENCRYPT_MS.recordElapsedMs(fEncryptStartNs);
 
                             if (null != callback) {
                                 callback.onSuccess(new MXEncryptEventContentResult(encryptedContent, Event.EVENT_TYPE_MESSAGE_ENCRYPTED));
@@ -1351,9 +1619,13 @@ public class MXCrypto {
         final CountDownLatch lock = new CountDownLatch(1);
         final List<MXDecryptionException> exceptions = new ArrayList<>();
 
+        long decryptStartNs = System.nanoTime();
+        DECRYPT_QUEUE_DEPTH.inc();
+
         getDecryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
+                DECRYPT_QUEUE_DEPTH.dec();
                 MXEventDecryptionResult result = null;
                 IMXDecrypting alg = getRoomDecryptor(event.roomId, eventContent.algorithm);
 
@@ -1382,7 +1654,10 @@ public class MXCrypto {
             Log.e(LOG_TAG, "## decryptEvent() : failed " + e.getMessage());
         }
 
+        DECRYPT_US.recordElapsedUs(decryptStartNs);
+
         if (!exceptions.isEmpty()) {
+            DECRYPT_FAILURES.inc();
             throw exceptions.get(0);
         }
 
@@ -1520,7 +1795,7 @@ public class MXCrypto {
         List<Room> rooms = getE2eRooms();
 
         for (Room r : rooms) {
-            Collection<RoomMember> activeMembers = r.getActiveMembers();
+            Collection<RoomMember> activeMembers = r.getReadOnlyActiveMembers();
 
             for (RoomMember m : activeMembers) {
                 // add only the matrix id
@@ -2241,46 +2516,96 @@ public class MXCrypto {
      * @param callback         the exported keys
      */
     public void exportRoomKeys(final String password, int anIterationCount, final ApiCallback<byte[]> callback) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        exportRoomKeys(outputStream, password, anIterationCount, new SimpleApiCallback<Void>(callback) {
+            @Override
+            public void onSuccess(Void info) {
+                callback.onSuccess(outputStream.toByteArray());
+            }
+        });
+    }
+
+    /**
+     * Export the crypto keys into an output stream.
+     * The sessions are serialised and encrypted one by one so the memory usage
+     * does not depend on the number of exported sessions.
+     * The output stream is closed when the export is done, even if it fails.
+     *
+     * @param outputStream     the output stream
+     * @param password         the password
+     * @param anIterationCount the encryption iteration count (0 means no encryption)
+     * @param callback         the asynchronous callback
+     */
+    public void exportRoomKeys(final OutputStream outputStream, final String password, int anIterationCount, final ApiCallback<Void> callback) {
         final int iterationCount = Math.max(0, anIterationCount);
 
         getDecryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
                 if (null == mCryptoStore) {
+                    try {
+                        outputStream.close();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## exportRoomKeys() : close failed " + e.getMessage());
+                    }
+
                     getUIHandler().post(new Runnable() {
                         @Override
                         public void run() {
-                            callback.onSuccess(new byte[0]);
+                            callback.onSuccess(null);
                         }
                     });
                     return;
                 }
 
-                ArrayList<Map<String, Object>> exportedSessions = new ArrayList<>();
+                long t0 = System.currentTimeMillis();
+                int exportedSessionsCount = 0;
+
+                try {
+                    Gson gson = JsonUtils.getGson(false);
+                    OutputStream encryptingStream = MXMegolmExportEncryption.encryptMegolmKeyStream(outputStream, password, iterationCount);
+                    JsonWriter jsonWriter = new JsonWriter(new BufferedWriter(new OutputStreamWriter(encryptingStream, "UTF-8")));
+
+                    jsonWriter.beginArray();
 
-                List<MXOlmInboundGroupSession2> inboundGroupSessions = mCryptoStore.getInboundGroupSessions();
+                    List<MXOlmInboundGroupSession2> inboundGroupSessions = mCryptoStore.getInboundGroupSessions();
 
-                for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
-                    Map<String, Object> map = session.exportKeys();
+                    for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
+                        Map<String, Object> map = session.exportKeys();
 
-                    if (null != map) {
-                        exportedSessions.add(map);
+                        if (null != map) {
+                            gson.toJson(gson.toJsonTree(map), jsonWriter);
+                            exportedSessionsCount++;
+                        }
                     }
-                }
 
-                final byte[] encryptedRoomKeys;
+                    jsonWriter.endArray();
+                    jsonWriter.close();
+                } catch (final Exception e) {
+                    Log.e(LOG_TAG, "## exportRoomKeys() failed " + e.getMessage());
 
-                try {
-                    encryptedRoomKeys = MXMegolmExportEncryption.encryptMegolmKeyFile(JsonUtils.getGson(false).toJsonTree(exportedSessions).toString(), password, iterationCount);
-                } catch (Exception e) {
-                    callback.onUnexpectedError(e);
+                    try {
+                        outputStream.close();
+                    } catch (Exception e2) {
+                        Log.e(LOG_TAG, "## exportRoomKeys() : close failed " + e2.getMessage());
+                    }
+
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUnexpectedError(e);
+                        }
+                    });
                     return;
                 }
 
+                Log.d(LOG_TAG, "## exportRoomKeys : " + exportedSessionsCount + " sessions exported in " + (System.currentTimeMillis() - t0) + " ms");
+
                 getUIHandler().post(new Runnable() {
                     @Override
                     public void run() {
-                        callback.onSuccess(encryptedRoomKeys);
+                        callback.onSuccess(null);
                     }
                 });
             }
@@ -2295,14 +2620,28 @@ public class MXCrypto {
      * @param callback        the asynchronous callback.
      */
     public void importRoomKeys(final byte[] roomKeysAsArray, final String password, final ApiCallback<Void> callback) {
+        importRoomKeys(roomKeysAsArray, password, null, callback);
+    }
+
+    /**
+     * Import the room keys.
+     * The export is decrypted and parsed as a stream, and the sessions are imported by batches
+     * of {@link #IMPORT_ROOM_KEYS_BATCH_SIZE}.
+     *
+     * @param roomKeysAsArray  the room keys as array.
+     * @param password         the password
+     * @param progressListener the progress listener (optional)
+     * @param callback         the asynchronous callback.
+     */
+    public void importRoomKeys(final byte[] roomKeysAsArray, final String password, final IMXRoomKeysImportListener progressListener, final ApiCallback<Void> callback) {
         getDecryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
                 long t0 = System.currentTimeMillis();
-                String roomKeys;
+                MXMegolmExportEncryption.DecryptingInputStream roomKeysStream;
 
                 try {
-                    roomKeys = MXMegolmExportEncryption.decryptMegolmKeyFile(roomKeysAsArray, password);
+                    roomKeysStream = MXMegolmExportEncryption.decryptMegolmKeyStream(roomKeysAsArray, password);
                 } catch (final Exception e) {
                     getUIHandler().post(new Runnable() {
                         @Override
@@ -2313,15 +2652,40 @@ public class MXCrypto {
                     return;
                 }
 
-                List<Map<String, Object>> importedSessions;
-
                 long t1 = System.currentTimeMillis();
 
                 Log.d(LOG_TAG, "## importRoomKeys starts");
 
+                Gson gson = JsonUtils.getGson(false);
+                Type mapType = new TypeToken<Map<String, Object>>() {
+                }.getType();
+
+                List<Map<String, Object>> batch = new ArrayList<>(IMPORT_ROOM_KEYS_BATCH_SIZE);
+                int readSessionsCount = 0;
+                int importedSessionsCount = 0;
+
                 try {
-                    importedSessions = JsonUtils.getGson(false).fromJson(roomKeys, new TypeToken<List<Map<String, Object>>>() {
-                    }.getType());
+                    JsonReader jsonReader = new JsonReader(new BufferedReader(new InputStreamReader(roomKeysStream, "UTF-8")));
+
+                    jsonReader.beginArray();
+
+                    while (jsonReader.hasNext()) {
+                        Map<String, Object> map = gson.fromJson(jsonReader, mapType);
+                        readSessionsCount++;
+
+                        if (null != map) {
+                            batch.add(map);
+                        }
+
+                        if (batch.size() >= IMPORT_ROOM_KEYS_BATCH_SIZE) {
+                            importedSessionsCount += importRoomKeysBatch(batch);
+                            batch.clear();
+                            dispatchImportRoomKeysProgress(progressListener, roomKeysStream, importedSessionsCount, readSessionsCount);
+                        }
+                    }
+
+                    jsonReader.endArray();
+                    jsonReader.close();
                 } catch (final Exception e) {
                     Log.e(LOG_TAG, "## importRoomKeys failed " + e.getMessage());
                     getUIHandler().post(new Runnable() {
@@ -2333,44 +2697,115 @@ public class MXCrypto {
                     return;
                 }
 
+                if (!batch.isEmpty()) {
+                    importedSessionsCount += importRoomKeysBatch(batch);
+                    batch.clear();
+                }
+
+                dispatchImportRoomKeysProgress(progressListener, roomKeysStream, importedSessionsCount, readSessionsCount);
+
                 long t2 = System.currentTimeMillis();
 
-                Log.d(LOG_TAG, "## importRoomKeys retrieve " + importedSessions.size() + "sessions in " + (t1 - t0) + " ms");
+                Log.d(LOG_TAG, "## importRoomKeys : done in " + (t2 - t0) + " ms (" + importedSessionsCount + " / " + readSessionsCount + " sessions)");
+                Log.d(LOG_TAG, "## importRoomKeys : authentication check done in " + (t1 - t0) + " ms");
+                Log.d(LOG_TAG, "## importRoomKeys : decryption, parsing and sessions import " + (t2 - t1) + " ms");
 
-                for (int index = 0; index < importedSessions.size(); index++) {
-                    Map<String, Object> map = importedSessions.get(index);
+                getUIHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(null);
+                    }
+                });
+            }
+        });
+    }
 
-                    MXOlmInboundGroupSession2 session = mOlmDevice.importInboundGroupSession(map);
+    /**
+     * Import a batch of exported sessions.
+     *
+     * @param batch the exported session maps
+     * @return the number of imported sessions
+     */
+    private int importRoomKeysBatch(List<Map<String, Object>> batch) {
+        // the algorithm of each exported session, by sender key and session id
+        HashMap<String, String> algorithms = new HashMap<>();
 
-                    if ((null != session) && mRoomDecryptors.containsKey(session.mRoomId)) {
-                        IMXDecrypting decrypting = mRoomDecryptors.get(session.mRoomId).get(map.get("algorithm"));
+        for (Map<String, Object> map : batch) {
+            Object algorithm = map.get("algorithm");
 
-                        if (null != decrypting) {
-                            try {
-                                String sessionId = session.mSession.sessionIdentifier();
-                                Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+            if (algorithm instanceof String) {
+                algorithms.put(map.get("sender_key") + "|" + map.get("session_id"), (String) algorithm);
+            }
+        }
 
-                                decrypting.onNewSession(session.mSenderKey, sessionId);
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
-                            }
-                        }
-                    }
+        List<MXOlmInboundGroupSession2> sessions = mOlmDevice.importInboundGroupSessions(batch);
+
+        for (MXOlmInboundGroupSession2 session : sessions) {
+            HashMap<String, IMXDecrypting> decryptors;
+
+            synchronized (mRoomDecryptors) {
+                decryptors = mRoomDecryptors.get(session.mRoomId);
+            }
+
+            if (null != decryptors) {
+                String sessionId;
+
+                try {
+                    sessionId = session.mSession.sessionIdentifier();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## importRoomKeys() : sessionIdentifier failed " + e.getMessage());
+                    continue;
                 }
 
-                long t3 = System.currentTimeMillis();
+                String algorithm = algorithms.get(session.mSenderKey + "|" + sessionId);
 
-                Log.d(LOG_TAG, "## importRoomKeys : done in " + (t3 - t0) + " ms (" + importedSessions.size() + " sessions)");
-                Log.d(LOG_TAG, "## importRoomKeys : decryptMegolmKeyFile done in " + (t1 - t0) + " ms");
-                Log.d(LOG_TAG, "## importRoomKeys : JSON parsing " + (t2 - t1) + " ms");
-                Log.d(LOG_TAG, "## importRoomKeys : sessions import " + (t3 - t2) + " ms");
+                if (null == algorithm) {
+                    algorithm = MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM;
+                }
 
-                getUIHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onSuccess(null);
+                IMXDecrypting decrypting = decryptors.get(algorithm);
+
+                if (null != decrypting) {
+                    try {
+                        Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+
+                        decrypting.onNewSession(session.mSenderKey, sessionId);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
                     }
-                });
+                }
+            }
+        }
+
+        return sessions.size();
+    }
+
+    /**
+     * Dispatch the room keys import progress to the UI thread.
+     *
+     * @param listener              the listener
+     * @param roomKeysStream        the decrypted room keys stream
+     * @param importedSessionsCount the number of imported sessions
+     * @param readSessionsCount     the number of read sessions
+     */
+    private void dispatchImportRoomKeysProgress(final IMXRoomKeysImportListener listener,
+                                                MXMegolmExportEncryption.DecryptingInputStream roomKeysStream,
+                                                final int importedSessionsCount,
+                                                final int readSessionsCount) {
+        if (null == listener) {
+            return;
+        }
+
+        final int progress = (roomKeysStream.getLength() > 0) ? (int) (roomKeysStream.getReadLength() * 100 / roomKeysStream.getLength()) : 100;
+
+        getUIHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onProgress(progress, importedSessionsCount, readSessionsCount);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## importRoomKeys() : onProgress failed " + e.getMessage());
+                }
             }
         });
     }
@@ -219,7 +219,9 @@ public class MXDeviceList {
 
             for (String userId : userIds) {
                 if (!deviceTrackingStatuses.containsKey(userId) || (TRACKING_STATUS_NOT_TRACKED == deviceTrackingStatuses.get(userId))) {
-                    Log.d(LOG_TAG, "## startTrackingDeviceList() : Now tracking device list for " + userId);
+                    if (Log.isLoggable(Log.DEBUG)) {
+                        Log.d(LOG_TAG, "## startTrackingDeviceList() : Now tracking device list for " + userId);
+                    }
                     deviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
                     isUpdated = true;
                 }
@@ -246,7 +248,9 @@ public class MXDeviceList {
 
             for (String userId : changed) {
                 if (deviceTrackingStatuses.containsKey(userId)) {
-                    Log.d(LOG_TAG, "## invalidateUserDeviceList() : Marking device list outdated for " + userId);
+                    if (Log.isLoggable(Log.DEBUG)) {
+                        Log.d(LOG_TAG, "## invalidateUserDeviceList() : Marking device list outdated for " + userId);
+                    }
                     deviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
                     isUpdated = true;
                 }
@@ -258,7 +262,9 @@ public class MXDeviceList {
 
             for (String userId : left) {
                 if (deviceTrackingStatuses.containsKey(userId)) {
-                    Log.d(LOG_TAG, "## invalidateUserDeviceList() : No longer tracking device list for " + userId);
+                    if (Log.isLoggable(Log.DEBUG)) {
+                        Log.d(LOG_TAG, "## invalidateUserDeviceList() : No longer tracking device list for " + userId);
+                    }
                     deviceTrackingStatuses.put(userId, TRACKING_STATUS_NOT_TRACKED);
                     isUpdated = true;
                 }
@@ -364,7 +370,9 @@ public class MXDeviceList {
                                     // we didn't get any new invalidations since this download started:
                                     //  this user's device list is now up to date.
                                     deviceTrackingStatuses.put(userId, TRACKING_STATUS_UP_TO_DATE);
-                                    Log.d(LOG_TAG, "Device list for " + userId + " now up to date");
+                                    if (Log.isLoggable(Log.DEBUG)) {
+                                        Log.d(LOG_TAG, "Device list for " + userId + " now up to date");
+                                    }
                                 }
 
                                 // And the response result
@@ -410,7 +418,9 @@ public class MXDeviceList {
      * @param callback      the asynchronous callback
      */
     public void downloadKeys(List<String> userIds, boolean forceDownload, final ApiCallback<MXUsersDevicesMap<MXDeviceInfo>> callback) {
-        Log.d(LOG_TAG, "## downloadKeys() : forceDownload " + forceDownload + " : " + userIds);
+        if (Log.isLoggable(Log.DEBUG)) {
+            Log.d(LOG_TAG, "## downloadKeys() : forceDownload " + forceDownload + " : " + userIds);
+        }
 
         // Map from userid -> deviceid -> DeviceInfo
         final MXUsersDevicesMap<MXDeviceInfo> stored = new MXUsersDevicesMap<>();
@@ -554,7 +564,9 @@ public class MXDeviceList {
                             } else {
                                 Map<String, MXDeviceInfo> devices = keysQueryResponse.deviceKeys.get(userId);
 
-                                Log.d(LOG_TAG, "## doKeyDownloadForUsers() : Got keys for " + userId + " : " + devices);
+                                if (Log.isLoggable(Log.DEBUG)) {
+                                    Log.d(LOG_TAG, "## doKeyDownloadForUsers() : Got keys for " + userId + " : " + devices);
+                                }
 
                                 if (null != devices) {
                                     HashMap<String, MXDeviceInfo> mutableDevices = new HashMap<>(devices);
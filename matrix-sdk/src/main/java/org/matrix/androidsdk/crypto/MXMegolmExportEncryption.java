@@ -18,10 +18,15 @@ package org.matrix.androidsdk.crypto;
 
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.Base64InputStream;
 
 import org.matrix.androidsdk.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -43,6 +48,14 @@ public class MXMegolmExportEncryption {
     // terribly well with large arrays.
     private static final int LINE_LENGTH = (72 * 4 / 3);
 
+    // version (1) + salt (16) + iv (16) + iterations count (4)
+    private static final int BODY_HEADER_LENGTH = 1 + 16 + 16 + 4;
+    // HMAC-SHA-256 digest length
+    private static final int HMAC_LENGTH = 32;
+
+    // buffer size used to process the streams
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
     // default iteration count to export the e2e keys
     public static final int DEFAULT_ITERATION_COUNT = 500000;
 
@@ -85,22 +98,55 @@ public class MXMegolmExportEncryption {
      * @throws Exception the failure reason
      */
     public static String decryptMegolmKeyFile(byte[] data, String password) throws Exception {
-        byte[] body = unpackMegolmKeyFile(data);
+        DecryptingInputStream inputStream = decryptMegolmKeyStream(data, password);
+
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream((int) inputStream.getLength());
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int len;
+
+        while ((len = inputStream.read(buffer)) > 0) {
+            outStream.write(buffer, 0, len);
+        }
+        inputStream.close();
+
+        String decodedString = new String(outStream.toByteArray(), "UTF-8");
+        outStream.close();
+
+        return decodedString;
+    }
+
+    /**
+     * Provide a stream to read the decrypted content of a megolm key file.
+     * The HMAC is fully checked before this method returns, by streaming the file a first time,
+     * so that the caller never reads unauthenticated data.
+     * The memory usage does not depend on the file size.
+     *
+     * @param data     the data to decrypt
+     * @param password the password.
+     * @return the decrypted input stream.
+     * @throws Exception the failure reason
+     */
+    public static DecryptingInputStream decryptMegolmKeyStream(byte[] data, String password) throws Exception {
+        int[] bounds = unpackMegolmKeyFile(data);
+
+        InputStream bodyStream = new Base64InputStream(new ByteArrayInputStream(data, bounds[0], bounds[1] - bounds[0]), Base64.DEFAULT);
+
+        byte[] header = new byte[BODY_HEADER_LENGTH];
+        int headerLength = readFully(bodyStream, header);
 
         // check we have a version byte
-        if ((null == body) || (body.length == 0)) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Invalid file: too short");
+        if (headerLength == 0) {
+            Log.e(LOG_TAG, "## decryptMegolmKeyStream() : Invalid file: too short");
             throw new Exception("Invalid file: too short");
         }
 
-        byte version = body[0];
+        byte version = header[0];
         if (version != 1) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Invalid file: too short");
+            Log.e(LOG_TAG, "## decryptMegolmKeyStream() : Invalid file: too short");
             throw new Exception("Unsupported version");
         }
 
-        int ciphertextLength = body.length - (1 + 16 + 16 + 4 + 32);
-        if (ciphertextLength < 0) {
+        if (headerLength < BODY_HEADER_LENGTH) {
             throw new Exception("Invalid file: too short");
         }
 
@@ -108,40 +154,62 @@ public class MXMegolmExportEncryption {
             throw new Exception("Empty password is not supported");
         }
 
-        byte[] salt = Arrays.copyOfRange(body, 1, 1 + 16);
-        byte[] iv = Arrays.copyOfRange(body, 17, 17 + 16);
-        int iterations = byteToInt(body[33]) << 24 | byteToInt(body[34]) << 16 | byteToInt(body[35]) << 8 | byteToInt(body[36]);
-        byte[] ciphertext = Arrays.copyOfRange(body, 37, 37 + ciphertextLength);
-        byte[] hmac = Arrays.copyOfRange(body, body.length - 32, body.length);
+        byte[] salt = Arrays.copyOfRange(header, 1, 1 + 16);
+        byte[] iv = Arrays.copyOfRange(header, 17, 17 + 16);
+        int iterations = byteToInt(header[33]) << 24 | byteToInt(header[34]) << 16 | byteToInt(header[35]) << 8 | byteToInt(header[36]);
 
         byte[] deriveKey = deriveKeys(salt, iterations, password);
 
-        byte[] toVerify = Arrays.copyOfRange(body, 0, body.length - 32);
-
         SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
         Mac mac = Mac.getInstance("HmacSHA256");
         mac.init(macKey);
-        byte[] digest = mac.doFinal(toVerify);
+        mac.update(header);
+
+        // first pass : authenticate the whole body
+        // the last HMAC_LENGTH bytes are kept aside because they are the expected digest.
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE + HMAC_LENGTH];
+        int pendingLength = 0;
+        long ciphertextLength = 0;
+        int len;
+
+        while ((len = bodyStream.read(buffer, pendingLength, STREAM_BUFFER_SIZE)) > 0) {
+            int total = pendingLength + len;
+
+            if (total > HMAC_LENGTH) {
+                int toVerify = total - HMAC_LENGTH;
+                mac.update(buffer, 0, toVerify);
+                ciphertextLength += toVerify;
+                System.arraycopy(buffer, toVerify, buffer, 0, HMAC_LENGTH);
+                pendingLength = HMAC_LENGTH;
+            } else {
+                pendingLength = total;
+            }
+        }
+        bodyStream.close();
+
+        if (pendingLength < HMAC_LENGTH) {
+            throw new Exception("Invalid file: too short");
+        }
+
+        byte[] hmac = Arrays.copyOfRange(buffer, 0, HMAC_LENGTH);
+        byte[] digest = mac.doFinal();
 
         if (!Arrays.equals(hmac, digest)) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Authentication check failed: incorrect password?");
+            Log.e(LOG_TAG, "## decryptMegolmKeyStream() : Authentication check failed: incorrect password?");
             throw new Exception("Authentication check failed: incorrect password?");
         }
 
+        // second pass : decrypt
         Cipher decryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
 
         SecretKeySpec secretKeySpec = new SecretKeySpec(getAesKey(deriveKey), "AES");
         IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
         decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(decryptCipher.update(ciphertext));
-        outStream.write(decryptCipher.doFinal());
-
-        String decodedString = new String(outStream.toByteArray(), "UTF-8");
-        outStream.close();
+        InputStream cipherStream = new Base64InputStream(new ByteArrayInputStream(data, bounds[0], bounds[1] - bounds[0]), Base64.DEFAULT);
+        readFully(cipherStream, header);
 
-        return decodedString;
+        return new DecryptingInputStream(cipherStream, decryptCipher, ciphertextLength);
     }
 
     /**
@@ -166,6 +234,28 @@ public class MXMegolmExportEncryption {
      * @throws Exception the failure reason
      */
     public static byte[] encryptMegolmKeyFile(String data, String password, int kdf_rounds) throws Exception {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        OutputStream encryptingStream = encryptMegolmKeyStream(outStream, password, kdf_rounds);
+        encryptingStream.write(data.getBytes("UTF-8"));
+        encryptingStream.close();
+
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Provide a stream which encrypts into the megolm export format the data written on it.
+     * The encryption, the HMAC computation and the base64 packing are performed incrementally,
+     * so the memory usage does not depend on the exported data size.
+     * The stream must be closed to write the HMAC and the trailer line.
+     *
+     * @param output     the output stream which receives the packed megolm export.
+     * @param password   the password
+     * @param kdf_rounds the iteration count
+     * @return the encrypting output stream
+     * @throws Exception the failure reason
+     */
+    public static OutputStream encryptMegolmKeyStream(OutputStream output, String password, int kdf_rounds) throws Exception {
         if (TextUtils.isEmpty(password)) {
             throw new Exception("Empty password is not supported");
         }
@@ -185,70 +275,78 @@ public class MXMegolmExportEncryption {
 
         byte[] deriveKey = deriveKeys(salt, kdf_rounds, password);
 
-        Cipher decryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
+        Cipher encryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
 
         SecretKeySpec secretKeySpec = new SecretKeySpec(getAesKey(deriveKey), "AES");
         IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-        decryptCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(decryptCipher.update(data.getBytes("UTF-8")));
-        outStream.write(decryptCipher.doFinal());
+        encryptCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
 
-        byte[] cipherArray = outStream.toByteArray();
-        int bodyLength = (1 + salt.length + iv.length + 4 + cipherArray.length + 32);
+        SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
 
-        byte[] resultBuffer = new byte[bodyLength];
+        byte[] header = new byte[BODY_HEADER_LENGTH];
         int idx = 0;
-        resultBuffer[idx++] = 1; // version
+        header[idx++] = 1; // version
 
-        System.arraycopy(salt, 0, resultBuffer, idx, salt.length);
+        System.arraycopy(salt, 0, header, idx, salt.length);
         idx += salt.length;
 
-        System.arraycopy(iv, 0, resultBuffer, idx, iv.length);
+        System.arraycopy(iv, 0, header, idx, iv.length);
         idx += iv.length;
 
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 24) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 16) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 8) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 24) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 16) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 8) & 0xff);
+        header[idx] = (byte) ((kdf_rounds) & 0xff);
 
-        System.arraycopy(cipherArray, 0, resultBuffer, idx, cipherArray.length);
-        idx += cipherArray.length;
+        return new EncryptingOutputStream(output, encryptCipher, mac, header);
+    }
 
-        byte[] toSign = Arrays.copyOfRange(resultBuffer, 0, idx);
+    /**
+     * Read bytes from a stream until the buffer is full or the stream ends.
+     *
+     * @param inputStream the input stream
+     * @param buffer      the buffer to fill
+     * @return the number of read bytes
+     * @throws IOException the failure reason
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
 
-        SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(macKey);
-        byte[] digest = mac.doFinal(toSign);
-        System.arraycopy(digest, 0, resultBuffer, idx, digest.length);
+        while (offset < buffer.length) {
+            int len = inputStream.read(buffer, offset, buffer.length - offset);
+
+            if (len <= 0) {
+                break;
+            }
+
+            offset += len;
+        }
 
-        return packMegolmKeyFile(resultBuffer);
+        return offset;
     }
 
     /**
-     * Unbase64 an ascii-armoured megolm key file
-     * Strips the header and trailer lines, and unbase64s the content
+     * Find the base64 content of an ascii-armoured megolm key file
+     * i.e. the bytes between the header and the trailer lines.
      *
      * @param data the input data
-     * @return unbase64ed content
+     * @return the content bounds as [start, end[
      */
-    private static byte[] unpackMegolmKeyFile(byte[] data) throws Exception {
-        String fileStr = new String(data, "UTF-8");
-
+    private static int[] unpackMegolmKeyFile(byte[] data) throws Exception {
         // look for the start line
         int lineStart = 0;
 
         while (true) {
-            int lineEnd = fileStr.indexOf('\n', lineStart);
+            int lineEnd = indexOfNewLine(data, lineStart);
 
             if (lineEnd < 0) {
                 Log.e(LOG_TAG, "## unpackMegolmKeyFile() : Header line not found");
                 throw new Exception("Header line not found");
             }
 
-            String line = fileStr.substring(lineStart, lineEnd).trim();
+            String line = new String(data, lineStart, lineEnd - lineStart, "UTF-8").trim();
 
             // start the next line after the newline
             lineStart = lineEnd + 1;
@@ -262,17 +360,16 @@ public class MXMegolmExportEncryption {
 
         // look for the end line
         while (true) {
-            int lineEnd = fileStr.indexOf('\n', lineStart);
-            String line;
+            int lineEnd = indexOfNewLine(data, lineStart);
+            int lineLength = ((lineEnd < 0) ? data.length : lineEnd) - lineStart;
 
-            if (lineEnd < 0) {
-                line = fileStr.substring(lineStart).trim();
-            } else {
-                line = fileStr.substring(lineStart, lineEnd).trim();
-            }
+            // the base64 lines are shorter than the trailer one : do not build a string for them
+            if (lineLength >= TRAILER_LINE.length()) {
+                String line = new String(data, lineStart, lineLength, "UTF-8").trim();
 
-            if (TextUtils.equals(line, TRAILER_LINE)) {
-                break;
+                if (TextUtils.equals(line, TRAILER_LINE)) {
+                    break;
+                }
             }
 
             if (lineEnd < 0) {
@@ -284,40 +381,198 @@ public class MXMegolmExportEncryption {
             lineStart = lineEnd + 1;
         }
 
-        int dataEnd = lineStart;
-
-        // Receiving side
-        return Base64.decode(fileStr.substring(dataStart, dataEnd), Base64.DEFAULT);
+        return new int[]{dataStart, lineStart};
     }
 
     /**
-     * Pack the megolm data.
+     * Find the next newline character.
      *
-     * @param data the data to pack.
-     * @return the packed data
-     * @throws Exception the failure reason.
+     * @param data      the data
+     * @param fromIndex the index to start from
+     * @return the newline index, -1 if there is none
+     */
+    private static int indexOfNewLine(byte[] data, int fromIndex) {
+        for (int index = fromIndex; index < data.length; index++) {
+            if (data[index] == '\n') {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Output stream which encrypts, authenticates and packs the written data.
      */
-    private static byte[] packMegolmKeyFile(byte[] data) throws Exception {
-        int nLines = (data.length + LINE_LENGTH - 1) / LINE_LENGTH;
+    private static class EncryptingOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        private final Cipher mCipher;
+        private final Mac mMac;
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(HEADER_LINE.getBytes());
+        // pending bytes of the current base64 line
+        private final byte[] mLineBuffer = new byte[LINE_LENGTH];
+        private int mLineBufferLength = 0;
 
-        int o = 0;
+        private boolean mIsClosed = false;
 
-        for (int i = 1; i <= nLines; i++) {
-            outStream.write("\n".getBytes());
+        EncryptingOutputStream(OutputStream outputStream, Cipher cipher, Mac mac, byte[] header) throws IOException {
+            mOutputStream = outputStream;
+            mCipher = cipher;
+            mMac = mac;
 
-            int len = Math.min(LINE_LENGTH, data.length - o);
-            outStream.write(Base64.encode(data, o, len, Base64.DEFAULT));
-            o += LINE_LENGTH;
+            mOutputStream.write(HEADER_LINE.getBytes());
+            writeBody(header, 0, header.length);
         }
 
-        outStream.write("\n".getBytes());
-        outStream.write(TRAILER_LINE.getBytes());
-        outStream.write("\n".getBytes());
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
 
-        return outStream.toByteArray();
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mIsClosed) {
+                throw new IOException("Stream closed");
+            }
+
+            byte[] encrypted = mCipher.update(b, off, len);
+
+            if (null != encrypted) {
+                writeBody(encrypted, 0, encrypted.length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIsClosed) {
+                return;
+            }
+
+            mIsClosed = true;
+
+            try {
+                byte[] encrypted = mCipher.doFinal();
+                writeBody(encrypted, 0, encrypted.length);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+
+            byte[] digest = mMac.doFinal();
+            pack(digest, 0, digest.length);
+
+            if (mLineBufferLength > 0) {
+                writeLine();
+            }
+
+            mOutputStream.write("\n".getBytes());
+            mOutputStream.write(TRAILER_LINE.getBytes());
+            mOutputStream.write("\n".getBytes());
+            mOutputStream.close();
+        }
+
+        /**
+         * Authenticate and pack some body bytes.
+         */
+        private void writeBody(byte[] b, int off, int len) throws IOException {
+            mMac.update(b, off, len);
+            pack(b, off, len);
+        }
+
+        /**
+         * Pack some bytes in base64 lines.
+         */
+        private void pack(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, LINE_LENGTH - mLineBufferLength);
+                System.arraycopy(b, off, mLineBuffer, mLineBufferLength, count);
+                mLineBufferLength += count;
+                off += count;
+                len -= count;
+
+                if (mLineBufferLength == LINE_LENGTH) {
+                    writeLine();
+                }
+            }
+        }
+
+        /**
+         * Write the pending line.
+         */
+        private void writeLine() throws IOException {
+            mOutputStream.write("\n".getBytes());
+            mOutputStream.write(Base64.encode(mLineBuffer, 0, mLineBufferLength, Base64.DEFAULT));
+            mLineBufferLength = 0;
+        }
+    }
+
+    /**
+     * Input stream which provides the decrypted content of an authenticated megolm key file.
+     */
+    public static class DecryptingInputStream extends InputStream {
+        private final InputStream mInputStream;
+        private final Cipher mCipher;
+        private final long mLength;
+
+        private final byte[] mSingleByte = new byte[1];
+        private long mReadLength = 0;
+
+        DecryptingInputStream(InputStream inputStream, Cipher cipher, long length) {
+            mInputStream = inputStream;
+            mCipher = cipher;
+            mLength = length;
+        }
+
+        /**
+         * @return the decrypted content length in bytes.
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return the number of decrypted bytes which have already been read.
+         */
+        public long getReadLength() {
+            return mReadLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (read(mSingleByte, 0, 1) > 0) ? byteToInt(mSingleByte[0]) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = mLength - mReadLength;
+
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int count = mInputStream.read(b, off, (int) Math.min(len, remaining));
+
+            if (count <= 0) {
+                return -1;
+            }
+
+            // AES/CTR is a stream cipher : the decrypted block has the same size
+            int decryptedCount;
+
+            try {
+                decryptedCount = mCipher.update(b, off, count, b, off);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+
+            mReadLength += decryptedCount;
+
+            return decryptedCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
     }
 
     /**
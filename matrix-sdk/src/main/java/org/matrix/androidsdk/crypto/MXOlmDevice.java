@@ -586,6 +586,47 @@ public class MXOlmDevice {
      * @return the imported session if the operation succeeds.
      */
     public MXOlmInboundGroupSession2 importInboundGroupSession(Map<String, Object> exportedSessionMap) {
+        MXOlmInboundGroupSession2 session = buildImportedInboundGroupSession(exportedSessionMap);
+
+        if (null != session) {
+            mStore.storeInboundGroupSession(session);
+        }
+
+        return session;
+    }
+
+    /**
+     * Import a batch of inbound group sessions to the session store.
+     * The valid sessions are saved with a single storeInboundGroupSessions call.
+     *
+     * @param exportedSessionMaps the exported session maps
+     * @return the imported sessions.
+     */
+    public List<MXOlmInboundGroupSession2> importInboundGroupSessions(List<Map<String, Object>> exportedSessionMaps) {
+        List<MXOlmInboundGroupSession2> sessions = new ArrayList<>(exportedSessionMaps.size());
+
+        for (Map<String, Object> exportedSessionMap : exportedSessionMaps) {
+            MXOlmInboundGroupSession2 session = buildImportedInboundGroupSession(exportedSessionMap);
+
+            if (null != session) {
+                sessions.add(session);
+            }
+        }
+
+        if (!sessions.isEmpty()) {
+            mStore.storeInboundGroupSessions(sessions);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Build an inbound group session from an exported session map.
+     *
+     * @param exportedSessionMap the exported session map
+     * @return the session if it is valid and unknown.
+     */
+    private MXOlmInboundGroupSession2 buildImportedInboundGroupSession(Map<String, Object> exportedSessionMap) {
         String sessionId = (String) exportedSessionMap.get("session_id");
         String senderKey = (String) exportedSessionMap.get("sender_key");
         String roomId = (String) exportedSessionMap.get("room_id");
@@ -622,8 +663,6 @@ public class MXOlmDevice {
             return null;
         }
 
-        mStore.storeInboundGroupSession(session);
-
         return session;
     }
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.crypto.data.MXOlmSessionResult;
+import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keep the olm sessions established with the devices of the recently active encrypted rooms,
+ * so that sending the first message in a room does not wait for a one-time keys claim.
+ * The devices of all the recently active rooms are claimed with a single request.
+ * All the methods must be called on the encrypting thread.
+ */
+public class MXOlmSessionsPrewarmer {
+    private static final String LOG_TAG = MXOlmSessionsPrewarmer.class.getSimpleName();
+
+    // delay between a room activity and the pre-warming, there is at most one pre-warming per delay
+    private static final long PREWARM_DELAY_MS = 5 * 1000;
+
+    // max number of recently active rooms whose devices are pre-warmed
+    private static final int MAX_RECENT_ROOMS = 10;
+
+    // max number of devices claimed in one request
+    private static final int MAX_DEVICES_PER_CLAIM = 250;
+
+    private final MXSession mSession;
+    private final MXCrypto mCrypto;
+
+    // the recently active encrypted rooms, the most recent one at the end.
+    private final LinkedHashSet<String> mRecentRoomIds = new LinkedHashSet<>();
+
+    // tell if a pre-warming is scheduled
+    private boolean mIsScheduled = false;
+
+    // tell if the pre-warming is enabled
+    private boolean mIsEnabled = true;
+
+    private final Runnable mPrewarmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mIsScheduled = false;
+            prewarm();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param session the session
+     * @param crypto  the crypto instance
+     */
+    public MXOlmSessionsPrewarmer(MXSession session, MXCrypto crypto) {
+        mSession = session;
+        mCrypto = crypto;
+    }
+
+    /**
+     * Enable or disable the pre-warming.
+     *
+     * @param isEnabled true to enable it
+     */
+    public void setEnabled(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+
+        if (!isEnabled) {
+            stop();
+        }
+    }
+
+    /**
+     * @return true if the pre-warming is enabled
+     */
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * Some activity has been detected in an encrypted room.
+     *
+     * @param roomId the room id
+     */
+    public void onRoomActivity(String roomId) {
+        if (!mIsEnabled || TextUtils.isEmpty(roomId)) {
+            return;
+        }
+
+        // move it at the end
+        mRecentRoomIds.remove(roomId);
+        mRecentRoomIds.add(roomId);
+
+        if (mRecentRoomIds.size() > MAX_RECENT_ROOMS) {
+            Iterator<String> it = mRecentRoomIds.iterator();
+            it.next();
+            it.remove();
+        }
+
+        // throttle the bursts of events (e.g. catchup), the scheduled pre-warming uses the latest rooms
+        if (!mIsScheduled) {
+            mIsScheduled = true;
+            mCrypto.getEncryptingThreadHandler().postDelayed(mPrewarmRunnable, PREWARM_DELAY_MS);
+        }
+    }
+
+    /**
+     * Cancel any scheduled pre-warming and forget the recent rooms.
+     */
+    public void stop() {
+        if (mIsScheduled) {
+            mCrypto.getEncryptingThreadHandler().removeCallbacks(mPrewarmRunnable);
+            mIsScheduled = false;
+        }
+
+        mRecentRoomIds.clear();
+    }
+
+    /**
+     * Claim the one-time keys of the devices of the recently active rooms which have no olm session.
+     */
+    private void prewarm() {
+        if (!mCrypto.isStarted() || mCrypto.hasBeenReleased()) {
+            return;
+        }
+
+        String myDeviceKey = mCrypto.getOlmDevice().getDeviceCurve25519Key();
+
+        // the room members are deduplicated across the rooms
+        Set<String> userIds = new HashSet<>();
+
+        for (String roomId : new ArrayList<>(mRecentRoomIds)) {
+            Room room = mSession.getDataHandler().getRoom(roomId, false);
+
+            if ((null == room) || !mCrypto.isRoomEncrypted(roomId)) {
+                mRecentRoomIds.remove(roomId);
+                continue;
+            }
+
+            Collection<RoomMember> joinedMembers = room.getReadOnlyJoinedMembers();
+
+            for (RoomMember member : joinedMembers) {
+                userIds.add(member.getUserId());
+            }
+        }
+
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser = new HashMap<>();
+        final List<String> claimedDeviceKeys = new ArrayList<>();
+
+        for (String userId : userIds) {
+            // only use the known devices : the devices list is refreshed when a message is sent.
+            List<MXDeviceInfo> devices = mCrypto.getUserDevices(userId);
+
+            for (MXDeviceInfo device : devices) {
+                String key = device.identityKey();
+
+                if (TextUtils.isEmpty(key) || TextUtils.equals(key, myDeviceKey) || device.isBlocked()) {
+                    continue;
+                }
+
+                if (!TextUtils.isEmpty(mCrypto.getOlmDevice().getSessionId(key))) {
+                    continue;
+                }
+
+                if (claimedDeviceKeys.size() >= MAX_DEVICES_PER_CLAIM) {
+                    break;
+                }
+
+                ArrayList<MXDeviceInfo> userDevices = devicesByUser.get(userId);
+
+                if (null == userDevices) {
+                    userDevices = new ArrayList<>();
+                    devicesByUser.put(userId, userDevices);
+                }
+
+                userDevices.add(device);
+                claimedDeviceKeys.add(key);
+            }
+        }
+
+        if (claimedDeviceKeys.isEmpty()) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "## prewarm() : claim one-time keys for " + claimedDeviceKeys.size() + " devices in " + mRecentRoomIds.size() + " rooms");
+
+        final long t0 = System.currentTimeMillis();
+
+        mCrypto.ensureOlmSessionsForDevices(devicesByUser, new ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>>() {
+            private void onDone(String description) {
+                Log.d(LOG_TAG, "## prewarm() : " + description + " in " + (System.currentTimeMillis() - t0) + " ms");
+            }
+
+            @Override
+            public void onSuccess(MXUsersDevicesMap<MXOlmSessionResult> results) {
+                int count = 0;
+
+                for (String userId : results.getUserIds()) {
+                    Map<String, MXOlmSessionResult> map = results.getMap().get(userId);
+
+                    for (MXOlmSessionResult result : map.values()) {
+                        if (!TextUtils.isEmpty(result.mSessionId)) {
+                            count++;
+                        }
+                    }
+                }
+
+                onDone(count + " olm sessions established");
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onDone("failed " + e.getMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onDone("failed " + e.getMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onDone("failed " + e.getMessage());
+            }
+        });
+    }
+}
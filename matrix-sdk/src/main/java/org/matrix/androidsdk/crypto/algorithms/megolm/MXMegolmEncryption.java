@@ -30,6 +30,7 @@ import org.matrix.androidsdk.crypto.MXCryptoAlgorithms;
 import org.matrix.androidsdk.crypto.MXOlmDevice;
 import org.matrix.androidsdk.crypto.algorithms.IMXEncrypting;
 import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.crypto.data.MXKeyShareChunkStats;
 import org.matrix.androidsdk.crypto.data.MXOlmSessionResult;
 import org.matrix.androidsdk.crypto.data.MXQueuedEncryption;
 import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
@@ -47,6 +48,12 @@ import java.util.Map;
 public class MXMegolmEncryption implements IMXEncrypting {
     private static final String LOG_TAG = MXMegolmEncryption.class.getSimpleName();
 
+    // max number of devices in a key sharing chunk
+    private static final int MAX_DEVICES_PER_SHARE_CHUNK = 100;
+
+    // max number of key sharing chunks which are being prepared or sent at the same time
+    private static final int MAX_IN_FLIGHT_SHARE_CHUNKS = 2;
+
     private MXSession mSession;
     private MXCrypto mCrypto;
 
@@ -69,6 +76,9 @@ public class MXMegolmEncryption implements IMXEncrypting {
     private int mSessionRotationPeriodMsgs;
     private int mSessionRotationPeriodMs;
 
+    // timings of the last key sharing chunks
+    private List<MXKeyShareChunkStats> mLastKeyShareStats = new ArrayList<>();
+
     @Override
     public void initWithMatrixSession(MXSession matrixSession, String roomId) {
         mSession = matrixSession;
@@ -323,7 +333,11 @@ public class MXMegolmEncryption implements IMXEncrypting {
     }
 
     /**
-     * Share the device key to a list of users
+     * Share the device key to a list of users.
+     * The devices are split in chunks, and the chunks are pipelined : the olm sessions and the encryption
+     * of a chunk are performed while the previous chunks are being sent, with at most
+     * MAX_IN_FLIGHT_SHARE_CHUNKS chunks in progress.
+     * The callback is called once : either when all the chunks are shared or after the first failure.
      *
      * @param session        the session info
      * @param devicesByUsers the devices map
@@ -347,75 +361,336 @@ public class MXMegolmEncryption implements IMXEncrypting {
         }
 
         // reduce the map size to avoid request timeout when there are too devices (Users size  * devices per user)
-        HashMap<String, ArrayList<MXDeviceInfo>> subMap = new HashMap<>();
+        List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = splitInChunks(devicesByUsers, MAX_DEVICES_PER_SHARE_CHUNK);
+
+        Log.d(LOG_TAG, "## shareKey() : " + chunks.size() + " chunks");
 
-        final ArrayList<String> userIds = new ArrayList<>();
+        new KeySharePipeline(session, chunks, callback).pump();
+    }
+
+    /**
+     * Split the devices to share a key with in chunks.
+     * A chunk contains at most maxDevicesPerChunk devices, unless a single user has more devices.
+     *
+     * @param devicesByUsers     the devices map
+     * @param maxDevicesPerChunk the max number of devices per chunk
+     * @return the chunks
+     */
+    static List<HashMap<String, ArrayList<MXDeviceInfo>>> splitInChunks(HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers, int maxDevicesPerChunk) {
+        List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = new ArrayList<>();
+        HashMap<String, ArrayList<MXDeviceInfo>> subMap = new HashMap<>();
         int devicesCount = 0;
 
         for (String userId : devicesByUsers.keySet()) {
             ArrayList<MXDeviceInfo> devicesList = devicesByUsers.get(userId);
 
-            userIds.add(userId);
-            subMap.put(userId, devicesList);
+            // start a new chunk when this user devices do not fit in the current one
+            if (!subMap.isEmpty() && (devicesCount + devicesList.size() > maxDevicesPerChunk)) {
+                chunks.add(subMap);
+                subMap = new HashMap<>();
+                devicesCount = 0;
+            }
 
+            subMap.put(userId, devicesList);
             devicesCount += devicesList.size();
+        }
 
-            if (devicesCount > 100) {
-                break;
-            }
+        if (!subMap.isEmpty()) {
+            chunks.add(subMap);
         }
 
-        Log.d(LOG_TAG, "## shareKey() ; userId " + userIds);
-        shareUserDevicesKey(session, subMap, new ApiCallback<Void>() {
-            @Override
-            public void onSuccess(Void info) {
-                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+        return chunks;
+    }
+
+    /**
+     * Pipeline of the key sharing chunks.
+     * Its methods must be called in the encrypting thread.
+     */
+    private class KeySharePipeline {
+        private final MXOutboundSessionInfo mSessionInfo;
+        private final List<HashMap<String, ArrayList<MXDeviceInfo>>> mChunks;
+        private final ApiCallback<Void> mCallback;
+        private final List<MXKeyShareChunkStats> mStats = new ArrayList<>();
+        private final long mStartTime = System.currentTimeMillis();
+
+        // index of the next chunk to prepare
+        private int mNextChunkIndex = 0;
+        // true when a chunk is being prepared (olm sessions and encryption)
+        private boolean mIsPreparing = false;
+        // number of chunks which are prepared or sent but not yet completed
+        private int mInFlightCount = 0;
+        // number of completed chunks
+        private int mCompletedCount = 0;
+        // true when the callback has been called
+        private boolean mIsDone = false;
+
+        KeySharePipeline(MXOutboundSessionInfo session, List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks, ApiCallback<Void> callback) {
+            mSessionInfo = session;
+            mChunks = chunks;
+            mCallback = callback;
+        }
+
+        /**
+         * Start the next chunks if it is possible, or complete the key sharing.
+         */
+        void pump() {
+            if (mIsDone) {
+                return;
+            }
+
+            if (mCompletedCount == mChunks.size()) {
+                mIsDone = true;
+                Log.d(LOG_TAG, "## shareKey() : " + mChunks.size() + " chunks shared in " + (System.currentTimeMillis() - mStartTime) + " ms");
+                setLastKeyShareStats(mStats);
+
+                if (null != mCallback) {
+                    mCrypto.getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onSuccess(null);
+                        }
+                    });
+                }
+                return;
+            }
+
+            // the olm sessions are established one chunk at a time, to avoid claiming twice the same keys.
+            if (!mIsPreparing && (mNextChunkIndex < mChunks.size()) && (mInFlightCount < MAX_IN_FLIGHT_SHARE_CHUNKS)) {
+                final int chunkIndex = mNextChunkIndex++;
+                final HashMap<String, ArrayList<MXDeviceInfo>> chunk = mChunks.get(chunkIndex);
+                final MXKeyShareChunkStats stats = new MXKeyShareChunkStats();
+                final int chainIndex = mCrypto.getOlmDevice().getMessageIndex(mSessionInfo.mSessionId);
+
+                stats.mChunkIndex = chunkIndex;
+
+                for (ArrayList<MXDeviceInfo> devices : chunk.values()) {
+                    stats.mDevicesCount += devices.size();
+                }
+
+                mStats.add(stats);
+                mIsPreparing = true;
+                mInFlightCount++;
+
+                Log.d(LOG_TAG, "## shareKey() : prepare chunk " + chunkIndex + " ; userIds " + chunk.keySet());
+
+                prepareUserDevicesKey(mSessionInfo, chainIndex, chunk, stats, new ApiCallback<MXUsersDevicesMap<Map<String, Object>>>() {
                     @Override
-                    public void run() {
-                        for (String userId : userIds) {
-                            devicesByUsers.remove(userId);
+                    public void onSuccess(MXUsersDevicesMap<Map<String, Object>> contentMap) {
+                        mIsPreparing = false;
+
+                        if (!mIsDone) {
+                            sendUserDevicesKey(chunk, chainIndex, contentMap, stats);
                         }
-                        shareKey(session, devicesByUsers, callback);
+
+                        pump();
+                    }
+
+                    @Override
+                    public void onNetworkError(Exception e) {
+                        onChunkNetworkError(stats, true, e);
+                    }
+
+                    @Override
+                    public void onMatrixError(MatrixError e) {
+                        onChunkMatrixError(stats, true, e);
+                    }
+
+                    @Override
+                    public void onUnexpectedError(Exception e) {
+                        onChunkUnexpectedError(stats, true, e);
                     }
                 });
             }
+        }
 
-            @Override
-            public void onNetworkError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onNetworkError(e);
-                }
+        /**
+         * Send the prepared chunk.
+         *
+         * @param chunk      the chunk devices
+         * @param chainIndex the shared megolm chain index
+         * @param contentMap the encrypted contents
+         * @param stats      the chunk stats
+         */
+        private void sendUserDevicesKey(final HashMap<String, ArrayList<MXDeviceInfo>> chunk,
+                                        final int chainIndex,
+                                        MXUsersDevicesMap<Map<String, Object>> contentMap,
+                                        final MXKeyShareChunkStats stats) {
+            if ((0 == contentMap.getMap().size()) || mCrypto.hasBeenReleased()) {
+                Log.d(LOG_TAG, "## shareUserDevicesKey() : no need to sharekey");
+                stats.mSucceeded = true;
+                onChunkCompleted(stats);
+                return;
             }
 
-            @Override
-            public void onMatrixError(MatrixError e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onMatrixError(e);
+            final long t0 = System.currentTimeMillis();
+            Log.d(LOG_TAG, "## shareUserDevicesKey() : has target");
+
+            mSession.getCryptoRestClient().sendToDevice(Event.EVENT_TYPE_MESSAGE_ENCRYPTED, contentMap, new ApiCallback<Void>() {
+                @Override
+                public void onSuccess(Void info) {
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            stats.mSendDuration = System.currentTimeMillis() - t0;
+                            Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice succeeds after " + stats.mSendDuration + " ms");
+
+                            // Add the devices we have shared with to session.sharedWithDevices.
+                            // we deliberately iterate over devicesByUser (ie, the devices we
+                            // attempted to share with) rather than the contentMap (those we did
+                            // share with), because we don't want to try to claim a one-time-key
+                            // for dead devices on every message.
+                            for (String userId : chunk.keySet()) {
+                                List<MXDeviceInfo> devicesToShareWith = chunk.get(userId);
+
+                                for (MXDeviceInfo deviceInfo : devicesToShareWith) {
+                                    mSessionInfo.mSharedWithDevices.setObject(chainIndex, userId, deviceInfo.deviceId);
+                                }
+                            }
+
+                            stats.mSucceeded = true;
+                            onChunkCompleted(stats);
+                        }
+                    });
                 }
-            }
 
-            @Override
-            public void onUnexpectedError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
+                @Override
+                public void onNetworkError(Exception e) {
+                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onNetworkError " + e.getMessage());
+                    onChunkNetworkError(stats, false, e);
                 }
-            }
-        });
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onMatrixError " + e.getMessage());
+                    onChunkMatrixError(stats, false, e);
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onUnexpectedError " + e.getMessage());
+                    onChunkUnexpectedError(stats, false, e);
+                }
+            });
+        }
+
+        /**
+         * A chunk has been shared.
+         *
+         * @param stats the chunk stats
+         */
+        private void onChunkCompleted(MXKeyShareChunkStats stats) {
+            Log.d(LOG_TAG, "## shareKey() : " + stats);
+            mInFlightCount--;
+            mCompletedCount++;
+            pump();
+        }
+
+        /**
+         * A chunk sharing has failed.
+         * The callback is only called for the first failure and no other chunk is started.
+         *
+         * @param stats       the chunk stats
+         * @param isPreparing true if the failure happened while preparing the chunk
+         * @param runnable    the failure dispatch
+         */
+        private void onChunkFailed(final MXKeyShareChunkStats stats, final boolean isPreparing, final Runnable runnable) {
+            mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(LOG_TAG, "## shareKey() : " + stats);
+                    mInFlightCount--;
+
+                    if (isPreparing) {
+                        mIsPreparing = false;
+                    }
+
+                    if (!mIsDone) {
+                        mIsDone = true;
+                        setLastKeyShareStats(mStats);
+
+                        if (null != mCallback) {
+                            mCrypto.getUIHandler().post(runnable);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * A network error has been received while sharing a chunk.
+         */
+        private void onChunkNetworkError(MXKeyShareChunkStats stats, boolean isPreparing, final Exception e) {
+            onChunkFailed(stats, isPreparing, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onNetworkError(e);
+                }
+            });
+        }
+
+        /**
+         * A matrix error has been received while sharing a chunk.
+         */
+        private void onChunkMatrixError(MXKeyShareChunkStats stats, boolean isPreparing, final MatrixError e) {
+            onChunkFailed(stats, isPreparing, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onMatrixError(e);
+                }
+            });
+        }
+
+        /**
+         * An unexpected error has been received while sharing a chunk.
+         */
+        private void onChunkUnexpectedError(MXKeyShareChunkStats stats, boolean isPreparing, final Exception e) {
+            onChunkFailed(stats, isPreparing, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onUnexpectedError(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Update the stats of the last key sharing.
+     *
+     * @param stats the chunks stats
+     */
+    private void setLastKeyShareStats(List<MXKeyShareChunkStats> stats) {
+        synchronized (this) {
+            mLastKeyShareStats = new ArrayList<>(stats);
+        }
     }
 
     /**
-     * Share the device keys of a an user
+     * Provides the timings of the chunks of the last megolm key sharing in this room.
+     *
+     * @return the chunks stats
+     */
+    public List<MXKeyShareChunkStats> getLastKeyShareStats() {
+        synchronized (this) {
+            return new ArrayList<>(mLastKeyShareStats);
+        }
+    }
+
+    /**
+     * Establish the olm sessions with the devices of a chunk and encrypt the room key for them.
+     * The callback is called in the encrypting thread.
      *
      * @param session       the session info
+     * @param chainIndex    the megolm chain index to share
      * @param devicesByUser the devices map
+     * @param stats         the chunk stats
      * @param callback      the asynchronous callback
      */
-    private void shareUserDevicesKey(final MXOutboundSessionInfo session, final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser, final ApiCallback<Void> callback) {
+    private void prepareUserDevicesKey(final MXOutboundSessionInfo session,
+                                       final int chainIndex,
+                                       final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser,
+                                       final MXKeyShareChunkStats stats,
+                                       final ApiCallback<MXUsersDevicesMap<Map<String, Object>>> callback) {
         final String sessionKey = mCrypto.getOlmDevice().getSessionKey(session.mSessionId);
-        final int chainIndex = mCrypto.getOlmDevice().getMessageIndex(session.mSessionId);
 
         HashMap<String, Object> submap = new HashMap<>();
         submap.put("algorithm", MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM);
@@ -437,10 +712,12 @@ public class MXMegolmEncryption implements IMXEncrypting {
                 mCrypto.getEncryptingThreadHandler().post(new Runnable() {
                     @Override
                     public void run() {
-                        Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices succeeds after " + (System.currentTimeMillis() - t0) + " ms");
+                        long t1 = System.currentTimeMillis();
+                        stats.mOlmSessionsDuration = t1 - t0;
+
+                        Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices succeeds after " + stats.mOlmSessionsDuration + " ms");
                         MXUsersDevicesMap<Map<String, Object>> contentMap = new MXUsersDevicesMap<>();
 
-                        boolean haveTargets = false;
                         List<String> userIds = results.getUserIds();
 
                         for (String userId : userIds) {
@@ -469,86 +746,13 @@ public class MXMegolmEncryption implements IMXEncrypting {
                                 Log.d(LOG_TAG, "## shareUserDevicesKey() : Sharing keys with device " + userId + ":" + deviceID);
                                 //noinspection ArraysAsListWithZeroOrOneArgument,ArraysAsListWithZeroOrOneArgument
                                 contentMap.setObject(mCrypto.encryptMessage(payload, Arrays.asList(sessionResult.mDevice)), userId, deviceID);
-                                haveTargets = true;
+                                stats.mTargetsCount++;
                             }
                         }
 
-                        if (haveTargets && !mCrypto.hasBeenReleased()) {
-                            final long t0 = System.currentTimeMillis();
-                            Log.d(LOG_TAG, "## shareUserDevicesKey() : has target");
-
-                            mSession.getCryptoRestClient().sendToDevice(Event.EVENT_TYPE_MESSAGE_ENCRYPTED, contentMap, new ApiCallback<Void>() {
-                                @Override
-                                public void onSuccess(Void info) {
-                                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice succeeds after " + (System.currentTimeMillis() - t0) + " ms");
-
-                                            // Add the devices we have shared with to session.sharedWithDevices.
-                                            // we deliberately iterate over devicesByUser (ie, the devices we
-                                            // attempted to share with) rather than the contentMap (those we did
-                                            // share with), because we don't want to try to claim a one-time-key
-                                            // for dead devices on every message.
-                                            for (String userId : devicesByUser.keySet()) {
-                                                List<MXDeviceInfo> devicesToShareWith = devicesByUser.get(userId);
-
-                                                for (MXDeviceInfo deviceInfo : devicesToShareWith) {
-                                                    session.mSharedWithDevices.setObject(chainIndex, userId, deviceInfo.deviceId);
-                                                }
-                                            }
-
-                                            mCrypto.getUIHandler().post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    if (null != callback) {
-                                                        callback.onSuccess(null);
-                                                    }
-                                                }
-                                            });
-                                        }
-                                    });
-                                }
+                        stats.mEncryptionDuration = System.currentTimeMillis() - t1;
 
-                                @Override
-                                public void onNetworkError(Exception e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onNetworkError " + e.getMessage());
-
-                                    if (null != callback) {
-                                        callback.onNetworkError(e);
-                                    }
-                                }
-
-                                @Override
-                                public void onMatrixError(MatrixError e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onMatrixError " + e.getMessage());
-
-                                    if (null != callback) {
-                                        callback.onMatrixError(e);
-                                    }
-                                }
-
-                                @Override
-                                public void onUnexpectedError(Exception e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onUnexpectedError " + e.getMessage());
-
-                                    if (null != callback) {
-                                        callback.onUnexpectedError(e);
-                                    }
-                                }
-                            });
-                        } else {
-                            Log.d(LOG_TAG, "## shareUserDevicesKey() : no need to sharekey");
-
-                            if (null != callback) {
-                                mCrypto.getUIHandler().post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onSuccess(null);
-                                    }
-                                });
-                            }
-                        }
+                        callback.onSuccess(contentMap);
                     }
                 });
             }
@@ -556,28 +760,19 @@ public class MXMegolmEncryption implements IMXEncrypting {
             @Override
             public void onNetworkError(Exception e) {
                 Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
-
-                if (null != callback) {
-                    callback.onNetworkError(e);
-                }
+                callback.onNetworkError(e);
             }
 
             @Override
             public void onMatrixError(MatrixError e) {
                 Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
-
-                if (null != callback) {
-                    callback.onMatrixError(e);
-                }
+                callback.onMatrixError(e);
             }
 
             @Override
             public void onUnexpectedError(Exception e) {
                 Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
-
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
-                }
+                callback.onUnexpectedError(e);
             }
         });
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto.data;
+
+/**
+ * Timings of a megolm key sharing chunk.
+ */
+public class MXKeyShareChunkStats {
+    /**
+     * The chunk index in the key sharing.
+     */
+    public int mChunkIndex;
+
+    /**
+     * The number of devices in this chunk.
+     */
+    public int mDevicesCount;
+
+    /**
+     * The number of devices to which the key has been sent.
+     */
+    public int mTargetsCount;
+
+    /**
+     * Time spent to establish the olm sessions (including the one-time keys claim) in ms.
+     */
+    public long mOlmSessionsDuration;
+
+    /**
+     * Time spent to encrypt the key for the devices in ms.
+     */
+    public long mEncryptionDuration;
+
+    /**
+     * Time spent in the sendToDevice request in ms.
+     */
+    public long mSendDuration;
+
+    /**
+     * true if the chunk has been successfully shared.
+     */
+    public boolean mSucceeded;
+
+    @Override
+    public java.lang.String toString() {
+        return "chunk " + mChunkIndex + " : " + mTargetsCount + "/" + mDevicesCount + " devices"
+                + " - olm sessions " + mOlmSessionsDuration + " ms"
+                + " - encryption " + mEncryptionDuration + " ms"
+                + " - send " + mSendDuration + " ms"
+                + (mSucceeded ? "" : " (failed)");
+    }
+}
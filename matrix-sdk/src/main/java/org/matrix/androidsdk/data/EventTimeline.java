@@ -472,7 +472,7 @@ public class EventTimeline {
             // if it is an initial sync, the live state is initialized here
             // so the back state must also be initialized
             if (isRoomInitialSync) {
-                Log.d(LOG_TAG, "## handleJoinedRoomSync() : retrieve " + this.mState.getMembers().size() + " members for room " + mRoomId);
+                Log.d(LOG_TAG, "## handleJoinedRoomSync() : retrieve " + this.mState.getReadOnlyMembers().size() + " members for room " + mRoomId);
                 this.mBackState = this.mState.deepCopy();
             }
         }
@@ -525,6 +525,14 @@ public class EventTimeline {
                 // save the back token
                 events.get(0).mToken = roomSync.timeline.prevBatch;
 
+                // the event might already be stored
+                Event storedEvent = mStore.getEvent(events.get(0).eventId, mRoomId);
+
+                if ((null != storedEvent) && (storedEvent != events.get(0))) {
+                    storedEvent.mToken = roomSync.timeline.prevBatch;
+                    mStore.onEventUpdated(storedEvent);
+                }
+
                 // Here the events are handled in forward direction (see [handleLiveEvent:]).
                 // They will be added at the end of the stored events, so we keep the chronological order.
                 for (Event event : events) {
@@ -442,19 +442,16 @@ public class Room {
      * @return the list of active members in a room ie joined or invited ones.
      */
     public Collection<RoomMember> getActiveMembers() {
-        Collection<RoomMember> members = getState().getMembers();
-        List<RoomMember> activeMembers = new ArrayList<>();
-        String conferenceUserId = MXCallsManager.getConferenceUserId(getRoomId());
-
-        for (RoomMember member : members) {
-            if (!TextUtils.equals(member.getUserId(), conferenceUserId)) {
-                if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_JOIN) || TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_INVITE)) {
-                    activeMembers.add(member);
-                }
-            }
-        }
+        return new ArrayList<>(getReadOnlyActiveMembers());
+    }
 
-        return activeMembers;
+    /**
+     * Provides the active members without copying the list.
+     *
+     * @return the read only list of active members in a room ie joined or invited ones.
+     */
+    public Collection<RoomMember> getReadOnlyActiveMembers() {
+        return getState().getReadOnlyActiveMembers();
     }
 
     /**
@@ -463,16 +460,16 @@ public class Room {
      * @return the list the joined members of the room.
      */
     public Collection<RoomMember> getJoinedMembers() {
-        Collection<RoomMember> membersList = getState().getMembers();
-        List<RoomMember> joinedMembersList = new ArrayList<>();
-
-        for (RoomMember member : membersList) {
-            if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_JOIN)) {
-                joinedMembersList.add(member);
-            }
-        }
+        return new ArrayList<>(getReadOnlyJoinedMembers());
+    }
 
-        return joinedMembersList;
+    /**
+     * Provides the joined members without copying the list.
+     *
+     * @return the read only list of the joined members of the room.
+     */
+    public Collection<RoomMember> getReadOnlyJoinedMembers() {
+        return getState().getReadOnlyJoinedMembers();
     }
 
     public RoomMember getMember(String userId) {
@@ -966,7 +963,7 @@ public class Room {
     public String getCallAvatarUrl() {
         String avatarURL;
 
-        List<RoomMember> joinedMembers = new ArrayList<>(getJoinedMembers());
+        List<RoomMember> joinedMembers = new ArrayList<>(getReadOnlyJoinedMembers());
 
         // 2 joined members case
         if (2 == joinedMembers.size()) {
@@ -1844,7 +1841,7 @@ public class Room {
      * @return true if a call can be performed.
      */
     public boolean canPerformCall() {
-        return getActiveMembers().size() > 1;
+        return getReadOnlyActiveMembers().size() > 1;
     }
 
     /**
@@ -1853,10 +1850,10 @@ public class Room {
     public List<RoomMember> callees() {
         List<RoomMember> res = new ArrayList<>();
 
-        Collection<RoomMember> members = getMembers();
+        Collection<RoomMember> members = getReadOnlyJoinedMembers();
 
         for (RoomMember m : members) {
-            if (RoomMember.MEMBERSHIP_JOIN.equals(m.membership) && !mMyUserId.equals(m.getUserId())) {
+            if (!mMyUserId.equals(m.getUserId())) {
                 res.add(m);
             }
         }
@@ -2213,7 +2210,7 @@ public class Room {
 
         // GA crash
         if (null != mDataHandler) {
-            mDataHandler.addListener(globalListener);
+            mDataHandler.addListener(getRoomId(), globalListener);
         }
     }
 
@@ -36,7 +36,6 @@ import org.matrix.androidsdk.listeners.IMXMediaUploadListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.Message;
-import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
 import org.matrix.androidsdk.util.ResourceUtils;
 
@@ -164,7 +163,7 @@ public class RoomMediaMessage implements Parcelable {
     public RoomMediaMessage(Event event) {
         setEvent(event);
 
-        Message message = JsonUtils.toMessage(event.getContent());
+        Message message = event.getMessage();
         if (null != message) {
             setMessageType(message.msgtype);
         }
@@ -40,7 +40,9 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -183,6 +185,30 @@ public class RoomState implements Externalizable {
     // member display cache
     private transient HashMap<String, String> mMemberDisplayNameByUserId = new HashMap<>();
 
+    // display name -> user ids, built on demand
+    private transient Map<String, Set<String>> mUserIdsByDisplayName = null;
+
+    // incremented each time the members list is updated
+    private transient int mMembershipVersion = 0;
+
+    // the filtered members lists, built on demand
+    private transient MembershipViews mMembershipViews = null;
+
+    /**
+     * The read only members lists computed for a membership version.
+     */
+    private static class MembershipViews {
+        int mVersion;
+        List<RoomMember> mMembers;
+        List<RoomMember> mJoinedMembers;
+        List<RoomMember> mInvitedMembers;
+        List<RoomMember> mActiveMembers;
+        List<RoomMember> mDisplayableMembers;
+    }
+
+    // the max number of members named in the computed room name
+    private static final int MAX_HEROES_COUNT = 5;
+
     // get the guest access
     // avoid the null case
     public String getGuestAccess() {
@@ -230,18 +256,106 @@ public class RoomState implements Externalizable {
         }
     }
 
+    /**
+     * @return the membership version, it is incremented each time a member is updated.
+     */
+    public synchronized int getMembershipVersion() {
+        return mMembershipVersion;
+    }
+
+    /**
+     * Provides the members lists of the current membership version.
+     * They are built in a single pass the first time they are requested after a members update.
+     *
+     * @return the members lists
+     */
+    private synchronized MembershipViews getMembershipViews() {
+        if ((null == mMembershipViews) || (mMembershipViews.mVersion != mMembershipVersion)) {
+            String conferenceUserId = MXCallsManager.getConferenceUserId(roomId);
+
+            List<RoomMember> members = new ArrayList<>(mMembers.values());
+            List<RoomMember> joinedMembers = new ArrayList<>();
+            List<RoomMember> invitedMembers = new ArrayList<>();
+            List<RoomMember> activeMembers = new ArrayList<>();
+            List<RoomMember> displayableMembers = new ArrayList<>();
+
+            for (RoomMember member : members) {
+                boolean isConferenceUser = TextUtils.equals(member.getUserId(), conferenceUserId);
+
+                if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_JOIN)) {
+                    joinedMembers.add(member);
+                } else if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_INVITE)) {
+                    invitedMembers.add(member);
+                }
+
+                if (!isConferenceUser) {
+                    displayableMembers.add(member);
+
+                    if (TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_JOIN) || TextUtils.equals(member.membership, RoomMember.MEMBERSHIP_INVITE)) {
+                        activeMembers.add(member);
+                    }
+                }
+            }
+
+            MembershipViews views = new MembershipViews();
+            views.mVersion = mMembershipVersion;
+            views.mMembers = Collections.unmodifiableList(members);
+            views.mJoinedMembers = Collections.unmodifiableList(joinedMembers);
+            views.mInvitedMembers = Collections.unmodifiableList(invitedMembers);
+            views.mActiveMembers = Collections.unmodifiableList(activeMembers);
+            views.mDisplayableMembers = Collections.unmodifiableList(displayableMembers);
+            mMembershipViews = views;
+        }
+
+        return mMembershipViews;
+    }
+
+    /**
+     * Tell that a member has been updated in place (e.g. its membership).
+     * The members lists will be rebuilt.
+     */
+    public synchronized void invalidateMembershipViews() {
+        mMembershipVersion++;
+    }
+
     /**
      * @return a copy of the room members list.
      */
     public Collection<RoomMember> getMembers() {
-        ArrayList<RoomMember> res;
+        return new ArrayList<>(getMembershipViews().mMembers);
+    }
 
-        synchronized (this) {
-            // make a copy to avoid concurrency modifications
-            res = new ArrayList<>(mMembers.values());
-        }
+    /**
+     * Provides the room members list without copying it.
+     * The returned list is not updated when the members change, it is rebuilt.
+     *
+     * @return the room members list, it is read only.
+     */
+    public Collection<RoomMember> getReadOnlyMembers() {
+        return getMembershipViews().mMembers;
+    }
 
-        return res;
+    /**
+     * @return the joined members list, it is read only.
+     */
+    public Collection<RoomMember> getReadOnlyJoinedMembers() {
+        return getMembershipViews().mJoinedMembers;
+    }
+
+    /**
+     * @return the invited members list, it is read only.
+     */
+    public Collection<RoomMember> getReadOnlyInvitedMembers() {
+        return getMembershipViews().mInvitedMembers;
+    }
+
+    /**
+     * Provides the joined and invited members, the conference user excluded.
+     *
+     * @return the active members list, it is read only.
+     */
+    public Collection<RoomMember> getReadOnlyActiveMembers() {
+        return getMembershipViews().mActiveMembers;
     }
 
     /**
@@ -324,17 +438,16 @@ public class RoomState implements Externalizable {
      * @return a copy of the displayable room members list.
      */
     public Collection<RoomMember> getDisplayableMembers() {
-        Collection<RoomMember> members = getMembers();
-
-        RoomMember conferenceUserId = getMember(MXCallsManager.getConferenceUserId(roomId));
-
-        if (null != conferenceUserId) {
-            ArrayList<RoomMember> membersList = new ArrayList<>(members);
-            membersList.remove(conferenceUserId);
-            members = membersList;
-        }
+        return new ArrayList<>(getMembershipViews().mDisplayableMembers);
+    }
 
-        return members;
+    /**
+     * Provides the displayable members list without copying it.
+     *
+     * @return the displayable room members list, it is read only.
+     */
+    public Collection<RoomMember> getReadOnlyDisplayableMembers() {
+        return getMembershipViews().mDisplayableMembers;
     }
 
     /**
@@ -349,7 +462,7 @@ public class RoomState implements Externalizable {
 
             mIsConferenceUserRoom = false;
 
-            Collection<RoomMember> members = getMembers();
+            Collection<RoomMember> members = getReadOnlyMembers();
 
             // works only with 1:1 room
             if (2 == members.size()) {
@@ -386,10 +499,9 @@ public class RoomState implements Externalizable {
             member.setUserId(userId);
         }
         synchronized (this) {
-            if (null != mMemberDisplayNameByUserId) {
-                mMemberDisplayNameByUserId.remove(userId);
-            }
-            mMembers.put(userId, member);
+            RoomMember prevMember = mMembers.put(userId, member);
+            mMembershipVersion++;
+            onMemberDisplayNameUpdate(userId, (null != prevMember) ? prevMember.displayname : null, member.displayname);
         }
     }
 
@@ -416,14 +528,104 @@ public class RoomState implements Externalizable {
      */
     public void removeMember(String userId) {
         synchronized (this) {
-            mMembers.remove(userId);
-            // remove the cached display name
-            if (null != mMemberDisplayNameByUserId) {
+            RoomMember prevMember = mMembers.remove(userId);
+
+            if (null != prevMember) {
+                mMembershipVersion++;
+            }
+
+            onMemberDisplayNameUpdate(userId, (null != prevMember) ? prevMember.displayname : null, null);
+        }
+    }
+
+    /**
+     * Update the display names index when a member is updated.
+     * Only the cached names of the members which share the previous or the new display name are invalidated.
+     * Must be called in a synchronized block.
+     *
+     * @param userId          the user id
+     * @param prevDisplayName the previous display name
+     * @param displayName     the new display name
+     */
+    private void onMemberDisplayNameUpdate(String userId, String prevDisplayName, String displayName) {
+        if (null != mMemberDisplayNameByUserId) {
+            mMemberDisplayNameByUserId.remove(userId);
+        }
+
+        if (null == mUserIdsByDisplayName) {
+            return;
+        }
+
+        if (null != prevDisplayName) {
+            Set<String> userIds = mUserIdsByDisplayName.get(prevDisplayName);
+
+            if (null != userIds) {
+                userIds.remove(userId);
+
+                if (userIds.isEmpty()) {
+                    mUserIdsByDisplayName.remove(prevDisplayName);
+                }
+
+                invalidateMemberNames(userIds);
+            }
+        }
+
+        if (null != displayName && mMembers.containsKey(userId)) {
+            Set<String> userIds = mUserIdsByDisplayName.get(displayName);
+
+            if (null == userIds) {
+                userIds = new HashSet<>();
+                mUserIdsByDisplayName.put(displayName, userIds);
+            }
+
+            userIds.add(userId);
+            invalidateMemberNames(userIds);
+        }
+    }
+
+    /**
+     * Remove the cached names of some members.
+     *
+     * @param userIds the user ids
+     */
+    private void invalidateMemberNames(Set<String> userIds) {
+        if (null != mMemberDisplayNameByUserId) {
+            for (String userId : userIds) {
                 mMemberDisplayNameByUserId.remove(userId);
             }
         }
     }
 
+    /**
+     * Provides the user ids of the members with a display name.
+     * Must be called in a synchronized block.
+     *
+     * @param displayName the display name
+     * @return the user ids, null if there is none
+     */
+    private Set<String> getUserIdsWithDisplayName(String displayName) {
+        if (null == mUserIdsByDisplayName) {
+            mUserIdsByDisplayName = new HashMap<>();
+
+            for (Map.Entry<String, RoomMember> entry : mMembers.entrySet()) {
+                String memberDisplayName = entry.getValue().displayname;
+
+                if (null != memberDisplayName) {
+                    Set<String> userIds = mUserIdsByDisplayName.get(memberDisplayName);
+
+                    if (null == userIds) {
+                        userIds = new HashSet<>();
+                        mUserIdsByDisplayName.put(memberDisplayName, userIds);
+                    }
+
+                    userIds.add(entry.getKey());
+                }
+            }
+        }
+
+        return mUserIdsByDisplayName.get(displayName);
+    }
+
     /**
      * Retrieve a member from an invitation token.
      *
@@ -712,29 +914,37 @@ public class RoomState implements Externalizable {
                 if ((mMembers.size() >= 3) && (selfUserId != null)) {
                     // this is a group chat and should have the names of participants
                     // according to "(<num> <name1>, <name2>, <name3> ..."
-                    int count = 0;
+                    // only the first MAX_HEROES_COUNT members are named
+                    int count = mMembers.containsKey(selfUserId) ? (mMembers.size() - 1) : mMembers.size();
+                    int heroesCount = 0;
 
-                    displayName = "";
+                    StringBuilder builder = new StringBuilder();
+                    builder.append("(").append(count).append(") ");
 
-                    while (it.hasNext()) {
+                    while (it.hasNext() && (heroesCount < MAX_HEROES_COUNT)) {
                         Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
 
                         if (!selfUserId.equals(pair.getKey())) {
                             otherUserPair = pair;
 
-                            if (count > 0) {
-                                displayName += ", ";
+                            if (heroesCount > 0) {
+                                builder.append(", ");
                             }
 
                             if (otherUserPair.getValue().getName() != null) {
-                                displayName += getMemberName(otherUserPair.getValue().getUserId()); // The member name
+                                builder.append(getMemberName(otherUserPair.getValue().getUserId())); // The member name
                             } else {
-                                displayName += getMemberName(otherUserPair.getKey()); // The user id
+                                builder.append(getMemberName(otherUserPair.getKey())); // The user id
                             }
-                            count++;
+                            heroesCount++;
                         }
                     }
-                    displayName = "(" + count + ") " + displayName;
+
+                    if (count > heroesCount) {
+                        builder.append(", ...");
+                    }
+
+                    displayName = builder.toString();
                 } else {
                     // by default, it is oneself name
                     displayName = getMemberName(selfUserId);
@@ -995,18 +1205,12 @@ public class RoomState implements Externalizable {
             displayName = member.displayname;
 
             synchronized (this) {
-                ArrayList<String> matrixIds = new ArrayList<>();
-
                 // Disambiguate users who have the same display name in the room
-                for (RoomMember aMember : mMembers.values()) {
-                    if (displayName.equals(aMember.displayname)) {
-                        matrixIds.add(aMember.getUserId());
-                    }
-                }
+                Set<String> matrixIds = getUserIdsWithDisplayName(displayName);
 
                 // if several users have the same display name
                 // index it i.e bob (<Matrix id>)
-                if (matrixIds.size() > 1) {
+                if ((null != matrixIds) && (matrixIds.size() > 1)) {
                     displayName += " (" + userId + ")";
                 }
             }
@@ -1023,7 +1227,9 @@ public class RoomState implements Externalizable {
             displayName = userId;
         }
 
-        mMemberDisplayNameByUserId.put(userId, displayName);
+        synchronized (this) {
+            mMemberDisplayNameByUserId.put(userId, displayName);
+        }
 
         return displayName;
     }
@@ -1117,6 +1323,7 @@ public class RoomState implements Externalizable {
         for (RoomMember r : members) {
             mMembers.put(r.getUserId(), r);
         }
+        mMembershipVersion++;
 
         List<RoomThirdPartyInvite> invites = (List<RoomThirdPartyInvite>) input.readObject();
         for (RoomThirdPartyInvite i : invites) {
@@ -165,6 +165,14 @@ public interface IMXCryptoStore {
      */
     void storeInboundGroupSession(MXOlmInboundGroupSession2 session);
 
+    /**
+     * Store a batch of inbound group sessions.
+     * The implementations may still save each session separately.
+     *
+     * @param sessions the inbound group sessions and their context.
+     */
+    void storeInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions);
+
     /**
      * Retrieve an inbound group session.
      *
@@ -189,6 +197,18 @@ public interface IMXCryptoStore {
      */
     void removeInboundGroupSession(String sessionId, String senderKey);
 
+    /**
+     * Release the inbound group sessions kept in memory.
+     * They are reloaded when they are requested.
+     * The released sessions must not be used anymore.
+     */
+    void releaseInboundGroupSessions();
+
+    /**
+     * @return the number of inbound group sessions kept in memory
+     */
+    int getInboundGroupSessionsCount();
+
     /**
      * Set the global override for whether the client should ever send encrypted
      * messages to unverified devices.
@@ -40,6 +40,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -113,6 +114,10 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             HashMap<String /*inboundGroupSessionId*/, MXOlmInboundGroupSession2>> mInboundGroupSessions;
     private final Object mInboundGroupSessionsLock = new Object();
 
+    // tell if the inbound group sessions have been released to save memory
+    // they are reloaded from the file system when they are requested.
+    private boolean mAreInboundGroupSessionsReleased = false;
+
 
     private final Map<Map<String, String>, OutgoingRoomKeyRequest> mOutgoingRoomKeyRequests = new HashMap<>();
 
@@ -754,6 +759,11 @@ public class MXFileCryptoStore implements IMXCryptoStore {
 
         if ((null != sessionId) && (null != senderKey)) {
             synchronized (mInboundGroupSessionsLock) {
+                // the session might only be on the file system
+                if (mAreInboundGroupSessionsReleased) {
+                    getInboundGroupSession(sessionId, senderKey);
+                }
+
                 if (mInboundGroupSessions.containsKey(senderKey)) {
                     MXOlmInboundGroupSession2 session = mInboundGroupSessions.get(senderKey).get(sessionId);
 
@@ -785,18 +795,41 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             return;
         }
 
-        String sessionIdentifier = null;
+        storeInboundGroupSessions(Collections.singletonList(session));
+    }
 
-        if ((null != session) && (null != session.mSenderKey) && (null != session.mSession)) {
-            try {
-                sessionIdentifier = session.mSession.sessionIdentifier();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## storeInboundGroupSession() : sessionIdentifier failed " + e.getMessage());
+    @Override
+    public void storeInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions) {
+        if (!mIsReady) {
+            Log.e(LOG_TAG, "## storeInboundGroupSessions() : the store is not ready");
+            return;
+        }
+
+        if (null == sessions) {
+            return;
+        }
+
+        HashMap<MXOlmInboundGroupSession2, String> sessionIdentifiers = new HashMap<>();
+
+        for (MXOlmInboundGroupSession2 session : sessions) {
+            if ((null != session) && (null != session.mSenderKey) && (null != session.mSession)) {
+                try {
+                    sessionIdentifiers.put(session, session.mSession.sessionIdentifier());
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## storeInboundGroupSessions() : sessionIdentifier failed " + e.getMessage());
+                }
             }
         }
 
-        if (null != sessionIdentifier) {
-            synchronized (mInboundGroupSessionsLock) {
+        if (sessionIdentifiers.isEmpty()) {
+            return;
+        }
+
+        // update the memory cache in one shot
+        synchronized (mInboundGroupSessionsLock) {
+            for (MXOlmInboundGroupSession2 session : sessionIdentifiers.keySet()) {
+                String sessionIdentifier = sessionIdentifiers.get(session);
+
                 if (!mInboundGroupSessions.containsKey(session.mSenderKey)) {
                     mInboundGroupSessions.put(session.mSenderKey, new HashMap<String, MXOlmInboundGroupSession2>());
                 }
@@ -812,17 +845,29 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                     mInboundGroupSessions.get(session.mSenderKey).put(sessionIdentifier, session);
                 }
             }
+        }
 
-            Log.d(LOG_TAG, "## storeInboundGroupSession() : store session " + sessionIdentifier);
+        long t0 = System.currentTimeMillis();
+        HashMap<String, File> senderKeyFolders = new HashMap<>();
 
-            File senderKeyFolder = new File(mInboundGroupSessionsFolder, encodeFilename(session.mSenderKey));
+        for (MXOlmInboundGroupSession2 session : sessionIdentifiers.keySet()) {
+            String sessionIdentifier = sessionIdentifiers.get(session);
+            File senderKeyFolder = senderKeyFolders.get(session.mSenderKey);
 
-            if (!senderKeyFolder.exists()) {
-                senderKeyFolder.mkdir();
+            if (null == senderKeyFolder) {
+                senderKeyFolder = new File(mInboundGroupSessionsFolder, encodeFilename(session.mSenderKey));
+
+                if (!senderKeyFolder.exists()) {
+                    senderKeyFolder.mkdir();
+                }
+
+                senderKeyFolders.put(session.mSenderKey, senderKeyFolder);
             }
 
             storeObject(session, senderKeyFolder, encodeFilename(sessionIdentifier), "storeInboundGroupSession - in background");
         }
+
+        Log.d(LOG_TAG, "## storeInboundGroupSessions() : " + sessionIdentifiers.size() + " sessions stored in " + (System.currentTimeMillis() - t0) + " ms");
     }
 
     @Override
@@ -832,12 +877,33 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             return null;
         }
 
-        if ((null != sessionId) && (null != senderKey) && mInboundGroupSessions.containsKey(senderKey)) {
+        if ((null != sessionId) && (null != senderKey)) {
             MXOlmInboundGroupSession2 session = null;
 
             try {
                 synchronized (mInboundGroupSessionsLock) {
-                    session = mInboundGroupSessions.get(senderKey).get(sessionId);
+                    HashMap<String, MXOlmInboundGroupSession2> submap = mInboundGroupSessions.get(senderKey);
+
+                    if (null != submap) {
+                        session = submap.get(sessionId);
+                    }
+
+                    if ((null == session) && mAreInboundGroupSessionsReleased) {
+                        File inboundSessionFile = new File(new File(mInboundGroupSessionsFolder, encodeFilename(senderKey)), encodeFilename(sessionId));
+
+                        if (inboundSessionFile.exists()) {
+                            session = loadInboundGroupSession(inboundSessionFile);
+
+                            if (null != session) {
+                                if (null == submap) {
+                                    submap = new HashMap<>();
+                                    mInboundGroupSessions.put(senderKey, submap);
+                                }
+
+                                submap.put(sessionId, session);
+                            }
+                        }
+                    }
                 }
             } catch (Exception e) {
                 // it should never happen
@@ -861,6 +927,10 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         ArrayList<MXOlmInboundGroupSession2> inboundGroupSessions = new ArrayList<>();
 
         synchronized (mInboundGroupSessionsLock) {
+            if (mAreInboundGroupSessionsReleased) {
+                reloadInboundGroupSessions();
+            }
+
             for (String senderKey : mInboundGroupSessions.keySet()) {
                 inboundGroupSessions.addAll(mInboundGroupSessions.get(senderKey).values());
             }
@@ -1371,14 +1441,7 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                         for (int j = 0; j < sessionIds.length; j++) {
                             File inboundSessionFile = new File(keyFolder, sessionIds[j]);
                             try {
-                                Object inboundSessionAsVoid = loadObject(inboundSessionFile, "load inboundsession " + sessionIds[j] + " ");
-                                MXOlmInboundGroupSession2 inboundSession;
-
-                                if ((null != inboundSessionAsVoid) && (inboundSessionAsVoid instanceof MXOlmInboundGroupSession)) {
-                                    inboundSession = new MXOlmInboundGroupSession2((MXOlmInboundGroupSession) inboundSessionAsVoid);
-                                } else {
-                                    inboundSession = (MXOlmInboundGroupSession2) inboundSessionAsVoid;
-                                }
+                                MXOlmInboundGroupSession2 inboundSession = loadInboundGroupSession(inboundSessionFile);
 
                                 if (null != inboundSession) {
                                     submap.put(decodeFilename(sessionIds[j]), inboundSession);
@@ -1452,6 +1515,117 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
     }
 
+    /**
+     * Load an inbound group session file.
+     * The MXOlmInboundGroupSession instances are converted to MXOlmInboundGroupSession2.
+     *
+     * @param inboundSessionFile the session file
+     * @return the session, null if it cannot be loaded
+     */
+    private MXOlmInboundGroupSession2 loadInboundGroupSession(File inboundSessionFile) {
+        Object inboundSessionAsVoid = loadObject(inboundSessionFile, "load inboundsession " + inboundSessionFile.getName() + " ");
+
+        if ((null != inboundSessionAsVoid) && (inboundSessionAsVoid instanceof MXOlmInboundGroupSession)) {
+            return new MXOlmInboundGroupSession2((MXOlmInboundGroupSession) inboundSessionAsVoid);
+        }
+
+        return (MXOlmInboundGroupSession2) inboundSessionAsVoid;
+    }
+
+    /**
+     * Reload the released inbound group sessions from the file system.
+     * The sessions which are already in memory are kept.
+     * It must be called with mInboundGroupSessionsLock.
+     */
+    private void reloadInboundGroupSessions() {
+        long t0 = System.currentTimeMillis();
+        int count = 0;
+
+        String[] keysFolder = mInboundGroupSessionsFolder.list();
+
+        if (null != keysFolder) {
+            for (String keyFolderName : keysFolder) {
+                String senderKey = decodeFilename(keyFolderName);
+                String[] sessionIds = new File(mInboundGroupSessionsFolder, keyFolderName).list();
+
+                if (null != sessionIds) {
+                    for (String sessionIdFileName : sessionIds) {
+                        String sessionId = decodeFilename(sessionIdFileName);
+                        HashMap<String, MXOlmInboundGroupSession2> submap = mInboundGroupSessions.get(senderKey);
+
+                        if ((null == submap) || !submap.containsKey(sessionId)) {
+                            try {
+                                MXOlmInboundGroupSession2 session = loadInboundGroupSession(new File(new File(mInboundGroupSessionsFolder, keyFolderName), sessionIdFileName));
+
+                                if (null != session) {
+                                    if (null == submap) {
+                                        submap = new HashMap<>();
+                                        mInboundGroupSessions.put(senderKey, submap);
+                                    }
+
+                                    submap.put(sessionId, session);
+                                    count++;
+                                }
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "## reloadInboundGroupSessions() - invalid session " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        mAreInboundGroupSessionsReleased = false;
+
+        Log.d(LOG_TAG, "## reloadInboundGroupSessions() : reload " + count + " inboundGroupSessions in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    @Override
+    public void releaseInboundGroupSessions() {
+        if (!mIsReady) {
+            Log.e(LOG_TAG, "## releaseInboundGroupSessions() : the store is not ready");
+            return;
+        }
+
+        synchronized (mInboundGroupSessionsLock) {
+            // the sessions are stored in files since storeInboundGroupSessions()
+            if (!mInboundGroupSessionsFolder.exists()) {
+                return;
+            }
+
+            int count = 0;
+
+            for (HashMap<String, MXOlmInboundGroupSession2> submap : mInboundGroupSessions.values()) {
+                for (MXOlmInboundGroupSession2 session : submap.values()) {
+                    if (null != session.mSession) {
+                        session.mSession.releaseSession();
+                    }
+                    count++;
+                }
+            }
+
+            mInboundGroupSessions.clear();
+            mAreInboundGroupSessionsReleased = true;
+
+            Log.d(LOG_TAG, "## releaseInboundGroupSessions() : " + count + " inboundGroupSessions released");
+        }
+    }
+
+    @Override
+    public int getInboundGroupSessionsCount() {
+        int count = 0;
+
+        synchronized (mInboundGroupSessionsLock) {
+            if (null != mInboundGroupSessions) {
+                for (HashMap<String, MXOlmInboundGroupSession2> submap : mInboundGroupSessions.values()) {
+                    count += submap.size();
+                }
+            }
+        }
+
+        return count;
+    }
+
     final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     /**
@@ -192,6 +192,26 @@ public interface IMXStore {
      */
     void setDirectChatRoomsDict(Map<String, List<String>> directChatRoomsDict);
 
+    /**
+     * Store the id of an uploaded sync filter.
+     *
+     * @param filterDefinition the filter definition (JSON)
+     * @param filterId         the filter id
+     */
+    void addFilter(String filterDefinition, String filterId);
+
+    /**
+     * Remove the id of a sync filter which is no more known by the server.
+     *
+     * @param filterDefinition the filter definition (JSON)
+     */
+    void removeFilter(String filterDefinition);
+
+    /**
+     * @return the uploaded sync filter ids by filter definition (JSON)
+     */
+    Map<String, String> getFilters();
+
     /**
      * @return the known rooms list
      */
@@ -296,6 +316,13 @@ public interface IMXStore {
      */
     void deleteEvent(Event event);
 
+    /**
+     * Warn the store that a stored event has been updated in place (e.g. its sent state or its pagination token).
+     *
+     * @param event the updated event
+     */
+    void onEventUpdated(Event event);
+
     /**
      * Remove all sent messages in a room.
      *
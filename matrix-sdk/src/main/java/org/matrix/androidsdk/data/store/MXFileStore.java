@@ -37,6 +37,7 @@ import org.matrix.androidsdk.rest.model.ThirdPartyIdentifier;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.MXMetrics;
 import org.matrix.androidsdk.util.MXOsHandler;
 
 import java.io.File;
@@ -46,12 +47,14 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -61,16 +64,29 @@ import java.util.zip.GZIPOutputStream;
 public class MXFileStore extends MXMemoryStore {
     private static final String LOG_TAG = MXFileStore.class.getSimpleName();
 
+    // metrics
+    private static final MXMetrics.Histogram STORE_COMMIT_MS = MXMetrics.histogram("store.commit_ms");
+    private static final MXMetrics.Histogram STORE_COMMIT_DIRTY_ITEMS = MXMetrics.histogram("store.commit_dirty_items");
+    private static final MXMetrics.Counter STORE_BYTES_WRITTEN = MXMetrics.counter("store.written_bytes");
+    private static final MXMetrics.Counter STORE_WRITE_FAILURES = MXMetrics.counter("store.write_failures");
+
     // some constant values
     private static final int MXFILE_VERSION = 15;
 
     // ensure that there is enough messages to fill a tablet screen
     private static final int MAX_STORED_MESSAGES_COUNT = 50;
 
+    // default retention budgets of the room messages
+    // the stored messages are loaded in memory at startup so keep the former retention until they are paged from the disk
+    private static final int DEFAULT_MAX_STORED_MESSAGES_PER_ROOM = MAX_STORED_MESSAGES_COUNT;
+    private static final int DEFAULT_MAX_STORED_MESSAGES = Integer.MAX_VALUE;
+
     private static final String MXFILE_STORE_FOLDER = "MXFileStore";
     private static final String MXFILE_STORE_METADATA_FILE_NAME = "MXFileStore";
 
+    // legacy folder : one file per room
     private static final String MXFILE_STORE_GZ_ROOMS_MESSAGES_FOLDER = "messages_gz";
+    private static final String MXFILE_STORE_ROOMS_MESSAGES_CHUNKS_FOLDER = "messages_chunks";
     private static final String MXFILE_STORE_ROOMS_TOKENS_FOLDER = "tokens";
     private static final String MXFILE_STORE_GZ_ROOMS_STATE_FOLDER = "state_gz";
     private static final String MXFILE_STORE_GZ_ROOMS_STATE_EVENTS_FOLDER = "state_rooms_events";
@@ -78,6 +94,8 @@ public class MXFileStore extends MXMemoryStore {
     private static final String MXFILE_STORE_ROOMS_RECEIPT_FOLDER = "receipts";
     private static final String MXFILE_STORE_ROOMS_ACCOUNT_DATA_FOLDER = "accountData";
     private static final String MXFILE_STORE_USER_FOLDER = "users";
+    private static final String MXFILE_STORE_USERS_LOG_FILE_NAME = "users_log";
+    private static final String MXFILE_STORE_ROOMS_SUMMARIES_SNAPSHOT_FILE_NAME = "summaries_snapshot";
 
     // the data is read from the file system
     private boolean mIsReady = false;
@@ -104,9 +122,13 @@ public class MXFileStore extends MXMemoryStore {
     // Flag to indicate metaData needs to be store
     private boolean mMetaDataHasChanged = false;
 
+    // tell if the rooms list snapshot must be written
+    private boolean mSummariesSnapshotHasChanged = false;
+
     // The path of the MXFileStore folders
     private File mStoreFolderFile = null;
     private File mGzStoreRoomsMessagesFolderFile = null;
+    private File mStoreRoomsMessagesChunksFolderFile = null;
     private File mStoreRoomsTokensFolderFile = null;
     private File mGzStoreRoomsStateFolderFile = null;
     private File mGzStoreRoomsStateEventsFolderFile = null;
@@ -125,6 +147,12 @@ public class MXFileStore extends MXMemoryStore {
 
     private boolean mAreUsersLoaded = false;
 
+    // the users are appended to a log, and read on demand
+    private MXUsersLog mUsersLog = null;
+
+    // the stored users which have not been read yet
+    private final Set<String> mUserIdsToLoad = new HashSet<>();
+
     private long mPreloadTime = 0;
 
     // the read receipts are asynchronously loaded
@@ -134,6 +162,17 @@ public class MXFileStore extends MXMemoryStore {
     // store some stats
     private final HashMap<String, Long> mStoreStats = new HashMap<>();
 
+    // the saved messages chunks by room id
+    private final Map<String, RoomMessagesChunks> mRoomMessagesChunks = new ConcurrentHashMap<>();
+
+    // the ids of the events updated since the latest save, by room id
+    // a null set means that all the room events must be saved
+    private final Map<String, Set<String>> mDirtyEventIdsByRoomId = new HashMap<>();
+
+    // the retention budgets of the room messages
+    private int mMaxStoredMessagesPerRoom = DEFAULT_MAX_STORED_MESSAGES_PER_ROOM;
+    private int mMaxStoredMessages = DEFAULT_MAX_STORED_MESSAGES;
+
     /**
      * Create the file store dirtrees
      */
@@ -142,12 +181,14 @@ public class MXFileStore extends MXMemoryStore {
         // MXFileStore/userID/
         // MXFileStore/userID/MXFileStore
         // MXFileStore/userID/Messages/
+        // MXFileStore/userID/messages_chunks/<room Id>/<chunk Id>
         // MXFileStore/userID/Tokens/
         // MXFileStore/userID/States/
         // MXFileStore/userID/Summaries/
         // MXFileStore/userID/receipt/<room Id>/receipts
         // MXFileStore/userID/accountData/
         // MXFileStore/userID/users/
+        // MXFileStore/userID/summaries_snapshot
 
         // create the dirtree
         mStoreFolderFile = new File(new File(mContext.getApplicationContext().getFilesDir(), MXFILE_STORE_FOLDER), userId);
@@ -161,6 +202,11 @@ public class MXFileStore extends MXMemoryStore {
             mGzStoreRoomsMessagesFolderFile.mkdirs();
         }
 
+        mStoreRoomsMessagesChunksFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_MESSAGES_CHUNKS_FOLDER);
+        if (!mStoreRoomsMessagesChunksFolderFile.exists()) {
+            mStoreRoomsMessagesChunksFolderFile.mkdirs();
+        }
+
         mStoreRoomsTokensFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_TOKENS_FOLDER);
         if (!mStoreRoomsTokensFolderFile.exists()) {
             mStoreRoomsTokensFolderFile.mkdirs();
@@ -195,6 +241,8 @@ public class MXFileStore extends MXMemoryStore {
         if (!mStoreUserFolderFile.exists()) {
             mStoreUserFolderFile.mkdirs();
         }
+
+        mUsersLog = new MXUsersLog(new File(mStoreUserFolderFile, MXFILE_STORE_USERS_LOG_FILE_NAME));
     }
 
     /**
@@ -289,6 +337,9 @@ public class MXFileStore extends MXMemoryStore {
         // Save data only if metaData exists
         if ((null != mMetadata) && (null != mMetadata.mAccessToken) && !isKilled()) {
             Log.d(LOG_TAG, "++ Commit");
+            long startNs = System.nanoTime();
+            STORE_COMMIT_DIRTY_ITEMS.record(mRoomsToCommitForMessages.size() + mRoomsToCommitForStates.size() + mRoomsToCommitForSummaries.size()
+                    + mRoomsToCommitForAccountData.size() + mRoomsToCommitForReceipts.size() + mUserIdsToCommit.size());
             saveUsers();
             saveRoomsMessages();
             saveRoomStates();
@@ -297,6 +348,8 @@ public class MXFileStore extends MXMemoryStore {
             saveRoomsAccountData();
             saveReceipts();
             saveMetaData();
+            saveSummariesSnapshot();
+            STORE_COMMIT_MS.recordElapsedMs(startNs);
             Log.d(LOG_TAG, "-- Commit");
         }
     }
@@ -371,7 +424,7 @@ public class MXFileStore extends MXMemoryStore {
                                         Collection<Room> rooms = getRooms();
 
                                         for (Room room : rooms) {
-                                            Collection<RoomMember> members = room.getLiveState().getMembers();
+                                            Collection<RoomMember> members = room.getLiveState().getReadOnlyMembers();
                                             for (RoomMember member : members) {
                                                 updateUserWithRoomMemberEvent(member);
                                             }
@@ -469,7 +522,7 @@ public class MXFileStore extends MXMemoryStore {
                                         Room room = getRoom(roomId);
 
                                         if ((null != room) && (null != room.getLiveState())) {
-                                            int membersCount = room.getLiveState().getMembers().size();
+                                            int membersCount = room.getLiveState().getReadOnlyMembers().size();
                                             int eventsCount = mRoomEvents.get(roomId).size();
 
                                             Log.d(LOG_TAG, " room " + roomId + " : membersCount " + membersCount + " - eventsCount " + eventsCount);
@@ -598,6 +651,10 @@ public class MXFileStore extends MXMemoryStore {
             mHandlerThread.quit();
         }
         mHandlerThread = null;
+
+        if (null != mUsersLog) {
+            mUsersLog.close();
+        }
     }
 
     /**
@@ -617,6 +674,14 @@ public class MXFileStore extends MXMemoryStore {
      * @param init true to init the filesystem dirtree
      */
     private void deleteAllData(boolean init) {
+        if (null != mUsersLog) {
+            mUsersLog.delete();
+        }
+
+        synchronized (mUserIdsToLoad) {
+            mUserIdsToLoad.clear();
+        }
+
         // delete the dedicated directories
         try {
             ContentUtils.deleteDirectory(mStoreFolderFile);
@@ -627,6 +692,12 @@ public class MXFileStore extends MXMemoryStore {
             Log.e(LOG_TAG, "deleteAllData failed " + e.getMessage());
         }
 
+        mRoomMessagesChunks.clear();
+
+        synchronized (mDirtyEventIdsByRoomId) {
+            mDirtyEventIdsByRoomId.clear();
+        }
+
         if (init) {
             initCommon();
         }
@@ -747,6 +818,20 @@ public class MXFileStore extends MXMemoryStore {
         super.setDirectChatRoomsDict(directChatRoomsDict);
     }
 
+    @Override
+    public void addFilter(String filterDefinition, String filterId) {
+        Log.d(LOG_TAG, "## addFilter() : " + filterId);
+        mMetaDataHasChanged = true;
+        super.addFilter(filterDefinition, filterId);
+    }
+
+    @Override
+    public void removeFilter(String filterDefinition) {
+        Log.d(LOG_TAG, "## removeFilter() : " + filterDefinition);
+        mMetaDataHasChanged = true;
+        super.removeFilter(filterDefinition);
+    }
+
     @Override
     public void storeUser(User user) {
         if (!TextUtils.equals(mCredentials.userId, user.user_id)) {
@@ -759,6 +844,8 @@ public class MXFileStore extends MXMemoryStore {
     public void flushRoomEvents(String roomId) {
         super.flushRoomEvents(roomId);
 
+        // the updated events are not known
+        setAllEventsDirty(roomId);
         mRoomsToCommitForMessages.add(roomId);
 
         if ((null != mMetadata) && (null != mMetadata.mAccessToken) && !isKilled()) {
@@ -776,7 +863,7 @@ public class MXFileStore extends MXMemoryStore {
             LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
 
             if (null != events) {
-                canStore = (events.size() < MAX_STORED_MESSAGES_COUNT);
+                canStore = (events.size() < getMaxStoredMessagesCount());
 
                 if (!canStore) {
                     Log.d(LOG_TAG, "storeRoomEvents : do not flush because reaching the max size");
@@ -786,6 +873,13 @@ public class MXFileStore extends MXMemoryStore {
 
         super.storeRoomEvents(roomId, eventsResponse, direction);
 
+        // the events might replace some saved ones (e.g. with a pagination token)
+        if (null != eventsResponse.chunk) {
+            for (Event event : eventsResponse.chunk) {
+                addDirtyEventId(roomId, event.eventId);
+            }
+        }
+
         if (canStore) {
             mRoomsToCommitForMessages.add(roomId);
         }
@@ -799,6 +893,8 @@ public class MXFileStore extends MXMemoryStore {
     @Override
     public void storeLiveRoomEvent(Event event) {
         super.storeLiveRoomEvent(event);
+        // the event might replace a saved one (redaction...)
+        addDirtyEventId(event.roomId, event.eventId);
         mRoomsToCommitForMessages.add(event.roomId);
     }
 
@@ -808,6 +904,17 @@ public class MXFileStore extends MXMemoryStore {
         mRoomsToCommitForMessages.add(event.roomId);
     }
 
+    @Override
+    public void onEventUpdated(Event event) {
+        super.onEventUpdated(event);
+
+        if ((null != event) && doesEventExist(event.eventId, event.roomId)) {
+            // the stored event has been updated in place
+            addDirtyEventId(event.roomId, event.eventId);
+            mRoomsToCommitForMessages.add(event.roomId);
+        }
+    }
+
     /**
      * Delete the room messages and token files.
      *
@@ -826,6 +933,18 @@ public class MXFileStore extends MXMemoryStore {
             }
         }
 
+        // messages chunks
+        File messagesChunksFolder = new File(mStoreRoomsMessagesChunksFolderFile, roomId);
+        mRoomMessagesChunks.remove(roomId);
+
+        if (messagesChunksFolder.exists()) {
+            try {
+                ContentUtils.deleteDirectory(messagesChunksFolder);
+            } catch (Exception e) {
+                Log.d(LOG_TAG, "deleteRoomMessagesFiles - messagesChunksFolder failed " + e.getMessage());
+            }
+        }
+
         File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
         if (tokenFile.exists()) {
             try {
@@ -846,6 +965,7 @@ public class MXFileStore extends MXMemoryStore {
         deleteRoomSummaryFile(roomId);
         deleteRoomReceiptsFile(roomId);
         deleteRoomAccountDataFile(roomId);
+        mSummariesSnapshotHasChanged = true;
     }
 
     @Override
@@ -861,6 +981,7 @@ public class MXFileStore extends MXMemoryStore {
 
         mRoomsToCommitForMessages.add(roomId);
         mRoomsToCommitForSummaries.add(roomId);
+        mSummariesSnapshotHasChanged = true;
     }
 
     @Override
@@ -877,6 +998,7 @@ public class MXFileStore extends MXMemoryStore {
     public void flushSummary(RoomSummary summary) {
         super.flushSummary(summary);
         mRoomsToCommitForSummaries.add(summary.getRoomId());
+        mSummariesSnapshotHasChanged = true;
 
         if ((null != mMetadata) && (null != mMetadata.mAccessToken) && !isKilled()) {
             saveSummaries();
@@ -889,6 +1011,7 @@ public class MXFileStore extends MXMemoryStore {
 
         // add any existing roomid to the list to save all
         mRoomsToCommitForSummaries.addAll(mRoomSummaries.keySet());
+        mSummariesSnapshotHasChanged = true;
 
         if ((null != mMetadata) && (null != mMetadata.mAccessToken) && !isKilled()) {
             saveSummaries();
@@ -898,6 +1021,7 @@ public class MXFileStore extends MXMemoryStore {
     @Override
     public void storeSummary(RoomSummary summary) {
         super.storeSummary(summary);
+        mSummariesSnapshotHasChanged = true;
 
         if ((null != summary) && (null != summary.getRoomId()) && !mRoomsToCommitForSummaries.contains(summary.getRoomId())) {
             mRoomsToCommitForSummaries.add(summary.getRoomId());
@@ -923,75 +1047,84 @@ public class MXFileStore extends MXMemoryStore {
             final HashSet<String> fUserIds = mUserIdsToCommit;
             mUserIdsToCommit = new HashSet<>();
 
-            try {
-                final HashSet<User> fUsers;
-
-                synchronized (mUsers) {
-                    fUsers = new HashSet<>(mUsers.values());
-                }
-
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        mFileStoreHandler.post(new Runnable() {
-                            public void run() {
-                                if (!isKilled()) {
-                                    Log.d(LOG_TAG, "saveUsers " + fUserIds.size() + " users (" + fUsers.size() + " known ones)");
+            mFileStoreHandler.post(new Runnable() {
+                public void run() {
+                    if (!isKilled()) {
+                        long start = System.currentTimeMillis();
 
-                                    long start = System.currentTimeMillis();
+                        ArrayList<User> users = new ArrayList<>();
 
-                                    // the users are split into groups to save time
-                                    HashMap<Integer, ArrayList<User>> usersGroups = new HashMap<>();
+                        for (String userId : fUserIds) {
+                            // merge the stored user before overriding it
+                            loadStoredUser(userId);
 
-                                    // finds the group for each updated user
-                                    for (String userId : fUserIds) {
-                                        User user;
+                            User user;
 
-                                        synchronized (mUsers) {
-                                            user = mUsers.get(userId);
-                                        }
+                            synchronized (mUsers) {
+                                user = mUsers.get(userId);
+                            }
 
-                                        if (null != user) {
-                                            int hashCode = user.getStorageHashKey();
+                            if (null != user) {
+                                users.add(user);
+                            }
+                        }
 
-                                            if (!usersGroups.containsKey(hashCode)) {
-                                                usersGroups.put(hashCode, new ArrayList<User>());
-                                            }
-                                        }
-                                    }
+                        // only the updated users are appended
+                        long writtenBytes = mUsersLog.put(users);
 
-                                    // gather the user to the dedicated group if they need to be updated
-                                    for (User user : fUsers) {
-                                        if (usersGroups.containsKey(user.getStorageHashKey())) {
-                                            usersGroups.get(user.getStorageHashKey()).add(user);
-                                        }
-                                    }
+                        if (writtenBytes >= 0) {
+                            STORE_BYTES_WRITTEN.add(writtenBytes);
+                        } else {
+                            STORE_WRITE_FAILURES.inc();
+                        }
 
-                                    // save the groups
-                                    for (int hashKey : usersGroups.keySet()) {
-                                        writeObject("saveUser " + hashKey, new File(mStoreUserFolderFile, hashKey + ""), usersGroups.get(hashKey));
-                                    }
+                        mUsersLog.compactIfNeeded();
 
-                                    Log.d(LOG_TAG, "saveUsers done in " + (System.currentTimeMillis() - start) + " ms");
-                                }
-                            }
-                        });
+                        Log.d(LOG_TAG, "saveUsers " + users.size() + " users (" + mUsersLog.getCount() + " stored ones) done in "
+                                + (System.currentTimeMillis() - start) + " ms");
                     }
-                };
-
-                Thread t = new Thread(r);
-                t.start();
-            } catch (OutOfMemoryError oom) {
-                Log.e(LOG_TAG, "saveUser : cannot clone the users list" + oom.getMessage());
-            }
+                }
+            });
         }
     }
 
     /**
      * Load the user information from the filesystem..
+     * Only the users log index is built, the users are read on demand.
      */
     private void loadUsers() {
+        long start = System.currentTimeMillis();
+
+        mUsersLog.open();
+        migrateUsersBuckets();
+
+        Set<String> userIds = mUsersLog.getUserIds();
+
+        synchronized (mUserIdsToLoad) {
+            mUserIdsToLoad.addAll(userIds);
+        }
+
+        long delta = (System.currentTimeMillis() - start);
+        Log.e(LOG_TAG, "loadUsers : index " + userIds.size() + " users in " + delta + "ms");
+        mStoreStats.put("loadUsers", delta);
+
+        mAreUsersLoaded = true;
+
+        // save any pending save
+        saveUsers();
+    }
+
+    /**
+     * Move the users saved by groups of hash keys to the users log.
+     */
+    private void migrateUsersBuckets() {
         List<String> filenames = listFiles(mStoreUserFolderFile.list());
+        filenames.remove(MXFILE_STORE_USERS_LOG_FILE_NAME);
+
+        if (filenames.isEmpty()) {
+            return;
+        }
+
         long start = System.currentTimeMillis();
 
         ArrayList<User> users = new ArrayList<>();
@@ -1010,28 +1143,121 @@ public class MXFileStore extends MXMemoryStore {
             }
         }
 
-        // update the hash map
-        for (User user : users) {
-            synchronized (mUsers) {
-                User currentUser = mUsers.get(user.user_id);
+        if (mUsersLog.put(users) >= 0) {
+            for (String filename : filenames) {
+                new File(mStoreUserFolderFile, filename).delete();
+                new File(mStoreUserFolderFile, filename + ".tmp").delete();
+            }
+        } else {
+            // keep the users in memory until the next attempt
+            for (User user : users) {
+                mergeUser(user);
+            }
+        }
 
-                if ((null == currentUser) || // not defined
-                        currentUser.isRetrievedFromRoomMember() || // tmp user until retrieved it
-                        (currentUser.getLatestPresenceTs() < user.getLatestPresenceTs())) // newer presence
-                {
-                    mUsers.put(user.user_id, user);
+        Log.e(LOG_TAG, "## migrateUsersBuckets() : " + users.size() + " users from " + filenames.size() + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Read a stored user if it has not been read yet.
+     *
+     * @param userId the user id
+     */
+    private void loadStoredUser(String userId) {
+        if (null != userId) {
+            boolean isStored;
+
+            // the file is read without lock
+            synchronized (mUserIdsToLoad) {
+                isStored = mUserIdsToLoad.remove(userId);
+            }
+
+            if (isStored) {
+                User user = mUsersLog.get(userId);
+
+                if (null != user) {
+                    mergeUser(user);
                 }
             }
         }
+    }
 
-        long delta = (System.currentTimeMillis() - start);
-        Log.e(LOG_TAG, "loadUsers (" + filenames.size() + " files) : retrieve " + mUsers.size() + " users in " + delta + "ms");
-        mStoreStats.put("loadUsers", delta);
+    /**
+     * Read the stored users which have not been read yet.
+     */
+    private void loadStoredUsers() {
+        List<String> userIds;
 
-        mAreUsersLoaded = true;
+        // the file is read without lock
+        synchronized (mUserIdsToLoad) {
+            if (mUserIdsToLoad.isEmpty()) {
+                return;
+            }
 
-        // save any pending save
-        saveUsers();
+            userIds = new ArrayList<>(mUserIdsToLoad);
+            mUserIdsToLoad.clear();
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (String userId : userIds) {
+            User user = mUsersLog.get(userId);
+
+            if (null != user) {
+                mergeUser(user);
+            }
+        }
+
+        Log.d(LOG_TAG, "## loadStoredUsers() : " + userIds.size() + " users in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Update the known users with a stored one.
+     *
+     * @param user the stored user
+     */
+    private void mergeUser(User user) {
+        synchronized (mUsers) {
+            User currentUser = mUsers.get(user.user_id);
+
+            if ((null == currentUser) || // not defined
+                    currentUser.isRetrievedFromRoomMember() || // tmp user until retrieved it
+                    (currentUser.getLatestPresenceTs() < user.getLatestPresenceTs())) // newer presence
+            {
+                mUsers.put(user.user_id, user);
+            }
+        }
+    }
+
+    @Override
+    public User getUser(String userId) {
+        loadStoredUser(userId);
+        return super.getUser(userId);
+    }
+
+    @Override
+    public Collection<User> getUsers() {
+        loadStoredUsers();
+        return super.getUsers();
+    }
+
+    @Override
+    public int getUsersCount() {
+        int count = 0;
+
+        // the users which are not read yet
+        synchronized (mUserIdsToLoad) {
+            synchronized (mUsers) {
+                for (String userId : mUserIdsToLoad) {
+                    if (!mUsers.containsKey(userId)) {
+                        count++;
+                    }
+                }
+            }
+        }
+
+        return count + super.getUsersCount();
     }
 
     //================================================================================
@@ -1039,25 +1265,92 @@ public class MXFileStore extends MXMemoryStore {
     //================================================================================
 
     /**
-     * Computes the saved events map to reduce storage footprint.
+     * Set the retention budgets of the room messages.
+     * The latest messages of each room are kept until one of the budgets is reached.
+     * At least MAX_STORED_MESSAGES_COUNT messages are kept per room.
+     *
+     * @param maxMessagesPerRoom the max number of stored messages per room
+     * @param maxMessages        the max number of stored messages for all the rooms
+     */
+    public void setMessagesRetention(int maxMessagesPerRoom, int maxMessages) {
+        mMaxStoredMessagesPerRoom = Math.max(MAX_STORED_MESSAGES_COUNT, maxMessagesPerRoom);
+        mMaxStoredMessages = Math.max(MAX_STORED_MESSAGES_COUNT, maxMessages);
+    }
+
+    /**
+     * @return the max number of messages to store for a room
+     */
+    private int getMaxStoredMessagesCount() {
+        int roomsCount = Math.max(1, mRoomEvents.size());
+        return Math.max(MAX_STORED_MESSAGES_COUNT, Math.min(mMaxStoredMessagesPerRoom, mMaxStoredMessages / roomsCount));
+    }
+
+    /**
+     * Flag an event as updated since the latest save.
+     *
+     * @param roomId  the room id
+     * @param eventId the event id
+     */
+    private void addDirtyEventId(String roomId, String eventId) {
+        if ((null != roomId) && (null != eventId)) {
+            synchronized (mDirtyEventIdsByRoomId) {
+                if (!mDirtyEventIdsByRoomId.containsKey(roomId)) {
+                    mDirtyEventIdsByRoomId.put(roomId, new HashSet<String>());
+                }
+
+                Set<String> eventIds = mDirtyEventIdsByRoomId.get(roomId);
+
+                if (null != eventIds) {
+                    eventIds.add(eventId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flag all the events of a room as updated since the latest save.
      *
      * @param roomId the room id
-     * @return the saved eventMap
      */
-    private LinkedHashMap<String, Event> getSavedEventsMap(String roomId) {
-        LinkedHashMap<String, Event> eventsMap;
+    private void setAllEventsDirty(String roomId) {
+        if (null != roomId) {
+            synchronized (mDirtyEventIdsByRoomId) {
+                mDirtyEventIdsByRoomId.put(roomId, null);
+            }
+        }
+    }
 
-        synchronized (mRoomEventsLock) {
-            eventsMap = mRoomEvents.get(roomId);
+    /**
+     * Provide and reset the ids of the events updated since the latest save.
+     *
+     * @param roomId the room id
+     * @return the event ids, null if all the events must be saved
+     */
+    private Set<String> takeDirtyEventIds(String roomId) {
+        synchronized (mDirtyEventIdsByRoomId) {
+            if (!mDirtyEventIdsByRoomId.containsKey(roomId)) {
+                return new HashSet<>();
+            }
+
+            return mDirtyEventIdsByRoomId.remove(roomId);
         }
+    }
 
+    /**
+     * Computes the saved events list to reduce storage footprint.
+     *
+     * @param roomId the room id
+     * @return the saved events, from the oldest to the latest one.
+     */
+    private List<Event> getSavedEvents(String roomId) {
         List<Event> eventsList;
 
         synchronized (mRoomEventsLock) {
-            eventsList = new ArrayList<>(eventsMap.values());
+            eventsList = new ArrayList<>(mRoomEvents.get(roomId).values());
         }
 
         int startIndex = 0;
+        int maxStoredMessagesCount = getMaxStoredMessagesCount();
 
         // try to reduce the number of stored messages
         // it does not make sense to keep the full history.
@@ -1066,27 +1359,21 @@ public class MXFileStore extends MXMemoryStore {
         // At initial sync, it is not saved so keep the whole history.
         // if the user back paginates, the token is stored in the event.
         // if some messages are received, the token is stored in the event.
-        if (eventsList.size() > MAX_STORED_MESSAGES_COUNT) {
+        // the token of the oldest saved event is the gap marker used to back paginate from the server.
+        if (eventsList.size() > maxStoredMessagesCount) {
             // search backward the first known token
-            for (startIndex = eventsList.size() - MAX_STORED_MESSAGES_COUNT; !eventsList.get(startIndex).hasToken() && (startIndex > 0); startIndex--)
+            for (startIndex = eventsList.size() - maxStoredMessagesCount; !eventsList.get(startIndex).hasToken() && (startIndex > 0); startIndex--)
                 ;
 
             if (startIndex > 0) {
-                Log.d(LOG_TAG, "## getSavedEveventsMap() : " + roomId + " reduce the number of messages " + eventsList.size() + " -> " + (eventsList.size() - startIndex));
+                Log.d(LOG_TAG, "## getSavedEvents() : " + roomId + " reduce the number of messages " + eventsList.size() + " -> " + (eventsList.size() - startIndex));
             }
         }
 
-        LinkedHashMap<String, Event> savedEvents = new LinkedHashMap<>();
-
-        for (int index = startIndex; index < eventsList.size(); index++) {
-            Event event = eventsList.get(index);
-            savedEvents.put(event.eventId, event);
-        }
-
-        return savedEvents;
+        return eventsList.subList(startIndex, eventsList.size());
     }
 
-    private void saveRoomMessages(String roomId) {
+    void saveRoomMessages(String roomId) {
         LinkedHashMap<String, Event> eventsHash;
         synchronized (mRoomEventsLock) {
             eventsHash = mRoomEvents.get(roomId);
@@ -1098,17 +1385,53 @@ public class MXFileStore extends MXMemoryStore {
         if ((null != eventsHash) && (null != token)) {
             long t0 = System.currentTimeMillis();
 
-            LinkedHashMap<String, Event> savedEventsMap = getSavedEventsMap(roomId);
+            List<Event> savedEvents = getSavedEvents(roomId);
 
-            if (!writeObject("saveRoomsMessage " + roomId, new File(mGzStoreRoomsMessagesFolderFile, roomId), savedEventsMap)) {
-                return;
+            RoomMessagesChunks chunks = mRoomMessagesChunks.get(roomId);
+
+            if (null == chunks) {
+                chunks = new RoomMessagesChunks();
+                mRoomMessagesChunks.put(roomId, chunks);
+            }
+
+            RoomMessagesChunks.Update update = chunks.update(savedEvents, takeDirtyEventIds(roomId));
+            File chunksFolder = new File(mStoreRoomsMessagesChunksFolderFile, roomId);
+
+            if (!update.isEmpty() && !chunksFolder.exists()) {
+                chunksFolder.mkdirs();
+            }
+
+            // write the new chunks before removing the deprecated ones
+            for (Map.Entry<Long, LinkedHashMap<String, Event>> entry : update.mChunksToWrite.entrySet()) {
+                if (!writeObject("saveRoomsMessage " + roomId, new File(chunksFolder, String.valueOf(entry.getKey())), entry.getValue())) {
+                    chunks.invalidate();
+                    return;
+                }
+            }
+
+            for (Long chunkId : update.mChunksToDelete) {
+                File chunkFile = new File(chunksFolder, String.valueOf(chunkId));
+
+                if (chunkFile.exists()) {
+                    chunkFile.delete();
+                }
             }
 
             if (!writeObject("saveRoomsMessage " + roomId, new File(mStoreRoomsTokensFolderFile, roomId), token)) {
                 return;
             }
 
-            Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + savedEventsMap.size() + " messages saved in " + (System.currentTimeMillis() - t0) + " ms");
+            // the room has been migrated to the chunks
+            File legacyMessagesFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+            if (legacyMessagesFile.exists()) {
+                legacyMessagesFile.delete();
+            }
+
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + savedEvents.size() + " messages saved in " + chunks.getChunksCount()
+                        + " chunks (" + update.mChunksToWrite.size() + " written, " + update.mChunksToDelete.size() + " deleted) in "
+                        + (System.currentTimeMillis() - t0) + " ms");
+            }
         } else {
             deleteRoomMessagesFiles(roomId);
         }
@@ -1148,20 +1471,76 @@ public class MXFileStore extends MXMemoryStore {
         }
     }
 
+    /**
+     * Load the messages chunks of a room.
+     *
+     * @param roomId the room id.
+     * @param chunks the chunks layout to fill
+     * @return the events, null if the operation failed.
+     */
+    private LinkedHashMap<String, Event> loadRoomMessagesChunks(String roomId, RoomMessagesChunks chunks) {
+        File chunksFolder = new File(mStoreRoomsMessagesChunksFolderFile, roomId);
+        List<Long> chunkIds = new ArrayList<>();
+
+        for (String filename : listFiles(chunksFolder.list())) {
+            try {
+                chunkIds.add(Long.parseLong(filename));
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## loadRoomMessagesChunks() : invalid chunk name " + filename);
+            }
+        }
+
+        Collections.sort(chunkIds);
+
+        LinkedHashMap<String, Event> events = new LinkedHashMap<>();
+
+        for (Long chunkId : chunkIds) {
+            Object chunkAsVoid = readObject("events " + roomId + " chunk " + chunkId, new File(chunksFolder, String.valueOf(chunkId)));
+
+            if (null == chunkAsVoid) {
+                return null;
+            }
+
+            LinkedHashMap<String, Event> chunk;
+
+            try {
+                chunk = (LinkedHashMap<String, Event>) chunkAsVoid;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "loadRoomMessagesChunks " + roomId + "failed : " + e.getMessage());
+                return null;
+            }
+
+            chunks.addChunk(chunkId, chunk.keySet());
+            events.putAll(chunk);
+        }
+
+        return events;
+    }
+
     /**
      * Load room messages from the filesystem.
      *
      * @param roomId the room id.
      * @return true if succeed.
      */
-    private boolean loadRoomMessages(final String roomId) {
+    boolean loadRoomMessages(final String roomId) {
         boolean succeeded = true;
         boolean shouldSave = false;
         LinkedHashMap<String, Event> events = null;
 
+        File messagesChunksFolder = new File(mStoreRoomsMessagesChunksFolderFile, roomId);
         File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
 
-        if (messagesListFile.exists()) {
+        if (messagesChunksFolder.exists()) {
+            RoomMessagesChunks chunks = new RoomMessagesChunks();
+            events = loadRoomMessagesChunks(roomId, chunks);
+
+            if (null == events) {
+                return false;
+            }
+
+            mRoomMessagesChunks.put(roomId, chunks);
+        } else if (messagesListFile.exists()) {
             Object eventsAsVoid = readObject("events " + roomId, messagesListFile);
 
             if (null != eventsAsVoid) {
@@ -1172,30 +1551,32 @@ public class MXFileStore extends MXMemoryStore {
                     return false;
                 }
 
-                if (events.size() > (2 * MAX_STORED_MESSAGES_COUNT)) {
-                    Log.d(LOG_TAG, "## loadRoomMessages() : the room " + roomId + " has " + events.size() + " stored events : we need to find a way to reduce it.");
-                }
-
-                long undeliverableTs = 1L << 50;
-
-                // finalizes the deserialization
-                for (Event event : events.values()) {
-                    // if a message was not sent, mark at as UNDELIVERABLE
-                    if ((event.mSentState == Event.SentState.UNDELIVERABLE) ||
-                            (event.mSentState == Event.SentState.UNSENT) ||
-                            (event.mSentState == Event.SentState.SENDING) ||
-                            (event.mSentState == Event.SentState.WAITING_RETRY) ||
-                            (event.mSentState == Event.SentState.ENCRYPTING)) {
-                        event.mSentState = Event.SentState.UNDELIVERABLE;
-                        event.originServerTs = undeliverableTs++;
-                        shouldSave = true;
-                    }
-                }
+                // save it in chunks
+                shouldSave = true;
             } else {
                 return false;
             }
         }
 
+        if (null != events) {
+            long undeliverableTs = 1L << 50;
+
+            // finalizes the deserialization
+            for (Event event : events.values()) {
+                // if a message was not sent, mark at as UNDELIVERABLE
+                if ((event.mSentState == Event.SentState.UNDELIVERABLE) ||
+                        (event.mSentState == Event.SentState.UNSENT) ||
+                        (event.mSentState == Event.SentState.SENDING) ||
+                        (event.mSentState == Event.SentState.WAITING_RETRY) ||
+                        (event.mSentState == Event.SentState.ENCRYPTING)) {
+                    event.mSentState = Event.SentState.UNDELIVERABLE;
+                    event.originServerTs = undeliverableTs++;
+                    addDirtyEventId(roomId, event.eventId);
+                    shouldSave = true;
+                }
+            }
+        }
+
         // succeeds to extract the message list
         if (null != events) {
             // create the room object
@@ -1208,8 +1589,9 @@ public class MXFileStore extends MXMemoryStore {
             mRoomEvents.put(roomId, events);
         }
 
+        // the tokens are not yet loaded, so save it at the next commit
         if (shouldSave) {
-            saveRoomMessages(roomId);
+            mRoomsToCommitForMessages.add(roomId);
         }
 
         return succeeded;
@@ -1283,7 +1665,10 @@ public class MXFileStore extends MXMemoryStore {
 
         try {
             // extract the messages list
-            List<String> filenames = listFiles(mGzStoreRoomsMessagesFolderFile.list());
+            // the rooms which are not yet migrated to the chunks have a legacy messages file
+            Set<String> roomIds = new HashSet<>(listFiles(mStoreRoomsMessagesChunksFolderFile.list()));
+            roomIds.addAll(listFiles(mGzStoreRoomsMessagesFolderFile.list()));
+            List<String> filenames = new ArrayList<>(roomIds);
 
             long start = System.currentTimeMillis();
 
@@ -1535,7 +1920,7 @@ public class MXFileStore extends MXMemoryStore {
         if (null != room) {
             long start1 = System.currentTimeMillis();
             writeObject("saveRoomsState " + roomId, roomStateFile, room.getState());
-            Log.d(LOG_TAG, "saveRoomsState " + room.getState().getMembers().size() + " members : " + (System.currentTimeMillis() - start1) + " ms");
+            Log.d(LOG_TAG, "saveRoomsState " + room.getState().getReadOnlyMembers().size() + " members : " + (System.currentTimeMillis() - start1) + " ms");
         } else {
             Log.d(LOG_TAG, "saveRoomsState : delete the room state");
             deleteRoomStateFile(roomId);
@@ -1799,6 +2184,7 @@ public class MXFileStore extends MXMemoryStore {
             // sanity checks
             if ((room != null) && (null != accountData)) {
                 mRoomsToCommitForAccountData.add(roomId);
+                mSummariesSnapshotHasChanged = true;
             }
         }
     }
@@ -1873,6 +2259,51 @@ public class MXFileStore extends MXMemoryStore {
         }
     }
 
+    /**
+     * Write the rooms list snapshot.
+     * The entries are built on the calling thread, the file is written by the store thread.
+     */
+    private void saveSummariesSnapshot() {
+        // the summaries are not fully loaded until the store is ready
+        if (mSummariesSnapshotHasChanged && mIsReady && (null != mFileStoreHandler)) {
+            mSummariesSnapshotHasChanged = false;
+
+            final List<RoomSummariesSnapshot.Entry> entries = new ArrayList<>();
+
+            for (RoomSummary summary : getSummaries()) {
+                try {
+                    entries.add(RoomSummariesSnapshot.buildEntry(summary, getRoom(summary.getRoomId()), mRoomAccountData.get(summary.getRoomId()), mCredentials.userId));
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## saveSummariesSnapshot() : failed for " + summary.getRoomId() + " " + e.getMessage());
+                }
+            }
+
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        long start = System.currentTimeMillis();
+                        RoomSummariesSnapshot.write(new File(mStoreFolderFile, MXFILE_STORE_ROOMS_SUMMARIES_SNAPSHOT_FILE_NAME), entries);
+                        Log.d(LOG_TAG, "saveSummariesSnapshot : " + entries.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Read the rooms list snapshot written by the latest commits.
+     * It can be called before opening the store, to display the rooms list while the store is loading.
+     *
+     * @param context the context
+     * @param userId  the user id
+     * @return the snapshot entries in the rooms list order, an empty list if there is no snapshot
+     */
+    public static List<RoomSummariesSnapshot.Entry> readRoomSummariesSnapshot(Context context, String userId) {
+        File storeFolderFile = new File(new File(context.getApplicationContext().getFilesDir(), MXFILE_STORE_FOLDER), userId);
+        return RoomSummariesSnapshot.read(new File(storeFolderFile, MXFILE_STORE_ROOMS_SUMMARIES_SNAPSHOT_FILE_NAME));
+    }
+
     /**
      * Load the room summary from the files system.
      *
@@ -1913,6 +2344,7 @@ public class MXFileStore extends MXMemoryStore {
             }
 
             mRoomSummaries.put(roomId, summary);
+            updateSummariesIndex(roomId);
         }
 
         return succeed;
@@ -2067,7 +2499,7 @@ public class MXFileStore extends MXMemoryStore {
      * @return true if the operation succeeds.
      */
     private boolean loadReceipts(String roomId) {
-        Map<String, ReceiptData> receiptsMap = null;
+        RoomReceipts receiptsMap = null;
         File file = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
 
         if (file.exists()) {
@@ -2077,10 +2509,10 @@ public class MXFileStore extends MXMemoryStore {
                 try {
                     List<ReceiptData> receipts = (List<ReceiptData>) receiptsAsVoid;
 
-                    receiptsMap = new HashMap<>();
+                    receiptsMap = new RoomReceipts();
 
                     for (ReceiptData r : receipts) {
-                        receiptsMap.put(r.userId, r);
+                        receiptsMap.put(r);
                     }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "loadReceipts failed : " + e.getMessage());
@@ -2092,7 +2524,7 @@ public class MXFileStore extends MXMemoryStore {
         }
 
         if (null != receiptsMap) {
-            Map<String, ReceiptData> currentReceiptMap;
+            RoomReceipts currentReceiptMap;
 
             synchronized (mReceiptsByRoomIdLock) {
                 currentReceiptMap = mReceiptsByRoomId.get(roomId);
@@ -2101,7 +2533,7 @@ public class MXFileStore extends MXMemoryStore {
 
             // merge the current read receipts
             if (null != currentReceiptMap) {
-                Collection<ReceiptData> receipts = currentReceiptMap.values();
+                Collection<ReceiptData> receipts = currentReceiptMap.getReceipts();
 
                 for (ReceiptData receipt : receipts) {
                     storeReceipt(receipt, roomId);
@@ -2173,7 +2605,7 @@ public class MXFileStore extends MXMemoryStore {
 
         synchronized (mReceiptsByRoomIdLock) {
             if (mReceiptsByRoomId.containsKey(roomId)) {
-                receipts = new ArrayList<>(mReceiptsByRoomId.get(roomId).values());
+                receipts = mReceiptsByRoomId.get(roomId).getReceipts();
             } else {
                 receipts = null;
             }
@@ -2280,8 +2712,10 @@ public class MXFileStore extends MXMemoryStore {
 
         if (succeed) {
             tmpFile.delete();
+            STORE_BYTES_WRITTEN.add(file.length());
         } else {
             tmpFile.renameTo(file);
+            STORE_WRITE_FAILURES.inc();
         }
 
         return succeed;
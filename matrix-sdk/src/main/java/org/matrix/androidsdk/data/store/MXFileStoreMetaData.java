@@ -23,6 +23,9 @@ import java.util.List;
 import java.util.Map;
 
 public class MXFileStoreMetaData implements java.io.Serializable {
+    // the serialVersionUID computed before adding mFilters, to keep on reading the saved metadata
+    private static final long serialVersionUID = 8254002601897883017L;
+
     // The obtained user id.
     public String mUserId = null;
 
@@ -47,6 +50,9 @@ public class MXFileStoreMetaData implements java.io.Serializable {
     // crypto
     public boolean mEndToEndDeviceAnnounced = false;
 
+    // the uploaded sync filter ids by filter definition
+    public Map<String, String> mFilters = null;
+
     public MXFileStoreMetaData deepCopy() {
         MXFileStoreMetaData copy = new MXFileStoreMetaData();
 
@@ -65,6 +71,7 @@ public class MXFileStoreMetaData implements java.io.Serializable {
         copy.mIgnoredUsers = mIgnoredUsers;
         copy.mDirectChatRoomsMap = mDirectChatRoomsMap;
         copy.mEndToEndDeviceAnnounced = mEndToEndDeviceAnnounced;
+        copy.mFilters = mFilters;
 
         return copy;
     }
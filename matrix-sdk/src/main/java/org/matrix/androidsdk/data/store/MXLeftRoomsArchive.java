@@ -0,0 +1,443 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.content.Context;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The left rooms archive.
+ * The left rooms states and events are saved on the file system, only their summaries are kept in memory.
+ * A left room is loaded when it is displayed.
+ * The archive keeps the token of the latest left rooms sync, so the next sync only retrieves the rooms
+ * which have been left since then.
+ */
+public class MXLeftRoomsArchive {
+    private static final String LOG_TAG = MXLeftRoomsArchive.class.getSimpleName();
+
+    private static final String MXLEFT_ROOMS_ARCHIVE_FOLDER = "MXLeftRoomsArchive";
+    private static final String MXLEFT_ROOMS_ARCHIVE_SUMMARIES_FILE = "summaries";
+    private static final String MXLEFT_ROOMS_ARCHIVE_SYNC_TOKEN_FILE = "token";
+    private static final String MXLEFT_ROOMS_ARCHIVE_STATES_FOLDER = "states";
+    private static final String MXLEFT_ROOMS_ARCHIVE_EVENTS_FOLDER = "events";
+    private static final String MXLEFT_ROOMS_ARCHIVE_BACK_TOKENS_FOLDER = "tokens";
+
+    /**
+     * The data of an archived room.
+     */
+    public static class ArchivedRoom {
+        // the room state
+        public final RoomState mState;
+
+        // the room events, from the oldest to the latest one
+        public final List<Event> mEvents;
+
+        // the back pagination token
+        public final String mBackToken;
+
+        public ArchivedRoom(RoomState state, List<Event> events, String backToken) {
+            mState = state;
+            mEvents = events;
+            mBackToken = backToken;
+        }
+    }
+
+    // the latest activity first
+    private static final Comparator<RoomSummary> mSummariesComparator = new Comparator<RoomSummary>() {
+        @Override
+        public int compare(RoomSummary summary1, RoomSummary summary2) {
+            long ts1 = (null != summary1.getLatestReceivedEvent()) ? summary1.getLatestReceivedEvent().getOriginServerTs() : 0;
+            long ts2 = (null != summary2.getLatestReceivedEvent()) ? summary2.getLatestReceivedEvent().getOriginServerTs() : 0;
+
+            if (ts1 != ts2) {
+                return (ts1 > ts2) ? -1 : 1;
+            }
+
+            return summary1.getRoomId().compareTo(summary2.getRoomId());
+        }
+    };
+
+    // the archive folders, null if there is no context
+    private final File mArchiveFolderFile;
+    private final File mStatesFolderFile;
+    private final File mEventsFolderFile;
+    private final File mBackTokensFolderFile;
+
+    // the summaries by room id
+    private final Map<String, RoomSummary> mSummariesByRoomId = new HashMap<>();
+
+    // the summaries sorted by latest activity, null when they must be sorted again
+    private List<RoomSummary> mSortedSummaries;
+
+    // the latest left rooms sync token
+    private String mSyncToken;
+
+    private boolean mIsOpen = false;
+
+    // tell if the summaries must be saved
+    private boolean mAreSummariesDirty = false;
+
+    /**
+     * Constructor
+     *
+     * @param context the context
+     * @param userId  the user id
+     */
+    public MXLeftRoomsArchive(Context context, String userId) {
+        if (null != context) {
+            mArchiveFolderFile = new File(new File(context.getApplicationContext().getFilesDir(), MXLEFT_ROOMS_ARCHIVE_FOLDER), userId);
+            mStatesFolderFile = new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_STATES_FOLDER);
+            mEventsFolderFile = new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_EVENTS_FOLDER);
+            mBackTokensFolderFile = new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_BACK_TOKENS_FOLDER);
+        } else {
+            mArchiveFolderFile = null;
+            mStatesFolderFile = null;
+            mEventsFolderFile = null;
+            mBackTokensFolderFile = null;
+        }
+    }
+
+    /**
+     * Load the summaries and the sync token.
+     * It is done once, at the first archive access.
+     */
+    private void openIfNeeded() {
+        if (mIsOpen) {
+            return;
+        }
+
+        mIsOpen = true;
+
+        if (null == mArchiveFolderFile) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        Object summariesAsVoid = readObject("summaries", new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_SUMMARIES_FILE));
+        Object tokenAsVoid = readObject("token", new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_SYNC_TOKEN_FILE));
+
+        try {
+            if (null != summariesAsVoid) {
+                for (RoomSummary summary : (List<RoomSummary>) summariesAsVoid) {
+                    mSummariesByRoomId.put(summary.getRoomId(), summary);
+                }
+            }
+
+            // the token is only used if the summaries are valid
+            if (null != tokenAsVoid) {
+                mSyncToken = (String) tokenAsVoid;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## openIfNeeded() : invalid archive " + e.getMessage());
+            mSummariesByRoomId.clear();
+            mSyncToken = null;
+        }
+
+        Log.d(LOG_TAG, "## openIfNeeded() : " + mSummariesByRoomId.size() + " left rooms loaded in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * @return the latest left rooms sync token, null if the left rooms have never been retrieved
+     */
+    public synchronized String getSyncToken() {
+        openIfNeeded();
+        return mSyncToken;
+    }
+
+    /**
+     * @return the number of archived rooms
+     */
+    public synchronized int getCount() {
+        openIfNeeded();
+        return mSummariesByRoomId.size();
+    }
+
+    /**
+     * Tell if a room is archived.
+     *
+     * @param roomId the room id
+     * @return true if the room is archived
+     */
+    public synchronized boolean contains(String roomId) {
+        openIfNeeded();
+        return (null != roomId) && mSummariesByRoomId.containsKey(roomId);
+    }
+
+    /**
+     * Provides the summary of an archived room.
+     *
+     * @param roomId the room id
+     * @return the summary, null if the room is not archived
+     */
+    public synchronized RoomSummary getSummary(String roomId) {
+        openIfNeeded();
+        return (null != roomId) ? mSummariesByRoomId.get(roomId) : null;
+    }
+
+    /**
+     * @return the summaries, the latest activity first
+     */
+    public synchronized List<RoomSummary> getSummaries() {
+        return getSummaries(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Provides a page of summaries.
+     *
+     * @param offset the index of the first summary
+     * @param count  the max number of summaries
+     * @return the summaries, the latest activity first
+     */
+    public synchronized List<RoomSummary> getSummaries(int offset, int count) {
+        openIfNeeded();
+
+        if (null == mSortedSummaries) {
+            mSortedSummaries = new ArrayList<>(mSummariesByRoomId.values());
+            Collections.sort(mSortedSummaries, mSummariesComparator);
+        }
+
+        int fromIndex = Math.max(0, Math.min(offset, mSortedSummaries.size()));
+        int toIndex = (int) Math.min((long) fromIndex + Math.max(0, count), mSortedSummaries.size());
+
+        return new ArrayList<>(mSortedSummaries.subList(fromIndex, toIndex));
+    }
+
+    /**
+     * Archive a left room.
+     * The summaries are saved by commit().
+     *
+     * @param summary   the room summary, its room id must be defined. Its latest room state is released.
+     * @param state     the room state
+     * @param events    the room events, from the oldest to the latest one
+     * @param backToken the back pagination token
+     */
+    public synchronized void storeRoom(RoomSummary summary, RoomState state, Collection<Event> events, String backToken) {
+        if ((null == summary) || (null == summary.getRoomId())) {
+            Log.e(LOG_TAG, "## storeRoom() : invalid summary");
+            return;
+        }
+
+        openIfNeeded();
+
+        String roomId = summary.getRoomId();
+
+        if (null != mArchiveFolderFile) {
+            mStatesFolderFile.mkdirs();
+            mEventsFolderFile.mkdirs();
+            mBackTokensFolderFile.mkdirs();
+
+            writeObject("state " + roomId, new File(mStatesFolderFile, roomId), state);
+            writeObject("events " + roomId, new File(mEventsFolderFile, roomId), (null != events) ? new ArrayList<>(events) : new ArrayList<Event>());
+
+            File backTokenFile = new File(mBackTokensFolderFile, roomId);
+
+            if (null != backToken) {
+                writeObject("back token " + roomId, backTokenFile, backToken);
+            } else {
+                backTokenFile.delete();
+            }
+        }
+
+        // the state is saved in its own file
+        summary.setLatestRoomState(null);
+
+        mSummariesByRoomId.put(roomId, summary);
+        mSortedSummaries = null;
+        mAreSummariesDirty = true;
+    }
+
+    /**
+     * Load an archived room.
+     *
+     * @param roomId the room id
+     * @return the room data, null if the room is not archived
+     */
+    public synchronized ArchivedRoom loadRoom(String roomId) {
+        if (!contains(roomId) || (null == mArchiveFolderFile)) {
+            return null;
+        }
+
+        Object stateAsVoid = readObject("state " + roomId, new File(mStatesFolderFile, roomId));
+        Object eventsAsVoid = readObject("events " + roomId, new File(mEventsFolderFile, roomId));
+        File backTokenFile = new File(mBackTokensFolderFile, roomId);
+        Object backTokenAsVoid = backTokenFile.exists() ? readObject("back token " + roomId, backTokenFile) : null;
+
+        try {
+            if (null != stateAsVoid) {
+                return new ArchivedRoom((RoomState) stateAsVoid,
+                        (null != eventsAsVoid) ? (List<Event>) eventsAsVoid : new ArrayList<Event>(),
+                        (String) backTokenAsVoid);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadRoom() : invalid room " + roomId + " " + e.getMessage());
+        }
+
+        // the room data cannot be read
+        deleteRoom(roomId);
+        return null;
+    }
+
+    /**
+     * Remove a room from the archive.
+     * The summaries are saved by commit().
+     *
+     * @param roomId the room id
+     */
+    public synchronized void deleteRoom(String roomId) {
+        openIfNeeded();
+
+        if ((null != roomId) && (null != mSummariesByRoomId.remove(roomId))) {
+            if (null != mArchiveFolderFile) {
+                new File(mStatesFolderFile, roomId).delete();
+                new File(mEventsFolderFile, roomId).delete();
+                new File(mBackTokensFolderFile, roomId).delete();
+            }
+
+            mSortedSummaries = null;
+            mAreSummariesDirty = true;
+        }
+    }
+
+    /**
+     * Update the sync token.
+     * It is saved by commit().
+     *
+     * @param syncToken the sync token
+     */
+    public synchronized void setSyncToken(String syncToken) {
+        openIfNeeded();
+        mSyncToken = syncToken;
+        mAreSummariesDirty = true;
+    }
+
+    /**
+     * Save the summaries and the sync token.
+     * The summaries are saved before the token, so a token is never saved without its rooms.
+     */
+    public synchronized void commit() {
+        if (!mAreSummariesDirty || (null == mArchiveFolderFile)) {
+            return;
+        }
+
+        mAreSummariesDirty = false;
+        mArchiveFolderFile.mkdirs();
+
+        if (writeObject("summaries", new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_SUMMARIES_FILE), new ArrayList<>(mSummariesByRoomId.values()))) {
+            File tokenFile = new File(mArchiveFolderFile, MXLEFT_ROOMS_ARCHIVE_SYNC_TOKEN_FILE);
+
+            if (null != mSyncToken) {
+                writeObject("token", tokenFile, mSyncToken);
+            } else {
+                tokenFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the archive.
+     */
+    public synchronized void clear() {
+        mSummariesByRoomId.clear();
+        mSortedSummaries = null;
+        mSyncToken = null;
+        mAreSummariesDirty = false;
+        mIsOpen = true;
+
+        if (null != mArchiveFolderFile) {
+            ContentUtils.deleteDirectory(mArchiveFolderFile);
+        }
+    }
+
+    /**
+     * Save an object into a file.
+     *
+     * @param description the object description
+     * @param file        the file
+     * @param object      the object
+     * @return true if the operation succeeds
+     */
+    private static boolean writeObject(String description, File file, Object object) {
+        File tmpFile = new File(file.getParent(), file.getName() + ".tmp");
+        boolean succeed = false;
+
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile)));
+            out.writeObject(object);
+            out.close();
+
+            succeed = tmpFile.renameTo(file);
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## writeObject() " + description + " : failed " + oom.getMessage());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## writeObject() " + description + " : failed " + e.getMessage());
+        }
+
+        if (!succeed) {
+            tmpFile.delete();
+        }
+
+        return succeed;
+    }
+
+    /**
+     * Read an object from a file.
+     *
+     * @param description the object description
+     * @param file        the file
+     * @return the object, null if it cannot be read
+     */
+    private static Object readObject(String description, File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Object object = null;
+
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new FileInputStream(file)));
+            object = ois.readObject();
+            ois.close();
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## readObject() " + description + " : failed " + oom.getMessage());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readObject() " + description + " : failed " + e.getMessage());
+        }
+
+        return object;
+    }
+}
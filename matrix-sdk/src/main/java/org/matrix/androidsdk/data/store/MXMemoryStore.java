@@ -67,9 +67,18 @@ public class MXMemoryStore implements IMXStore {
     protected Map<String, RoomSummary> mRoomSummaries;
     protected Map<String, RoomAccountData> mRoomAccountData;
 
-    // dict of dict of MXReceiptData indexed by userId
+    // the read receipts indexed by room id
     protected final Object mReceiptsByRoomIdLock = new Object();
-    protected Map<String, Map<String, ReceiptData>> mReceiptsByRoomId;
+    protected Map<String, RoomReceipts> mReceiptsByRoomId;
+
+    // the summaries sorted for the rooms list
+    private final RoomSummariesIndex mRoomSummariesIndex = new RoomSummariesIndex();
+
+    // the unread events counters indexed by room id, guarded by mRoomEventsLock
+    private Map<String, RoomUnreadCounter> mUnreadCountersByRoomId;
+
+    // true to check the unread events counters with a full count
+    private volatile boolean mCheckUnreadCounters = false;
 
     // room state events
     //protected final Map<String, Map<String, Event>> mRoomStateEventsByRoomId = new HashMap<>();
@@ -108,6 +117,8 @@ public class MXMemoryStore implements IMXStore {
         mRoomSummaries = new ConcurrentHashMap<>();
         mReceiptsByRoomId = new ConcurrentHashMap<>();
         mRoomAccountData = new ConcurrentHashMap<>();
+        mUnreadCountersByRoomId = new HashMap<>();
+        mRoomSummariesIndex.clear();
         mEventStreamToken = null;
     }
 
@@ -195,6 +206,16 @@ public class MXMemoryStore implements IMXStore {
         return false;
     }
 
+    /**
+     * Enable the check of the unread events counters.
+     * Each count is then compared with a full count of the room events, it must only be used to debug.
+     *
+     * @param check true to check the counters
+     */
+    public void setUnreadCountersCheck(boolean check) {
+        mCheckUnreadCounters = check;
+    }
+
     /**
      * Check if the initial load is performed.
      *
@@ -419,6 +440,41 @@ public class MXMemoryStore implements IMXStore {
         }
     }
 
+    @Override
+    public void addFilter(String filterDefinition, String filterId) {
+        if (null != mMetadata) {
+            // the map is replaced to be read without lock
+            Map<String, String> filters = (null != mMetadata.mFilters) ? new HashMap<>(mMetadata.mFilters) : new HashMap<String, String>();
+            filters.put(filterDefinition, filterId);
+            mMetadata.mFilters = filters;
+
+            Log.d(LOG_TAG, "addFilter : commit");
+            commit();
+        }
+    }
+
+    @Override
+    public void removeFilter(String filterDefinition) {
+        if ((null != mMetadata) && (null != mMetadata.mFilters) && mMetadata.mFilters.containsKey(filterDefinition)) {
+            // the map is replaced to be read without lock
+            Map<String, String> filters = new HashMap<>(mMetadata.mFilters);
+            filters.remove(filterDefinition);
+            mMetadata.mFilters = filters;
+
+            Log.d(LOG_TAG, "removeFilter : commit");
+            commit();
+        }
+    }
+
+    @Override
+    public Map<String, String> getFilters() {
+        if (null != mMetadata) {
+            return mMetadata.mFilters;
+        } else {
+            return null;
+        }
+    }
+
     @Override
     public Collection<Room> getRooms() {
         return new ArrayList<>(mRooms.values());
@@ -521,6 +577,7 @@ public class MXMemoryStore implements IMXStore {
     public void storeRoom(Room room) {
         if ((null != room) && (null != room.getRoomId())) {
             mRooms.put(room.getRoomId(), room);
+            updateSummariesIndex(room.getRoomId());
 
             // defines a default back token
             if (!mRoomTokens.containsKey(room.getRoomId())) {
@@ -589,7 +646,36 @@ public class MXMemoryStore implements IMXStore {
      */
     @Override
     public int eventsCountAfter(String roomId, String eventId) {
-        return eventsAfter(roomId, eventId, mCredentials.userId, null).size();
+        // sanity check
+        if (null == roomId) {
+            return 0;
+        }
+
+        synchronized (mRoomEventsLock) {
+            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+
+            if (null == events) {
+                return 0;
+            }
+
+            RoomUnreadCounter counter = mUnreadCountersByRoomId.get(roomId);
+
+            if ((null == counter) || !counter.isValid(events, eventId)) {
+                counter = new RoomUnreadCounter(events, eventId, mCredentials.userId);
+                mUnreadCountersByRoomId.put(roomId, counter);
+            } else if (mCheckUnreadCounters) {
+                // check that the incremental updates are right
+                int count = eventsAfter(roomId, eventId, mCredentials.userId, null).size();
+
+                if (count != counter.getCount()) {
+                    Log.e(LOG_TAG, "## eventsCountAfter() : invalid counter " + counter.getCount() + " instead of " + count + " in " + roomId);
+                    counter = new RoomUnreadCounter(events, eventId, mCredentials.userId);
+                    mUnreadCountersByRoomId.put(roomId, counter);
+                }
+            }
+
+            return counter.getCount();
+        }
     }
 
     @Override
@@ -631,6 +717,12 @@ public class MXMemoryStore implements IMXStore {
                     if (event.isDummyEvent()) {
                         mTemporaryEventsList.put(event.eventId, event);
                     }
+
+                    RoomUnreadCounter counter = mUnreadCountersByRoomId.get(event.roomId);
+
+                    if ((null != counter) && counter.isBoundTo(events)) {
+                        counter.onLiveEvent(event);
+                    }
                 }
             }
         } catch (OutOfMemoryError e) {
@@ -676,10 +768,16 @@ public class MXMemoryStore implements IMXStore {
                 if (events != null) {
                     events.remove(event.eventId);
                 }
+                mUnreadCountersByRoomId.remove(event.roomId);
             }
         }
     }
 
+    @Override
+    public void onEventUpdated(Event event) {
+        // the events are updated in place
+    }
+
     @Override
     public void deleteRoom(String roomId) {
         // sanity check
@@ -701,7 +799,10 @@ public class MXMemoryStore implements IMXStore {
                 mRoomSummaries.remove(roomId);
                 mRoomAccountData.remove(roomId);
                 mReceiptsByRoomId.remove(roomId);
+                mUnreadCountersByRoomId.remove(roomId);
             }
+
+            mRoomSummariesIndex.remove(roomId);
         }
     }
 
@@ -735,8 +836,11 @@ public class MXMemoryStore implements IMXStore {
                     mRoomEvents.remove(roomId);
                 }
 
+                mUnreadCountersByRoomId.remove(roomId);
                 mRoomSummaries.remove(roomId);
             }
+
+            mRoomSummariesIndex.remove(roomId);
         }
     }
 
@@ -756,6 +860,8 @@ public class MXMemoryStore implements IMXStore {
                         mRoomEvents.put(roomId, events);
                     }
 
+                    mUnreadCountersByRoomId.remove(roomId);
+
                     if (direction == EventTimeline.Direction.FORWARDS) {
                         mRoomTokens.put(roomId, eventsResponse.start);
 
@@ -813,8 +919,21 @@ public class MXMemoryStore implements IMXStore {
         }
     }
 
+    /**
+     * Provides the back token of a room.
+     *
+     * @param roomId the room id.
+     * @return the back token, null if there is none
+     */
+    public String getBackToken(String roomId) {
+        return (null != roomId) ? mRoomTokens.get(roomId) : null;
+    }
+
     @Override
     public void flushSummary(RoomSummary summary) {
+        if (null != summary) {
+            updateSummariesIndex(summary.getRoomId());
+        }
     }
 
     @Override
@@ -826,6 +945,7 @@ public class MXMemoryStore implements IMXStore {
         try {
             if ((null != summary) && (null != summary.getRoomId())) {
                 mRoomSummaries.put(summary.getRoomId(), summary);
+                updateSummariesIndex(summary.getRoomId());
             }
         } catch (OutOfMemoryError e) {
             dispatchOOM(e);
@@ -841,6 +961,7 @@ public class MXMemoryStore implements IMXStore {
                 // sanity checks
                 if ((room != null) && (null != accountData)) {
                     mRoomAccountData.put(roomId, accountData);
+                    updateSummariesIndex(roomId);
                 }
             }
         } catch (OutOfMemoryError e) {
@@ -986,6 +1107,7 @@ public class MXMemoryStore implements IMXStore {
             // unknown last event token, use the latest known one
             if ((null == lastEvent.mToken) && !TextUtils.isEmpty(mRoomTokens.get(roomId))) {
                 lastEvent.mToken = mRoomTokens.get(roomId);
+                onEventUpdated(lastEvent);
             }
 
             response.end = lastEvent.mToken;
@@ -995,20 +1117,70 @@ public class MXMemoryStore implements IMXStore {
         return null;
     }
 
+    /**
+     * Provides the summaries returned by getSummaries(), sorted for the rooms list.
+     * The index listeners receive the list changes.
+     *
+     * @return the summaries index
+     */
+    public RoomSummariesIndex getRoomSummariesIndex() {
+        return mRoomSummariesIndex;
+    }
+
+    /**
+     * @return the number of events kept in memory for all the rooms
+     */
+    public int getStoredEventsCount() {
+        int count = 0;
+
+        synchronized (mRoomEventsLock) {
+            for (LinkedHashMap<String, Event> events : mRoomEvents.values()) {
+                count += events.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of known users
+     */
+    public int getUsersCount() {
+        return mUsers.size();
+    }
+
+    /**
+     * Update the summaries index entry of a room.
+     * The summary is only indexed when the room is known.
+     *
+     * @param roomId the room id
+     */
+    protected void updateSummariesIndex(String roomId) {
+        RoomSummary summary = (null != roomId) ? mRoomSummaries.get(roomId) : null;
+
+        if ((null != summary) && mRooms.containsKey(roomId)) {
+            mRoomSummariesIndex.update(summary, mRoomAccountData.get(roomId));
+        }
+    }
+
+    /**
+     * Provides the summaries of the rooms the user is a member of.
+     * They are sorted by the summaries index, so there is no need to sort them again.
+     *
+     * @return the summaries
+     */
     @Override
     public Collection<RoomSummary> getSummaries() {
-        List<RoomSummary> summaries = new ArrayList<>();
+        List<RoomSummary> sortedSummaries = mRoomSummariesIndex.getSummaries();
+        List<RoomSummary> summaries = new ArrayList<>(sortedSummaries.size());
 
-        for (String roomId : mRoomSummaries.keySet()) {
-            Room room = mRooms.get(roomId);
-            if (null != room) {
-                if (null == room.getMember(mCredentials.userId)) {
-                    Log.e(LOG_TAG, "## getSummaries() : a summary exists for the roomId " + roomId + " but the user is not anymore a member");
-                } else {
-                    summaries.add(mRoomSummaries.get(roomId));
-                }
+        for (RoomSummary summary : sortedSummaries) {
+            Room room = mRooms.get(summary.getRoomId());
+
+            if ((null == room) || (null == room.getMember(mCredentials.userId))) {
+                Log.e(LOG_TAG, "## getSummaries() : a summary exists for the roomId " + summary.getRoomId() + " but the user is not anymore a member");
             } else {
-                Log.e(LOG_TAG, "## getSummaries() : a summary exists for the roomId " + roomId + " but it does not exist in the room list");
+                summaries.add(summary);
             }
         }
 
@@ -1139,30 +1311,18 @@ public class MXMemoryStore implements IMXStore {
         ArrayList<ReceiptData> receipts = new ArrayList<>();
 
         synchronized (mReceiptsByRoomIdLock) {
-            if (mReceiptsByRoomId.containsKey(roomId)) {
-                String myUserID = mCredentials.userId;
-
-                Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
-                // copy the user id list to avoid having update while looping
-                ArrayList<String> userIds = new ArrayList<>(receiptsByUserId.keySet());
+            RoomReceipts roomReceipts = mReceiptsByRoomId.get(roomId);
 
+            if (null != roomReceipts) {
                 if (null == eventId) {
-                    receipts.addAll(receiptsByUserId.values());
+                    receipts.addAll(roomReceipts.getReceipts());
                 } else {
-                    for (String userId : userIds) {
-                        if (receiptsByUserId.containsKey(userId) && (!excludeSelf || !TextUtils.equals(myUserID, userId))) {
-                            ReceiptData receipt = receiptsByUserId.get(userId);
-
-                            if (TextUtils.equals(receipt.eventId, eventId)) {
-                                receipts.add(receipt);
-                            }
-                        }
-                    }
+                    receipts.addAll(roomReceipts.getEventReceipts(eventId, excludeSelf ? mCredentials.userId : null));
                 }
             }
         }
 
-        if (sort && (receipts.size() > 0)) {
+        if (sort && (receipts.size() > 1)) {
             Collections.sort(receipts, ReceiptData.descComparator);
         }
 
@@ -1185,28 +1345,25 @@ public class MXMemoryStore implements IMXStore {
                 return false;
             }
 
-            Map<String, ReceiptData> receiptsByUserId;
+            RoomReceipts roomReceipts;
 
             //Log.d(LOG_TAG, "## storeReceipt() : roomId " + roomId + " userId " + receipt.userId + " eventId " + receipt.eventId + " originServerTs " + receipt.originServerTs);
 
             synchronized (mReceiptsByRoomIdLock) {
-                if (!mReceiptsByRoomId.containsKey(roomId)) {
-                    receiptsByUserId = new HashMap<>();
-                    mReceiptsByRoomId.put(roomId, receiptsByUserId);
-                } else {
-                    receiptsByUserId = mReceiptsByRoomId.get(roomId);
+                roomReceipts = mReceiptsByRoomId.get(roomId);
+
+                if (null == roomReceipts) {
+                    roomReceipts = new RoomReceipts();
+                    mReceiptsByRoomId.put(roomId, roomReceipts);
                 }
             }
 
-            ReceiptData curReceipt = null;
-
-            if (receiptsByUserId.containsKey(receipt.userId)) {
-                curReceipt = receiptsByUserId.get(receipt.userId);
-            }
+            ReceiptData curReceipt = roomReceipts.get(receipt.userId);
 
             if (null == curReceipt) {
                 //Log.d(LOG_TAG, "## storeReceipt() : there was no receipt from this user");
-                receiptsByUserId.put(receipt.userId, receipt);
+                roomReceipts.put(receipt);
+                onReadReceipt(receipt, roomId);
                 return true;
             }
 
@@ -1227,10 +1384,10 @@ public class MXMemoryStore implements IMXStore {
 
                     // test if the event is know
                     if ((null != eventsMap) && eventsMap.containsKey(receipt.eventId)) {
-                        ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
+                        int[] positions = getEventPositions(eventsMap, curReceipt.eventId, receipt.eventId);
 
-                        int curEventPos = eventIds.indexOf(curReceipt.eventId);
-                        int newEventPos = eventIds.indexOf(receipt.eventId);
+                        int curEventPos = positions[0];
+                        int newEventPos = positions[1];
 
                         if (curEventPos >= newEventPos) {
                             Log.d(LOG_TAG, "## storeReceipt() : the read message is already read (cur pos " + curEventPos + " receipt event pos " + newEventPos + ")");
@@ -1241,7 +1398,8 @@ public class MXMemoryStore implements IMXStore {
             }
 
             //Log.d(LOG_TAG, "## storeReceipt() : updated");
-            receiptsByUserId.put(receipt.userId, receipt);
+            roomReceipts.put(receipt);
+            onReadReceipt(receipt, roomId);
         } catch (OutOfMemoryError e) {
             dispatchOOM(e);
         }
@@ -1263,9 +1421,10 @@ public class MXMemoryStore implements IMXStore {
         // sanity checks
         if (!TextUtils.isEmpty(roomId) && !TextUtils.isEmpty(userId)) {
             synchronized (mReceiptsByRoomIdLock) {
-                if (mReceiptsByRoomId.containsKey(roomId)) {
-                    Map<String, ReceiptData> receipts = mReceiptsByRoomId.get(roomId);
-                    res = receipts.get(userId);
+                RoomReceipts roomReceipts = mReceiptsByRoomId.get(roomId);
+
+                if (null != roomReceipts) {
+                    res = roomReceipts.get(userId);
                 }
             }
         }
@@ -1273,6 +1432,25 @@ public class MXMemoryStore implements IMXStore {
         return res;
     }
 
+    /**
+     * Update the unread events counter of a room with a read receipt.
+     *
+     * @param receipt the receipt
+     * @param roomId  the room id
+     */
+    private void onReadReceipt(ReceiptData receipt, String roomId) {
+        if (TextUtils.equals(receipt.userId, mCredentials.userId)) {
+            synchronized (mRoomEventsLock) {
+                RoomUnreadCounter counter = mUnreadCountersByRoomId.get(roomId);
+
+                // the counter is rebuilt on demand when the read event is not the latest one
+                if ((null != counter) && !counter.onReadReceipt(receipt.eventId)) {
+                    mUnreadCountersByRoomId.remove(roomId);
+                }
+            }
+        }
+    }
+
     /**
      * Return a list of stored events after the parameter one.
      * It could the ones sent by the user excludedUserId.
@@ -1302,7 +1480,11 @@ public class MXMemoryStore implements IMXStore {
 
                         if ((null == eventId) || !TextUtils.equals(event.eventId, eventId)) {
                             // Keep events matching filters
-                            if ((null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0)) && !TextUtils.equals(event.getSender(), excludedUserId)) {
+                            // some messages are not defined as unreadable
+                            if ((null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0))
+                                    && !TextUtils.equals(event.getSender(), excludedUserId)
+                                    && !TextUtils.equals(event.getSender(), mCredentials.userId)
+                                    && !TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
                                 events.add(event);
                             }
                         } else {
@@ -1311,17 +1493,6 @@ public class MXMemoryStore implements IMXStore {
                         }
                     }
 
-                    // filter the unread messages
-                    // some messages are not defined as unreadable
-                    for (int index = 0; index < events.size(); index++) {
-                        Event event = events.get(index);
-
-                        if (TextUtils.equals(event.getSender(), mCredentials.userId) || TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
-                            events.remove(index);
-                            index--;
-                        }
-                    }
-
                     Collections.reverse(events);
                 }
             }
@@ -1330,6 +1501,37 @@ public class MXMemoryStore implements IMXStore {
         return events;
     }
 
+    /**
+     * Provides the positions of two events in a room events map, without copying the event ids list.
+     *
+     * @param eventsMap the room events map
+     * @param eventId1  the first event id
+     * @param eventId2  the second event id
+     * @return the positions of both events (-1 when an event is not found)
+     */
+    private static int[] getEventPositions(LinkedHashMap<String, Event> eventsMap, String eventId1, String eventId2) {
+        int[] positions = {-1, -1};
+        int index = 0;
+
+        for (String eventId : eventsMap.keySet()) {
+            if ((-1 == positions[0]) && TextUtils.equals(eventId, eventId1)) {
+                positions[0] = index;
+            }
+
+            if ((-1 == positions[1]) && TextUtils.equals(eventId, eventId2)) {
+                positions[1] = index;
+            }
+
+            if ((-1 != positions[0]) && (-1 != positions[1])) {
+                break;
+            }
+
+            index++;
+        }
+
+        return positions;
+    }
+
     /**
      * Check if an event has been read by an user.
      *
@@ -1346,18 +1548,19 @@ public class MXMemoryStore implements IMXStore {
         if ((null != roomId) && (null != userId)) {
             synchronized (mReceiptsByRoomIdLock) {
                 synchronized (mRoomEventsLock) {
-                    if (mReceiptsByRoomId.containsKey(roomId) && mRoomEvents.containsKey(roomId)) {
-                        Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
-                        LinkedHashMap<String, Event> eventsMap = mRoomEvents.get(roomId);
+                    RoomReceipts roomReceipts = mReceiptsByRoomId.get(roomId);
+                    LinkedHashMap<String, Event> eventsMap = mRoomEvents.get(roomId);
+
+                    if ((null != roomReceipts) && (null != eventsMap)) {
+                        ReceiptData data = roomReceipts.get(userId);
 
                         // check if the event is known
-                        if (eventsMap.containsKey(eventIdTotest) && receiptsByUserId.containsKey(userId)) {
-                            ReceiptData data = receiptsByUserId.get(userId);
-                            ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
+                        if (eventsMap.containsKey(eventIdTotest) && (null != data)) {
+                            int[] positions = getEventPositions(eventsMap, eventIdTotest, data.eventId);
 
                             // the message has been read if it was sent before the latest read one
-                            res = eventIds.indexOf(eventIdTotest) <= eventIds.indexOf(data.eventId);
-                        } else if (receiptsByUserId.containsKey(userId)) {
+                            res = positions[0] <= positions[1];
+                        } else if (null != data) {
                             // the event is not known so assume it is has been flushed
                             res = true;
                         }
@@ -1381,14 +1584,11 @@ public class MXMemoryStore implements IMXStore {
         List<Event> res = null;
 
         synchronized (mReceiptsByRoomIdLock) {
-            if (mReceiptsByRoomId.containsKey(roomId)) {
-                Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
+            RoomReceipts roomReceipts = mReceiptsByRoomId.get(roomId);
+            ReceiptData data = (null != roomReceipts) ? roomReceipts.get(mCredentials.userId) : null;
 
-                if (receiptsByUserId.containsKey(mCredentials.userId)) {
-                    ReceiptData data = receiptsByUserId.get(mCredentials.userId);
-
-                    res = eventsAfter(roomId, data.eventId, mCredentials.userId, types);
-                }
+            if (null != data) {
+                res = eventsAfter(roomId, data.eventId, mCredentials.userId, types);
             }
         }
 
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The users log.
+ * The users are appended to a single file, each update writes one record.
+ * An in-memory index gives the offset of the latest record of each user, so a user is read on demand.
+ * The file is compacted when the outdated records use more space than the valid ones.
+ * <p>
+ * A record is made of its body length, the CRC32 of its body, and the body i.e. the user id followed by the serialized user.
+ */
+public class MXUsersLog {
+    private static final String LOG_TAG = MXUsersLog.class.getSimpleName();
+
+    // body length + crc
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    // the file is not compacted under this size
+    private static final long COMPACTION_MIN_LENGTH = 256 * 1024;
+
+    /**
+     * The location of a record in the file.
+     */
+    private static class RecordPosition {
+        // the record offset in the file
+        final long mOffset;
+
+        // the record body length
+        final int mLength;
+
+        RecordPosition(long offset, int length) {
+            mOffset = offset;
+            mLength = length;
+        }
+
+        long getRecordLength() {
+            return RECORD_HEADER_LENGTH + mLength;
+        }
+    }
+
+    // the log file
+    private final File mLogFile;
+
+    // the file used while compacting the log
+    private final File mCompactedLogFile;
+
+    // the opened file
+    private RandomAccessFile mRandomAccessFile;
+
+    // the latest record by user id
+    private final Map<String, RecordPosition> mIndex = new HashMap<>();
+
+    // the end of the valid records
+    private long mLength = 0;
+
+    // the length of the latest records
+    private long mLiveLength = 0;
+
+    /**
+     * Constructor
+     *
+     * @param logFile the log file
+     */
+    public MXUsersLog(File logFile) {
+        mLogFile = logFile;
+        mCompactedLogFile = new File(logFile.getParent(), logFile.getName() + ".tmp");
+    }
+
+    /**
+     * Open the log and build its index.
+     * A truncated record, if any, is dropped, and the corrupted records are not indexed.
+     */
+    public synchronized void open() {
+        close();
+        mIndex.clear();
+        mLength = 0;
+        mLiveLength = 0;
+
+        // the compaction has been interrupted
+        if (mCompactedLogFile.exists()) {
+            if (mLogFile.exists()) {
+                mCompactedLogFile.delete();
+            } else {
+                mCompactedLogFile.renameTo(mLogFile);
+            }
+        }
+
+        if (!mLogFile.exists()) {
+            return;
+        }
+
+        try {
+            RandomAccessFile file = getFile();
+            long fileLength = file.length();
+
+            while (mLength + RECORD_HEADER_LENGTH <= fileLength) {
+                file.seek(mLength);
+                int length = file.readInt();
+
+                if ((length <= 0) || (mLength + RECORD_HEADER_LENGTH + length > fileLength)) {
+                    break;
+                }
+
+                int crc = file.readInt();
+                byte[] body = new byte[length];
+                file.readFully(body);
+
+                // the previous record of the user, if any, remains the indexed one
+                if (crc == computeCrc(body)) {
+                    String userId = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+                    indexRecord(userId, new RecordPosition(mLength, length));
+                } else {
+                    Log.e(LOG_TAG, "## open() : drop a corrupted record at " + mLength);
+                }
+
+                mLength += RECORD_HEADER_LENGTH + length;
+            }
+
+            if (mLength != fileLength) {
+                Log.e(LOG_TAG, "## open() : drop " + (fileLength - mLength) + " bytes of truncated record");
+                file.setLength(mLength);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## open() : failed " + e.getMessage());
+        }
+
+        Log.d(LOG_TAG, "## open() : " + mIndex.size() + " users in " + mLength + " bytes");
+    }
+
+    /**
+     * Close the log file.
+     * It is reopened by the next operation.
+     */
+    public synchronized void close() {
+        if (null != mRandomAccessFile) {
+            try {
+                mRandomAccessFile.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## close() : failed " + e.getMessage());
+            }
+
+            mRandomAccessFile = null;
+        }
+    }
+
+    /**
+     * Close the log and delete its file.
+     */
+    public synchronized void delete() {
+        close();
+        mIndex.clear();
+        mLength = 0;
+        mLiveLength = 0;
+        mLogFile.delete();
+        mCompactedLogFile.delete();
+    }
+
+    /**
+     * @return the number of stored users
+     */
+    public synchronized int getCount() {
+        return mIndex.size();
+    }
+
+    /**
+     * @return the stored user ids
+     */
+    public synchronized Set<String> getUserIds() {
+        return new HashSet<>(mIndex.keySet());
+    }
+
+    /**
+     * Tell if a user is stored.
+     *
+     * @param userId the user id
+     * @return true if the user is stored
+     */
+    public synchronized boolean contains(String userId) {
+        return mIndex.containsKey(userId);
+    }
+
+    /**
+     * Read a user.
+     *
+     * @param userId the user id
+     * @return the user, null if it is not stored or cannot be read
+     */
+    public synchronized User get(String userId) {
+        RecordPosition position = mIndex.get(userId);
+
+        if (null == position) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile file = getFile();
+            file.seek(position.mOffset + 4);
+            int crc = file.readInt();
+
+            byte[] body = new byte[position.mLength];
+            file.readFully(body);
+
+            if (crc != computeCrc(body)) {
+                Log.e(LOG_TAG, "## get() : corrupted record for " + userId);
+                return null;
+            }
+
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+            dis.readUTF();
+            ObjectInputStream ois = new ObjectInputStream(dis);
+            User user = (User) ois.readObject();
+            ois.close();
+            return user;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## get() : failed " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Append the users to the log.
+     * The log is left unchanged if a user cannot be written.
+     *
+     * @param users the users
+     * @return the number of written bytes, -1 if the operation failed
+     */
+    public synchronized long put(Collection<User> users) {
+        long start = mLength;
+        HashMap<String, RecordPosition> positions = new HashMap<>();
+
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(records);
+
+            for (User user : users) {
+                byte[] body = serialize(user);
+
+                positions.put(user.user_id, new RecordPosition(start + records.size(), body.length));
+                dos.writeInt(body.length);
+                dos.writeInt(computeCrc(body));
+                dos.write(body);
+            }
+
+            dos.flush();
+
+            RandomAccessFile file = getFile();
+            file.seek(start);
+            file.write(records.toByteArray());
+            mLength = start + records.size();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## put() : failed " + e.getMessage());
+
+            try {
+                getFile().setLength(start);
+            } catch (Exception e2) {
+                Log.e(LOG_TAG, "## put() : cannot restore the log length " + e2.getMessage());
+            }
+
+            return -1;
+        }
+
+        for (Map.Entry<String, RecordPosition> entry : positions.entrySet()) {
+            indexRecord(entry.getKey(), entry.getValue());
+        }
+
+        return mLength - start;
+    }
+
+    /**
+     * Compact the log when the outdated records use more space than the valid ones.
+     *
+     * @return true if the log has been compacted
+     */
+    public synchronized boolean compactIfNeeded() {
+        if ((mLength < COMPACTION_MIN_LENGTH) || (mLength - mLiveLength <= mLiveLength)) {
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        long length = mLength;
+        HashMap<String, RecordPosition> index = new HashMap<>();
+        RandomAccessFile compactedFile = null;
+
+        try {
+            mCompactedLogFile.delete();
+            compactedFile = new RandomAccessFile(mCompactedLogFile, "rw");
+
+            RandomAccessFile file = getFile();
+            long offset = 0;
+
+            for (Map.Entry<String, RecordPosition> entry : mIndex.entrySet()) {
+                RecordPosition position = entry.getValue();
+                byte[] record = new byte[(int) position.getRecordLength()];
+
+                file.seek(position.mOffset);
+                file.readFully(record);
+                compactedFile.write(record);
+
+                index.put(entry.getKey(), new RecordPosition(offset, position.mLength));
+                offset += record.length;
+            }
+
+            compactedFile.close();
+            compactedFile = null;
+
+            close();
+
+            if (!mCompactedLogFile.renameTo(mLogFile)) {
+                throw new Exception("cannot rename " + mCompactedLogFile.getName());
+            }
+
+            mIndex.clear();
+            mIndex.putAll(index);
+            mLength = offset;
+            mLiveLength = offset;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## compactIfNeeded() : failed " + e.getMessage());
+
+            if (null != compactedFile) {
+                try {
+                    compactedFile.close();
+                } catch (Exception e2) {
+                    Log.e(LOG_TAG, "## compactIfNeeded() : close failed " + e2.getMessage());
+                }
+            }
+
+            mCompactedLogFile.delete();
+            return false;
+        }
+
+        Log.d(LOG_TAG, "## compactIfNeeded() : " + length + " -> " + mLength + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * @return the opened log file
+     * @throws Exception if the file cannot be opened
+     */
+    private RandomAccessFile getFile() throws Exception {
+        if (null == mRandomAccessFile) {
+            mRandomAccessFile = new RandomAccessFile(mLogFile, "rw");
+        }
+
+        return mRandomAccessFile;
+    }
+
+    /**
+     * Update the index with the latest record of a user.
+     *
+     * @param userId   the user id
+     * @param position the record position
+     */
+    private void indexRecord(String userId, RecordPosition position) {
+        RecordPosition previousPosition = mIndex.put(userId, position);
+
+        if (null != previousPosition) {
+            mLiveLength -= previousPosition.getRecordLength();
+        }
+
+        mLiveLength += position.getRecordLength();
+    }
+
+    /**
+     * Serialize a record body.
+     *
+     * @param user the user
+     * @return the record body
+     * @throws Exception if the user cannot be serialized
+     */
+    private static byte[] serialize(User user) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF(user.user_id);
+        dos.flush();
+
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(user);
+        oos.close();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Compute the CRC32 of a record body.
+     *
+     * @param body the record body
+     * @return the CRC32
+     */
+    private static int computeCrc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The layout of the stored messages of a room.
+ * The messages are saved in chunks of CHUNK_SIZE events, ordered by their ids.
+ * When the room timeline is updated, only the chunks whose content has changed are rewritten:
+ * the live events are appended in new chunks and the back paginated events are inserted in chunks
+ * with lower ids.
+ */
+class RoomMessagesChunks {
+    // the max number of events per chunk
+    static final int CHUNK_SIZE = 50;
+
+    /**
+     * The chunks to write and to delete to save a room timeline.
+     */
+    static class Update {
+        // chunk id -> events
+        final Map<Long, LinkedHashMap<String, Event>> mChunksToWrite = new TreeMap<>();
+
+        // the ids of the chunks to delete
+        final List<Long> mChunksToDelete = new ArrayList<>();
+
+        /**
+         * @return true if there is nothing to save
+         */
+        boolean isEmpty() {
+            return mChunksToWrite.isEmpty() && mChunksToDelete.isEmpty();
+        }
+    }
+
+    // chunk id -> event ids
+    private final TreeMap<Long, List<String>> mChunks = new TreeMap<>();
+
+    // true when the saved chunks cannot be trusted anymore (write failure...)
+    private boolean mIsInvalidated = false;
+
+    /**
+     * Register a chunk read from the file system.
+     *
+     * @param chunkId  the chunk id
+     * @param eventIds the event ids of the chunk
+     */
+    synchronized void addChunk(long chunkId, Collection<String> eventIds) {
+        mChunks.put(chunkId, new ArrayList<>(eventIds));
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    synchronized int getChunksCount() {
+        return mChunks.size();
+    }
+
+    /**
+     * Force to rewrite all the chunks at the next update.
+     */
+    synchronized void invalidate() {
+        mIsInvalidated = true;
+    }
+
+    /**
+     * Compute the chunks to write and the chunks to delete to save a timeline.
+     * The layout is updated as if the operations succeed.
+     *
+     * @param events        the events to save, from the oldest to the latest one.
+     * @param dirtyEventIds the ids of the events which have been updated since the latest save, null if all of them.
+     * @return the update to apply
+     */
+    synchronized Update update(List<Event> events, Set<String> dirtyEventIds) {
+        Update update = new Update();
+
+        Map<String, Integer> positions = new LinkedHashMap<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            positions.put(events.get(i).eventId, i);
+        }
+
+        // search the longest run of saved chunks which can be kept as they are
+        List<Long> keptChunkIds = new ArrayList<>();
+        int runStart = -1;
+        int runEnd = -1;
+
+        if (!mIsInvalidated && (null != dirtyEventIds)) {
+            for (Map.Entry<Long, List<String>> entry : mChunks.entrySet()) {
+                List<String> eventIds = entry.getValue();
+                Integer position = eventIds.isEmpty() ? null : positions.get(eventIds.get(0));
+
+                boolean isReusable = (null != position) && (keptChunkIds.isEmpty() || (position == runEnd));
+
+                for (int i = 0; isReusable && (i < eventIds.size()); i++) {
+                    String eventId = eventIds.get(i);
+                    isReusable = ((position + i) < events.size()) && eventId.equals(events.get(position + i).eventId) && !dirtyEventIds.contains(eventId);
+                }
+
+                if (isReusable) {
+                    if (keptChunkIds.isEmpty()) {
+                        runStart = position;
+                    }
+                    keptChunkIds.add(entry.getKey());
+                    runEnd = position + eventIds.size();
+                } else if (!keptChunkIds.isEmpty()) {
+                    break;
+                }
+            }
+
+            // a partial chunk is only kept when it is the latest one
+            if (!keptChunkIds.isEmpty() && (runEnd < events.size())) {
+                long lastChunkId = keptChunkIds.get(keptChunkIds.size() - 1);
+                int lastChunkSize = mChunks.get(lastChunkId).size();
+
+                if (lastChunkSize < CHUNK_SIZE) {
+                    keptChunkIds.remove(keptChunkIds.size() - 1);
+                    runEnd -= lastChunkSize;
+                }
+            }
+        }
+
+        if (keptChunkIds.isEmpty()) {
+            runStart = 0;
+            runEnd = 0;
+        }
+
+        // the new chunk ids never collide with the existing ones
+        // so the new chunks can be written before deleting the deprecated ones.
+        long minChunkId = mChunks.isEmpty() ? 0 : mChunks.firstKey();
+        long maxChunkId = mChunks.isEmpty() ? -1 : mChunks.lastKey();
+
+        for (Long chunkId : mChunks.keySet()) {
+            if (!keptChunkIds.contains(chunkId)) {
+                update.mChunksToDelete.add(chunkId);
+            }
+        }
+
+        TreeMap<Long, List<String>> chunks = new TreeMap<>();
+
+        for (Long chunkId : keptChunkIds) {
+            chunks.put(chunkId, mChunks.get(chunkId));
+        }
+
+        // the older events are saved in chunks before the kept ones
+        long chunkId = Math.min(minChunkId, keptChunkIds.isEmpty() ? minChunkId : keptChunkIds.get(0)) - 1;
+        for (int end = runStart; end > 0; end -= CHUNK_SIZE) {
+            addChunk(update, chunks, chunkId--, events, Math.max(0, end - CHUNK_SIZE), end);
+        }
+
+        // the latest events are saved in chunks after the kept ones
+        chunkId = maxChunkId + 1;
+        for (int start = runEnd; start < events.size(); start += CHUNK_SIZE) {
+            addChunk(update, chunks, chunkId++, events, start, Math.min(events.size(), start + CHUNK_SIZE));
+        }
+
+        mChunks.clear();
+        mChunks.putAll(chunks);
+        mIsInvalidated = false;
+
+        return update;
+    }
+
+    /**
+     * Add a new chunk.
+     *
+     * @param update  the update
+     * @param chunks  the chunks layout
+     * @param chunkId the chunk id
+     * @param events  the events
+     * @param start   the index of the first event of the chunk
+     * @param end     the index after the last event of the chunk
+     */
+    private static void addChunk(Update update, Map<Long, List<String>> chunks, long chunkId, List<Event> events, int start, int end) {
+        LinkedHashMap<String, Event> chunk = new LinkedHashMap<>();
+
+        for (int i = start; i < end; i++) {
+            Event event = events.get(i);
+            chunk.put(event.eventId, event);
+        }
+
+        update.mChunksToWrite.put(chunkId, chunk);
+        chunks.put(chunkId, new ArrayList<>(chunk.keySet()));
+    }
+}
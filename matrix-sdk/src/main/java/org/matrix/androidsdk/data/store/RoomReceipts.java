@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.rest.model.ReceiptData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The read receipts of a room, indexed by user id and by event id.
+ * Both indexes are updated when a receipt is stored, so that the receipts of an event
+ * are retrieved without checking the receipts of every room member.
+ */
+class RoomReceipts {
+    // user id -> receipt
+    private final Map<String, ReceiptData> mReceiptsByUserId = new HashMap<>();
+
+    // event id -> (user id -> receipt)
+    private final Map<String, Map<String, ReceiptData>> mReceiptsByEventId = new HashMap<>();
+
+    /**
+     * Provides the receipt of an user.
+     *
+     * @param userId the user id
+     * @return the receipt, null if there is none
+     */
+    synchronized ReceiptData get(String userId) {
+        return mReceiptsByUserId.get(userId);
+    }
+
+    /**
+     * Store a receipt, it replaces the previous receipt of the user.
+     *
+     * @param receipt the receipt
+     */
+    synchronized void put(ReceiptData receipt) {
+        ReceiptData prevReceipt = mReceiptsByUserId.put(receipt.userId, receipt);
+
+        if (null != prevReceipt) {
+            Map<String, ReceiptData> prevEventReceipts = mReceiptsByEventId.get(prevReceipt.eventId);
+
+            if (null != prevEventReceipts) {
+                prevEventReceipts.remove(prevReceipt.userId);
+
+                if (prevEventReceipts.isEmpty()) {
+                    mReceiptsByEventId.remove(prevReceipt.eventId);
+                }
+            }
+        }
+
+        Map<String, ReceiptData> eventReceipts = mReceiptsByEventId.get(receipt.eventId);
+
+        if (null == eventReceipts) {
+            eventReceipts = new HashMap<>();
+            mReceiptsByEventId.put(receipt.eventId, eventReceipts);
+        }
+
+        eventReceipts.put(receipt.userId, receipt);
+    }
+
+    /**
+     * @return all the receipts
+     */
+    synchronized List<ReceiptData> getReceipts() {
+        return new ArrayList<>(mReceiptsByUserId.values());
+    }
+
+    /**
+     * Provides the receipts of an event.
+     *
+     * @param eventId        the event id
+     * @param excludedUserId the user id whose receipt is ignored (can be null)
+     * @return the receipts list
+     */
+    synchronized List<ReceiptData> getEventReceipts(String eventId, String excludedUserId) {
+        Map<String, ReceiptData> eventReceipts = mReceiptsByEventId.get(eventId);
+
+        if (null == eventReceipts) {
+            return new ArrayList<>();
+        }
+
+        List<ReceiptData> receipts = new ArrayList<>(eventReceipts.size());
+
+        for (ReceiptData receipt : eventReceipts.values()) {
+            if (!TextUtils.equals(receipt.userId, excludedUserId)) {
+                receipts.add(receipt);
+            }
+        }
+
+        return receipts;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import org.matrix.androidsdk.data.RoomAccountData;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.data.RoomTag;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The room summaries sorted for the rooms list.
+ * The rooms are grouped by tag (favourites, untagged rooms, low priority rooms), the tagged rooms
+ * are sorted by tag order, then the rooms are sorted by activity (latest event first).
+ * The rooms with unread messages can be pinned at the top of their group.
+ * The index is updated each time a summary is stored, and the listeners receive the list changes.
+ */
+public class RoomSummariesIndex {
+    private static final String LOG_TAG = RoomSummariesIndex.class.getSimpleName();
+
+    /**
+     * The rooms list changes listener.
+     * The methods are called on the thread which updates the store, in the order of the updates.
+     */
+    public interface IRoomSummariesIndexListener {
+        /**
+         * A summary has been inserted.
+         *
+         * @param summary  the summary
+         * @param position the summary position
+         */
+        void onSummaryInserted(RoomSummary summary, int position);
+
+        /**
+         * A summary has been updated, its position may have changed.
+         * The positions are equal when only the summary content has changed.
+         *
+         * @param summary      the summary
+         * @param fromPosition the previous position
+         * @param toPosition   the new position
+         */
+        void onSummaryMoved(RoomSummary summary, int fromPosition, int toPosition);
+
+        /**
+         * A summary has been removed.
+         *
+         * @param summary  the summary
+         * @param position the previous summary position
+         */
+        void onSummaryRemoved(RoomSummary summary, int position);
+    }
+
+    // the tag groups
+    private static final int TAG_GROUP_FAVOURITE = 0;
+    private static final int TAG_GROUP_NONE = 1;
+    private static final int TAG_GROUP_LOW_PRIORITY = 2;
+
+    /**
+     * The sort key of a summary.
+     * It is computed when the summary is stored, because the summary fields are updated in place.
+     */
+    static class SortKey implements Comparable<SortKey> {
+        final String mRoomId;
+        final int mTagGroup;
+        final double mTagOrder;
+        final boolean mIsUnread;
+        final long mLatestEventTs;
+
+        SortKey(String roomId, int tagGroup, double tagOrder, boolean isUnread, long latestEventTs) {
+            mRoomId = roomId;
+            mTagGroup = tagGroup;
+            mTagOrder = tagOrder;
+            mIsUnread = isUnread;
+            mLatestEventTs = latestEventTs;
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            if (mTagGroup != other.mTagGroup) {
+                return (mTagGroup < other.mTagGroup) ? -1 : 1;
+            }
+
+            int res = Double.compare(mTagOrder, other.mTagOrder);
+
+            if (0 != res) {
+                return res;
+            }
+
+            if (mIsUnread != other.mIsUnread) {
+                return mIsUnread ? -1 : 1;
+            }
+
+            // the latest activity first
+            if (mLatestEventTs != other.mLatestEventTs) {
+                return (mLatestEventTs > other.mLatestEventTs) ? -1 : 1;
+            }
+
+            return mRoomId.compareTo(other.mRoomId);
+        }
+    }
+
+    // the sorted keys
+    private final List<SortKey> mSortedKeys = new ArrayList<>();
+
+    // room id -> sort key
+    private final Map<String, SortKey> mKeysByRoomId = new HashMap<>();
+
+    // room id -> summary
+    private final Map<String, RoomSummary> mSummariesByRoomId = new HashMap<>();
+
+    private final List<IRoomSummariesIndexListener> mListeners = new ArrayList<>();
+
+    // tell if the unread rooms are displayed at the top of their group
+    private boolean mPinUnreadRooms = false;
+
+    /**
+     * Add a listener.
+     *
+     * @param listener the listener
+     */
+    public synchronized void addListener(IRoomSummariesIndexListener listener) {
+        if ((null != listener) && !mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(IRoomSummariesIndexListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Tell if the rooms with unread messages are displayed at the top of their group.
+     * The summaries are sorted again, so the listeners should reload the full list.
+     *
+     * @param pinUnreadRooms true to pin them
+     */
+    public synchronized void setPinUnreadRooms(boolean pinUnreadRooms) {
+        if (mPinUnreadRooms != pinUnreadRooms) {
+            mPinUnreadRooms = pinUnreadRooms;
+
+            mSortedKeys.clear();
+
+            for (RoomSummary summary : mSummariesByRoomId.values()) {
+                SortKey key = buildSortKey(summary, null, mKeysByRoomId.get(summary.getRoomId()));
+                mKeysByRoomId.put(summary.getRoomId(), key);
+                mSortedKeys.add(key);
+            }
+
+            Collections.sort(mSortedKeys);
+        }
+    }
+
+    /**
+     * @return the number of summaries
+     */
+    public synchronized int getCount() {
+        return mSortedKeys.size();
+    }
+
+    /**
+     * @return the sorted summaries
+     */
+    public synchronized List<RoomSummary> getSummaries() {
+        List<RoomSummary> summaries = new ArrayList<>(mSortedKeys.size());
+
+        for (SortKey key : mSortedKeys) {
+            summaries.add(mSummariesByRoomId.get(key.mRoomId));
+        }
+
+        return summaries;
+    }
+
+    /**
+     * Provides the position of a room.
+     *
+     * @param roomId the room id
+     * @return the position, -1 if the room is not indexed
+     */
+    public synchronized int getPosition(String roomId) {
+        SortKey key = mKeysByRoomId.get(roomId);
+        return (null != key) ? Collections.binarySearch(mSortedKeys, key) : -1;
+    }
+
+    /**
+     * Compute the sort key of a summary.
+     *
+     * @param summary     the summary
+     * @param accountData the room account data, null to keep the tag of the previous key
+     * @param prevKey     the previous key
+     * @return the sort key
+     */
+    private SortKey buildSortKey(RoomSummary summary, RoomAccountData accountData, SortKey prevKey) {
+        int tagGroup = TAG_GROUP_NONE;
+        double tagOrder = Double.MAX_VALUE;
+
+        if ((null == accountData) && (null != prevKey)) {
+            tagGroup = prevKey.mTagGroup;
+            tagOrder = prevKey.mTagOrder;
+        } else if (null != accountData) {
+            RoomTag tag = accountData.roomTag(RoomTag.ROOM_TAG_FAVOURITE);
+
+            if (null != tag) {
+                tagGroup = TAG_GROUP_FAVOURITE;
+            } else {
+                tag = accountData.roomTag(RoomTag.ROOM_TAG_LOW_PRIORITY);
+
+                if (null != tag) {
+                    tagGroup = TAG_GROUP_LOW_PRIORITY;
+                }
+            }
+
+            if ((null != tag) && (null != tag.mOrder)) {
+                tagOrder = tag.mOrder;
+            }
+        }
+
+        boolean isUnread = mPinUnreadRooms && ((0 != summary.getNotificationCount()) || (0 != summary.getHighlightCount()));
+        long latestEventTs = (null != summary.getLatestReceivedEvent()) ? summary.getLatestReceivedEvent().getOriginServerTs() : 0;
+
+        return new SortKey(summary.getRoomId(), tagGroup, tagOrder, isUnread, latestEventTs);
+    }
+
+    /**
+     * Insert or update a summary.
+     *
+     * @param summary     the summary
+     * @param accountData the room account data
+     */
+    public void update(RoomSummary summary, RoomAccountData accountData) {
+        if ((null == summary) || (null == summary.getRoomId())) {
+            return;
+        }
+
+        String roomId = summary.getRoomId();
+        List<IRoomSummariesIndexListener> listeners;
+        int fromPosition = -1;
+        int toPosition;
+
+        synchronized (this) {
+            SortKey prevKey = mKeysByRoomId.get(roomId);
+            SortKey key = buildSortKey(summary, accountData, null);
+
+            if (null != prevKey) {
+                fromPosition = Collections.binarySearch(mSortedKeys, prevKey);
+
+                if (fromPosition >= 0) {
+                    mSortedKeys.remove(fromPosition);
+                } else {
+                    Log.e(LOG_TAG, "## update() : the key of " + roomId + " is not found");
+                    mSortedKeys.remove(prevKey);
+                }
+            }
+
+            // the position is found by a binary search, only the array items after it are shifted.
+            toPosition = Collections.binarySearch(mSortedKeys, key);
+            toPosition = (toPosition < 0) ? (-toPosition - 1) : toPosition;
+
+            mSortedKeys.add(toPosition, key);
+            mKeysByRoomId.put(roomId, key);
+            mSummariesByRoomId.put(roomId, summary);
+
+            listeners = new ArrayList<>(mListeners);
+        }
+
+        for (IRoomSummariesIndexListener listener : listeners) {
+            try {
+                if (fromPosition < 0) {
+                    listener.onSummaryInserted(summary, toPosition);
+                } else {
+                    listener.onSummaryMoved(summary, fromPosition, toPosition);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## update() : listener failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove the summary of a room.
+     *
+     * @param roomId the room id
+     */
+    public void remove(String roomId) {
+        List<IRoomSummariesIndexListener> listeners;
+        RoomSummary summary;
+        int position;
+
+        synchronized (this) {
+            SortKey key = mKeysByRoomId.remove(roomId);
+
+            if (null == key) {
+                return;
+            }
+
+            summary = mSummariesByRoomId.remove(roomId);
+            position = Collections.binarySearch(mSortedKeys, key);
+
+            if (position >= 0) {
+                mSortedKeys.remove(position);
+            } else {
+                mSortedKeys.remove(key);
+            }
+
+            listeners = new ArrayList<>(mListeners);
+        }
+
+        for (IRoomSummariesIndexListener listener : listeners) {
+            try {
+                listener.onSummaryRemoved(summary, position);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## remove() : listener failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove all the summaries.
+     */
+    public synchronized void clear() {
+        mSortedKeys.clear();
+        mKeysByRoomId.clear();
+        mSummariesByRoomId.clear();
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.text.TextUtils;
+
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomAccountData;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact snapshot of the rooms list.
+ * It contains the displayed fields of the room summaries, in the rooms list order.
+ * It is written in a single file after each store commit, and it can be read before the store is opened
+ * to display the rooms list while the store is loading.
+ * The latest message of an encrypted room is not written.
+ */
+public class RoomSummariesSnapshot {
+    private static final String LOG_TAG = RoomSummariesSnapshot.class.getSimpleName();
+
+    // "MXRS"
+    private static final int MAGIC = 0x4D585253;
+    private static final int VERSION = 1;
+
+    // the min size of a written string : its length
+    private static final int MIN_STRING_SIZE = 4;
+
+    // the min size of a written entry : 4 strings, the timestamp, 3 counters, the invitation flag and the tags count
+    private static final int MIN_ENTRY_SIZE = 4 * MIN_STRING_SIZE + 8 + 3 * 4 + 1 + 4;
+
+    // the max length of the latest message preview
+    private static final int MAX_PREVIEW_LENGTH = 256;
+
+    /**
+     * The displayed fields of a room summary.
+     */
+    public static class Entry {
+        public final String mRoomId;
+        public final String mName;
+        public final String mAvatarUrl;
+        public final String mLatestMessage;
+        public final long mLatestEventTs;
+        public final int mUnreadEventsCount;
+        public final int mNotificationCount;
+        public final int mHighlightCount;
+        public final boolean mIsInvited;
+        public final List<String> mTags;
+
+        public Entry(String roomId, String name, String avatarUrl, String latestMessage, long latestEventTs,
+                     int unreadEventsCount, int notificationCount, int highlightCount, boolean isInvited, List<String> tags) {
+            mRoomId = roomId;
+            mName = name;
+            mAvatarUrl = avatarUrl;
+            mLatestMessage = latestMessage;
+            mLatestEventTs = latestEventTs;
+            mUnreadEventsCount = unreadEventsCount;
+            mNotificationCount = notificationCount;
+            mHighlightCount = highlightCount;
+            mIsInvited = isInvited;
+            mTags = (null != tags) ? Collections.unmodifiableList(tags) : Collections.<String>emptyList();
+        }
+    }
+
+    /**
+     * Build the snapshot entry of a room summary.
+     *
+     * @param summary     the room summary
+     * @param room        the room, null if it is not known
+     * @param accountData the room account data, null if there is none
+     * @param myUserId    the user id
+     * @return the entry
+     */
+    public static Entry buildEntry(RoomSummary summary, Room room, RoomAccountData accountData, String myUserId) {
+        String name = summary.getRoomName();
+        String avatarUrl = null;
+
+        if (null != room) {
+            if (TextUtils.isEmpty(name)) {
+                name = room.getName(myUserId);
+            }
+
+            avatarUrl = room.getAvatarUrl();
+        }
+
+        String latestMessage = null;
+        long latestEventTs = 0;
+        Event latestEvent = summary.getLatestReceivedEvent();
+
+        if (null != latestEvent) {
+            latestEventTs = latestEvent.getOriginServerTs();
+
+            // the snapshot can be read without opening the store, so the decrypted messages are not previewed
+            if (!latestEvent.isEncrypted() && TextUtils.equals(latestEvent.getType(), Event.EVENT_TYPE_MESSAGE)) {
+                JsonObject content = latestEvent.getContentAsJsonObject();
+
+                if ((null != content) && content.has("body") && content.get("body").isJsonPrimitive()) {
+                    latestMessage = content.get("body").getAsString();
+
+                    if (latestMessage.length() > MAX_PREVIEW_LENGTH) {
+                        latestMessage = latestMessage.substring(0, MAX_PREVIEW_LENGTH);
+                    }
+                }
+            }
+        }
+
+        List<String> tags = new ArrayList<>();
+
+        if ((null != accountData) && (null != accountData.getKeys())) {
+            tags.addAll(accountData.getKeys());
+        }
+
+        return new Entry(summary.getRoomId(), name, avatarUrl, latestMessage, latestEventTs,
+                summary.getUnreadEventsCount(), summary.getNotificationCount(), summary.getHighlightCount(), summary.isInvited(), tags);
+    }
+
+    /**
+     * Write a string.
+     *
+     * @param output the output stream
+     * @param value  the string, can be null
+     * @throws Exception the write failed
+     */
+    private static void writeString(DataOutputStream output, String value) throws Exception {
+        if (null == value) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string.
+     *
+     * @param buffer the buffer
+     * @return the string, can be null
+     * @throws Exception the read failed
+     */
+    private static String readString(ByteBuffer buffer) throws Exception {
+        int length = buffer.getInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > buffer.remaining()) {
+            throw new Exception("invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Read a records count.
+     *
+     * @param buffer        the buffer
+     * @param minRecordSize the min size of a record
+     * @return the count
+     * @throws Exception the count is invalid
+     */
+    private static int readCount(ByteBuffer buffer, int minRecordSize) throws Exception {
+        int count = buffer.getInt();
+
+        if ((count < 0) || (count > buffer.remaining() / minRecordSize)) {
+            throw new Exception("invalid count " + count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Write a snapshot.
+     * The file is replaced atomically, so a reader never gets a partially written snapshot.
+     *
+     * @param file    the snapshot file
+     * @param entries the entries, in the rooms list order
+     * @return true if the snapshot is written
+     */
+    public static boolean write(File file, List<Entry> entries) {
+        File tmpFile = new File(file.getParent(), file.getName() + ".tmp");
+        DataOutputStream output = null;
+        boolean succeeded = false;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 8192));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+
+            for (Entry entry : entries) {
+                writeString(output, entry.mRoomId);
+                writeString(output, entry.mName);
+                writeString(output, entry.mAvatarUrl);
+                writeString(output, entry.mLatestMessage);
+                output.writeLong(entry.mLatestEventTs);
+                output.writeInt(entry.mUnreadEventsCount);
+                output.writeInt(entry.mNotificationCount);
+                output.writeInt(entry.mHighlightCount);
+                output.writeBoolean(entry.mIsInvited);
+                output.writeInt(entry.mTags.size());
+
+                for (String tag : entry.mTags) {
+                    writeString(output, tag);
+                }
+            }
+
+            output.close();
+            output = null;
+
+            succeeded = tmpFile.renameTo(file);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## write() : failed " + e.getMessage());
+        } finally {
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## write() : close failed " + e.getMessage());
+                }
+            }
+
+            if (!succeeded) {
+                tmpFile.delete();
+            }
+        }
+
+        return succeeded;
+    }
+
+    /**
+     * Read a snapshot.
+     * The file is memory mapped to avoid copying it before parsing it.
+     *
+     * @param file the snapshot file
+     * @return the entries in the rooms list order, an empty list if the snapshot does not exist or is invalid
+     */
+    public static List<Entry> read(File file) {
+        List<Entry> entries = new ArrayList<>();
+
+        if (!file.exists()) {
+            return entries;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+                Log.e(LOG_TAG, "## read() : unsupported snapshot");
+                return entries;
+            }
+
+            int count = readCount(buffer, MIN_ENTRY_SIZE);
+
+            for (int i = 0; i < count; i++) {
+                String roomId = readString(buffer);
+                String name = readString(buffer);
+                String avatarUrl = readString(buffer);
+                String latestMessage = readString(buffer);
+                long latestEventTs = buffer.getLong();
+                int unreadEventsCount = buffer.getInt();
+                int notificationCount = buffer.getInt();
+                int highlightCount = buffer.getInt();
+                boolean isInvited = (0 != buffer.get());
+                int tagsCount = readCount(buffer, MIN_STRING_SIZE);
+
+                List<String> tags = new ArrayList<>(tagsCount);
+
+                for (int j = 0; j < tagsCount; j++) {
+                    tags.add(readString(buffer));
+                }
+
+                entries.add(new Entry(roomId, name, avatarUrl, latestMessage, latestEventTs, unreadEventsCount, notificationCount, highlightCount, isInvited, tags));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## read() : failed " + e.getMessage());
+            entries.clear();
+        } finally {
+            if (null != randomAccessFile) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## read() : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        return entries;
+    }
+}
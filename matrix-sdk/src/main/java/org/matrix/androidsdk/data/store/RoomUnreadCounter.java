@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.LinkedHashMap;
+
+/**
+ * The unread events counter of a room.
+ * It is computed once from the room events, then it is updated when a live event is stored
+ * or when the user reads the latest event.
+ * It is bound to an events map instance : it must be rebuilt when the map is replaced or when some events are removed.
+ * The updates in place (redactions, decryptions) keep the events sender and type, and the encryption of a local echo
+ * only updates an event of the user, so they do not change the count.
+ */
+class RoomUnreadCounter {
+    // the counted events
+    private final LinkedHashMap<String, Event> mEvents;
+
+    // the user id
+    private final String mUserId;
+
+    // the read event id
+    private String mReadEventId;
+
+    // the latest event id
+    private String mLatestEventId;
+
+    // the number of unread events after mReadEventId
+    private int mCount;
+
+    /**
+     * Constructor
+     *
+     * @param events      the room events, from the oldest to the latest one
+     * @param readEventId the read event id
+     * @param userId      the user id
+     */
+    RoomUnreadCounter(LinkedHashMap<String, Event> events, String readEventId, String userId) {
+        mEvents = events;
+        mUserId = userId;
+        mReadEventId = readEventId;
+        mCount = 0;
+
+        for (Event event : events.values()) {
+            if ((null != readEventId) && TextUtils.equals(event.eventId, readEventId)) {
+                mCount = 0;
+            } else if (isUnread(event)) {
+                mCount++;
+            }
+
+            mLatestEventId = event.eventId;
+        }
+    }
+
+    /**
+     * Tell if an event is counted as an unread one.
+     *
+     * @param event the event
+     * @return true if the event is counted
+     */
+    private boolean isUnread(Event event) {
+        return !TextUtils.equals(event.getSender(), mUserId) && !TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER);
+    }
+
+    /**
+     * Tell if the counter can be used.
+     *
+     * @param events      the current room events
+     * @param readEventId the read event id
+     * @return true if the counter is up to date
+     */
+    boolean isValid(LinkedHashMap<String, Event> events, String readEventId) {
+        return (mEvents == events) && TextUtils.equals(mReadEventId, readEventId);
+    }
+
+    /**
+     * Tell if the counter is bound to an events map.
+     *
+     * @param events the room events
+     * @return true if it is bound to this map
+     */
+    boolean isBoundTo(LinkedHashMap<String, Event> events) {
+        return mEvents == events;
+    }
+
+    /**
+     * @return the number of unread events
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Update the counter with an event appended to the room events.
+     *
+     * @param event the event
+     */
+    void onLiveEvent(Event event) {
+        if (isUnread(event)) {
+            mCount++;
+        }
+
+        mLatestEventId = event.eventId;
+    }
+
+    /**
+     * Update the counter with a read receipt of the user.
+     *
+     * @param eventId the read event id
+     * @return true if the counter has been updated, false if it must be rebuilt
+     */
+    boolean onReadReceipt(String eventId) {
+        if ((null != eventId) && TextUtils.equals(eventId, mLatestEventId)) {
+            mReadEventId = eventId;
+            mCount = 0;
+            return true;
+        }
+
+        return false;
+    }
+}
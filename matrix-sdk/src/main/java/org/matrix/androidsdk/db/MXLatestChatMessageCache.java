@@ -1,12 +1,13 @@
-/* 
+/*
  * Copyright 2015 OpenMarket Ltd
- * 
+ * Copyright 2018 New Vector Ltd
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *     http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -17,29 +18,82 @@
 package org.matrix.androidsdk.db;
 
 import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.text.TextUtils;
 
+import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.util.Log;
 
 import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.MXOsHandler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * The latest typed message (draft) of each room.
+ * The drafts are read from memory. They are loaded and saved by a background thread :
+ * the updates are appended to a journal file a short time after the latest change,
+ * and the journal is compacted when it contains too many deprecated records.
+ */
 public class MXLatestChatMessageCache {
     private static final String LOG_TAG = MXLatestChatMessageCache.class.getSimpleName();
     private static final String FILENAME = "ConsoleLatestChatMessageCache";
+    private static final String JOURNAL_FILENAME = "journal";
 
     final String MXLATESTMESSAGES_STORE_FOLDER = "MXLatestMessagesStore";
 
-    private HashMap<String, String> mLatestMesssageByRoomId = null;
+    // the journal records
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+
+    // the updates are written after this delay, to group the updates done while typing
+    private static final long WRITE_DELAY_MS = 1000;
+
+    // the journal is compacted when it contains more than this number of records per draft
+    private static final int COMPACTION_RATIO = 4;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 64;
+
+    private final HashMap<String, String> mLatestMesssageByRoomId = new HashMap<>();
+
+    // the updates which are not yet written, a null message means the draft is removed
+    private final Map<String, String> mPendingUpdates = new HashMap<>();
+
     private String mUserId = null;
     private File mLatestMessagesDirectory = null;
-    private File mLatestMessagesFile = null;
+    private File mJournalFile = null;
+
+    // the number of records in the journal
+    private int mJournalRecordsCount = 0;
+
+    private boolean mIsOpening = false;
+    private boolean mIsLoaded = false;
+    private final List<ApiCallback<Void>> mOpenCallbacks = new ArrayList<>();
+
+    // the background thread, null when the file operations are done in a provided looper
+    private final HandlerThread mHandlerThread;
+    private final MXOsHandler mCacheHandler;
+    private final MXOsHandler mUiHandler;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
 
     /**
      * Constructor
@@ -47,38 +101,171 @@ public class MXLatestChatMessageCache {
      * @param userId the user id
      */
     public MXLatestChatMessageCache(String userId) {
+        this(userId, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param userId      the user id
+     * @param cacheLooper the looper of the file operations, null to use a dedicated thread
+     */
+    MXLatestChatMessageCache(String userId, Looper cacheLooper) {
         mUserId = userId;
+
+        if (null == cacheLooper) {
+            mHandlerThread = new HandlerThread("MXLatestChatMessageCache_" + userId, Thread.MIN_PRIORITY);
+            mHandlerThread.start();
+            cacheLooper = mHandlerThread.getLooper();
+        } else {
+            mHandlerThread = null;
+        }
+
+        mCacheHandler = new MXOsHandler(cacheLooper);
+        mUiHandler = new MXOsHandler(Looper.getMainLooper());
     }
 
     /**
      * Clear the text caches.
+     * The cache can still be used, the drafts are then loaded again from an empty directory.
      *
      * @param context The application context to use.
      */
-    public void clearCache(Context context) {
-        ContentUtils.deleteDirectory(mLatestMessagesDirectory);
-        mLatestMesssageByRoomId = null;
+    public void clearCache(final Context context) {
+        synchronized (this) {
+            mLatestMesssageByRoomId.clear();
+            mPendingUpdates.clear();
+        }
+
+        final File directory = getDirectory(context);
+
+        mCacheHandler.removeCallbacksAndMessages(null);
+        mCacheHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ContentUtils.deleteDirectory(directory);
+                mJournalFile = null;
+                mJournalRecordsCount = 0;
+
+                boolean reopen;
+
+                synchronized (MXLatestChatMessageCache.this) {
+                    mIsLoaded = false;
+                    mIsOpening = false;
+                    reopen = !mOpenCallbacks.isEmpty();
+                }
+
+                // a pending loading has been cancelled
+                if (reopen) {
+                    open(context, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the background thread once the pending operations are done.
+     */
+    public void close() {
+        if (null != mHandlerThread) {
+            mCacheHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHandlerThread.quit();
+                }
+            });
+        }
     }
 
     /**
-     * Open the texts cache file.
+     * Provides the drafts directory.
      *
-     * @param context the context.
+     * @param context the context
+     * @return the directory
      */
-    private void openLatestMessagesDict(Context context) {
+    private File getDirectory(Context context) {
+        return new File(new File(context.getApplicationContext().getFilesDir(), MXLATESTMESSAGES_STORE_FOLDER), mUserId);
+    }
 
-        // already checked
-        if (null != mLatestMesssageByRoomId) {
-            return;
+    /**
+     * Load the drafts in background.
+     * The drafts are available from getLatestText() when the callback is called.
+     *
+     * @param context  the context.
+     * @param callback the callback, called on the UI thread, can be null.
+     */
+    public void open(final Context context, final ApiCallback<Void> callback) {
+        synchronized (this) {
+            if (mIsLoaded) {
+                if (null != callback) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(null);
+                        }
+                    });
+                }
+                return;
+            }
+
+            if (null != callback) {
+                mOpenCallbacks.add(callback);
+            }
+
+            if (mIsOpening) {
+                return;
+            }
+
+            mIsOpening = true;
         }
 
-        mLatestMesssageByRoomId = new HashMap<>();
+        mCacheHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openLatestMessagesDict(context);
+                // write the updates done while loading
+                flush();
+
+                final List<ApiCallback<Void>> callbacks;
+
+                synchronized (MXLatestChatMessageCache.this) {
+                    mIsLoaded = true;
+                    callbacks = new ArrayList<>(mOpenCallbacks);
+                    mOpenCallbacks.clear();
+                }
+
+                if (!callbacks.isEmpty()) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (ApiCallback<Void> callback : callbacks) {
+                                try {
+                                    callback.onSuccess(null);
+                                } catch (Exception e) {
+                                    Log.e(LOG_TAG, "## open() : callback failed " + e.getMessage());
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the drafts.
+     * Must be called on the cache thread.
+     *
+     * @param context the context.
+     */
+    void openLatestMessagesDict(Context context) {
+        Map<String, String> loadedMessages = new HashMap<>();
 
         try {
-            mLatestMessagesDirectory = new File(context.getApplicationContext().getFilesDir(), MXLATESTMESSAGES_STORE_FOLDER);
-            mLatestMessagesDirectory = new File(mLatestMessagesDirectory, mUserId);
+            mLatestMessagesDirectory = getDirectory(context);
+            mJournalFile = new File(mLatestMessagesDirectory, JOURNAL_FILENAME);
 
-            mLatestMessagesFile = new File(mLatestMessagesDirectory, FILENAME.hashCode() + "");
+            File legacyFile = new File(mLatestMessagesDirectory, FILENAME.hashCode() + "");
 
             if (!mLatestMessagesDirectory.exists()) {
 
@@ -89,79 +276,312 @@ public class MXLatestChatMessageCache {
 
                 // backward compatibility
                 if (oldFile.exists()) {
-                    oldFile.renameTo(mLatestMessagesFile);
+                    oldFile.renameTo(legacyFile);
                 }
             }
 
-            if (mLatestMessagesFile.exists()) {
-                FileInputStream fis = new FileInputStream(mLatestMessagesFile);
-                ObjectInputStream ois = new ObjectInputStream(fis);
-                mLatestMesssageByRoomId = (HashMap) ois.readObject();
-                ois.close();
-                fis.close();
+            // backward compatibility : the whole dictionary was serialized
+            // the legacy file is kept until the migration succeeds, the journal then contains the newer updates
+            if (legacyFile.exists()) {
+                readLegacyFile(legacyFile, loadedMessages);
+            }
+
+            if (mJournalFile.exists()) {
+                mJournalRecordsCount = readJournal(mJournalFile, loadedMessages);
+            }
+
+            if (legacyFile.exists() && compactJournal(loadedMessages)) {
+                legacyFile.delete();
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "## openLatestMessagesDict failed " + e.getMessage());
         }
+
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : loadedMessages.entrySet()) {
+                // the drafts updated while loading are more recent
+                if (!mPendingUpdates.containsKey(entry.getKey())) {
+                    mLatestMesssageByRoomId.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
     }
 
     /**
-     * Get the latest written text for a dedicated room.
+     * Read the legacy drafts file.
      *
-     * @param context the context.
-     * @param roomId  the roomId
-     * @return the latest message
+     * @param legacyFile the legacy file
+     * @param messages   the messages map to fill
      */
-    public String getLatestText(Context context, String roomId) {
-        if (null == mLatestMesssageByRoomId) {
-            openLatestMessagesDict(context);
+    private static void readLegacyFile(File legacyFile, Map<String, String> messages) {
+        try {
+            FileInputStream fis = new FileInputStream(legacyFile);
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            Map<String, String> legacyMessages = (Map<String, String>) ois.readObject();
+            ois.close();
+            fis.close();
+
+            if (null != legacyMessages) {
+                for (Map.Entry<String, String> entry : legacyMessages.entrySet()) {
+                    if (!TextUtils.isEmpty(entry.getKey()) && !TextUtils.isEmpty(entry.getValue())) {
+                        messages.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readLegacyFile() failed " + e.getMessage());
         }
+    }
 
-        if (TextUtils.isEmpty(roomId)) {
-            return "";
+    /**
+     * Read a journal.
+     * A truncated or corrupted record at the end of the journal (e.g. the application was killed while writing it)
+     * is removed from the file, so the next records are appended after the valid ones.
+     *
+     * @param journalFile the journal file
+     * @param messages    the messages map to fill
+     * @return the number of read records
+     * @throws Exception the journal cannot be read
+     */
+    static int readJournal(File journalFile, Map<String, String> messages) throws Exception {
+        int recordsCount = 0;
+        long fileLength = journalFile.length();
+        // the end of the latest valid record
+        long validLength = 0;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 8192));
+
+        try {
+            while (true) {
+                int recordType = dis.read();
+
+                if (-1 == recordType) {
+                    break;
+                }
+
+                long position = validLength + 1;
+
+                if ((RECORD_PUT != recordType) && (RECORD_REMOVE != recordType)) {
+                    Log.e(LOG_TAG, "## readJournal() : unknown record type " + recordType);
+                    break;
+                }
+
+                byte[] roomId = readBytes(dis, fileLength - position);
+                position += 4 + roomId.length;
+
+                if (RECORD_PUT == recordType) {
+                    byte[] message = readBytes(dis, fileLength - position);
+                    position += 4 + message.length;
+                    messages.put(new String(roomId, "UTF-8"), new String(message, "UTF-8"));
+                } else {
+                    messages.remove(new String(roomId, "UTF-8"));
+                }
+
+                validLength = position;
+                recordsCount++;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readJournal() : the journal is truncated " + e.getMessage());
+        } finally {
+            dis.close();
         }
 
-        if (mLatestMesssageByRoomId.containsKey(roomId)) {
-            return mLatestMesssageByRoomId.get(roomId);
+        if (validLength < fileLength) {
+            Log.e(LOG_TAG, "## readJournal() : remove " + (fileLength - validLength) + " invalid bytes");
+
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
         }
 
-        return "";
+        return recordsCount;
     }
 
     /**
-     * Update the latest message dictionnary.
+     * Read a length prefixed bytes array.
      *
-     * @param context the context.
+     * @param dis       the input stream
+     * @param maxLength the number of bytes which remain in the stream
+     * @return the bytes
+     * @throws Exception the read failed or the length is invalid
+     */
+    private static byte[] readBytes(DataInputStream dis, long maxLength) throws Exception {
+        int length = dis.readInt();
+
+        if ((length < 0) || (length > maxLength - 4)) {
+            throw new IOException("invalid length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a string.
+     *
+     * @param dos   the output stream
+     * @param value the string
+     * @throws Exception the write failed
+     */
+    private static void writeString(DataOutputStream dos, String value) throws Exception {
+        byte[] bytes = value.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    /**
+     * Write a journal record.
+     *
+     * @param dos     the output stream
+     * @param roomId  the room id
+     * @param message the message, null to remove the draft
+     * @throws Exception the write failed
+     */
+    private static void writeRecord(DataOutputStream dos, String roomId, String message) throws Exception {
+        if (null == message) {
+            dos.write(RECORD_REMOVE);
+            writeString(dos, roomId);
+        } else {
+            dos.write(RECORD_PUT);
+            writeString(dos, roomId);
+            writeString(dos, message);
+        }
+    }
+
+    /**
+     * Replace the journal by a journal containing only the current drafts.
+     * Must be called on the cache thread.
+     *
+     * @param messages the drafts
+     * @return true if the journal has been replaced
      */
-    private void saveLatestMessagesDict(Context context) {
+    private boolean compactJournal(Map<String, String> messages) {
+        File tmpFile = new File(mLatestMessagesDirectory, JOURNAL_FILENAME + ".tmp");
+
         try {
-            FileOutputStream fos = new FileOutputStream(mLatestMessagesFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(mLatestMesssageByRoomId);
-            oos.close();
-            fos.close();
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 8192));
+
+            try {
+                for (Map.Entry<String, String> entry : messages.entrySet()) {
+                    writeRecord(dos, entry.getKey(), entry.getValue());
+                }
+            } finally {
+                dos.close();
+            }
+
+            if (tmpFile.renameTo(mJournalFile)) {
+                mJournalRecordsCount = messages.size();
+                return true;
+            }
         } catch (Exception e) {
-            Log.e(LOG_TAG, "## saveLatestMessagesDict() failed " + e.getMessage());
+            Log.e(LOG_TAG, "## compactJournal() failed " + e.getMessage());
         }
+
+        tmpFile.delete();
+        return false;
+    }
+
+    /**
+     * Write the pending updates.
+     * Must be called on the cache thread.
+     */
+    void flush() {
+        if (null == mJournalFile) {
+            // not yet loaded : the updates will be written after the loading
+            return;
+        }
+
+        Map<String, String> updates;
+        Map<String, String> messages = null;
+
+        synchronized (this) {
+            if (mPendingUpdates.isEmpty()) {
+                return;
+            }
+
+            updates = new HashMap<>(mPendingUpdates);
+            mPendingUpdates.clear();
+
+            if ((mJournalRecordsCount + updates.size()) > Math.max(MIN_RECORDS_BEFORE_COMPACTION, COMPACTION_RATIO * mLatestMesssageByRoomId.size())) {
+                messages = new HashMap<>(mLatestMesssageByRoomId);
+            }
+        }
+
+        if ((null != messages) && compactJournal(messages)) {
+            return;
+        }
+
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile, true), 8192));
+
+            try {
+                for (Map.Entry<String, String> entry : updates.entrySet()) {
+                    writeRecord(dos, entry.getKey(), entry.getValue());
+                    mJournalRecordsCount++;
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## flush() failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the latest written text for a dedicated room.
+     * The drafts are loaded in background by the first call, so an empty text is returned until they are loaded.
+     * Use open() to be notified when they are available.
+     *
+     * @param context the context.
+     * @param roomId  the roomId
+     * @return the latest message
+     */
+    public String getLatestText(Context context, String roomId) {
+        open(context, null);
+
+        if (TextUtils.isEmpty(roomId)) {
+            return "";
+        }
+
+        synchronized (this) {
+            if (mLatestMesssageByRoomId.containsKey(roomId)) {
+                return mLatestMesssageByRoomId.get(roomId);
+            }
+        }
+
+        return "";
     }
 
     /**
      * Update the latest message for a dedicated roomId.
+     * The update is written in background.
      *
      * @param context the context.
      * @param roomId  the roomId.
      * @param message the message.
      */
     public void updateLatestMessage(Context context, String roomId, String message) {
-        if (null == mLatestMesssageByRoomId) {
-            openLatestMessagesDict(context);
+        if (TextUtils.isEmpty(roomId)) {
+            return;
         }
 
-        if (TextUtils.isEmpty(message)) {
-            mLatestMesssageByRoomId.remove(roomId);
+        open(context, null);
+
+        synchronized (this) {
+            if (TextUtils.isEmpty(message)) {
+                mLatestMesssageByRoomId.remove(roomId);
+                mPendingUpdates.put(roomId, null);
+            } else {
+                mLatestMesssageByRoomId.put(roomId, message);
+                mPendingUpdates.put(roomId, message);
+            }
         }
 
-        mLatestMesssageByRoomId.put(roomId, message);
-        saveLatestMessagesDict(context);
+        mCacheHandler.removeCallbacks(mFlushRunnable);
+        mCacheHandler.postDelayed(mFlushRunnable, WRITE_DELAY_MS);
     }
 }
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.rest.model.Search.SearchCategories;
+import org.matrix.androidsdk.rest.model.Search.SearchResponse;
+import org.matrix.androidsdk.rest.model.Search.SearchResult;
+import org.matrix.androidsdk.rest.model.Search.SearchRoomEventResults;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On device full text index of the room messages.
+ * It is fed with the live and the decrypted events, so that the encrypted rooms can be searched too.
+ * The decrypted events are only kept in memory: their clear content is never written on the file system.
+ * The text and the media messages are indexed by the words of their body.
+ * The results are provided in the server search response format.
+ */
+public class MXLocalSearchIndex {
+    private static final String LOG_TAG = MXLocalSearchIndex.class.getSimpleName();
+
+    private static final String MXLOCALSEARCHINDEX_STORE_FOLDER = "MXLocalSearchIndex";
+    private static final String FILENAME = "index";
+
+    // default max number of indexed events
+    private static final int DEFAULT_MAX_INDEXED_EVENTS = 10000;
+
+    // number of results per page
+    static final int RESULTS_PAGE_SIZE = 20;
+
+    // delay before saving the index after an update
+    private static final int SAVE_DELAY_MS = 10 * 1000;
+
+    // the message types of the media events
+    private static final List<String> MEDIA_MSGTYPES = Arrays.asList(Message.MSGTYPE_IMAGE, Message.MSGTYPE_AUDIO, Message.MSGTYPE_VIDEO, Message.MSGTYPE_FILE);
+
+    /**
+     * An indexed event
+     */
+    static class IndexedEvent implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String mEventId;
+        String mRoomId;
+        long mOriginServerTs;
+        boolean mIsMedia;
+        // the indexed text
+        String mText;
+        // the clear event
+        String mEventJson;
+        // tell if the event has been decrypted
+        boolean mIsEncrypted;
+    }
+
+    // the oldest events first
+    private static final Comparator<IndexedEvent> mIndexedEventsComparator = new Comparator<IndexedEvent>() {
+        @Override
+        public int compare(IndexedEvent e1, IndexedEvent e2) {
+            if (e1.mOriginServerTs != e2.mOriginServerTs) {
+                return (e1.mOriginServerTs < e2.mOriginServerTs) ? -1 : 1;
+            }
+
+            return e1.mEventId.compareTo(e2.mEventId);
+        }
+    };
+
+    // event id -> indexed event
+    private final HashMap<String, IndexedEvent> mIndexedEvents = new HashMap<>();
+
+    // the indexed events sorted by origin server timestamp
+    private final TreeSet<IndexedEvent> mIndexedEventsByTs = new TreeSet<>(mIndexedEventsComparator);
+
+    // word -> event ids
+    private final TreeMap<String, Set<String>> mEventIdsByWord = new TreeMap<>();
+
+    private int mMaxIndexedEvents = DEFAULT_MAX_INDEXED_EVENTS;
+
+    private final File mIndexDirectory;
+    private final File mIndexFile;
+
+    // the background thread
+    private final HandlerThread mHandlerThread;
+    private final MXOsHandler mIndexHandler;
+    private final MXOsHandler mUiHandler;
+
+    // tell if a save is scheduled
+    private boolean mIsSavePending = false;
+
+    /**
+     * Constructor
+     *
+     * @param context the context
+     * @param userId  the user id
+     */
+    public MXLocalSearchIndex(Context context, String userId) {
+        mIndexDirectory = new File(new File(context.getApplicationContext().getFilesDir(), MXLOCALSEARCHINDEX_STORE_FOLDER), userId);
+        mIndexFile = new File(mIndexDirectory, FILENAME);
+
+        mHandlerThread = new HandlerThread("MXLocalSearchIndex_" + userId, Thread.MIN_PRIORITY);
+        mHandlerThread.start();
+        mIndexHandler = new MXOsHandler(mHandlerThread.getLooper());
+        mUiHandler = new MXOsHandler(Looper.getMainLooper());
+
+        mIndexHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Update the max number of indexed events.
+     * The oldest indexed events are removed when this number is reached.
+     *
+     * @param maxIndexedEvents the max number of indexed events
+     */
+    public synchronized void setMaxIndexedEvents(int maxIndexedEvents) {
+        mMaxIndexedEvents = Math.max(1, maxIndexedEvents);
+        trim();
+    }
+
+    /**
+     * @return the number of indexed events
+     */
+    public synchronized int getIndexedEventsCount() {
+        return mIndexedEvents.size();
+    }
+
+    /**
+     * Split a text into lower case words.
+     *
+     * @param text the text
+     * @return the words list
+     */
+    static List<String> getWords(String text) {
+        List<String> words = new ArrayList<>();
+
+        if (!TextUtils.isEmpty(text)) {
+            String lowerCaseText = text.toLowerCase(Locale.getDefault());
+            int start = -1;
+
+            for (int i = 0; i <= lowerCaseText.length(); i++) {
+                boolean isWordChar = (i < lowerCaseText.length()) && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+
+                if (isWordChar && (start < 0)) {
+                    start = i;
+                } else if (!isWordChar && (start >= 0)) {
+                    words.add(lowerCaseText.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Index an event.
+     * The redactions remove the redacted events from the index.
+     *
+     * @param event the event
+     */
+    public void indexEvent(Event event) {
+        if ((null == event) || (null == event.eventId) || event.isDummyEvent()) {
+            return;
+        }
+
+        String type = event.getType();
+
+        if (TextUtils.equals(type, Event.EVENT_TYPE_REDACTION)) {
+            removeEvent(event.redacts);
+            return;
+        }
+
+        if (!TextUtils.equals(type, Event.EVENT_TYPE_MESSAGE) || event.isRedacted()) {
+            return;
+        }
+
+        JsonObject content = event.getContentAsJsonObject();
+
+        if ((null == content) || !content.has("body") || !content.has("msgtype")) {
+            return;
+        }
+
+        IndexedEvent indexedEvent = new IndexedEvent();
+
+        try {
+            indexedEvent.mText = content.get("body").getAsString();
+            indexedEvent.mIsMedia = MEDIA_MSGTYPES.contains(content.get("msgtype").getAsString());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## indexEvent() : invalid content " + e.getMessage());
+            return;
+        }
+
+        indexedEvent.mEventId = event.eventId;
+        indexedEvent.mRoomId = event.roomId;
+        indexedEvent.mOriginServerTs = event.getOriginServerTs();
+        indexedEvent.mIsEncrypted = event.isEncrypted();
+
+        // save the clear event, to be able to provide the encrypted events
+        JsonObject eventJson = new JsonObject();
+        eventJson.addProperty("event_id", event.eventId);
+        eventJson.addProperty("room_id", event.roomId);
+        eventJson.addProperty("sender", event.getSender());
+        eventJson.addProperty("origin_server_ts", event.getOriginServerTs());
+        eventJson.addProperty("type", type);
+        eventJson.add("content", content);
+        indexedEvent.mEventJson = eventJson.toString();
+
+        synchronized (this) {
+            removeIndexedEvent(indexedEvent.mEventId);
+            addIndexedEvent(indexedEvent);
+            trim();
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Remove an event from the index.
+     *
+     * @param eventId the event id
+     */
+    public void removeEvent(String eventId) {
+        if (null != eventId) {
+            boolean isRemoved;
+
+            synchronized (this) {
+                isRemoved = removeIndexedEvent(eventId);
+            }
+
+            if (isRemoved) {
+                scheduleSave();
+            }
+        }
+    }
+
+    /**
+     * Add an indexed event.
+     *
+     * @param indexedEvent the indexed event
+     */
+    private void addIndexedEvent(IndexedEvent indexedEvent) {
+        mIndexedEvents.put(indexedEvent.mEventId, indexedEvent);
+        mIndexedEventsByTs.add(indexedEvent);
+
+        for (String word : getWords(indexedEvent.mText)) {
+            Set<String> eventIds = mEventIdsByWord.get(word);
+
+            if (null == eventIds) {
+                eventIds = new HashSet<>();
+                mEventIdsByWord.put(word, eventIds);
+            }
+
+            eventIds.add(indexedEvent.mEventId);
+        }
+    }
+
+    /**
+     * Remove an indexed event.
+     *
+     * @param eventId the event id
+     * @return true if the event was indexed
+     */
+    private boolean removeIndexedEvent(String eventId) {
+        IndexedEvent indexedEvent = mIndexedEvents.remove(eventId);
+
+        if (null == indexedEvent) {
+            return false;
+        }
+
+        mIndexedEventsByTs.remove(indexedEvent);
+
+        for (String word : getWords(indexedEvent.mText)) {
+            Set<String> eventIds = mEventIdsByWord.get(word);
+
+            if (null != eventIds) {
+                eventIds.remove(eventId);
+
+                if (eventIds.isEmpty()) {
+                    mEventIdsByWord.remove(word);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the oldest indexed events until the max number of indexed events is reached.
+     */
+    private void trim() {
+        while (mIndexedEvents.size() > mMaxIndexedEvents) {
+            removeIndexedEvent(mIndexedEventsByTs.first().mEventId);
+        }
+    }
+
+    /**
+     * Search the indexed events.
+     * All the words of the pattern must match, the last one can be the beginning of a word.
+     *
+     * @param pattern       the pattern to search
+     * @param roomIds       the rooms to search in, null to search in all the rooms.
+     * @param isMediaSearch true to search only the media messages (by file name)
+     * @param nextBatch     the token returned by a previous search to get the next results, null for the first results.
+     * @return the search response, the latest events first.
+     */
+    public SearchResponse search(String pattern, List<String> roomIds, boolean isMediaSearch, String nextBatch) {
+        List<String> words = getWords(pattern);
+        List<IndexedEvent> matches = new ArrayList<>();
+
+        if (!words.isEmpty()) {
+            synchronized (this) {
+                Set<String> eventIds = null;
+
+                for (int i = 0; i < words.size(); i++) {
+                    Set<String> wordEventIds = new HashSet<>();
+                    String word = words.get(i);
+
+                    if (i == words.size() - 1) {
+                        // the last word might be partially typed
+                        for (Set<String> ids : mEventIdsByWord.subMap(word, word + Character.MAX_VALUE).values()) {
+                            wordEventIds.addAll(ids);
+                        }
+                    } else if (mEventIdsByWord.containsKey(word)) {
+                        wordEventIds.addAll(mEventIdsByWord.get(word));
+                    }
+
+                    if (null == eventIds) {
+                        eventIds = wordEventIds;
+                    } else {
+                        eventIds.retainAll(wordEventIds);
+                    }
+                }
+
+                for (String eventId : eventIds) {
+                    IndexedEvent indexedEvent = mIndexedEvents.get(eventId);
+
+                    if ((null != indexedEvent)
+                            && ((null == roomIds) || roomIds.contains(indexedEvent.mRoomId))
+                            && (!isMediaSearch || indexedEvent.mIsMedia)) {
+                        matches.add(indexedEvent);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(matches, new Comparator<IndexedEvent>() {
+            @Override
+            public int compare(IndexedEvent e1, IndexedEvent e2) {
+                return (e1.mOriginServerTs > e2.mOriginServerTs) ? -1 : ((e1.mOriginServerTs < e2.mOriginServerTs) ? 1 : 0);
+            }
+        });
+
+        int start = 0;
+
+        if (null != nextBatch) {
+            try {
+                start = Math.max(0, Integer.parseInt(nextBatch));
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## search() : invalid next batch " + nextBatch);
+            }
+        }
+
+        int end = Math.min(matches.size(), start + RESULTS_PAGE_SIZE);
+
+        SearchRoomEventResults roomEventResults = new SearchRoomEventResults();
+        roomEventResults.count = matches.size();
+        roomEventResults.results = new ArrayList<>();
+        roomEventResults.nextBatch = (end < matches.size()) ? String.valueOf(end) : null;
+
+        for (int i = start; i < end; i++) {
+            try {
+                SearchResult searchResult = new SearchResult();
+                searchResult.result = JsonUtils.toEvent(new JsonParser().parse(matches.get(i).mEventJson));
+                searchResult.rank = 1.0;
+                roomEventResults.results.add(searchResult);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## search() : failed to restore the event " + e.getMessage());
+            }
+        }
+
+        SearchResponse searchResponse = new SearchResponse();
+        searchResponse.searchCategories = new SearchCategories();
+        searchResponse.searchCategories.roomEvents = roomEventResults;
+
+        return searchResponse;
+    }
+
+    /**
+     * Search the indexed events in background.
+     *
+     * @param pattern       the pattern to search
+     * @param roomIds       the rooms to search in, null to search in all the rooms.
+     * @param isMediaSearch true to search only the media messages (by file name)
+     * @param nextBatch     the token returned by a previous search to get the next results, null for the first results.
+     * @param callback      the asynchronous callback, called in the UI thread.
+     */
+    public void search(final String pattern, final List<String> roomIds, final boolean isMediaSearch, final String nextBatch, final ApiCallback<SearchResponse> callback) {
+        Runnable searchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final SearchResponse searchResponse = search(pattern, roomIds, isMediaSearch, nextBatch);
+
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(searchResponse);
+                    }
+                });
+            }
+        };
+
+        // the index has been closed
+        if (!mIndexHandler.post(searchRunnable)) {
+            searchRunnable.run();
+        }
+    }
+
+    /**
+     * Clear the index and delete its file.
+     * The index can still be used after this call.
+     */
+    public void clear() {
+        synchronized (this) {
+            mIndexedEvents.clear();
+            mIndexedEventsByTs.clear();
+            mEventIdsByWord.clear();
+            mIsSavePending = false;
+        }
+
+        mIndexHandler.removeCallbacksAndMessages(null);
+        ContentUtils.deleteDirectory(mIndexDirectory);
+
+        // a save might be running
+        mIndexHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ContentUtils.deleteDirectory(mIndexDirectory);
+            }
+        });
+    }
+
+    /**
+     * Stop the background thread once the pending operations are done.
+     * The delayed saves are dropped, the searches are then done in the caller thread.
+     */
+    public void close() {
+        mIndexHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandlerThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Save the index after a delay, to group the updates.
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (mIsSavePending) {
+                return;
+            }
+            mIsSavePending = true;
+        }
+
+        mIndexHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MS);
+    }
+
+    /**
+     * Save the index in the file system.
+     * The decrypted events are not saved.
+     */
+    void save() {
+        ArrayList<IndexedEvent> indexedEvents = new ArrayList<>();
+
+        synchronized (this) {
+            mIsSavePending = false;
+
+            for (IndexedEvent indexedEvent : mIndexedEventsByTs) {
+                if (!indexedEvent.mIsEncrypted) {
+                    indexedEvents.add(indexedEvent);
+                }
+            }
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        try {
+            if (!mIndexDirectory.exists()) {
+                mIndexDirectory.mkdirs();
+            }
+
+            FileOutputStream fos = new FileOutputStream(mIndexFile);
+            GZIPOutputStream gz = new GZIPOutputStream(fos);
+            ObjectOutputStream out = new ObjectOutputStream(gz);
+            out.writeObject(indexedEvents);
+            out.close();
+
+            Log.d(LOG_TAG, "## save() : " + indexedEvents.size() + " events saved in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## save() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## save() failed " + oom.getMessage());
+        }
+    }
+
+    /**
+     * Load the index from the file system.
+     */
+    void load() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        Collection<IndexedEvent> loadedEvents = null;
+
+        try {
+            FileInputStream fis = new FileInputStream(mIndexFile);
+            GZIPInputStream gz = new GZIPInputStream(fis);
+            ObjectInputStream ois = new ObjectInputStream(gz);
+            loadedEvents = (Collection<IndexedEvent>) ois.readObject();
+            ois.close();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## load() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## load() failed " + oom.getMessage());
+        }
+
+        if (null != loadedEvents) {
+            synchronized (this) {
+                // the events indexed while loading are the latest ones
+                List<IndexedEvent> latestEvents = new ArrayList<>(mIndexedEvents.values());
+
+                mIndexedEvents.clear();
+                mIndexedEventsByTs.clear();
+                mEventIdsByWord.clear();
+
+                for (IndexedEvent indexedEvent : loadedEvents) {
+                    addIndexedEvent(indexedEvent);
+                }
+
+                for (IndexedEvent indexedEvent : latestEvents) {
+                    removeIndexedEvent(indexedEvent.mEventId);
+                    addIndexedEvent(indexedEvent);
+                }
+
+                trim();
+            }
+
+            Log.d(LOG_TAG, "## load() : " + loadedEvents.size() + " events loaded in " + (System.currentTimeMillis() - t0) + " ms");
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.matrix.androidsdk.db;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -40,6 +41,7 @@ import org.matrix.androidsdk.listeners.IMXMediaDownloadListener;
 import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
 import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.util.ImageUtils;
+import org.matrix.androidsdk.util.MXMemoryGovernor;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -84,6 +86,37 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      */
     private static LruCache<String, Bitmap> mBitmapByUrlCache = null;
 
+    /**
+     * The medias cache trimming.
+     * It is halved while the application is running, and evicted when the application is in background.
+     */
+    private static final MXMemoryGovernor.ITrimmableCache mBitmapByUrlTrimmableCache = new MXMemoryGovernor.ITrimmableCache() {
+        @Override
+        public String getName() {
+            return "media.bitmaps_bytes";
+        }
+
+        @Override
+        public long getRetainedSize() {
+            synchronized (mSyncObject) {
+                return (null != mBitmapByUrlCache) ? mBitmapByUrlCache.size() : 0;
+            }
+        }
+
+        @Override
+        public void trim(int level) {
+            synchronized (mSyncObject) {
+                if (null != mBitmapByUrlCache) {
+                    if ((level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+                        mBitmapByUrlCache.evictAll();
+                    } else {
+                        mBitmapByUrlCache.trimToSize(mBitmapByUrlCache.maxSize() / 2);
+                    }
+                }
+            }
+        }
+    };
+
     /**
      * The downloaded media callbacks.
      */
@@ -317,6 +350,8 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
                         return bitmap.getRowBytes() * bitmap.getHeight(); // size in bytes
                     }
                 };
+
+                MXMemoryGovernor.register(mBitmapByUrlTrimmableCache, MXMemoryGovernor.PRIORITY_EXPENDABLE);
             }
 
             // the image is downloading in background
@@ -29,6 +29,7 @@ import android.text.TextUtils;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXMetrics;
 
 import android.webkit.MimeTypeMap;
 import android.widget.ImageView;
@@ -56,6 +57,10 @@ public class MXMediasCache {
 
     private static final String LOG_TAG = MXMediasCache.class.getSimpleName();
 
+    // the cache hit ratio is hits / (hits + misses)
+    private static final MXMetrics.Counter CACHE_HITS = MXMetrics.counter("media.cache_hits");
+    private static final MXMetrics.Counter CACHE_MISSES = MXMetrics.counter("media.cache_misses");
+
     /**
      * The medias folders.
      */
@@ -720,9 +725,12 @@ public class MXMediasCache {
 
         // is the media already downloaded ?
         if (null != mediaCacheFile(url, mimeType)) {
+            CACHE_HITS.inc();
             return null;
         }
 
+        CACHE_MISSES.inc();
+
         String downloadableUrl = downloadableUrl(url, -1, -1);
 
         // download it in background
@@ -909,6 +917,8 @@ public class MXMediasCache {
         final Bitmap bitmap = (MXMediaDownloadWorkerTask.isMediaUrlUnreachable(downloadableUrl)) ? defaultBimap : MXMediaDownloadWorkerTask.bitmapForURL(context.getApplicationContext(), folderFile, downloadableUrl, rotationAngle, mimeType);
 
         if (null != bitmap) {
+            CACHE_HITS.inc();
+
             if (null != imageView) {
                 if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
                     // display it
@@ -935,6 +945,7 @@ public class MXMediasCache {
 
             downloadableUrl = null;
         } else {
+            CACHE_MISSES.inc();
             MXMediaDownloadWorkerTask currentTask = MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(downloadableUrl);
 
             if (null != currentTask) {
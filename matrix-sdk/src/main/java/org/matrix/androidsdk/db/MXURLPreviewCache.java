@@ -0,0 +1,569 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.HomeServerConnectionConfig;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.URLPreview;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the URL previews.
+ * The previews are kept in memory and in the file system, keyed by URL and by time bucket.
+ * The entries expire after a delay, the files are trimmed to a size budget and the
+ * concurrent requests for the same preview are merged.
+ * The preview images are downloaded in the medias cache.
+ */
+public class MXURLPreviewCache {
+    private static final String LOG_TAG = MXURLPreviewCache.class.getSimpleName();
+
+    private static final String MXURLPREVIEWCACHE_STORE_FOLDER = "MXURLPreviewCache";
+
+    // the previews requested with timestamps in the same bucket share the same entry
+    static final long TIME_BUCKET_MS = 60 * 60 * 1000;
+
+    // the entries lifetime
+    private static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000;
+
+    // the max number of previews in memory
+    private static final int MAX_MEMORY_ENTRIES = 100;
+
+    // the max size of the previews files
+    private static final long DEFAULT_MAX_DISK_SIZE = 1024 * 1024;
+
+    /**
+     * A cached preview.
+     */
+    private static class CachedPreview implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // the cache key, to detect the file names collisions
+        String mKey;
+
+        // the preview
+        URLPreview mPreview;
+
+        // the time when the preview has been retrieved
+        long mFetchTs;
+    }
+
+    // key -> preview, the least recently used first
+    private final LinkedHashMap<String, CachedPreview> mMemoryCache = new LinkedHashMap<String, CachedPreview>(MAX_MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPreview> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+
+    // key -> the callbacks of the pending request
+    private final Map<String, List<ApiCallback<URLPreview>>> mPendingCallbacks = new HashMap<>();
+
+    private final Context mContext;
+    private final HomeServerConnectionConfig mHsConfig;
+    private final EventsRestClient mEventsRestClient;
+    private final MXMediasCache mMediasCache;
+    private final File mCacheDirectory;
+
+    private long mTtlMs = DEFAULT_TTL_MS;
+    private long mMaxDiskSize = DEFAULT_MAX_DISK_SIZE;
+    private boolean mDownloadThumbnails = true;
+
+    // the background thread, null when the file operations are done in a provided looper
+    private final HandlerThread mHandlerThread;
+    private final MXOsHandler mCacheHandler;
+    private final MXOsHandler mUiHandler;
+
+    /**
+     * Constructor
+     *
+     * @param context          the context
+     * @param hsConfig         the home server config
+     * @param userId           the user id
+     * @param eventsRestClient the events rest client
+     * @param mediasCache      the medias cache
+     */
+    public MXURLPreviewCache(Context context, HomeServerConnectionConfig hsConfig, String userId, EventsRestClient eventsRestClient, MXMediasCache mediasCache) {
+        this(context, hsConfig, userId, eventsRestClient, mediasCache, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context          the context
+     * @param hsConfig         the home server config
+     * @param userId           the user id
+     * @param eventsRestClient the events rest client
+     * @param mediasCache      the medias cache
+     * @param cacheLooper      the looper of the file operations, null to use a dedicated thread
+     */
+    MXURLPreviewCache(Context context, HomeServerConnectionConfig hsConfig, String userId, EventsRestClient eventsRestClient, MXMediasCache mediasCache, Looper cacheLooper) {
+        mContext = context.getApplicationContext();
+        mHsConfig = hsConfig;
+        mEventsRestClient = eventsRestClient;
+        mMediasCache = mediasCache;
+        mCacheDirectory = new File(new File(mContext.getFilesDir(), MXURLPREVIEWCACHE_STORE_FOLDER), userId);
+
+        if (null == cacheLooper) {
+            mHandlerThread = new HandlerThread("MXURLPreviewCache_" + userId, Thread.MIN_PRIORITY);
+            mHandlerThread.start();
+            cacheLooper = mHandlerThread.getLooper();
+        } else {
+            mHandlerThread = null;
+        }
+
+        mCacheHandler = new MXOsHandler(cacheLooper);
+        mUiHandler = new MXOsHandler(Looper.getMainLooper());
+    }
+
+    /**
+     * Update the entries lifetime.
+     *
+     * @param ttlMs the lifetime in milliseconds
+     */
+    public synchronized void setTtl(long ttlMs) {
+        mTtlMs = Math.max(0, ttlMs);
+    }
+
+    /**
+     * Update the max size of the previews files.
+     * The oldest files are deleted when this size is reached.
+     *
+     * @param maxDiskSize the max size in bytes
+     */
+    public synchronized void setMaxDiskSize(long maxDiskSize) {
+        mMaxDiskSize = Math.max(0, maxDiskSize);
+    }
+
+    /**
+     * Tell if the preview images are downloaded in the medias cache with the previews.
+     *
+     * @param downloadThumbnails true to download them
+     */
+    public synchronized void setDownloadThumbnails(boolean downloadThumbnails) {
+        mDownloadThumbnails = downloadThumbnails;
+    }
+
+    /**
+     * Compute the cache key of a preview.
+     *
+     * @param URL the URL
+     * @param ts  the timestamp
+     * @return the cache key
+     */
+    static String getCacheKey(String URL, long ts) {
+        return URL + "_" + (ts / TIME_BUCKET_MS);
+    }
+
+    /**
+     * Tell if a cached preview has expired.
+     *
+     * @param fetchTs the time when the preview has been retrieved
+     * @param now     the current time
+     * @param ttlMs   the entries lifetime
+     * @return true if it has expired
+     */
+    static boolean isExpired(long fetchTs, long now, long ttlMs) {
+        return (fetchTs > now) || ((now - fetchTs) > ttlMs);
+    }
+
+    /**
+     * Provides the file of a cache key.
+     *
+     * @param key the cache key
+     * @return the file
+     */
+    private File getCacheFile(String key) {
+        return new File(mCacheDirectory, Integer.toHexString(key.hashCode()));
+    }
+
+    /**
+     * Retrieve the URL preview information.
+     * The preview is retrieved from the cache if it is available.
+     *
+     * @param URL      the URL
+     * @param ts       the timestamp
+     * @param callback the asynchronous callback
+     */
+    public void getURLPreview(final String URL, final long ts, final ApiCallback<URLPreview> callback) {
+        if (TextUtils.isEmpty(URL)) {
+            if (null != callback) {
+                callback.onUnexpectedError(new Exception("Invalid URL"));
+            }
+            return;
+        }
+
+        final String key = getCacheKey(URL, ts);
+        final CachedPreview cachedPreview;
+
+        synchronized (this) {
+            cachedPreview = mMemoryCache.get(key);
+
+            if ((null != cachedPreview) && isExpired(cachedPreview.mFetchTs, System.currentTimeMillis(), mTtlMs)) {
+                mMemoryCache.remove(key);
+            } else if (null != cachedPreview) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (null != callback) {
+                            callback.onSuccess(cachedPreview.mPreview);
+                        }
+                    }
+                });
+                return;
+            }
+
+            // merge the requests for the same preview
+            List<ApiCallback<URLPreview>> callbacks = mPendingCallbacks.get(key);
+
+            if (null != callbacks) {
+                callbacks.add(callback);
+                return;
+            }
+
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            mPendingCallbacks.put(key, callbacks);
+        }
+
+        mCacheHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CachedPreview diskPreview = load(key);
+
+                if (null != diskPreview) {
+                    synchronized (MXURLPreviewCache.this) {
+                        mMemoryCache.put(key, diskPreview);
+                    }
+                    onPreviewRetrieved(key, diskPreview.mPreview);
+                } else {
+                    fetchPreview(key, URL, ts);
+                }
+            }
+        });
+    }
+
+    /**
+     * Retrieve a preview from the server.
+     *
+     * @param key the cache key
+     * @param URL the URL
+     * @param ts  the timestamp
+     */
+    private void fetchPreview(final String key, final String URL, final long ts) {
+        mEventsRestClient.getURLPreview(URL, ts, new ApiCallback<URLPreview>() {
+            @Override
+            public void onSuccess(URLPreview preview) {
+                final CachedPreview cachedPreview = new CachedPreview();
+                cachedPreview.mKey = key;
+                cachedPreview.mPreview = preview;
+                cachedPreview.mFetchTs = System.currentTimeMillis();
+
+                synchronized (MXURLPreviewCache.this) {
+                    mMemoryCache.put(key, cachedPreview);
+                }
+
+                mCacheHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        save(cachedPreview);
+                    }
+                });
+
+                downloadThumbnail(preview);
+                onPreviewRetrieved(key, preview);
+            }
+
+            @Override
+            public void onNetworkError(final Exception e) {
+                for (final ApiCallback<URLPreview> callback : popPendingCallbacks(key)) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onNetworkError(e);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onMatrixError(final MatrixError e) {
+                for (final ApiCallback<URLPreview> callback : popPendingCallbacks(key)) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onMatrixError(e);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(final Exception e) {
+                for (final ApiCallback<URLPreview> callback : popPendingCallbacks(key)) {
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUnexpectedError(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatch a retrieved preview to the pending callbacks.
+     *
+     * @param key     the cache key
+     * @param preview the preview
+     */
+    private void onPreviewRetrieved(String key, final URLPreview preview) {
+        for (final ApiCallback<URLPreview> callback : popPendingCallbacks(key)) {
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSuccess(preview);
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove the pending callbacks of a cache key.
+     *
+     * @param key the cache key
+     * @return the non null callbacks
+     */
+    private List<ApiCallback<URLPreview>> popPendingCallbacks(String key) {
+        List<ApiCallback<URLPreview>> callbacks;
+
+        synchronized (this) {
+            callbacks = mPendingCallbacks.remove(key);
+        }
+
+        List<ApiCallback<URLPreview>> nonNullCallbacks = new ArrayList<>();
+
+        if (null != callbacks) {
+            for (ApiCallback<URLPreview> callback : callbacks) {
+                if (null != callback) {
+                    nonNullCallbacks.add(callback);
+                }
+            }
+        }
+
+        return nonNullCallbacks;
+    }
+
+    /**
+     * Download the preview image in the medias cache.
+     *
+     * @param preview the preview
+     */
+    private void downloadThumbnail(URLPreview preview) {
+        boolean downloadThumbnails;
+
+        synchronized (this) {
+            downloadThumbnails = mDownloadThumbnails;
+        }
+
+        if (downloadThumbnails && (null != mMediasCache) && (null != preview) && !TextUtils.isEmpty(preview.getThumbnailURL())) {
+            String mimeType = TextUtils.isEmpty(preview.getThumbnailMimeType()) ? "image/jpeg" : preview.getThumbnailMimeType();
+
+            try {
+                mMediasCache.downloadMedia(mContext, mHsConfig, preview.getThumbnailURL(), mimeType, null);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## downloadThumbnail() failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load a preview from the file system.
+     *
+     * @param key the cache key
+     * @return the preview, null if there is no valid one
+     */
+    private CachedPreview load(String key) {
+        File file = getCacheFile(key);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        CachedPreview cachedPreview = null;
+
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            Object object = ois.readObject();
+            ois.close();
+
+            if (object instanceof CachedPreview) {
+                cachedPreview = (CachedPreview) object;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## load() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## load() failed " + oom.getMessage());
+        }
+
+        long ttlMs;
+
+        synchronized (this) {
+            ttlMs = mTtlMs;
+        }
+
+        if ((null == cachedPreview) || isExpired(cachedPreview.mFetchTs, System.currentTimeMillis(), ttlMs)) {
+            // expired or corrupted file
+            file.delete();
+            return null;
+        }
+
+        // file name collision
+        if (!TextUtils.equals(key, cachedPreview.mKey)) {
+            return null;
+        }
+
+        return cachedPreview;
+    }
+
+    /**
+     * Save a preview in the file system.
+     *
+     * @param cachedPreview the preview
+     */
+    private void save(CachedPreview cachedPreview) {
+        try {
+            if (!mCacheDirectory.exists()) {
+                mCacheDirectory.mkdirs();
+            }
+
+            FileOutputStream fos = new FileOutputStream(getCacheFile(cachedPreview.mKey));
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            oos.writeObject(cachedPreview);
+            oos.close();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## save() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## save() failed " + oom.getMessage());
+        }
+
+        trimDiskCache();
+    }
+
+    /**
+     * Delete the expired files and the oldest ones until the size budget is reached.
+     */
+    private void trimDiskCache() {
+        File[] files = mCacheDirectory.listFiles();
+
+        if (null == files) {
+            return;
+        }
+
+        long ttlMs;
+        long maxDiskSize;
+
+        synchronized (this) {
+            ttlMs = mTtlMs;
+            maxDiskSize = mMaxDiskSize;
+        }
+
+        // the oldest files first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long diskSize = 0;
+
+        for (File file : files) {
+            diskSize += file.length();
+        }
+
+        for (File file : files) {
+            if ((diskSize <= maxDiskSize) && !isExpired(file.lastModified(), now, ttlMs)) {
+                break;
+            }
+
+            diskSize -= file.length();
+            file.delete();
+        }
+    }
+
+    /**
+     * Clear the cache and delete its files.
+     */
+    public void clear() {
+        synchronized (this) {
+            mMemoryCache.clear();
+            mPendingCallbacks.clear();
+        }
+
+        mCacheHandler.removeCallbacksAndMessages(null);
+        ContentUtils.deleteDirectory(mCacheDirectory);
+
+        // a save might be running
+        mCacheHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ContentUtils.deleteDirectory(mCacheDirectory);
+            }
+        });
+    }
+
+    /**
+     * Stop the background thread once the pending operations are done.
+     */
+    public void close() {
+        if (null != mHandlerThread) {
+            mCacheHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHandlerThread.quit();
+                }
+            });
+        }
+    }
+}
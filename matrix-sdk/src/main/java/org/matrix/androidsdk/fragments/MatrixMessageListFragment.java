@@ -2138,7 +2138,13 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
         };
 
 
-        if (mIsMediaSearch) {
+        if (useLocalSearch()) {
+            if (mIsMediaSearch) {
+                mSession.searchMediasLocallyByName(mPattern, roomIds, mNextBatch, callback);
+            } else {
+                mSession.searchMessagesLocallyByText(mPattern, roomIds, mNextBatch, callback);
+            }
+        } else if (mIsMediaSearch) {
             mSession.searchMediasByName(mPattern, roomIds, mNextBatch, callback);
 
         } else {
@@ -2146,6 +2152,16 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
         }
     }
 
+    /**
+     * Tell if the search is performed in the messages indexed on the device.
+     * The server cannot search in the encrypted rooms.
+     *
+     * @return true to search in the local index
+     */
+    protected boolean useLocalSearch() {
+        return (null != mRoom) && mRoom.isEncrypted();
+    }
+
     /**
      * Manage the search response.
      *
@@ -2284,7 +2300,13 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                     }
                 };
 
-                if (isMediaSearch) {
+                if (useLocalSearch()) {
+                    if (isMediaSearch) {
+                        mSession.searchMediasLocallyByName(mPattern, roomIds, null, searchCallback);
+                    } else {
+                        mSession.searchMessagesLocallyByText(mPattern, roomIds, null, searchCallback);
+                    }
+                } else if (isMediaSearch) {
                     mSession.searchMediasByName(mPattern, roomIds, null, searchCallback);
 
                 } else {
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+/**
+ * Interface to implement, in addition to IMXEventListener, to receive the events of a sync response in a single call
+ * when the batched dispatch is enabled (see MXDataHandler.setUseBatchedDispatch).
+ * The per event callbacks (onLiveEvent, onBingEvent, onEventSentStateUpdated and onReceiptEvent)
+ * are not called for the batched events.
+ */
+public interface IMXEventsBatchListener {
+    /**
+     * Some events have been received and processed.
+     * It is called before onLiveEventsChunkProcessed or onInitialSyncComplete.
+     *
+     * @param eventsBatch the events batch
+     */
+    void onEventsBatch(MXEventsBatch eventsBatch);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.listeners;
+
+/**
+ * Interface to monitor a room keys import.
+ */
+public interface IMXRoomKeysImportListener {
+    /**
+     * A batch of sessions has been imported.
+     * It is called from the UI thread.
+     *
+     * @param progress              the import progress in percentage
+     * @param importedSessionsCount the number of sessions imported so far
+     * @param totalSessionsCount    the number of sessions read so far from the export
+     */
+    void onProgress(int progress, int importedSessionsCount, int totalSessionsCount);
+}
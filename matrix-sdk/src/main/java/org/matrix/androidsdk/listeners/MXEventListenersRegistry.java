@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy-on-write registry of the events listeners.
+ * The listeners are either global or registered for a dedicated room.
+ * The registration methods rebuild immutable snapshots, so the dispatch methods
+ * get the listeners to notify without any lock nor copy.
+ */
+public class MXEventListenersRegistry {
+
+    /**
+     * The listeners snapshots.
+     */
+    private static class Snapshot {
+        // the global listeners
+        final List<IMXEventListener> mGlobalListeners;
+
+        // room id -> the listeners of this room
+        final Map<String, List<IMXEventListener>> mRoomListeners;
+
+        // room id -> the global listeners and the listeners of this room
+        final Map<String, List<IMXEventListener>> mListenersByRoomId;
+
+        // all the listeners
+        final List<IMXEventListener> mAllListeners;
+
+        Snapshot(List<IMXEventListener> globalListeners, Map<String, List<IMXEventListener>> roomListeners) {
+            mGlobalListeners = Collections.unmodifiableList(globalListeners);
+            mRoomListeners = roomListeners;
+
+            Map<String, List<IMXEventListener>> listenersByRoomId = new HashMap<>();
+            List<IMXEventListener> allListeners = new ArrayList<>(globalListeners);
+
+            for (Map.Entry<String, List<IMXEventListener>> entry : roomListeners.entrySet()) {
+                List<IMXEventListener> listeners = new ArrayList<>(globalListeners);
+                listeners.addAll(entry.getValue());
+                listenersByRoomId.put(entry.getKey(), Collections.unmodifiableList(listeners));
+
+                allListeners.addAll(entry.getValue());
+            }
+
+            mListenersByRoomId = listenersByRoomId;
+            mAllListeners = Collections.unmodifiableList(allListeners);
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot(new ArrayList<IMXEventListener>(), new HashMap<String, List<IMXEventListener>>());
+
+    /**
+     * Add a global listener.
+     * A listener is only added once.
+     *
+     * @param listener the listener
+     */
+    public synchronized void addListener(IMXEventListener listener) {
+        if ((null != listener) && !mSnapshot.mGlobalListeners.contains(listener)) {
+            List<IMXEventListener> globalListeners = new ArrayList<>(mSnapshot.mGlobalListeners);
+            globalListeners.add(listener);
+            mSnapshot = new Snapshot(globalListeners, mSnapshot.mRoomListeners);
+        }
+    }
+
+    /**
+     * Add a listener for a dedicated room.
+     * A listener is only added once per room.
+     *
+     * @param roomId   the room id
+     * @param listener the listener
+     */
+    public synchronized void addListener(String roomId, IMXEventListener listener) {
+        if (null == roomId) {
+            addListener(listener);
+            return;
+        }
+
+        if (null != listener) {
+            List<IMXEventListener> listeners = mSnapshot.mRoomListeners.get(roomId);
+
+            if ((null == listeners) || !listeners.contains(listener)) {
+                Map<String, List<IMXEventListener>> roomListeners = new HashMap<>(mSnapshot.mRoomListeners);
+                List<IMXEventListener> updatedListeners = (null == listeners) ? new ArrayList<IMXEventListener>() : new ArrayList<>(listeners);
+                updatedListeners.add(listener);
+                roomListeners.put(roomId, updatedListeners);
+
+                mSnapshot = new Snapshot(mSnapshot.mGlobalListeners, roomListeners);
+            }
+        }
+    }
+
+    /**
+     * Remove a listener, either global or registered for some rooms.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(IMXEventListener listener) {
+        if (null == listener) {
+            return;
+        }
+
+        boolean isUpdated = false;
+
+        List<IMXEventListener> globalListeners = new ArrayList<>(mSnapshot.mGlobalListeners);
+        isUpdated |= globalListeners.remove(listener);
+
+        Map<String, List<IMXEventListener>> roomListeners = new HashMap<>();
+
+        for (Map.Entry<String, List<IMXEventListener>> entry : mSnapshot.mRoomListeners.entrySet()) {
+            List<IMXEventListener> listeners = entry.getValue();
+
+            if (listeners.contains(listener)) {
+                listeners = new ArrayList<>(listeners);
+                listeners.remove(listener);
+                isUpdated = true;
+            }
+
+            if (!listeners.isEmpty()) {
+                roomListeners.put(entry.getKey(), listeners);
+            }
+        }
+
+        if (isUpdated) {
+            mSnapshot = new Snapshot(globalListeners, roomListeners);
+        }
+    }
+
+    /**
+     * Remove all the listeners.
+     */
+    public synchronized void clear() {
+        mSnapshot = new Snapshot(new ArrayList<IMXEventListener>(), new HashMap<String, List<IMXEventListener>>());
+    }
+
+    /**
+     * @return the global listeners (read only)
+     */
+    public List<IMXEventListener> getGlobalListeners() {
+        return mSnapshot.mGlobalListeners;
+    }
+
+    /**
+     * Provides the listeners to notify for a room event.
+     *
+     * @param roomId the room id
+     * @return the global listeners and the listeners of this room (read only)
+     */
+    public List<IMXEventListener> getListeners(String roomId) {
+        Snapshot snapshot = mSnapshot;
+        List<IMXEventListener> listeners = (null != roomId) ? snapshot.mListenersByRoomId.get(roomId) : null;
+
+        return (null != listeners) ? listeners : snapshot.mGlobalListeners;
+    }
+
+    /**
+     * @return all the listeners, global or registered for a room (read only)
+     */
+    public List<IMXEventListener> getAllListeners() {
+        return mSnapshot.mAllListeners;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.bingrules.BingRule;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The events notifications collected while a sync response is processed.
+ * They are dispatched to the listeners in a single UI thread pass.
+ */
+public class MXEventsBatch {
+    private static final String LOG_TAG = MXEventsBatch.class.getSimpleName();
+
+    /**
+     * A live event
+     */
+    public static class LiveEvent {
+        public final Event event;
+        public final RoomState roomState;
+
+        LiveEvent(Event anEvent, RoomState aRoomState) {
+            event = anEvent;
+            roomState = aRoomState;
+        }
+    }
+
+    /**
+     * An event which triggers a notification
+     */
+    public static class BingEvent extends LiveEvent {
+        public final BingRule bingRule;
+
+        BingEvent(Event anEvent, RoomState aRoomState, BingRule aBingRule) {
+            super(anEvent, aRoomState);
+            bingRule = aBingRule;
+        }
+    }
+
+    /**
+     * Some read receipts
+     */
+    public static class ReceiptEvent {
+        public final String roomId;
+        public final List<String> senderIds;
+
+        ReceiptEvent(String aRoomId, List<String> aSenderIds) {
+            roomId = aRoomId;
+            senderIds = aSenderIds;
+        }
+    }
+
+    // the notifications in the reception order
+    // LiveEvent, BingEvent, ReceiptEvent or Event (sent state update)
+    private final List<Object> mEntries = new ArrayList<>();
+
+    private final List<LiveEvent> mLiveEvents = new ArrayList<>();
+    private final List<BingEvent> mBingEvents = new ArrayList<>();
+    private final List<Event> mSentStateUpdatedEvents = new ArrayList<>();
+    private final List<ReceiptEvent> mReceiptEvents = new ArrayList<>();
+
+    /**
+     * Add a live event.
+     *
+     * @param event     the event
+     * @param roomState the room state
+     */
+    public void addLiveEvent(Event event, RoomState roomState) {
+        LiveEvent liveEvent = new LiveEvent(event, roomState);
+        mEntries.add(liveEvent);
+        mLiveEvents.add(liveEvent);
+    }
+
+    /**
+     * Add an event which triggers a notification.
+     *
+     * @param event     the event
+     * @param roomState the room state
+     * @param bingRule  the bing rule
+     */
+    public void addBingEvent(Event event, RoomState roomState, BingRule bingRule) {
+        BingEvent bingEvent = new BingEvent(event, roomState, bingRule);
+        mEntries.add(bingEvent);
+        mBingEvents.add(bingEvent);
+    }
+
+    /**
+     * Add an event whose sent state has been updated.
+     *
+     * @param event the event
+     */
+    public void addSentStateUpdatedEvent(Event event) {
+        mEntries.add(event);
+        mSentStateUpdatedEvents.add(event);
+    }
+
+    /**
+     * Add some read receipts.
+     *
+     * @param roomId    the room id
+     * @param senderIds the receipts senders
+     */
+    public void addReceiptEvent(String roomId, List<String> senderIds) {
+        ReceiptEvent receiptEvent = new ReceiptEvent(roomId, senderIds);
+        mEntries.add(receiptEvent);
+        mReceiptEvents.add(receiptEvent);
+    }
+
+    /**
+     * @return the live events
+     */
+    public List<LiveEvent> getLiveEvents() {
+        return mLiveEvents;
+    }
+
+    /**
+     * @return the events which trigger a notification
+     */
+    public List<BingEvent> getBingEvents() {
+        return mBingEvents;
+    }
+
+    /**
+     * @return the events whose sent state has been updated
+     */
+    public List<Event> getSentStateUpdatedEvents() {
+        return mSentStateUpdatedEvents;
+    }
+
+    /**
+     * @return the read receipts
+     */
+    public List<ReceiptEvent> getReceiptEvents() {
+        return mReceiptEvents;
+    }
+
+    /**
+     * @return the number of notifications
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return true if there is no notification
+     */
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Dispatch the notifications to a listener with the per event callbacks, in the reception order.
+     *
+     * @param listener the listener
+     */
+    public void dispatch(IMXEventListener listener) {
+        for (Object entry : mEntries) {
+            try {
+                if (entry instanceof BingEvent) {
+                    BingEvent bingEvent = (BingEvent) entry;
+                    listener.onBingEvent(bingEvent.event, bingEvent.roomState, bingEvent.bingRule);
+                } else if (entry instanceof LiveEvent) {
+                    LiveEvent liveEvent = (LiveEvent) entry;
+                    listener.onLiveEvent(liveEvent.event, liveEvent.roomState);
+                } else if (entry instanceof ReceiptEvent) {
+                    ReceiptEvent receiptEvent = (ReceiptEvent) entry;
+                    listener.onReceiptEvent(receiptEvent.roomId, receiptEvent.senderIds);
+                } else if (entry instanceof Event) {
+                    listener.onEventSentStateUpdated((Event) entry);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## dispatch() failed " + e.getMessage());
+            }
+        }
+    }
+}
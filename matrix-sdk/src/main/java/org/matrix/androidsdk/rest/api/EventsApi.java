@@ -16,6 +16,8 @@
  */
 package org.matrix.androidsdk.rest.api;
 
+import com.google.gson.JsonElement;
+
 import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.rest.model.PublicRoomsParams;
 import org.matrix.androidsdk.rest.model.PublicRoomsResponse;
@@ -23,6 +25,7 @@ import org.matrix.androidsdk.rest.model.Search.SearchParams;
 import org.matrix.androidsdk.rest.model.Search.SearchResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersParams;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersRequestResponse;
+import org.matrix.androidsdk.rest.model.Sync.FilterResponse;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.rest.model.ThirdPartyProtocol;
 
@@ -32,6 +35,7 @@ import retrofit.Callback;
 import retrofit.http.Body;
 import retrofit.http.GET;
 import retrofit.http.POST;
+import retrofit.http.Path;
 import retrofit.http.Query;
 import retrofit.http.QueryMap;
 
@@ -49,6 +53,15 @@ public interface EventsApi {
     @GET(RestClient.URI_API_PREFIX_PATH_R0 + "/sync")
     void sync(@QueryMap Map<String, Object> params, Callback<SyncResponse> callback);
 
+    /**
+     * Upload a sync filter.
+     *
+     * @param userId   the user id
+     * @param filter   the filter definition
+     * @param callback The asynchronous callback to call when finished
+     */
+    @POST(RestClient.URI_API_PREFIX_PATH_R0 + "/user/{userId}/filter")
+    void createFilter(@Path("userId") String userId, @Body JsonElement filter, Callback<FilterResponse> callback);
 
     /**
      * Get the third party server protocols.
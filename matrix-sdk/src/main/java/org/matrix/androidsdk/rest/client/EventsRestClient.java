@@ -18,6 +18,8 @@ package org.matrix.androidsdk.rest.client;
 
 import android.text.TextUtils;
 
+import com.google.gson.JsonElement;
+
 import org.matrix.androidsdk.HomeServerConnectionConfig;
 import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.rest.api.EventsApi;
@@ -34,6 +36,7 @@ import org.matrix.androidsdk.rest.model.Search.SearchRoomEventCategoryParams;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersParams;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersRequestResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchUsersResponse;
+import org.matrix.androidsdk.rest.model.Sync.FilterResponse;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.rest.model.ThirdPartyProtocol;
 import org.matrix.androidsdk.rest.model.URLPreview;
@@ -201,11 +204,32 @@ public class EventsRestClient extends RestClient<EventsApi> {
      * @param callback      The request callback
      */
     public void syncFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final ApiCallback<SyncResponse> callback) {
+        syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, false, callback);
+    }
+
+    /**
+     * Synchronise the client's state and receive new messages.
+     * With fullState, an incremental sync provides the full state of its rooms instead of the state changes since the token.
+     *
+     * @param token         the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param clientTimeout the maximum time in ms the SDK must wait for the server response.
+     * @param setPresence   the optional parameter which controls whether the client is automatically
+     *                      marked as online by polling this API.
+     * @param filterId      the ID of a filter created using the filter API (optional).
+     * @param fullState     true to get the full state of the rooms of an incremental sync.
+     * @param callback      The request callback
+     */
+    public void syncFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final boolean fullState, final ApiCallback<SyncResponse> callback) {
         HashMap<String, Object> params = new HashMap<>();
         int timeout = (EVENT_STREAM_TIMEOUT_MS / 1000);
 
         if (!TextUtils.isEmpty(token)) {
             params.put("since", token);
+
+            if (fullState) {
+                params.put("full_state", true);
+            }
         }
 
         if (-1 != serverTimeout) {
@@ -233,7 +257,29 @@ public class EventsRestClient extends RestClient<EventsApi> {
             mApi.sync(params, new RestAdapterCallback<SyncResponse>(description, null, false, callback, new RestAdapterCallback.RequestRetryCallBack() {
                 @Override
                 public void onRetry() {
-                    syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
+                    syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, fullState, callback);
+                }
+            }));
+        } catch (Throwable t) {
+            callback.onUnexpectedError(new Exception(t));
+        }
+    }
+
+    /**
+     * Upload a sync filter.
+     *
+     * @param userId   the user id
+     * @param filter   the filter definition
+     * @param callback the asynchronous callback
+     */
+    public void createFilter(final String userId, final JsonElement filter, final ApiCallback<FilterResponse> callback) {
+        final String description = "createFilter";
+
+        try {
+            mApi.createFilter(userId, filter, new RestAdapterCallback<FilterResponse>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
+                @Override
+                public void onRetry() {
+                    createFilter(userId, filter, callback);
                 }
             }));
         } catch (Throwable t) {
@@ -563,6 +609,7 @@ public class EventsRestClient extends RestClient<EventsApi> {
 
     /**
      * Retrieve the URL preview information.
+     * The response is not cached, MXSession.getURLPreview() should be used instead.
      *
      * @param URL      the URL
      * @param ts       the timestamp
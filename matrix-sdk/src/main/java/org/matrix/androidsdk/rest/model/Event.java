@@ -110,6 +110,7 @@ public class Event implements Externalizable {
 
     public String type;
     public transient JsonElement content = null;
+    // the serialized content, until it is parsed into content
     private String contentAsString = null;
 
     public transient JsonElement prev_content = null;
@@ -159,6 +160,12 @@ public class Event implements Externalizable {
     // the time raw offset (time zone management)
     private long mTimeZoneRawOffset = 0;
 
+    // the typed representations of the content, built on demand.
+    // they are only valid while the content is mTypedContentSource.
+    private transient JsonElement mTypedContentSource;
+    private transient Message mMessage;
+    private transient EventContent mEventContent;
+
     private long getTimeZoneOffset() {
         return TimeZone.getDefault().getRawOffset();
     }
@@ -245,6 +252,32 @@ public class Event implements Externalizable {
     public void updateContent(JsonElement newContent) {
         content = newContent;
         contentAsString = null;
+        invalidateTypedContent();
+    }
+
+    /**
+     * Release the cached typed representations of the content.
+     */
+    private void invalidateTypedContent() {
+        mTypedContentSource = null;
+        mMessage = null;
+        mEventContent = null;
+    }
+
+    /**
+     * Check that the cached typed representations are built from the current content.
+     *
+     * @return the current content
+     */
+    private JsonElement checkTypedContent() {
+        JsonElement currentContent = getContent();
+
+        if (currentContent != mTypedContentSource) {
+            invalidateTypedContent();
+            mTypedContentSource = currentContent;
+        }
+
+        return currentContent;
     }
 
     /**
@@ -391,10 +424,42 @@ public class Event implements Externalizable {
      * @return the content formatted as EventContent.
      */
     public EventContent getEventContent() {
-        if (null != getContent()) {
-            return JsonUtils.toEventContent(getContent());
+        JsonElement currentContent = checkTypedContent();
+
+        if (null == currentContent) {
+            return null;
         }
-        return null;
+
+        EventContent eventContent = mEventContent;
+
+        if (null == eventContent) {
+            mEventContent = eventContent = JsonUtils.toEventContent(currentContent);
+        }
+
+        return eventContent;
+    }
+
+    /**
+     * Provides the content as a Message instance with the subclass matching its msgtype.
+     * The instance is built once and cached until the content is updated :
+     * it is shared by the callers so it must not be modified. Use JsonUtils.toMessage() to get a modifiable copy.
+     *
+     * @return the content formatted as Message, null if there is no content.
+     */
+    public Message getMessage() {
+        JsonElement currentContent = checkTypedContent();
+
+        if (null == currentContent) {
+            return null;
+        }
+
+        Message message = mMessage;
+
+        if (null == message) {
+            mMessage = message = JsonUtils.toMessage(currentContent);
+        }
+
+        return message;
     }
 
     /**
@@ -641,10 +706,10 @@ public class Event implements Externalizable {
         ArrayList<String> urls = new ArrayList<>();
 
         if (Event.EVENT_TYPE_MESSAGE.equals(getType())) {
-            String msgType = JsonUtils.getMessageMsgType(getContent());
+            Message message = getMessage();
 
-            if (Message.MSGTYPE_IMAGE.equals(msgType)) {
-                ImageMessage imageMessage = JsonUtils.toImageMessage(getContent());
+            if (message instanceof ImageMessage) {
+                ImageMessage imageMessage = (ImageMessage) message;
 
                 if (null != imageMessage.getUrl()) {
                     urls.add(imageMessage.getUrl());
@@ -653,14 +718,14 @@ public class Event implements Externalizable {
                 if (null != imageMessage.getThumbnailUrl()) {
                     urls.add(imageMessage.getThumbnailUrl());
                 }
-            } else if (Message.MSGTYPE_FILE.equals(msgType) || Message.MSGTYPE_AUDIO.equals(msgType)) {
-                FileMessage fileMessage = JsonUtils.toFileMessage(getContent());
+            } else if (message instanceof FileMessage) {
+                FileMessage fileMessage = (FileMessage) message;
 
                 if (null != fileMessage.getUrl()) {
                     urls.add(fileMessage.getUrl());
                 }
-            } else if (Message.MSGTYPE_VIDEO.equals(msgType)) {
-                VideoMessage videoMessage = JsonUtils.toVideoMessage(getContent());
+            } else if (message instanceof VideoMessage) {
+                VideoMessage videoMessage = (VideoMessage) message;
 
                 if (null != videoMessage.getUrl()) {
                     urls.add(videoMessage.getUrl());
@@ -856,9 +921,12 @@ public class Event implements Externalizable {
             output.writeUTF(type);
         }
 
-        output.writeBoolean(null != contentAsString);
-        if (null != contentAsString) {
-            output.writeUTF(contentAsString);
+        // the content string is not kept once the content is parsed
+        String contentString = (null != content) ? content.toString() : contentAsString;
+
+        output.writeBoolean(null != contentString);
+        if (null != contentString) {
+            output.writeUTF(contentString);
         }
 
         output.writeBoolean(null != prev_content_as_string);
@@ -956,10 +1024,6 @@ public class Event implements Externalizable {
      * Init some internal fields to serialize the event.
      */
     private void prepareSerialization() {
-        if ((null != content) && (null == contentAsString)) {
-            contentAsString = content.toString();
-        }
-
         if ((null != getPrevContentAsJsonObject()) && (null == prev_content_as_string)) {
             prev_content_as_string = getPrevContentAsJsonObject().toString();
         }
@@ -978,8 +1042,10 @@ public class Event implements Externalizable {
                 content = new JsonParser().parse(contentAsString).getAsJsonObject();
             } catch (Exception e) {
                 Log.e(LOG_TAG, "finalizeDeserialization : contentAsString deserialization " + e.getMessage());
-                contentAsString = null;
             }
+
+            // the parsed content is now the reference
+            contentAsString = null;
         }
 
         if ((null != prev_content_as_string) && (null == prev_content)) {
@@ -1071,6 +1137,7 @@ public class Event implements Externalizable {
 
         this.prev_content_as_string = null;
         this.contentAsString = null;
+        invalidateTypedContent();
 
         if (null != redactionEvent) {
             if (null == unsigned) {
@@ -18,7 +18,6 @@ package org.matrix.androidsdk.rest.model.bingrules;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.util.EventUtils;
-import org.matrix.androidsdk.util.JsonUtils;
 
 /**
  * Bing rule condition that is satisfied when a message body contains the user's current display name.
@@ -30,7 +29,7 @@ public class ContainsDisplayNameCondition extends Condition {
 
     public boolean isSatisfied(Event event, String myDisplayName) {
         if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
-            Message msg = JsonUtils.toMessage(event.getContent());
+            Message msg = event.getMessage();
 
             if (null != msg) {
                 return EventUtils.caseInsensitiveFind(myDisplayName, msg.body);
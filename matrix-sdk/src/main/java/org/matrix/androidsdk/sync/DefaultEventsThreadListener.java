@@ -23,7 +23,7 @@ import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 /**
  * Listener for the events thread that sends data back to a data handler.
  */
-public class DefaultEventsThreadListener implements EventsThreadListener {
+public class DefaultEventsThreadListener implements PipelinedEventsThreadListener {
 
     private final MXDataHandler mData;
 
@@ -36,6 +36,11 @@ public class DefaultEventsThreadListener implements EventsThreadListener {
         mData.onSyncResponse(syncResponse, fromToken, isCatchingUp);
     }
 
+    @Override
+    public void onSyncResponse(SyncResponse syncResponse, String fromToken, boolean isCatchingUp, Runnable onProcessed) {
+        mData.onSyncResponse(syncResponse, fromToken, isCatchingUp, onProcessed);
+    }
+
     @Override
     public void onInvalidToken() {
         mData.onInvalidToken();
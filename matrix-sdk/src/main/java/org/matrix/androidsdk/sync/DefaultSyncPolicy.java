@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Default sync policy.
+ * - the long poll timeout is doubled when the screen is off or when the account is quiet.
+ * - the configured sync delay is halved when the account is busy, doubled when it is quiet
+ * and increased by 50% on mobile networks. It is never more than 4 times the configured delay.
+ * - the failed requests are retried with an exponential backoff and a random jitter.
+ */
+public class DefaultSyncPolicy implements SyncPolicy {
+
+    /**
+     * Time source, to be replaced in the tests.
+     */
+    public interface Clock {
+        /**
+         * @return the elapsed time in ms since a fixed point
+         */
+        long elapsedRealtime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    // the account is busy when some events have been received during this period
+    static final long BUSY_PERIOD_MS = 2 * 60 * 1000;
+
+    // the account is quiet when no event has been received during this period
+    static final long QUIET_PERIOD_MS = 10 * 60 * 1000;
+
+    // max long poll timeout, it must be lower than the client timeout
+    static final int MAX_SERVER_TIMEOUT_MS = 90 * 1000;
+
+    // the sync delay cannot be more than this factor of the configured one
+    static final int MAX_SYNC_DELAY_FACTOR = 4;
+
+    // retry delays bounds
+    static final int MIN_RETRY_DELAY_MS = 2 * 1000;
+    static final int MAX_RETRY_DELAY_MS = 2 * 60 * 1000;
+
+    private final Clock mClock;
+    private final Random mRandom;
+
+    // configured values
+    private int mServerTimeoutMs = 30000;
+    private int mSyncDelayMs = 0;
+
+    // device state
+    private boolean mIsScreenOn = true;
+    private boolean mIsOnWifi = true;
+
+    // the last time some events have been received
+    private long mLastActivityTime;
+
+    // the number of failed requests since the last successful one
+    private int mConsecutiveFailures = 0;
+
+    // the latest decisions
+    private final Map<String, Long> mStats = new HashMap<>();
+
+    /**
+     * Default constructor
+     */
+    public DefaultSyncPolicy() {
+        this(SYSTEM_CLOCK, new Random());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock  the time source
+     * @param random the random generator used for the jitter
+     */
+    public DefaultSyncPolicy(Clock clock, Random random) {
+        mClock = clock;
+        mRandom = random;
+        // the account is seen as active when the application starts
+        mLastActivityTime = clock.elapsedRealtime();
+    }
+
+    @Override
+    public synchronized void setConfiguration(int serverTimeoutMs, int syncDelayMs) {
+        mServerTimeoutMs = serverTimeoutMs;
+        mSyncDelayMs = Math.max(0, syncDelayMs);
+    }
+
+    @Override
+    public synchronized void setIsScreenOn(boolean isScreenOn) {
+        mIsScreenOn = isScreenOn;
+    }
+
+    @Override
+    public synchronized void setIsOnWifi(boolean isOnWifi) {
+        mIsOnWifi = isOnWifi;
+    }
+
+    @Override
+    public synchronized void onSyncSuccess(int eventsCount) {
+        mConsecutiveFailures = 0;
+
+        if (eventsCount > 0) {
+            mLastActivityTime = mClock.elapsedRealtime();
+        }
+
+        mStats.put("eventsCount", (long) eventsCount);
+    }
+
+    @Override
+    public synchronized void onSyncFailure() {
+        mConsecutiveFailures++;
+        mStats.put("consecutiveFailures", (long) mConsecutiveFailures);
+    }
+
+    /**
+     * @return the elapsed time since the last received events
+     */
+    private long getInactivityDuration() {
+        return mClock.elapsedRealtime() - mLastActivityTime;
+    }
+
+    @Override
+    public synchronized int getServerTimeoutMs() {
+        int timeout = mServerTimeoutMs;
+
+        // the long poll returns as soon as there are some events,
+        // so a longer timeout only reduces the number of empty responses.
+        if (!mIsScreenOn || (getInactivityDuration() >= QUIET_PERIOD_MS)) {
+            timeout = Math.max(mServerTimeoutMs, Math.min(mServerTimeoutMs * 2, MAX_SERVER_TIMEOUT_MS));
+        }
+
+        mStats.put("serverTimeoutMs", (long) timeout);
+        return timeout;
+    }
+
+    @Override
+    public synchronized int getSyncDelayMs() {
+        long delay = mSyncDelayMs;
+        long inactivityDuration = getInactivityDuration();
+
+        if (inactivityDuration < BUSY_PERIOD_MS) {
+            delay /= 2;
+        } else if (inactivityDuration >= QUIET_PERIOD_MS) {
+            delay *= 2;
+        }
+
+        if (!mIsOnWifi) {
+            delay = delay * 3 / 2;
+        }
+
+        delay = Math.min(delay, (long) mSyncDelayMs * MAX_SYNC_DELAY_FACTOR);
+
+        mStats.put("syncDelayMs", delay);
+        return (int) delay;
+    }
+
+    @Override
+    public synchronized int getRetryDelayMs() {
+        int shift = Math.min(Math.max(mConsecutiveFailures - 1, 0), 16);
+        long delay = Math.min((long) MIN_RETRY_DELAY_MS << shift, MAX_RETRY_DELAY_MS);
+
+        // jitter : use a delay between delay / 2 and delay
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+
+        mStats.put("retryDelayMs", delay);
+        return (int) delay;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>(mStats);
+        stats.put("consecutiveFailures", (long) mConsecutiveFailures);
+        stats.put("inactivityMs", getInactivityDuration());
+        stats.put("isScreenOn", mIsScreenOn ? 1L : 0L);
+        stats.put("isOnWifi", mIsOnWifi ? 1L : 0L);
+        return stats;
+    }
+}
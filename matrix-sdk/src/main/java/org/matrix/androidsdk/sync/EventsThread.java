@@ -29,8 +29,10 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.text.TextUtils;
 
+import org.matrix.androidsdk.rest.model.Sync.RoomSync;
 import org.matrix.androidsdk.rest.model.Sync.RoomsSyncResponse;
 import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXMetrics;
 
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
@@ -50,11 +52,21 @@ import java.util.concurrent.CountDownLatch;
 public class EventsThread extends Thread {
     private static final String LOG_TAG = EventsThread.class.getSimpleName();
 
-    private static final int RETRY_WAIT_TIME_MS = 10000;
+    // metrics
+    private static final MXMetrics.Histogram SYNC_REQUEST_MS = MXMetrics.histogram("sync.request_ms");
+    private static final MXMetrics.Histogram SYNC_RESPONSE_EVENTS = MXMetrics.histogram("sync.response_events");
+    private static final MXMetrics.Counter SYNC_ERRORS = MXMetrics.counter("sync.errors");
 
     private static final int DEFAULT_SERVER_TIMEOUT_MS = 30000;
     private static final int DEFAULT_CLIENT_TIMEOUT_MS = 120000;
 
+    // max number of sync responses which are waiting to be processed by the listener
+    // before requesting the next one.
+    private static final int MAX_PENDING_SYNC_RESPONSES = 2;
+
+    // the pending sync responses count is checked at least at this interval (e.g. to detect a kill)
+    private static final int PENDING_SYNC_RESPONSES_CHECK_MS = 1000;
+
     private static final String DATA_SAVE_MODE_FILTER = "{\"room\": {\"ephemeral\": {\"types\": [\"m.receipt\"]}}, \"presence\":{\"not_types\": [\"*\"]}}";
 
     private EventsRestClient mEventsRestClient = null;
@@ -95,6 +107,16 @@ public class EventsThread extends Thread {
     // use dedicated filter when enable
     private boolean mIsInDataSaveMode = false;
 
+    // provide the sync filters
+    private SyncFilterManager mFilterManager = null;
+
+    // schedule the sync requests
+    private SyncPolicy mSyncPolicy = new DefaultSyncPolicy();
+
+    // the number of sync responses sent to a PipelinedEventsThreadListener and not yet processed.
+    private int mPendingSyncResponsesCount = 0;
+    private final Object mPendingSyncResponsesLock = new Object();
+
     private final IMXNetworkEventListener mNetworkListener = new IMXNetworkEventListener() {
         @Override
         public void onNetworkConnectionUpdate(boolean isConnected) {
@@ -104,6 +126,10 @@ public class EventsThread extends Thread {
                 mbIsConnected = isConnected;
             }
 
+            if (null != mNetworkConnectivityReceiver) {
+                mSyncPolicy.setIsOnWifi(mNetworkConnectivityReceiver.useWifiConnection());
+            }
+
             // the thread has been suspended and there is an available network
             if (isConnected && !mKilling) {
                 Log.d(LOG_TAG, "onNetworkConnectionUpdate : call onNetworkAvailable");
@@ -129,6 +155,7 @@ public class EventsThread extends Thread {
         mSyncObjectByInstance.put(this.toString(), this);
         mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mSyncPolicy.setConfiguration(mDefaultServerTimeoutms, mRequestDelayMs);
     }
 
     /**
@@ -147,6 +174,49 @@ public class EventsThread extends Thread {
         mIsInDataSaveMode = enabled;
     }
 
+    /**
+     * Set the sync policy.
+     *
+     * @param syncPolicy the sync policy
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        if (null != syncPolicy) {
+            mSyncPolicy = syncPolicy;
+            mSyncPolicy.setConfiguration(mDefaultServerTimeoutms, mRequestDelayMs);
+        }
+    }
+
+    /**
+     * @return the sync policy
+     */
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    /**
+     * Set the sync filters manager.
+     * When it is not set, the filters are sent inline.
+     *
+     * @param filterManager the filters manager
+     */
+    public void setFilterManager(SyncFilterManager filterManager) {
+        mFilterManager = filterManager;
+    }
+
+    /**
+     * Provide the sync filter parameter of a profile.
+     *
+     * @param profile the filter profile
+     * @return the filter id or definition, null if there is no filter
+     */
+    private String getSyncFilter(SyncFilterManager.FilterProfile profile) {
+        if (null != mFilterManager) {
+            return mFilterManager.getFilter(profile);
+        }
+
+        return (SyncFilterManager.FilterProfile.FULL == profile) ? null : DATA_SAVE_MODE_FILTER;
+    }
+
     /**
      * Update the long poll timeout.
      *
@@ -155,6 +225,7 @@ public class EventsThread extends Thread {
     public void setServerLongPollTimeout(int ms) {
         mDefaultServerTimeoutms = Math.max(ms, DEFAULT_SERVER_TIMEOUT_MS);
         Log.d(LOG_TAG, "setServerLongPollTimeout : " + mDefaultServerTimeoutms);
+        mSyncPolicy.setConfiguration(mDefaultServerTimeoutms, mRequestDelayMs);
 
     }
 
@@ -172,6 +243,7 @@ public class EventsThread extends Thread {
      */
     public void setSyncDelay(int ms) {
         mRequestDelayMs = Math.max(0, ms);
+        mSyncPolicy.setConfiguration(mDefaultServerTimeoutms, mRequestDelayMs);
 
         Log.d(LOG_TAG, "## setSyncDelay() : " + mRequestDelayMs + " with state " + getState());
 
@@ -306,6 +378,11 @@ public class EventsThread extends Thread {
 
             Log.d(LOG_TAG, "Resume the thread to kill it.");
         }
+
+        // stop waiting for the pending sync responses
+        synchronized (mPendingSyncResponsesLock) {
+            mPendingSyncResponsesLock.notifyAll();
+        }
     }
 
     /**
@@ -362,6 +439,105 @@ public class EventsThread extends Thread {
     }
 
 
+    /**
+     * Send a sync response to the listener.
+     * When the listener processes it asynchronously, the response is counted as pending until it is processed.
+     *
+     * @param syncResponse the sync response
+     * @param fromToken    the start token
+     * @param isCatchingUp true if a catchup is on progress
+     */
+    private void dispatchSyncResponse(SyncResponse syncResponse, String fromToken, boolean isCatchingUp) {
+        if (mListener instanceof PipelinedEventsThreadListener) {
+            synchronized (mPendingSyncResponsesLock) {
+                mPendingSyncResponsesCount++;
+            }
+
+            ((PipelinedEventsThreadListener) mListener).onSyncResponse(syncResponse, fromToken, isCatchingUp, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPendingSyncResponsesLock) {
+                        mPendingSyncResponsesCount--;
+                        mPendingSyncResponsesLock.notifyAll();
+                    }
+                }
+            });
+        } else {
+            mListener.onSyncResponse(syncResponse, fromToken, isCatchingUp);
+        }
+    }
+
+    /**
+     * Block until the listener has processed enough sync responses to request a new one.
+     */
+    private void waitForPendingSyncResponses() {
+        synchronized (mPendingSyncResponsesLock) {
+            if (mPendingSyncResponsesCount < MAX_PENDING_SYNC_RESPONSES) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "## waitForPendingSyncResponses() : " + mPendingSyncResponsesCount + " sync responses are being processed");
+
+            long t0 = System.currentTimeMillis();
+
+            while (!mKilling && (mPendingSyncResponsesCount >= MAX_PENDING_SYNC_RESPONSES)) {
+                try {
+                    mPendingSyncResponsesLock.wait(PENDING_SYNC_RESPONSES_CHECK_MS);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "## waitForPendingSyncResponses() : interrupted " + e.getMessage());
+                }
+            }
+
+            Log.d(LOG_TAG, "## waitForPendingSyncResponses() : waited " + (System.currentTimeMillis() - t0) + " ms");
+        }
+    }
+
+    /**
+     * Count the events of a sync response.
+     *
+     * @param syncResponse the sync response
+     * @return the number of timeline, invitation and to device events
+     */
+    private static int getEventsCount(SyncResponse syncResponse) {
+        int count = 0;
+
+        if (null != syncResponse) {
+            if ((null != syncResponse.rooms) && (null != syncResponse.rooms.join)) {
+                for (RoomSync roomSync : syncResponse.rooms.join.values()) {
+                    if ((null != roomSync.timeline) && (null != roomSync.timeline.events)) {
+                        count += roomSync.timeline.events.size();
+                    }
+                }
+            }
+
+            if ((null != syncResponse.rooms) && (null != syncResponse.rooms.invite)) {
+                count += syncResponse.rooms.invite.size();
+            }
+
+            if ((null != syncResponse.toDevice) && (null != syncResponse.toDevice.events)) {
+                count += syncResponse.toDevice.events.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return true if the screen is on
+     */
+    @SuppressLint("NewApi")
+    private boolean isScreenOn() {
+        if (null == mPowerManager) {
+            return true;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return mPowerManager.isInteractive();
+        } else {
+            return mPowerManager.isScreenOn();
+        }
+    }
+
     /**
      * Use a broadcast receiver because the Timer delay might be inaccurate when the screen is turned off.
      * For example, request a 1 min delay and get a 6 mins one.
@@ -411,18 +587,24 @@ public class EventsThread extends Thread {
             // to hide the splash screen
             SyncResponse dummySyncResponse = new SyncResponse();
             dummySyncResponse.nextBatch = mCurrentToken;
-            mListener.onSyncResponse(dummySyncResponse, null, true);
+            dispatchSyncResponse(dummySyncResponse, null, true);
         } else {
 
             // Start with initial sync
             while (!mInitialSyncDone) {
                 final CountDownLatch latch = new CountDownLatch(1);
-                mEventsRestClient.syncFromToken(null, 0, DEFAULT_CLIENT_TIMEOUT_MS, mIsOnline ? null : "offline", DATA_SAVE_MODE_FILTER, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
+                final long fRequestStartNs = System.nanoTime();
+                final String fFilter = getSyncFilter(SyncFilterManager.FilterProfile.INITIAL);
+                mEventsRestClient.syncFromToken(null, 0, DEFAULT_CLIENT_TIMEOUT_MS, mIsOnline ? null : "offline", fFilter, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
                     @Override
                     public void onSuccess(SyncResponse syncResponse) {
                         Log.d(LOG_TAG, "Received initial sync response.");
-                        mNextServerTimeoutms = hasDevicesChanged(syncResponse) ? 0 : mDefaultServerTimeoutms;
-                        mListener.onSyncResponse(syncResponse, null, (0 == mNextServerTimeoutms));
+                        SYNC_REQUEST_MS.recordElapsedMs(fRequestStartNs);
+                        int eventsCount = getEventsCount(syncResponse);
+                        SYNC_RESPONSE_EVENTS.record(eventsCount);
+                        mSyncPolicy.onSyncSuccess(eventsCount);
+                        mNextServerTimeoutms = hasDevicesChanged(syncResponse) ? 0 : mSyncPolicy.getServerTimeoutMs();
+                        dispatchSyncResponse(syncResponse, null, (0 == mNextServerTimeoutms));
                         mCurrentToken = syncResponse.nextBatch;
                         mInitialSyncDone = true;
                         // unblock the events thread
@@ -430,12 +612,16 @@ public class EventsThread extends Thread {
                     }
 
                     private void sleepAndUnblock() {
-                        Log.i(LOG_TAG, "Waiting a bit before retrying");
+                        SYNC_ERRORS.inc();
+                        mSyncPolicy.onSyncFailure();
+                        int retryDelayMs = mSyncPolicy.getRetryDelayMs();
+
+                        Log.i(LOG_TAG, "Waiting " + retryDelayMs + " ms before retrying");
                         new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
                             public void run() {
                                 latch.countDown();
                             }
-                        }, RETRY_WAIT_TIME_MS);
+                        }, retryDelayMs);
                     }
 
                     @Override
@@ -455,6 +641,9 @@ public class EventsThread extends Thread {
 
                         if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
                             mListener.onInvalidToken();
+                        } else if ((null != mFilterManager) && mFilterManager.onSyncError(fFilter, e)) {
+                            // retry with the inline filter definition
+                            latch.countDown();
                         } else {
                             sleepAndUnblock();
                         }
@@ -487,21 +676,28 @@ public class EventsThread extends Thread {
             mNetworkConnectivityReceiver.addEventListener(mNetworkListener);
             //
             mbIsConnected = mNetworkConnectivityReceiver.isConnected();
+            mSyncPolicy.setIsOnWifi(mNetworkConnectivityReceiver.useWifiConnection());
             mIsNetworkSuspended = !mbIsConnected;
         }
 
         // Then repeatedly long-poll for events
         while (!mKilling) {
+            // do not request more sync responses than the listener can process
+            waitForPendingSyncResponses();
+
+            mSyncPolicy.setIsScreenOn(isScreenOn());
 
             // test if a delay between two syncs
-            if ((!mPaused && !mIsNetworkSuspended) && (0 != mRequestDelayMs)) {
-                Log.d(LOG_TAG, "startSync : start a delay timer ");
+            int syncDelayMs = (0 != mRequestDelayMs) ? mSyncPolicy.getSyncDelayMs() : 0;
+
+            if ((!mPaused && !mIsNetworkSuspended) && (0 != syncDelayMs)) {
+                Log.d(LOG_TAG, "startSync : start a delay timer of " + syncDelayMs + " ms");
 
                 Intent intent = new Intent(mContext, SyncDelayReceiver.class);
                 intent.putExtra(SyncDelayReceiver.EXTRA_INSTANCE_ID, this.toString());
                 mPendingDelayedIntent = PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 
-                long futureInMillis = SystemClock.elapsedRealtime() + mRequestDelayMs;
+                long futureInMillis = SystemClock.elapsedRealtime() + syncDelayMs;
 
                 if ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) && mPowerManager.isIgnoringBatteryOptimizations(mContext.getPackageName())) {
                     mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, futureInMillis, mPendingDelayedIntent);
@@ -544,22 +740,40 @@ public class EventsThread extends Thread {
 
             // the service could have been killed while being paused.
             if (!mKilling) {
-                String inlineFilter = mIsInDataSaveMode ? DATA_SAVE_MODE_FILTER : null; //"{\"room\":{\"timeline\":{\"limit\":250}}}";
+                SyncFilterManager.FilterProfile filterProfile;
+
+                // a catchup is triggered by a push to display its notifications
+                // the sync delay only throttles the requests, the presence and the typing events are still expected
+                if (mIsCatchingUp) {
+                    filterProfile = SyncFilterManager.FilterProfile.BACKGROUND_PUSH;
+                } else if (mIsInDataSaveMode) {
+                    filterProfile = SyncFilterManager.FilterProfile.LOW_BANDWIDTH;
+                } else {
+                    filterProfile = SyncFilterManager.FilterProfile.FULL;
+                }
+
+                final String filter = getSyncFilter(filterProfile);
 
                 final CountDownLatch latch = new CountDownLatch(1);
 
                 if (mIsInDataSaveMode) {
-                    Log.d(LOG_TAG, "[Data save mode] Get events from token " + mCurrentToken);
+                    Log.d(LOG_TAG, "[Data save mode] Get events from token " + mCurrentToken + " with filter " + filterProfile);
                 } else {
-                    Log.d(LOG_TAG, "Get events from token " + mCurrentToken);
+                    Log.d(LOG_TAG, "Get events from token " + mCurrentToken + " with filter " + filterProfile);
                 }
 
                 final int fServerTimeout = serverTimeout;
-                mNextServerTimeoutms = mDefaultServerTimeoutms;
+                final long fRequestStartNs = System.nanoTime();
+                mNextServerTimeoutms = mSyncPolicy.getServerTimeoutMs();
 
-                mEventsRestClient.syncFromToken(mCurrentToken, serverTimeout, DEFAULT_CLIENT_TIMEOUT_MS, mIsOnline ? null : "offline", inlineFilter, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
+                mEventsRestClient.syncFromToken(mCurrentToken, serverTimeout, DEFAULT_CLIENT_TIMEOUT_MS, mIsOnline ? null : "offline", filter, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
                     @Override
                     public void onSuccess(SyncResponse syncResponse) {
+                        SYNC_REQUEST_MS.recordElapsedMs(fRequestStartNs);
+                        int eventsCount = getEventsCount(syncResponse);
+                        SYNC_RESPONSE_EVENTS.record(eventsCount);
+                        mSyncPolicy.onSyncSuccess(eventsCount);
+
                         if (!mKilling) {
                             // poll /sync with timeout=0 until
                             // we get no to_device messages back.
@@ -595,10 +809,14 @@ public class EventsThread extends Thread {
                             }
 
                             Log.d(LOG_TAG, "Got event response");
-                            mListener.onSyncResponse(syncResponse, mCurrentToken, (0 == mNextServerTimeoutms));
+
+                            // the next sync request can be sent while this response is processed
+                            String fromToken = mCurrentToken;
                             mCurrentToken = syncResponse.nextBatch;
                             Log.d(LOG_TAG, "mCurrentToken is now set to " + mCurrentToken);
 
+                            dispatchSyncResponse(syncResponse, fromToken, (0 == mNextServerTimeoutms));
+
                         }
 
                         // unblock the events thread
@@ -608,6 +826,7 @@ public class EventsThread extends Thread {
                     private void onError(String description) {
                         boolean isConnected;
                         Log.d(LOG_TAG, "Got an error while polling events " + description);
+                        SYNC_ERRORS.inc();
 
                         synchronized (mSyncObject) {
                             isConnected = mbIsConnected;
@@ -615,11 +834,15 @@ public class EventsThread extends Thread {
 
                         // detected if the device is connected before trying again
                         if (isConnected) {
+                            mSyncPolicy.onSyncFailure();
+                            int retryDelayMs = mSyncPolicy.getRetryDelayMs();
+                            Log.d(LOG_TAG, "Retry in " + retryDelayMs + " ms");
+
                             new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
                                 public void run() {
                                     latch.countDown();
                                 }
-                            }, RETRY_WAIT_TIME_MS);
+                            }, retryDelayMs);
 
                         } else {
                             // no network -> wait that a network connection comes back.
@@ -637,6 +860,9 @@ public class EventsThread extends Thread {
                     public void onMatrixError(MatrixError e) {
                         if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
                             mListener.onInvalidToken();
+                        } else if ((null != mFilterManager) && mFilterManager.onSyncError(filter, e)) {
+                            // retry with the inline filter definition
+                            latch.countDown();
                         } else {
                             onError(e.getLocalizedMessage());
                         }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+
+/**
+ * Events thread listener which processes the sync responses asynchronously.
+ * The events thread requests the next sync responses while the previous ones are processed,
+ * and stops requesting them when too many responses are waiting to be processed.
+ */
+public interface PipelinedEventsThreadListener extends EventsThreadListener {
+    /**
+     * Call when a sync request has been performed with the API V2.
+     *
+     * @param response     the response (can be null)
+     * @param fromToken    the start token
+     * @param isCatchingUp true if a catchup is on progress
+     * @param onProcessed  the runnable to call when the response has been processed (on any thread)
+     */
+    void onSyncResponse(SyncResponse response, String fromToken, boolean isCatchingUp, Runnable onProcessed);
+}
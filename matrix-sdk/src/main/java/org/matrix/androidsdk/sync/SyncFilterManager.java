@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import android.text.TextUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.Sync.FilterResponse;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manage the sync filters.
+ * The filters are uploaded once to the server and their ids are saved in the store,
+ * so that the sync requests only send a filter id.
+ * The inline filter definition is used until the filter id is known, or when the server rejects the filter id.
+ */
+public class SyncFilterManager {
+    private static final String LOG_TAG = SyncFilterManager.class.getSimpleName();
+
+    /**
+     * The filter profiles
+     */
+    public enum FilterProfile {
+        // the application is in foreground
+        FULL,
+        // the data save mode is enabled
+        LOW_BANDWIDTH,
+        // the application syncs in background to display the notifications
+        BACKGROUND_PUSH,
+        // the initial sync
+        INITIAL
+    }
+
+    private final IMXStore mStore;
+    private final EventsRestClient mEventsRestClient;
+    private final String mUserId;
+
+    // the filter definitions which are being uploaded
+    private final Set<String> mPendingFilterDefinitions = new HashSet<>();
+
+    // the timeline events limit (0 to use the server default)
+    private int mTimelineLimit = 0;
+
+    /**
+     * Constructor
+     *
+     * @param store            the store
+     * @param eventsRestClient the events rest client
+     * @param userId           the user id
+     */
+    public SyncFilterManager(IMXStore store, EventsRestClient eventsRestClient, String userId) {
+        mStore = store;
+        mEventsRestClient = eventsRestClient;
+        mUserId = userId;
+    }
+
+    /**
+     * Set the max number of timeline events per room in the sync responses.
+     * It is not applied to the background push profile to avoid missing notifications.
+     *
+     * @param limit the limit, 0 to use the server default value.
+     */
+    public void setTimelineLimit(int limit) {
+        mTimelineLimit = Math.max(0, limit);
+    }
+
+    /**
+     * @return the max number of timeline events per room in the sync responses (0 for the server default value)
+     */
+    public int getTimelineLimit() {
+        return mTimelineLimit;
+    }
+
+    /**
+     * Provide the filter definition of a profile.
+     *
+     * @param profile the profile
+     * @return the filter definition (JSON), null if no filter is required
+     */
+    public String getFilterDefinition(FilterProfile profile) {
+        JsonObject filter = new JsonObject();
+        JsonObject roomFilter = new JsonObject();
+
+        if (FilterProfile.FULL != profile) {
+            // the typing and the presence events are useless here
+            JsonArray ephemeralTypes = new JsonArray();
+            ephemeralTypes.add("m.receipt");
+
+            JsonObject ephemeralFilter = new JsonObject();
+            ephemeralFilter.add("types", ephemeralTypes);
+            roomFilter.add("ephemeral", ephemeralFilter);
+
+            JsonArray presenceNotTypes = new JsonArray();
+            presenceNotTypes.add("*");
+
+            JsonObject presenceFilter = new JsonObject();
+            presenceFilter.add("not_types", presenceNotTypes);
+            filter.add("presence", presenceFilter);
+        }
+
+        if ((mTimelineLimit > 0) && (FilterProfile.BACKGROUND_PUSH != profile)) {
+            JsonObject timelineFilter = new JsonObject();
+            timelineFilter.addProperty("limit", mTimelineLimit);
+            roomFilter.add("timeline", timelineFilter);
+        }
+
+        if (roomFilter.entrySet().size() > 0) {
+            filter.add("room", roomFilter);
+        }
+
+        if (0 == filter.entrySet().size()) {
+            return null;
+        }
+
+        return JsonUtils.getCanonicalizedJsonString(filter);
+    }
+
+    /**
+     * Provide the sync filter parameter of a profile.
+     * The filter is uploaded if it was not done yet.
+     *
+     * @param profile the profile
+     * @return the filter id if the filter has been uploaded, else the filter definition. null if no filter is required.
+     */
+    public String getFilter(FilterProfile profile) {
+        String filterDefinition = getFilterDefinition(profile);
+
+        if (null == filterDefinition) {
+            return null;
+        }
+
+        Map<String, String> filters = mStore.getFilters();
+        String filterId = (null != filters) ? filters.get(filterDefinition) : null;
+
+        if (!TextUtils.isEmpty(filterId)) {
+            return filterId;
+        }
+
+        uploadFilter(filterDefinition);
+
+        // use the inline definition until the filter id is known
+        return filterDefinition;
+    }
+
+    /**
+     * Handle a sync request error.
+     * A filter id which is no more known by the server (e.g. after a server database reset) is removed,
+     * so that the next requests use the inline definition until the filter is uploaded again.
+     *
+     * @param filter the filter parameter of the failed request
+     * @param error  the error
+     * @return true if the filter id has been removed
+     */
+    public boolean onSyncError(String filter, MatrixError error) {
+        if (TextUtils.isEmpty(filter) || (null == error)) {
+            return false;
+        }
+
+        boolean isRejected = TextUtils.equals(MatrixError.NOT_FOUND, error.errcode)
+                || ((null != error.mStatus) && ((400 == error.mStatus) || (404 == error.mStatus)));
+
+        if (!isRejected) {
+            return false;
+        }
+
+        Map<String, String> filters = mStore.getFilters();
+
+        if (null != filters) {
+            for (Map.Entry<String, String> entry : filters.entrySet()) {
+                if (TextUtils.equals(filter, entry.getValue())) {
+                    Log.e(LOG_TAG, "## onSyncError() : the filter " + filter + " is rejected " + error.getMessage());
+                    mStore.removeFilter(entry.getKey());
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Upload a filter definition.
+     *
+     * @param filterDefinition the filter definition
+     */
+    private void uploadFilter(final String filterDefinition) {
+        synchronized (mPendingFilterDefinitions) {
+            if (!mPendingFilterDefinitions.add(filterDefinition)) {
+                return;
+            }
+        }
+
+        Log.d(LOG_TAG, "## uploadFilter() : " + filterDefinition);
+
+        mEventsRestClient.createFilter(mUserId, new JsonParser().parse(filterDefinition), new ApiCallback<FilterResponse>() {
+            private void onDone(String description) {
+                synchronized (mPendingFilterDefinitions) {
+                    mPendingFilterDefinitions.remove(filterDefinition);
+                }
+
+                Log.d(LOG_TAG, "## uploadFilter() : " + description);
+            }
+
+            @Override
+            public void onSuccess(FilterResponse response) {
+                if ((null != response) && !TextUtils.isEmpty(response.filterId)) {
+                    mStore.addFilter(filterDefinition, response.filterId);
+                    onDone("succeeds " + response.filterId);
+                } else {
+                    onDone("no filter id");
+                }
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onDone("failed " + e.getMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onDone("failed " + e.getMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onDone("failed " + e.getMessage());
+            }
+        });
+    }
+}
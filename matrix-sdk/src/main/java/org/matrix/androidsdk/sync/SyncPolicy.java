@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import java.util.Map;
+
+/**
+ * Interface to implement to schedule the sync requests of the events thread.
+ * The events thread reports the sync results and the device state,
+ * and asks for the long poll timeout and the delays before the next requests.
+ */
+public interface SyncPolicy {
+    /**
+     * Update the values configured by the application.
+     *
+     * @param serverTimeoutMs the long poll timeout
+     * @param syncDelayMs     the delay between two sync requests (0 when there is no delay)
+     */
+    void setConfiguration(int serverTimeoutMs, int syncDelayMs);
+
+    /**
+     * Update the screen state.
+     *
+     * @param isScreenOn true if the screen is on
+     */
+    void setIsScreenOn(boolean isScreenOn);
+
+    /**
+     * Update the network type.
+     *
+     * @param isOnWifi true if the device uses a wifi connection
+     */
+    void setIsOnWifi(boolean isOnWifi);
+
+    /**
+     * A sync request succeeded.
+     *
+     * @param eventsCount the number of events in the response
+     */
+    void onSyncSuccess(int eventsCount);
+
+    /**
+     * A sync request failed.
+     */
+    void onSyncFailure();
+
+    /**
+     * @return the long poll timeout of the next sync request
+     */
+    int getServerTimeoutMs();
+
+    /**
+     * @return the delay before the next sync request (0 to send it asap)
+     */
+    int getSyncDelayMs();
+
+    /**
+     * @return the delay before retrying a failed sync request
+     */
+    int getRetryDelayMs();
+
+    /**
+     * @return the latest decisions and their inputs
+     */
+    Map<String, Long> getStats();
+}
@@ -357,7 +357,7 @@ public class BingRulesManager {
                 // so their ruleId defines the method
                 if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) || BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(bingRule.ruleId)) {
                     if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
-                        Message message = JsonUtils.toMessage(event.getContent());
+                        Message message = event.getMessage();
                         MyUser myUser = mSession.getMyUser();
                         String pattern = null;
 
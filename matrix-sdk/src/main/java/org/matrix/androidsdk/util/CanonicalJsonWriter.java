@@ -0,0 +1,311 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Write the canonical json of an object without building intermediate json trees.
+ * The maps, the collections, the json elements and the primitives are written directly,
+ * the other objects are converted to a json tree with the provided Gson instance.
+ * The output is the one of Gson (without html escaping, nulls are not serialized in objects)
+ * with the object keys sorted and the "\/" sequences replaced by "/".
+ */
+class CanonicalJsonWriter {
+    // initial size of the per thread buffer
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // the buffers larger than this size are not kept
+    private static final int MAX_CACHED_BUFFER_SIZE = 64 * 1024;
+
+    // the escaped sequences of the ASCII characters (as Gson without html escaping)
+    private static final String[] REPLACEMENT_CHARS;
+
+    static {
+        REPLACEMENT_CHARS = new String[128];
+        for (int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+    }
+
+    private static final ThreadLocal<StringBuilder> sBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Build the canonical json string of an object.
+     *
+     * @param object the object to convert
+     * @param gson   the gson instance used to convert the objects which cannot be written directly
+     * @return the canonical json string
+     */
+    static String toCanonicalJson(Object object, Gson gson) {
+        StringBuilder buffer = sBuffer.get();
+        buffer.setLength(0);
+
+        try {
+            writeValue(buffer, object, gson);
+            return buffer.toString();
+        } finally {
+            if (buffer.capacity() > MAX_CACHED_BUFFER_SIZE) {
+                sBuffer.set(new StringBuilder(INITIAL_BUFFER_SIZE));
+            } else {
+                buffer.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Write any value.
+     *
+     * @param buffer the output buffer
+     * @param value  the value
+     * @param gson   the gson instance used to convert the unsupported objects
+     */
+    private static void writeValue(StringBuilder buffer, Object value, Gson gson) {
+        if (null == value) {
+            buffer.append("null");
+        } else if (value instanceof JsonElement) {
+            writeElement(buffer, (JsonElement) value);
+        } else if (value instanceof String) {
+            writeString(buffer, (String) value);
+        } else if (value instanceof Boolean) {
+            buffer.append(((Boolean) value).booleanValue());
+        } else if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte)) {
+            buffer.append(value.toString());
+        } else if ((value instanceof Double) || (value instanceof Float)) {
+            double doubleValue = ((Number) value).doubleValue();
+
+            // same check as Gson
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+            }
+
+            buffer.append(value.toString());
+        } else if ((value instanceof Map) && hasStringKeys((Map<?, ?>) value)) {
+            writeMap(buffer, (Map<?, ?>) value, gson);
+        } else if (value instanceof Collection) {
+            writeCollection(buffer, (Collection<?>) value, gson);
+        } else {
+            writeElement(buffer, gson.toJsonTree(value));
+        }
+    }
+
+    /**
+     * Tell if all the keys of a map are strings.
+     *
+     * @param map the map
+     * @return true if all the keys are strings
+     */
+    private static boolean hasStringKeys(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a map with its keys sorted. The null values are skipped.
+     *
+     * @param buffer the output buffer
+     * @param map    the map
+     * @param gson   the gson instance used to convert the unsupported objects
+     */
+    private static void writeMap(StringBuilder buffer, Map<?, ?> map, Gson gson) {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+
+        buffer.append('{');
+        boolean isFirst = true;
+
+        for (String key : keys) {
+            Object value = map.get(key);
+
+            if ((null == value) || (value instanceof JsonNull)) {
+                continue;
+            }
+
+            if (!isFirst) {
+                buffer.append(',');
+            }
+            isFirst = false;
+
+            writeString(buffer, key);
+            buffer.append(':');
+            writeValue(buffer, value, gson);
+        }
+
+        buffer.append('}');
+    }
+
+    /**
+     * Write a collection as a json array.
+     *
+     * @param buffer     the output buffer
+     * @param collection the collection
+     * @param gson       the gson instance used to convert the unsupported objects
+     */
+    private static void writeCollection(StringBuilder buffer, Collection<?> collection, Gson gson) {
+        buffer.append('[');
+        boolean isFirst = true;
+
+        for (Object item : collection) {
+            if (!isFirst) {
+                buffer.append(',');
+            }
+            isFirst = false;
+
+            writeValue(buffer, item, gson);
+        }
+
+        buffer.append(']');
+    }
+
+    /**
+     * Write a json element, the object keys are sorted and the null members are skipped.
+     *
+     * @param buffer  the output buffer
+     * @param element the element
+     */
+    private static void writeElement(StringBuilder buffer, JsonElement element) {
+        if ((null == element) || element.isJsonNull()) {
+            buffer.append("null");
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+
+            if (primitive.isString()) {
+                writeString(buffer, primitive.getAsString());
+            } else if (primitive.isBoolean()) {
+                buffer.append(primitive.getAsBoolean());
+            } else {
+                buffer.append(primitive.getAsNumber().toString());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            buffer.append('[');
+
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    buffer.append(',');
+                }
+                writeElement(buffer, array.get(i));
+            }
+
+            buffer.append(']');
+        } else {
+            JsonObject object = element.getAsJsonObject();
+            String[] keys = new String[object.entrySet().size()];
+            int count = 0;
+
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                keys[count++] = entry.getKey();
+            }
+            Arrays.sort(keys);
+
+            buffer.append('{');
+            boolean isFirst = true;
+
+            for (String key : keys) {
+                JsonElement value = object.get(key);
+
+                if ((null == value) || value.isJsonNull()) {
+                    continue;
+                }
+
+                if (!isFirst) {
+                    buffer.append(',');
+                }
+                isFirst = false;
+
+                writeString(buffer, key);
+                buffer.append(':');
+                writeElement(buffer, value);
+            }
+
+            buffer.append('}');
+        }
+    }
+
+    /**
+     * Write an escaped string.
+     * A backslash followed by a slash is not escaped, to match the "\/" to "/" replacement
+     * which was applied to the Gson output.
+     *
+     * @param buffer the output buffer
+     * @param value  the string
+     */
+    private static void writeString(StringBuilder buffer, String value) {
+        buffer.append('"');
+
+        int last = 0;
+        int length = value.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+
+            if (c < 128) {
+                if ((c == '\\') && (i + 1 < length) && (value.charAt(i + 1) == '/')) {
+                    // keep the backslash and the slash as they are
+                    i++;
+                    continue;
+                }
+
+                replacement = REPLACEMENT_CHARS[c];
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                replacement = null;
+            }
+
+            if (null == replacement) {
+                continue;
+            }
+
+            buffer.append(value, last, i);
+            buffer.append(replacement);
+            last = i + 1;
+        }
+
+        buffer.append(value, last, length);
+        buffer.append('"');
+    }
+}
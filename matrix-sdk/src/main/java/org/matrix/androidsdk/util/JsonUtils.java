@@ -189,8 +189,14 @@ public class JsonUtils {
 
     public static String getMessageMsgType(JsonElement jsonObject) {
         try {
-            Message message = gson.fromJson(jsonObject, Message.class);
-            return message.msgtype;
+            // read the field instead of converting the whole content
+            if ((null != jsonObject) && jsonObject.isJsonObject()) {
+                JsonElement msgType = jsonObject.getAsJsonObject().get("msgtype");
+
+                if ((null != msgType) && msgType.isJsonPrimitive()) {
+                    return msgType.getAsString();
+                }
+            }
         } catch (Exception e) {
             Log.e(LOG_TAG, "## getMessageMsgType failed " + e.getMessage());
         }
@@ -200,32 +206,33 @@ public class JsonUtils {
 
     public static Message toMessage(JsonElement jsonObject) {
         try {
-            Message message = gson.fromJson(jsonObject, Message.class);
+            // the msgtype is read first so the content is only converted once
+            String msgType = getMessageMsgType(jsonObject);
 
             // Try to return the right subclass
-            if (Message.MSGTYPE_IMAGE.equals(message.msgtype)) {
+            if (Message.MSGTYPE_IMAGE.equals(msgType)) {
                 return toImageMessage(jsonObject);
             }
 
-            if (Message.MSGTYPE_VIDEO.equals(message.msgtype)) {
+            if (Message.MSGTYPE_VIDEO.equals(msgType)) {
                 return toVideoMessage(jsonObject);
             }
 
-            if (Message.MSGTYPE_LOCATION.equals(message.msgtype)) {
+            if (Message.MSGTYPE_LOCATION.equals(msgType)) {
                 return toLocationMessage(jsonObject);
             }
 
             // Try to return the right subclass
-            if (Message.MSGTYPE_FILE.equals(message.msgtype)) {
+            if (Message.MSGTYPE_FILE.equals(msgType)) {
                 return toFileMessage(jsonObject);
             }
 
-            if (Message.MSGTYPE_AUDIO.equals(message.msgtype)) {
+            if (Message.MSGTYPE_AUDIO.equals(msgType)) {
                 return toAudioMessage(jsonObject);
             }
 
             // Fall back to the generic Message type
-            return message;
+            return gson.fromJson(jsonObject, Message.class);
         } catch (Exception e) {
             Log.e(LOG_TAG, "## toMessage failed " + e.getMessage());
         }
@@ -434,7 +441,8 @@ public class JsonUtils {
     }
 
     /**
-     * Create a canonicalized json string for an object
+     * Create a canonicalized json string for an object.
+     * The string is written without building intermediate json trees (see {@link CanonicalJsonWriter}).
      *
      * @param object the object to convert
      * @return the canonicalized string
@@ -443,15 +451,7 @@ public class JsonUtils {
         String canonicalizedJsonString = null;
 
         if (null != object) {
-            if (object instanceof JsonElement) {
-                canonicalizedJsonString = gsonWithoutHtmlEscaping.toJson(canonicalize((JsonElement) object));
-            } else {
-                canonicalizedJsonString = gsonWithoutHtmlEscaping.toJson(canonicalize(gsonWithoutHtmlEscaping.toJsonTree(object)));
-            }
-
-            if (null != canonicalizedJsonString) {
-                canonicalizedJsonString = canonicalizedJsonString.replace("\\/", "/");
-            }
+            canonicalizedJsonString = CanonicalJsonWriter.toCanonicalJson(object, gsonWithoutHtmlEscaping);
         }
 
         return canonicalizedJsonString;
@@ -22,9 +22,12 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.logging.Formatter;
 import java.util.logging.FileHandler;
@@ -34,20 +37,88 @@ import java.util.logging.Logger;
 
 /**
  * Intended to mimic {@link android.util.Log} in terms of interface, but with a lot of extra behind the scenes stuff.
+ * The file logs are queued in a ring buffer and written by a background thread,
+ * so the callers never wait for a file I/O.
  */
 public class Log {
     private static final String LOG_TAG = "Log";
 
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
     private static final int LOG_SIZE_BYTES = 50 * 1024 * 1024; // 50MB
     
     // relatively large rotation count because closing > opening the app rotates the log (!)
     private static final int LOG_ROTATION_COUNT = 15;
+
+    // the max number of queued file logs, the oldest ones are dropped when it is reached
+    static final int QUEUE_CAPACITY = 2048;
+
+    // the max number of logs written per queue lock
+    private static final int FLUSH_BATCH_SIZE = 64;
+
+    // the max number of file logs per tag and per second (the warnings and the errors are never limited)
+    private static final int DEFAULT_MAX_LOGS_PER_TAG_PER_SECOND = 50;
     
     private static final Logger sLogger = Logger.getLogger("org.matrix.androidsdk");
     private static FileHandler sFileHandler = null;
     private static File sCacheDirectory = null;
     private static String sFileName = "matrix";
+
+    private static int sLogSizeBytes = LOG_SIZE_BYTES;
+    private static int sLogRotationCount = LOG_ROTATION_COUNT;
+
+    // the logs below this level are ignored
+    private static volatile int sLogLevel = VERBOSE;
+
+    private static int sMaxLogsPerTagPerSecond = DEFAULT_MAX_LOGS_PER_TAG_PER_SECOND;
+
+    /**
+     * A queued file log.
+     */
+    private static class LogEntry {
+        long mTs;
+        long mThreadId;
+        String mLevel;
+        String mTag;
+        String mContent;
+    }
+
+    /**
+     * The rate limit of a tag.
+     */
+    private static class TagRate {
+        long mWindowStart;
+        int mCount;
+        int mSuppressedCount;
+    }
+
+    // the file logs ring buffer, guarded by sQueueLock
+    private static final Object sQueueLock = new Object();
+    private static final LogEntry[] sQueue = new LogEntry[QUEUE_CAPACITY];
+    private static int sQueueHead = 0;
+    private static int sQueueSize = 0;
+    private static int sDroppedCount = 0;
+    private static final Map<String, TagRate> sTagRates = new HashMap<>();
+
+    // serializes the file writes between the writer thread and the flushes
+    static final Object sWriteLock = new Object();
+    private static final LogEntry[] sWriteBatch = new LogEntry[FLUSH_BATCH_SIZE];
+    private static Thread sWriterThread = null;
+
+    static {
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            sQueue[i] = new LogEntry();
+        }
+
+        for (int i = 0; i < FLUSH_BATCH_SIZE; i++) {
+            sWriteBatch[i] = new LogEntry();
+        }
+    }
     
     public enum EventTag {
         /** A navigation event, e.g. onPause */ NAVIGATION,
@@ -65,14 +136,52 @@ public class Log {
             if (!TextUtils.isEmpty(fileName)) {
                 sFileName = fileName;
             }
-            sFileHandler = new FileHandler(sCacheDirectory.getAbsolutePath()+"/" + sFileName + ".%g.txt", LOG_SIZE_BYTES, LOG_ROTATION_COUNT);
+            sFileHandler = new FileHandler(sCacheDirectory.getAbsolutePath()+"/" + sFileName + ".%g.txt", sLogSizeBytes, sLogRotationCount);
             sFileHandler.setFormatter(new LogFormatter());
             sLogger.setUseParentHandlers(false);
             sLogger.setLevel(Level.ALL);
             sLogger.addHandler(sFileHandler);
+            startWriterThread();
         }
         catch (IOException e) {}
     }
+
+    /**
+     * Update the rotation policy of the log files. Should be called BEFORE {@link Log#init(String)}.
+     * @param maxFileSizeBytes the max size of a log file
+     * @param maxFilesCount the max number of log files
+     */
+    public static void setRotationPolicy(int maxFileSizeBytes, int maxFilesCount) {
+        sLogSizeBytes = Math.max(1024, maxFileSizeBytes);
+        sLogRotationCount = Math.max(1, maxFilesCount);
+    }
+
+    /**
+     * Update the min level of the logs. The logs below this level are neither sent to logcat nor to the files.
+     * @param level the min level (VERBOSE, DEBUG, INFO, WARN or ERROR)
+     */
+    public static void setLogLevel(int level) {
+        sLogLevel = level;
+    }
+
+    /**
+     * Tell if a level is logged. It should be checked before building an expensive log content.
+     * @param level the level
+     * @return true if the logs of this level are written
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLogLevel;
+    }
+
+    /**
+     * Update the max number of file logs per tag and per second. The warnings and the errors are never limited.
+     * @param maxLogsPerTagPerSecond the max number of logs, 0 to disable the limit
+     */
+    public static void setMaxLogsPerTagPerSecond(int maxLogsPerTagPerSecond) {
+        synchronized (sQueueLock) {
+            sMaxLogsPerTagPerSecond = Math.max(0, maxLogsPerTagPerSecond);
+        }
+    }
     
     /**
      * Set the directory to put log files.
@@ -102,10 +211,11 @@ public class Log {
         try {
             // reported by GA
             if (null != sFileHandler) {
+                flush();
                 sFileHandler.flush();
                 String absPath = sCacheDirectory.getAbsolutePath();
 
-                for (int i = 0; i <= LOG_ROTATION_COUNT; i++) {
+                for (int i = 0; i <= sLogRotationCount; i++) {
                     String filepath = absPath + "/" + sFileName + "." + i + ".txt";
                     File file = new File(filepath);
                     if (file.exists()) {
@@ -120,21 +230,247 @@ public class Log {
     }
     
     public static void logToFile(String level, String tag, String content) {
+        logToFile(level, tag, content, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue a file log.
+     * @param level the level
+     * @param tag the tag
+     * @param content the content
+     * @param now the current time
+     */
+    static void logToFile(String level, String tag, String content, long now) {
         if (null == sCacheDirectory) {
             return;
         }
 
-        StringBuilder b = new StringBuilder();
-        b.append(Thread.currentThread().getId());
-        b.append(" ");
-        b.append(level);
-        b.append("/");
-        b.append(tag);
-        b.append(": ");
-        b.append(content);
-        sLogger.info(b.toString());
+        synchronized (sQueueLock) {
+            if (!isRateLimitExempted(level) && isRateLimited(tag, now)) {
+                return;
+            }
+
+            enqueue(now, level, tag, content);
+        }
+    }
+
+    /**
+     * Add a log to the queue. Must be called with sQueueLock.
+     * @param ts the log timestamp
+     * @param level the level
+     * @param tag the tag
+     * @param content the content
+     */
+    private static void enqueue(long ts, String level, String tag, String content) {
+        // the queue is full : drop the oldest log
+        if (sQueueSize == QUEUE_CAPACITY) {
+            sQueueHead = (sQueueHead + 1) % QUEUE_CAPACITY;
+            sQueueSize--;
+            sDroppedCount++;
+        }
+
+        LogEntry entry = sQueue[(sQueueHead + sQueueSize) % QUEUE_CAPACITY];
+        entry.mTs = ts;
+        entry.mThreadId = Thread.currentThread().getId();
+        entry.mLevel = level;
+        entry.mTag = tag;
+        entry.mContent = content;
+        sQueueSize++;
+
+        // wake up the writer thread
+        if (1 == sQueueSize) {
+            sQueueLock.notify();
+        }
+    }
+
+    /**
+     * Tell if a level is never rate limited.
+     * @param level the level
+     * @return true if the level is never limited
+     */
+    private static boolean isRateLimitExempted(String level) {
+        return "W".equals(level) || "E".equals(level) || "WTF".equals(level);
+    }
+
+    /**
+     * Update the rate of a tag. Must be called with sQueueLock.
+     * @param tag the tag
+     * @param now the current time
+     * @return true if the log must be dropped
+     */
+    private static boolean isRateLimited(String tag, long now) {
+        if ((0 == sMaxLogsPerTagPerSecond) || (null == tag)) {
+            return false;
+        }
+
+        TagRate rate = sTagRates.get(tag);
+
+        if (null == rate) {
+            rate = new TagRate();
+            sTagRates.put(tag, rate);
+        }
+
+        if ((now - rate.mWindowStart) >= 1000) {
+            reportSuppressedLogs(tag, rate);
+            rate.mWindowStart = now;
+            rate.mCount = 0;
+        }
+
+        rate.mCount++;
+
+        if (rate.mCount > sMaxLogsPerTagPerSecond) {
+            rate.mSuppressedCount++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Log the number of logs suppressed by a tag rate limit. Must be called with sQueueLock.
+     * @param tag the tag
+     * @param rate the tag rate
+     */
+    private static void reportSuppressedLogs(String tag, TagRate rate) {
+        if (0 != rate.mSuppressedCount) {
+            enqueue(System.currentTimeMillis(), "W", tag, rate.mSuppressedCount + " logs suppressed");
+            rate.mSuppressedCount = 0;
+        }
+    }
+
+    /**
+     * Start the thread which writes the queued logs.
+     */
+    private static synchronized void startWriterThread() {
+        if (null != sWriterThread) {
+            return;
+        }
+
+        sWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (sQueueLock) {
+                        while (0 == sQueueSize) {
+                            try {
+                                sQueueLock.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+
+                    flush();
+                }
+            }
+        }, "Log writer");
+        sWriterThread.setPriority(Thread.MIN_PRIORITY);
+        sWriterThread.setDaemon(true);
+        sWriterThread.start();
+    }
+
+    /**
+     * Write the queued logs in the log files.
+     */
+    public static void flush() {
+        synchronized (sWriteLock) {
+            while (true) {
+                List<LogRecord> records = new ArrayList<>();
+                int batchSize = 0;
+
+                synchronized (sQueueLock) {
+                    long now = System.currentTimeMillis();
+
+                    // the tags which stopped logging
+                    for (Map.Entry<String, TagRate> entry : sTagRates.entrySet()) {
+                        if ((now - entry.getValue().mWindowStart) >= 1000) {
+                            reportSuppressedLogs(entry.getKey(), entry.getValue());
+                        }
+                    }
+
+                    if (0 != sDroppedCount) {
+                        records.add(new LogRecord(Level.INFO, Thread.currentThread().getId() + " W/" + LOG_TAG + ": " + sDroppedCount + " logs dropped"));
+                        sDroppedCount = 0;
+                    }
+
+                    while ((sQueueSize > 0) && (batchSize < FLUSH_BATCH_SIZE)) {
+                        LogEntry entry = sQueue[sQueueHead];
+                        LogEntry batchEntry = sWriteBatch[batchSize++];
+
+                        batchEntry.mTs = entry.mTs;
+                        batchEntry.mThreadId = entry.mThreadId;
+                        batchEntry.mLevel = entry.mLevel;
+                        batchEntry.mTag = entry.mTag;
+                        batchEntry.mContent = entry.mContent;
+
+                        // release the references
+                        entry.mTag = null;
+                        entry.mContent = null;
+
+                        sQueueHead = (sQueueHead + 1) % QUEUE_CAPACITY;
+                        sQueueSize--;
+                    }
+                }
+
+                if (records.isEmpty() && (0 == batchSize)) {
+                    return;
+                }
+
+                // the strings are built out of the callers threads and out of the queue lock
+                for (int i = 0; i < batchSize; i++) {
+                    LogEntry entry = sWriteBatch[i];
+
+                    StringBuilder b = new StringBuilder();
+                    b.append(entry.mThreadId);
+                    b.append(" ");
+                    b.append(entry.mLevel);
+                    b.append("/");
+                    b.append(entry.mTag);
+                    b.append(": ");
+                    b.append(entry.mContent);
+
+                    LogRecord record = new LogRecord(Level.INFO, b.toString());
+                    record.setMillis(entry.mTs);
+                    records.add(record);
+
+                    entry.mTag = null;
+                    entry.mContent = null;
+                }
+
+                for (LogRecord record : records) {
+                    sLogger.log(record);
+                }
+            }
+        }
     }
     
+    /**
+     * Close the log files and restore the default settings.
+     */
+    static void reset() {
+        flush();
+
+        synchronized (sQueueLock) {
+            sQueueHead = 0;
+            sQueueSize = 0;
+            sDroppedCount = 0;
+            sTagRates.clear();
+            sMaxLogsPerTagPerSecond = DEFAULT_MAX_LOGS_PER_TAG_PER_SECOND;
+        }
+
+        if (null != sFileHandler) {
+            sLogger.removeHandler(sFileHandler);
+            sFileHandler.close();
+            sFileHandler = null;
+        }
+
+        sCacheDirectory = null;
+        sFileName = "matrix";
+        sLogSizeBytes = LOG_SIZE_BYTES;
+        sLogRotationCount = LOG_ROTATION_COUNT;
+        sLogLevel = VERBOSE;
+    }
+
     /**
      * Log events which can be automatically analysed
      * @param tag the EventTag
@@ -154,51 +490,91 @@ public class Log {
     }
 
     public static void v(String tag, String content) {
+        if (!isLoggable(VERBOSE)) {
+            return;
+        }
+
         android.util.Log.v(tag, content);
         logToFile("V", tag, content);
     }
     
     public static void v(String tag, String content, Throwable throwable) {
+        if (!isLoggable(VERBOSE)) {
+            return;
+        }
+
         android.util.Log.v(tag, content, throwable);
         logToFile("V", tag, content);
     }
     
     public static void d(String tag, String content) {
+        if (!isLoggable(DEBUG)) {
+            return;
+        }
+
         android.util.Log.d(tag, content);
         logToFile("D", tag, content);
     }
     
     public static void d(String tag, String content, Throwable throwable) {
+        if (!isLoggable(DEBUG)) {
+            return;
+        }
+
         android.util.Log.d(tag, content, throwable);
         logToFile("D", tag, content);
     }
     
     public static void i(String tag, String content) {
+        if (!isLoggable(INFO)) {
+            return;
+        }
+
         android.util.Log.i(tag, content);
         logToFile("I", tag, content);
     }
     
     public static void i(String tag, String content, Throwable throwable) {
+        if (!isLoggable(INFO)) {
+            return;
+        }
+
         android.util.Log.i(tag, content, throwable);
         logToFile("I", tag, content);
     }
     
     public static void w(String tag, String content) {
+        if (!isLoggable(WARN)) {
+            return;
+        }
+
         android.util.Log.w(tag, content);
         logToFile("W", tag, content);
     }
     
     public static void w(String tag, String content, Throwable throwable) {
+        if (!isLoggable(WARN)) {
+            return;
+        }
+
         android.util.Log.w(tag, content, throwable);
         logToFile("W", tag, content);
     }
     
     public static void e(String tag, String content) {
+        if (!isLoggable(ERROR)) {
+            return;
+        }
+
         android.util.Log.e(tag, content);
         logToFile("E", tag, content);
     }
     
     public static void e(String tag, String content, Throwable throwable) {
+        if (!isLoggable(ERROR)) {
+            return;
+        }
+
         android.util.Log.e(tag, content, throwable);
         logToFile("E", tag, content);
     }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The SDK memory governor.
+ * The memory caches register to it, and they are trimmed by priority when the system reports a memory pressure
+ * (ComponentCallbacks2.onTrimMemory()).
+ * The governor is shared by the sessions of the application process.
+ */
+public class MXMemoryGovernor implements ComponentCallbacks2 {
+    private static final String LOG_TAG = MXMemoryGovernor.class.getSimpleName();
+
+    /**
+     * A memory cache which can be trimmed.
+     */
+    public interface ITrimmableCache {
+        /**
+         * @return the cache name, it ends with the size unit (e.g. "_bytes", "_count")
+         */
+        String getName();
+
+        /**
+         * @return the retained size
+         */
+        long getRetainedSize();
+
+        /**
+         * Release some memory.
+         * The cache decides how much memory is released according to the trim level.
+         *
+         * @param level the ComponentCallbacks2 trim level
+         */
+        void trim(int level);
+    }
+
+    // the data which can be released without any cost (e.g. decoded bitmaps)
+    public static final int PRIORITY_EXPENDABLE = 0;
+    // the data which can be retrieved again from the server (e.g. the left rooms)
+    public static final int PRIORITY_REBUILDABLE = 1;
+    // the data which can be reloaded from the file system (e.g. the inbound group sessions)
+    public static final int PRIORITY_RELOADABLE = 2;
+    // the data which is only reported, it is never trimmed
+    public static final int PRIORITY_REQUIRED = 3;
+
+    private static class Registration {
+        final ITrimmableCache mCache;
+        final int mPriority;
+
+        Registration(ITrimmableCache cache, int priority) {
+            mCache = cache;
+            mPriority = priority;
+        }
+    }
+
+    private static final MXMemoryGovernor sInstance = new MXMemoryGovernor();
+
+    // the registrations sorted by priority
+    private static final List<Registration> sRegistrations = new ArrayList<>();
+
+    private static boolean sIsAttached = false;
+
+    private MXMemoryGovernor() {
+    }
+
+    /**
+     * Listen to the system memory callbacks.
+     * It is done only once per application process.
+     *
+     * @param context the context
+     */
+    public static void attach(Context context) {
+        synchronized (sRegistrations) {
+            if (!sIsAttached && (null != context)) {
+                context.getApplicationContext().registerComponentCallbacks(sInstance);
+                sIsAttached = true;
+            }
+        }
+    }
+
+    /**
+     * Register a cache.
+     *
+     * @param cache    the cache
+     * @param priority the cache priority, the lowest priorities are trimmed first
+     */
+    public static void register(ITrimmableCache cache, int priority) {
+        if (null == cache) {
+            return;
+        }
+
+        synchronized (sRegistrations) {
+            for (Registration registration : sRegistrations) {
+                if (registration.mCache == cache) {
+                    return;
+                }
+            }
+
+            int position = 0;
+
+            while ((position < sRegistrations.size()) && (sRegistrations.get(position).mPriority <= priority)) {
+                position++;
+            }
+
+            sRegistrations.add(position, new Registration(cache, priority));
+        }
+    }
+
+    /**
+     * Unregister a cache.
+     *
+     * @param cache the cache
+     */
+    public static void unregister(ITrimmableCache cache) {
+        synchronized (sRegistrations) {
+            for (int i = 0; i < sRegistrations.size(); i++) {
+                if (sRegistrations.get(i).mCache == cache) {
+                    sRegistrations.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides the highest priority which is trimmed for a trim level.
+     *
+     * @param level the ComponentCallbacks2 trim level
+     * @return the highest trimmed priority, -1 if nothing should be trimmed
+     */
+    static int getMaxTrimmedPriority(int level) {
+        if ((level >= TRIM_MEMORY_BACKGROUND) || (level == TRIM_MEMORY_RUNNING_CRITICAL)) {
+            return PRIORITY_RELOADABLE;
+        } else if ((level >= TRIM_MEMORY_UI_HIDDEN) || (level == TRIM_MEMORY_RUNNING_LOW)) {
+            return PRIORITY_REBUILDABLE;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return PRIORITY_EXPENDABLE;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Trim the registered caches.
+     * The caches are trimmed from the lowest priority to the highest trimmed priority of the level.
+     *
+     * @param level the ComponentCallbacks2 trim level
+     */
+    public static void trim(int level) {
+        int maxPriority = getMaxTrimmedPriority(level);
+        List<Registration> registrations;
+
+        synchronized (sRegistrations) {
+            registrations = new ArrayList<>(sRegistrations);
+        }
+
+        StringBuilder report = new StringBuilder();
+
+        for (Registration registration : registrations) {
+            if (registration.mPriority > maxPriority) {
+                break;
+            }
+
+            try {
+                long sizeBefore = registration.mCache.getRetainedSize();
+                registration.mCache.trim(level);
+                long sizeAfter = registration.mCache.getRetainedSize();
+
+                report.append(" ").append(registration.mCache.getName()).append(" ").append(sizeBefore).append(" -> ").append(sizeAfter);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## trim() : failed to trim " + registration.mCache.getName() + " " + e.getMessage());
+            }
+        }
+
+        Log.d(LOG_TAG, "## trim() : level " + level + report);
+    }
+
+    /**
+     * Provides the retained sizes of the registered caches.
+     * The sizes of the caches with the same name (e.g. one per session) are added.
+     *
+     * @return the retained sizes by cache name
+     */
+    public static JsonObject getRetainedSizes() {
+        List<Registration> registrations;
+
+        synchronized (sRegistrations) {
+            registrations = new ArrayList<>(sRegistrations);
+        }
+
+        Map<String, Long> sizes = new TreeMap<>();
+
+        for (Registration registration : registrations) {
+            try {
+                String name = registration.mCache.getName();
+                Long size = sizes.get(name);
+                sizes.put(name, ((null != size) ? size : 0L) + registration.mCache.getRetainedSize());
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## getRetainedSizes() : failed " + e.getMessage());
+            }
+        }
+
+        JsonObject json = new JsonObject();
+
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            json.addProperty(entry.getKey(), entry.getValue());
+        }
+
+        return json;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        trim(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // NOP
+    }
+}
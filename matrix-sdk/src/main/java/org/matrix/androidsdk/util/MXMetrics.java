@@ -0,0 +1,423 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The SDK metrics registry.
+ * The metrics are created once (they should be kept in static fields by the measured classes),
+ * then they are updated without lock nor allocation.
+ * The metric names end with their unit (e.g. "_ms", "_us", "_bytes").
+ */
+public class MXMetrics {
+    private static final Map<String, Counter> sCounters = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> sGauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    // the metrics are not updated when disabled
+    private static volatile boolean sIsEnabled = true;
+
+    /**
+     * A monotonic counter.
+     */
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        /**
+         * Increment the counter.
+         */
+        public void inc() {
+            if (sIsEnabled) {
+                mValue.incrementAndGet();
+            }
+        }
+
+        /**
+         * Add a value to the counter.
+         *
+         * @param value the value
+         */
+        public void add(long value) {
+            if (sIsEnabled) {
+                mValue.addAndGet(value);
+            }
+        }
+
+        /**
+         * @return the counter value
+         */
+        public long get() {
+            return mValue.get();
+        }
+
+        private void reset() {
+            mValue.set(0);
+        }
+    }
+
+    /**
+     * A value which can go up and down (e.g. a queue depth).
+     */
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        /**
+         * Set the gauge value.
+         *
+         * @param value the value
+         */
+        public void set(long value) {
+            if (sIsEnabled) {
+                mValue.set(value);
+            }
+        }
+
+        /**
+         * Increment the gauge.
+         */
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        /**
+         * Decrement the gauge.
+         * The gauges are updated even when the metrics are disabled to keep the inc / dec pairs balanced.
+         */
+        public void dec() {
+            mValue.decrementAndGet();
+        }
+
+        /**
+         * @return the gauge value
+         */
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * A values distribution.
+     * The values are counted in log-linear buckets : each power of 2 is split in 8 buckets,
+     * so the percentiles are provided with a relative error lower than 12.5%.
+     */
+    public static class Histogram {
+        // the number of buckets per power of 2
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS_COUNT;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS_COUNT);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        /**
+         * Provides the bucket of a value.
+         *
+         * @param value the value, positive or zero
+         * @return the bucket index
+         */
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS_COUNT) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS_COUNT - 1);
+
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS_COUNT + subBucket;
+        }
+
+        /**
+         * Provides the highest value of a bucket.
+         *
+         * @param index the bucket index
+         * @return the highest value
+         */
+        static long bucketHighestValue(int index) {
+            if (index < SUB_BUCKETS_COUNT) {
+                return index;
+            }
+
+            int exponent = (index / SUB_BUCKETS_COUNT) + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS_COUNT;
+            long shift = exponent - SUB_BUCKET_BITS;
+
+            // avoid overflowing for the last bucket
+            return ((SUB_BUCKETS_COUNT + subBucket) << shift) + ((1L << shift) - 1);
+        }
+
+        /**
+         * Record a value.
+         *
+         * @param value the value, a negative value is recorded as 0
+         */
+        public void record(long value) {
+            if (!sIsEnabled) {
+                return;
+            }
+
+            if (value < 0) {
+                value = 0;
+            }
+
+            mBuckets.incrementAndGet(bucketIndex(value));
+            mSum.addAndGet(value);
+
+            long min = mMin.get();
+            while ((value < min) && !mMin.compareAndSet(min, value)) {
+                min = mMin.get();
+            }
+
+            long max = mMax.get();
+            while ((value > max) && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Record the time elapsed since a start time, in milliseconds.
+         *
+         * @param startTimeNs the start time, provided by System.nanoTime()
+         */
+        public void recordElapsedMs(long startTimeNs) {
+            record((System.nanoTime() - startTimeNs) / 1000000L);
+        }
+
+        /**
+         * Record the time elapsed since a start time, in microseconds.
+         *
+         * @param startTimeNs the start time, provided by System.nanoTime()
+         */
+        public void recordElapsedUs(long startTimeNs) {
+            record((System.nanoTime() - startTimeNs) / 1000L);
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            long count = 0;
+
+            for (int i = 0; i < BUCKETS_COUNT; i++) {
+                count += mBuckets.get(i);
+            }
+
+            return count;
+        }
+
+        /**
+         * Provides a percentile.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the highest value of the percentile bucket, 0 if there is no value
+         */
+        public long getPercentile(double percentile) {
+            long[] buckets = new long[BUCKETS_COUNT];
+            long count = 0;
+
+            for (int i = 0; i < BUCKETS_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+
+            if (0 == count) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long cumulatedCount = 0;
+
+            for (int i = 0; i < BUCKETS_COUNT; i++) {
+                cumulatedCount += buckets[i];
+
+                if (cumulatedCount >= rank) {
+                    return Math.min(bucketHighestValue(i), mMax.get());
+                }
+            }
+
+            return mMax.get();
+        }
+
+        /**
+         * @return the values snapshot
+         */
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            long count = getCount();
+
+            json.addProperty("count", count);
+
+            if (count > 0) {
+                json.addProperty("min", mMin.get());
+                json.addProperty("max", mMax.get());
+                json.addProperty("mean", mSum.get() / count);
+                json.addProperty("p50", getPercentile(50));
+                json.addProperty("p90", getPercentile(90));
+                json.addProperty("p99", getPercentile(99));
+            }
+
+            return json;
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+
+            mSum.set(0);
+            mMin.set(Long.MAX_VALUE);
+            mMax.set(Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Provides a counter, it is created if it does not exist.
+     *
+     * @param name the counter name
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+
+        if (null == counter) {
+            synchronized (sCounters) {
+                counter = sCounters.get(name);
+
+                if (null == counter) {
+                    counter = new Counter();
+                    sCounters.put(name, counter);
+                }
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Provides a gauge, it is created if it does not exist.
+     *
+     * @param name the gauge name
+     * @return the gauge
+     */
+    public static Gauge gauge(String name) {
+        Gauge gauge = sGauges.get(name);
+
+        if (null == gauge) {
+            synchronized (sGauges) {
+                gauge = sGauges.get(name);
+
+                if (null == gauge) {
+                    gauge = new Gauge();
+                    sGauges.put(name, gauge);
+                }
+            }
+        }
+
+        return gauge;
+    }
+
+    /**
+     * Provides a histogram, it is created if it does not exist.
+     *
+     * @param name the histogram name
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = sHistograms.get(name);
+
+        if (null == histogram) {
+            synchronized (sHistograms) {
+                histogram = sHistograms.get(name);
+
+                if (null == histogram) {
+                    histogram = new Histogram();
+                    sHistograms.put(name, histogram);
+                }
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Enable or disable the metrics updates.
+     *
+     * @param isEnabled true to enable them
+     */
+    public static void setEnabled(boolean isEnabled) {
+        sIsEnabled = isEnabled;
+    }
+
+    /**
+     * @return true if the metrics are updated
+     */
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    /**
+     * Reset the counters and the histograms.
+     * The gauges are kept because they reflect a current state.
+     */
+    public static void reset() {
+        for (Counter counter : sCounters.values()) {
+            counter.reset();
+        }
+
+        for (Histogram histogram : sHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Provides a snapshot of the metrics.
+     * The format is {"counters": {name: value}, "gauges": {name: value}, "histograms": {name: {"count", "min", "max", "mean", "p50", "p90", "p99"}}}.
+     *
+     * @return the metrics snapshot
+     */
+    public static JsonObject getSnapshot() {
+        JsonObject snapshot = new JsonObject();
+
+        JsonObject counters = new JsonObject();
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(sCounters).entrySet()) {
+            counters.addProperty(entry.getKey(), entry.getValue().get());
+        }
+        snapshot.add("counters", counters);
+
+        JsonObject gauges = new JsonObject();
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(sGauges).entrySet()) {
+            gauges.addProperty(entry.getKey(), entry.getValue().get());
+        }
+        snapshot.add("gauges", gauges);
+
+        JsonObject histograms = new JsonObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(sHistograms).entrySet()) {
+            histograms.add(entry.getKey(), entry.getValue().toJson());
+        }
+        snapshot.add("histograms", histograms);
+
+        return snapshot;
+    }
+}
@@ -61,4 +61,39 @@ public class MXOsHandler {
 
         return result;
     }
+
+    /**
+     * Post a runnable after a delay
+     *
+     * @param r           the runnable
+     * @param delayMillis the delay in milliseconds
+     * @return true if the runnable is placed
+     */
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        boolean result = mHandler.postDelayed(r, delayMillis);
+
+        if (result && (null != mPostListener)) {
+            mPostListener.onPost(mHandler.getLooper());
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove the pending posts of a runnable
+     *
+     * @param r the runnable
+     */
+    public void removeCallbacks(Runnable r) {
+        mHandler.removeCallbacks(r);
+    }
+
+    /**
+     * Remove the pending posts of the runnables and the messages whose object is token.
+     *
+     * @param token the token, null to remove all of them
+     */
+    public void removeCallbacksAndMessages(Object token) {
+        mHandler.removeCallbacksAndMessages(token);
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto.algorithms.megolm;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMegolmEncryptionTest {
+
+    private static HashMap<String, ArrayList<MXDeviceInfo>> buildDevices(int usersCount, int devicesPerUser) {
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers = new HashMap<>();
+
+        for (int i = 0; i < usersCount; i++) {
+            ArrayList<MXDeviceInfo> devices = new ArrayList<>();
+
+            for (int j = 0; j < devicesPerUser; j++) {
+                devices.add(new MXDeviceInfo("DEVICE" + j));
+            }
+
+            devicesByUsers.put("@user" + i + ":matrix.org", devices);
+        }
+
+        return devicesByUsers;
+    }
+
+    private static int countDevices(HashMap<String, ArrayList<MXDeviceInfo>> chunk) {
+        int count = 0;
+
+        for (ArrayList<MXDeviceInfo> devices : chunk.values()) {
+            count += devices.size();
+        }
+
+        return count;
+    }
+
+    private static void checkUsers(HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers, List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks) {
+        Set<String> userIds = new HashSet<>();
+
+        for (HashMap<String, ArrayList<MXDeviceInfo>> chunk : chunks) {
+            for (String userId : chunk.keySet()) {
+                // each user is in a single chunk
+                assertTrue(userIds.add(userId));
+                assertSame(devicesByUsers.get(userId), chunk.get(userId));
+            }
+        }
+
+        assertEquals(devicesByUsers.keySet(), userIds);
+    }
+
+    @Test
+    public void testEmptyChunks() {
+        assertTrue(MXMegolmEncryption.splitInChunks(new HashMap<String, ArrayList<MXDeviceInfo>>(), 100).isEmpty());
+    }
+
+    @Test
+    public void testExactMultipleChunks() {
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers = buildDevices(4, 50);
+        List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = MXMegolmEncryption.splitInChunks(devicesByUsers, 100);
+
+        assertEquals(2, chunks.size());
+        assertEquals(100, countDevices(chunks.get(0)));
+        assertEquals(100, countDevices(chunks.get(1)));
+        checkUsers(devicesByUsers, chunks);
+    }
+
+    @Test
+    public void testRemainderChunk() {
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers = buildDevices(250, 1);
+        List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = MXMegolmEncryption.splitInChunks(devicesByUsers, 100);
+
+        assertEquals(3, chunks.size());
+        assertEquals(100, countDevices(chunks.get(0)));
+        assertEquals(100, countDevices(chunks.get(1)));
+        assertEquals(50, countDevices(chunks.get(2)));
+        checkUsers(devicesByUsers, chunks);
+    }
+
+    @Test
+    public void testUserWithManyDevices() {
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers = buildDevices(1, 150);
+
+        ArrayList<MXDeviceInfo> devices = new ArrayList<>();
+        devices.add(new MXDeviceInfo("DEVICE"));
+        devicesByUsers.put("@bob:matrix.org", devices);
+
+        List<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = MXMegolmEncryption.splitInChunks(devicesByUsers, 100);
+
+        // the devices of a user are not split
+        assertEquals(2, chunks.size());
+        assertEquals(151, countDevices(chunks.get(0)) + countDevices(chunks.get(1)));
+        checkUsers(devicesByUsers, chunks);
+    }
+}
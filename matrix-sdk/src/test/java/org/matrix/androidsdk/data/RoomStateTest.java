@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomStateTest {
+
+    private RoomState mRoomState;
+
+    private static RoomMember createMember(String userId, String displayName) {
+        RoomMember member = new RoomMember();
+        member.setUserId(userId);
+        member.displayname = displayName;
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+        return member;
+    }
+
+    @Before
+    public void setUp() {
+        mRoomState = new RoomState();
+        mRoomState.roomId = "!room:matrix.org";
+    }
+
+    @Test
+    public void testUniqueDisplayName() {
+        mRoomState.setMember("@alice:matrix.org", createMember("@alice:matrix.org", "Alice"));
+
+        assertEquals("Alice", mRoomState.getMemberName("@alice:matrix.org"));
+    }
+
+    @Test
+    public void testDisambiguationIsUpdated() {
+        mRoomState.setMember("@alice:matrix.org", createMember("@alice:matrix.org", "Alice"));
+        assertEquals("Alice", mRoomState.getMemberName("@alice:matrix.org"));
+
+        // a second Alice joins
+        mRoomState.setMember("@alice:example.org", createMember("@alice:example.org", "Alice"));
+        assertEquals("Alice (@alice:matrix.org)", mRoomState.getMemberName("@alice:matrix.org"));
+        assertEquals("Alice (@alice:example.org)", mRoomState.getMemberName("@alice:example.org"));
+
+        // she renames herself
+        mRoomState.setMember("@alice:example.org", createMember("@alice:example.org", "Alice2"));
+        assertEquals("Alice", mRoomState.getMemberName("@alice:matrix.org"));
+        assertEquals("Alice2", mRoomState.getMemberName("@alice:example.org"));
+
+        // she comes back with the same name, then she is removed
+        mRoomState.setMember("@alice:example.org", createMember("@alice:example.org", "Alice"));
+        assertEquals("Alice (@alice:matrix.org)", mRoomState.getMemberName("@alice:matrix.org"));
+
+        mRoomState.removeMember("@alice:example.org");
+        assertEquals("Alice", mRoomState.getMemberName("@alice:matrix.org"));
+    }
+
+    @Test
+    public void testRoomNameIsBounded() {
+        mRoomState.setMember("@me:matrix.org", createMember("@me:matrix.org", "Me"));
+
+        for (int i = 0; i < 20; i++) {
+            String userId = "@user" + i + ":matrix.org";
+            mRoomState.setMember(userId, createMember(userId, "User " + i));
+        }
+
+        String displayName = mRoomState.getDisplayName("@me:matrix.org");
+
+        assertTrue(displayName.startsWith("(20) "));
+        assertTrue(displayName.endsWith(", ..."));
+        assertFalse(displayName.contains("Me"));
+        assertEquals(5, displayName.split(", ").length - 1);
+    }
+
+    @Test
+    public void testMembershipViews() {
+        RoomMember invited = createMember("@bob:matrix.org", "Bob");
+        invited.membership = RoomMember.MEMBERSHIP_INVITE;
+
+        RoomMember left = createMember("@carl:matrix.org", "Carl");
+        left.membership = RoomMember.MEMBERSHIP_LEAVE;
+
+        mRoomState.setMember("@alice:matrix.org", createMember("@alice:matrix.org", "Alice"));
+        mRoomState.setMember("@bob:matrix.org", invited);
+        mRoomState.setMember("@carl:matrix.org", left);
+
+        assertEquals(3, mRoomState.getMembers().size());
+        assertEquals(1, mRoomState.getReadOnlyJoinedMembers().size());
+        assertEquals(1, mRoomState.getReadOnlyInvitedMembers().size());
+        assertEquals(2, mRoomState.getReadOnlyActiveMembers().size());
+        assertEquals(3, mRoomState.getReadOnlyDisplayableMembers().size());
+
+        // the views are reused while the members do not change
+        assertSame(mRoomState.getReadOnlyJoinedMembers(), mRoomState.getReadOnlyJoinedMembers());
+
+        // the former getters still return copies
+        mRoomState.getMembers().clear();
+        mRoomState.getDisplayableMembers().clear();
+        assertEquals(3, mRoomState.getReadOnlyMembers().size());
+        assertEquals(3, mRoomState.getReadOnlyDisplayableMembers().size());
+    }
+
+    @Test
+    public void testMembershipViewsAreRebuilt() {
+        mRoomState.setMember("@alice:matrix.org", createMember("@alice:matrix.org", "Alice"));
+
+        int version = mRoomState.getMembershipVersion();
+        Collection<RoomMember> joinedMembers = mRoomState.getReadOnlyJoinedMembers();
+
+        mRoomState.setMember("@bob:matrix.org", createMember("@bob:matrix.org", "Bob"));
+
+        assertTrue(mRoomState.getMembershipVersion() > version);
+        assertNotSame(joinedMembers, mRoomState.getReadOnlyJoinedMembers());
+        assertEquals(2, mRoomState.getReadOnlyJoinedMembers().size());
+
+        // removing an unknown member does not invalidate the views
+        version = mRoomState.getMembershipVersion();
+        mRoomState.removeMember("@unknown:matrix.org");
+        assertEquals(version, mRoomState.getMembershipVersion());
+
+        mRoomState.removeMember("@bob:matrix.org");
+        assertEquals(1, mRoomState.getReadOnlyJoinedMembers().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMembershipViewsAreReadOnly() {
+        mRoomState.setMember("@alice:matrix.org", createMember("@alice:matrix.org", "Alice"));
+
+        mRoomState.getReadOnlyMembers().clear();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeServerConnectionConfig;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private MXFileStore mStore;
+
+    private static Event createEvent(String eventId, long ts) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.sender = "@bob:matrix.org";
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.originServerTs = ts;
+        return event;
+    }
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = "@alice:matrix.org";
+        credentials.accessToken = "token";
+
+        mStore = new MXFileStore(new HomeServerConnectionConfig(Uri.parse("http://localhost:8008"), credentials), RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.clear();
+        mStore.close();
+    }
+
+    @Test
+    public void testUpdatedTokenIsSaved() {
+        TokensChunkResponse<Event> response = new TokensChunkResponse<>();
+        response.chunk = new ArrayList<>();
+        response.chunk.add(createEvent("$1", 1000));
+        response.chunk.add(createEvent("$2", 2000));
+        response.chunk.add(createEvent("$3", 3000));
+        response.start = "token0";
+
+        mStore.storeRoomEvents(ROOM_ID, response, EventTimeline.Direction.FORWARDS);
+        mStore.saveRoomMessages(ROOM_ID);
+
+        assertNull(mStore.getEvent("$1", ROOM_ID).mToken);
+
+        // the back pagination from the store sets the token of the oldest event
+        TokensChunkResponse<Event> earlierMessages = mStore.getEarlierMessages(ROOM_ID, null, 1);
+        assertEquals("token0", earlierMessages.end);
+        assertEquals("token0", mStore.getEvent("$1", ROOM_ID).mToken);
+
+        mStore.saveRoomMessages(ROOM_ID);
+
+        // reload the events from the file system
+        assertTrue(mStore.loadRoomMessages(ROOM_ID));
+        assertEquals(3, mStore.getRoomMessages(ROOM_ID).size());
+        assertEquals("token0", mStore.getEvent("$1", ROOM_ID).mToken);
+    }
+}
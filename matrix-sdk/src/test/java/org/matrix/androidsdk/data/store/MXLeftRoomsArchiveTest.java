@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXLeftRoomsArchiveTest {
+
+    private static final String USER_ID = "@alice:matrix.org";
+
+    private MXLeftRoomsArchive mArchive;
+
+    @Before
+    public void setUp() {
+        mArchive = new MXLeftRoomsArchive(RuntimeEnvironment.application, USER_ID);
+        mArchive.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mArchive.clear();
+    }
+
+    private static Event buildEvent(String roomId, String eventId, long ts) {
+        Event event = new Event();
+        event.roomId = roomId;
+        event.eventId = eventId;
+        event.originServerTs = ts;
+        event.setType(Event.EVENT_TYPE_MESSAGE);
+        event.setSender("@bob:matrix.org");
+        return event;
+    }
+
+    private void storeRoom(String roomId, long ts) {
+        RoomState state = new RoomState();
+        state.roomId = roomId;
+
+        Event event = buildEvent(roomId, "$" + ts, ts);
+        mArchive.storeRoom(new RoomSummary(null, event, state, USER_ID), state, Arrays.asList(event), "back_" + roomId);
+    }
+
+    @Test
+    public void testPagedSummaries() {
+        storeRoom("!room1:matrix.org", 1000);
+        storeRoom("!room2:matrix.org", 3000);
+        storeRoom("!room3:matrix.org", 2000);
+
+        assertEquals(3, mArchive.getCount());
+
+        // the latest activity first
+        List<RoomSummary> page = mArchive.getSummaries(0, 2);
+        assertEquals(2, page.size());
+        assertEquals("!room2:matrix.org", page.get(0).getRoomId());
+        assertEquals("!room3:matrix.org", page.get(1).getRoomId());
+
+        page = mArchive.getSummaries(2, 2);
+        assertEquals(1, page.size());
+        assertEquals("!room1:matrix.org", page.get(0).getRoomId());
+
+        assertTrue(mArchive.getSummaries(5, 2).isEmpty());
+
+        // the summaries do not retain the room states
+        assertNull(mArchive.getSummary("!room1:matrix.org").getLatestRoomState());
+    }
+
+    @Test
+    public void testReopen() {
+        storeRoom("!room1:matrix.org", 1000);
+        storeRoom("!room2:matrix.org", 2000);
+        mArchive.setSyncToken("s1234");
+        mArchive.commit();
+
+        MXLeftRoomsArchive archive = new MXLeftRoomsArchive(RuntimeEnvironment.application, USER_ID);
+
+        assertEquals("s1234", archive.getSyncToken());
+        assertEquals(2, archive.getCount());
+        assertTrue(archive.contains("!room1:matrix.org"));
+
+        MXLeftRoomsArchive.ArchivedRoom archivedRoom = archive.loadRoom("!room2:matrix.org");
+        assertNotNull(archivedRoom);
+        assertEquals("!room2:matrix.org", archivedRoom.mState.roomId);
+        assertEquals(1, archivedRoom.mEvents.size());
+        assertEquals("$2000", archivedRoom.mEvents.get(0).eventId);
+        assertEquals("back_!room2:matrix.org", archivedRoom.mBackToken);
+
+        assertNull(archive.loadRoom("!unknown:matrix.org"));
+    }
+
+    @Test
+    public void testDeleteRoom() {
+        storeRoom("!room1:matrix.org", 1000);
+        storeRoom("!room2:matrix.org", 2000);
+        mArchive.commit();
+
+        mArchive.deleteRoom("!room1:matrix.org");
+        mArchive.commit();
+
+        assertFalse(mArchive.contains("!room1:matrix.org"));
+        assertNull(mArchive.loadRoom("!room1:matrix.org"));
+
+        MXLeftRoomsArchive archive = new MXLeftRoomsArchive(RuntimeEnvironment.application, USER_ID);
+        assertEquals(1, archive.getCount());
+        assertNull(archive.getSyncToken());
+    }
+}
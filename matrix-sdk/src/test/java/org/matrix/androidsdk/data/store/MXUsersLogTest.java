@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.User;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXUsersLogTest {
+
+    private File mLogFile;
+    private MXUsersLog mUsersLog;
+
+    @Before
+    public void setUp() {
+        mLogFile = new File(RuntimeEnvironment.application.getFilesDir(), "MXUsersLogTest");
+        mUsersLog = new MXUsersLog(mLogFile);
+        mUsersLog.delete();
+        mUsersLog.open();
+    }
+
+    @After
+    public void tearDown() {
+        mUsersLog.delete();
+    }
+
+    private static User buildUser(String userId, String displayName) {
+        User user = new User();
+        user.user_id = userId;
+        user.displayname = displayName;
+        return user;
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertTrue(mUsersLog.put(Arrays.asList(buildUser("@alice:matrix.org", "Alice"), buildUser("@bob:matrix.org", "Bob"))) > 0);
+
+        // an update only appends the updated user
+        long length = mLogFile.length();
+        long writtenBytes = mUsersLog.put(Arrays.asList(buildUser("@alice:matrix.org", "Alice2")));
+        assertEquals(length + writtenBytes, mLogFile.length());
+
+        assertEquals(2, mUsersLog.getCount());
+        assertEquals("Alice2", mUsersLog.get("@alice:matrix.org").displayname);
+        assertEquals("Bob", mUsersLog.get("@bob:matrix.org").displayname);
+        assertNull(mUsersLog.get("@unknown:matrix.org"));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        mUsersLog.put(Arrays.asList(buildUser("@alice:matrix.org", "Alice"), buildUser("@bob:matrix.org", "Bob")));
+        mUsersLog.put(Arrays.asList(buildUser("@bob:matrix.org", "Bob2")));
+        mUsersLog.close();
+
+        // simulate a record truncated by a crash
+        long length = mLogFile.length();
+        RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+        file.seek(length);
+        file.writeInt(1000);
+        file.writeInt(0);
+        file.close();
+
+        MXUsersLog usersLog = new MXUsersLog(mLogFile);
+        usersLog.open();
+
+        assertEquals(length, mLogFile.length());
+        assertEquals(2, usersLog.getCount());
+        assertTrue(usersLog.contains("@alice:matrix.org"));
+        assertEquals("Bob2", usersLog.get("@bob:matrix.org").displayname);
+
+        usersLog.close();
+    }
+
+    @Test
+    public void testCorruptedRecord() throws Exception {
+        mUsersLog.put(Arrays.asList(buildUser("@alice:matrix.org", "Alice")));
+        mUsersLog.put(Arrays.asList(buildUser("@alice:matrix.org", "Alice2")));
+        long corruptedRecordEnd = mLogFile.length();
+        mUsersLog.put(Arrays.asList(buildUser("@bob:matrix.org", "Bob")));
+        mUsersLog.close();
+
+        // corrupt the end of the second record body
+        RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+        file.seek(corruptedRecordEnd - 1);
+        int value = file.read();
+        file.seek(corruptedRecordEnd - 1);
+        file.write(value ^ 0xFF);
+        file.close();
+
+        long length = mLogFile.length();
+
+        MXUsersLog usersLog = new MXUsersLog(mLogFile);
+        usersLog.open();
+
+        // the corrupted record is ignored, the next ones are kept
+        assertEquals(length, mLogFile.length());
+        assertEquals(2, usersLog.getCount());
+        assertEquals("Alice", usersLog.get("@alice:matrix.org").displayname);
+        assertEquals("Bob", usersLog.get("@bob:matrix.org").displayname);
+
+        usersLog.close();
+    }
+
+    @Test
+    public void testCompaction() {
+        List<User> users = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            users.add(buildUser("@user" + i + ":matrix.org", "User " + i));
+        }
+
+        // nothing to compact
+        mUsersLog.put(users);
+        assertFalse(mUsersLog.compactIfNeeded());
+
+        while (mLogFile.length() < 1024 * 1024) {
+            mUsersLog.put(users);
+        }
+
+        long length = mLogFile.length();
+        assertTrue(mUsersLog.compactIfNeeded());
+        assertTrue(mLogFile.length() < length);
+
+        assertEquals(100, mUsersLog.getCount());
+        assertEquals("User 42", mUsersLog.get("@user42:matrix.org").displayname);
+
+        mUsersLog.open();
+        assertEquals(100, mUsersLog.getCount());
+        assertEquals("User 99", mUsersLog.get("@user99:matrix.org").displayname);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomMessagesChunksTest {
+
+    private RoomMessagesChunks mChunks;
+    private List<Event> mEvents;
+
+    private static Event createEvent(int index) {
+        Event event = new Event();
+        event.eventId = "$event" + index;
+        return event;
+    }
+
+    private static List<Event> createEvents(int from, int to) {
+        List<Event> events = new ArrayList<>();
+
+        for (int i = from; i < to; i++) {
+            events.add(createEvent(i));
+        }
+
+        return events;
+    }
+
+    @Before
+    public void setUp() {
+        mChunks = new RoomMessagesChunks();
+        mEvents = createEvents(0, 120);
+    }
+
+    @Test
+    public void testInitialSave() {
+        RoomMessagesChunks.Update update = mChunks.update(mEvents, new HashSet<String>());
+
+        assertEquals(3, update.mChunksToWrite.size());
+        assertTrue(update.mChunksToDelete.isEmpty());
+        assertEquals(3, mChunks.getChunksCount());
+    }
+
+    @Test
+    public void testLiveEventsOnlyRewriteTheLatestChunk() {
+        mChunks.update(mEvents, new HashSet<String>());
+
+        mEvents.add(createEvent(120));
+        RoomMessagesChunks.Update update = mChunks.update(mEvents, new HashSet<String>());
+
+        // the partial latest chunk is replaced
+        assertEquals(1, update.mChunksToWrite.size());
+        assertEquals(1, update.mChunksToDelete.size());
+        assertEquals(21, update.mChunksToWrite.values().iterator().next().size());
+    }
+
+    @Test
+    public void testBackPaginatedEventsAreSavedInOlderChunks() {
+        mChunks.update(mEvents, new HashSet<String>());
+
+        List<Event> events = createEvents(-60, 0);
+        events.addAll(mEvents);
+
+        RoomMessagesChunks.Update update = mChunks.update(events, new HashSet<String>());
+
+        assertEquals(2, update.mChunksToWrite.size());
+        assertTrue(update.mChunksToDelete.isEmpty());
+
+        // the new chunks are before the existing ones
+        long firstChunkId = update.mChunksToWrite.keySet().iterator().next();
+        assertTrue(firstChunkId < 0);
+        assertTrue(update.mChunksToWrite.get(firstChunkId).containsKey("$event-60"));
+    }
+
+    @Test
+    public void testDirtyEventRewritesItsChunk() {
+        mChunks.update(mEvents, new HashSet<String>());
+
+        RoomMessagesChunks.Update update = mChunks.update(mEvents, new HashSet<>(Collections.singletonList("$event10")));
+
+        assertEquals(1, update.mChunksToWrite.size());
+        assertTrue(update.mChunksToWrite.values().iterator().next().containsKey("$event10"));
+        assertEquals(1, update.mChunksToDelete.size());
+    }
+
+    @Test
+    public void testTrimmedEventsAreDeleted() {
+        mChunks.update(mEvents, new HashSet<String>());
+
+        RoomMessagesChunks.Update update = mChunks.update(mEvents.subList(50, 120), new HashSet<String>());
+
+        assertTrue(update.mChunksToWrite.isEmpty());
+        assertEquals(1, update.mChunksToDelete.size());
+        assertEquals(2, mChunks.getChunksCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        mChunks.update(mEvents, new HashSet<String>());
+        mChunks.invalidate();
+
+        RoomMessagesChunks.Update update = mChunks.update(mEvents, new HashSet<String>());
+
+        assertEquals(3, update.mChunksToWrite.size());
+        assertEquals(3, update.mChunksToDelete.size());
+
+        // the new chunks do not override the deprecated ones
+        for (Long chunkId : update.mChunksToDelete) {
+            assertFalse(update.mChunksToWrite.containsKey(chunkId));
+        }
+    }
+
+    @Test
+    public void testUnchangedTimeline() {
+        mChunks.update(mEvents, new HashSet<String>());
+
+        assertTrue(mChunks.update(mEvents, new HashSet<String>()).isEmpty());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomReceiptsTest {
+
+    private final RoomReceipts roomReceipts = new RoomReceipts();
+
+    @Test
+    public void testEventReceipts() {
+        roomReceipts.put(new ReceiptData("@alice:matrix.org", "$event1", 1));
+        roomReceipts.put(new ReceiptData("@bob:matrix.org", "$event1", 2));
+        roomReceipts.put(new ReceiptData("@carol:matrix.org", "$event2", 3));
+
+        assertEquals(2, roomReceipts.getEventReceipts("$event1", null).size());
+        assertEquals(1, roomReceipts.getEventReceipts("$event2", null).size());
+        assertTrue(roomReceipts.getEventReceipts("$event3", null).isEmpty());
+        assertEquals(3, roomReceipts.getReceipts().size());
+
+        List<ReceiptData> receipts = roomReceipts.getEventReceipts("$event1", "@alice:matrix.org");
+        assertEquals(1, receipts.size());
+        assertEquals("@bob:matrix.org", receipts.get(0).userId);
+    }
+
+    @Test
+    public void testReceiptUpdate() {
+        roomReceipts.put(new ReceiptData("@alice:matrix.org", "$event1", 1));
+        roomReceipts.put(new ReceiptData("@alice:matrix.org", "$event2", 2));
+
+        assertTrue(roomReceipts.getEventReceipts("$event1", null).isEmpty());
+        assertEquals(1, roomReceipts.getEventReceipts("$event2", null).size());
+        assertEquals("$event2", roomReceipts.get("@alice:matrix.org").eventId);
+        assertEquals(1, roomReceipts.getReceipts().size());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomSummariesIndexTest {
+
+    private RoomSummariesIndex mIndex;
+    private final List<String> mChanges = new ArrayList<>();
+
+    private static RoomSummary createSummary(String roomId, long ts) {
+        Event event = new Event();
+        event.eventId = "$" + roomId + ts;
+        event.originServerTs = ts;
+
+        RoomSummary summary = new RoomSummary();
+        summary.setRoomId(roomId);
+        summary.setLatestReceivedEvent(event);
+        return summary;
+    }
+
+    @Before
+    public void setUp() {
+        mIndex = new RoomSummariesIndex();
+        mChanges.clear();
+
+        mIndex.addListener(new RoomSummariesIndex.IRoomSummariesIndexListener() {
+            @Override
+            public void onSummaryInserted(RoomSummary summary, int position) {
+                mChanges.add("insert " + summary.getRoomId() + " " + position);
+            }
+
+            @Override
+            public void onSummaryMoved(RoomSummary summary, int fromPosition, int toPosition) {
+                mChanges.add("move " + summary.getRoomId() + " " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onSummaryRemoved(RoomSummary summary, int position) {
+                mChanges.add("remove " + summary.getRoomId() + " " + position);
+            }
+        });
+    }
+
+    @Test
+    public void testSortedByActivity() {
+        mIndex.update(createSummary("!a", 100), null);
+        mIndex.update(createSummary("!b", 300), null);
+        mIndex.update(createSummary("!c", 200), null);
+
+        List<RoomSummary> summaries = mIndex.getSummaries();
+
+        assertEquals("!b", summaries.get(0).getRoomId());
+        assertEquals("!c", summaries.get(1).getRoomId());
+        assertEquals("!a", summaries.get(2).getRoomId());
+
+        assertEquals("insert !a 0", mChanges.get(0));
+        assertEquals("insert !b 0", mChanges.get(1));
+        assertEquals("insert !c 1", mChanges.get(2));
+    }
+
+    @Test
+    public void testLiveEventMovesTheRoom() {
+        mIndex.update(createSummary("!a", 100), null);
+        mIndex.update(createSummary("!b", 200), null);
+        mChanges.clear();
+
+        mIndex.update(createSummary("!a", 300), null);
+
+        assertEquals("move !a 1 0", mChanges.get(0));
+        assertEquals(0, mIndex.getPosition("!a"));
+        assertEquals(1, mIndex.getPosition("!b"));
+    }
+
+    @Test
+    public void testRemove() {
+        mIndex.update(createSummary("!a", 100), null);
+        mIndex.update(createSummary("!b", 200), null);
+        mChanges.clear();
+
+        mIndex.remove("!b");
+
+        assertEquals("remove !b 0", mChanges.get(0));
+        assertEquals(1, mIndex.getCount());
+        assertEquals(-1, mIndex.getPosition("!b"));
+    }
+
+    @Test
+    public void testPinUnreadRooms() {
+        mIndex.update(createSummary("!a", 100), null);
+
+        RoomSummary summary = createSummary("!b", 50);
+        summary.setNotificationCount(2);
+        mIndex.update(summary, null);
+
+        assertEquals("!a", mIndex.getSummaries().get(0).getRoomId());
+
+        mIndex.setPinUnreadRooms(true);
+
+        assertEquals("!b", mIndex.getSummaries().get(0).getRoomId());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.crypto.MXEventDecryptionResult;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomSummariesSnapshotTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("summaries_snapshot", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        List<RoomSummariesSnapshot.Entry> entries = new ArrayList<>();
+        entries.add(new RoomSummariesSnapshot.Entry("!room1:matrix.org", "Room 1", "mxc://matrix.org/avatar", "Hello éè", 1000L, 3, 2, 1, false, Arrays.asList("m.favourite")));
+        entries.add(new RoomSummariesSnapshot.Entry("!room2:matrix.org", null, null, null, 0L, 0, 0, 0, true, null));
+
+        assertTrue(RoomSummariesSnapshot.write(mFile, entries));
+
+        List<RoomSummariesSnapshot.Entry> readEntries = RoomSummariesSnapshot.read(mFile);
+
+        assertEquals(2, readEntries.size());
+
+        RoomSummariesSnapshot.Entry entry = readEntries.get(0);
+        assertEquals("!room1:matrix.org", entry.mRoomId);
+        assertEquals("Room 1", entry.mName);
+        assertEquals("mxc://matrix.org/avatar", entry.mAvatarUrl);
+        assertEquals("Hello éè", entry.mLatestMessage);
+        assertEquals(1000L, entry.mLatestEventTs);
+        assertEquals(3, entry.mUnreadEventsCount);
+        assertEquals(2, entry.mNotificationCount);
+        assertEquals(1, entry.mHighlightCount);
+        assertFalse(entry.mIsInvited);
+        assertEquals(Arrays.asList("m.favourite"), entry.mTags);
+
+        entry = readEntries.get(1);
+        assertEquals("!room2:matrix.org", entry.mRoomId);
+        assertNull(entry.mName);
+        assertNull(entry.mLatestMessage);
+        assertTrue(entry.mIsInvited);
+        assertTrue(entry.mTags.isEmpty());
+    }
+
+    private static Event buildMessage(String body) {
+        Event event = new Event();
+        event.eventId = "$1";
+        event.roomId = "!room1:matrix.org";
+        event.originServerTs = 1000L;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.content = new JsonParser().parse("{'msgtype': 'm.text', 'body': '" + body + "'}");
+        return event;
+    }
+
+    @Test
+    public void testEncryptedMessagePreview() {
+        RoomSummary summary = new RoomSummary().setRoomId("!room1:matrix.org");
+
+        summary.setLatestReceivedEvent(buildMessage("Hello"));
+        assertEquals("Hello", RoomSummariesSnapshot.buildEntry(summary, null, null, "@alice:matrix.org").mLatestMessage);
+
+        Event encryptedEvent = buildMessage("Secret");
+        encryptedEvent.type = Event.EVENT_TYPE_MESSAGE_ENCRYPTED;
+        encryptedEvent.content = new JsonParser().parse("{'algorithm': 'm.megolm.v1.aes-sha2', 'ciphertext': 'AAAA'}");
+
+        MXEventDecryptionResult decryptionResult = new MXEventDecryptionResult();
+        decryptionResult.mClearEvent = new JsonParser().parse("{'type': 'm.room.message', 'content': {'msgtype': 'm.text', 'body': 'Secret'}}");
+        encryptedEvent.setClearData(decryptionResult);
+
+        summary.setLatestReceivedEvent(encryptedEvent);
+        RoomSummariesSnapshot.Entry entry = RoomSummariesSnapshot.buildEntry(summary, null, null, "@alice:matrix.org");
+        assertNull(entry.mLatestMessage);
+        assertEquals(1000L, entry.mLatestEventTs);
+    }
+
+    @Test
+    public void testMissingSnapshot() {
+        assertTrue(RoomSummariesSnapshot.read(mFile).isEmpty());
+    }
+
+    @Test
+    public void testInvalidSnapshot() throws Exception {
+        FileOutputStream output = new FileOutputStream(mFile);
+        output.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        output.close();
+
+        assertTrue(RoomSummariesSnapshot.read(mFile).isEmpty());
+    }
+
+    @Test
+    public void testCorruptedCounts() throws Exception {
+        // a huge entries count
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(mFile));
+        output.writeInt(0x4D585253);
+        output.writeInt(1);
+        output.writeInt(Integer.MAX_VALUE);
+        output.close();
+
+        assertTrue(RoomSummariesSnapshot.read(mFile).isEmpty());
+
+        // a negative entries count
+        output = new DataOutputStream(new FileOutputStream(mFile));
+        output.writeInt(0x4D585253);
+        output.writeInt(1);
+        output.writeInt(-1);
+        output.close();
+
+        assertTrue(RoomSummariesSnapshot.read(mFile).isEmpty());
+
+        // a huge tags count : it is the last int of a single entry snapshot without tag
+        List<RoomSummariesSnapshot.Entry> entries = new ArrayList<>();
+        entries.add(new RoomSummariesSnapshot.Entry("!room1:matrix.org", "Room 1", null, null, 1000L, 0, 0, 0, false, null));
+        assertTrue(RoomSummariesSnapshot.write(mFile, entries));
+        assertEquals(1, RoomSummariesSnapshot.read(mFile).size());
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        randomAccessFile.seek(mFile.length() - 4);
+        randomAccessFile.writeInt(Integer.MAX_VALUE);
+        randomAccessFile.close();
+
+        assertTrue(RoomSummariesSnapshot.read(mFile).isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomUnreadCounterTest {
+    private static final String USER_ID = "@me:matrix.org";
+    private static final String OTHER_USER_ID = "@other:matrix.org";
+
+    private LinkedHashMap<String, Event> mEvents;
+
+    private static Event createEvent(String eventId, String sender, String type) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.setSender(sender);
+        event.setType(type);
+        return event;
+    }
+
+    private void addEvent(String eventId, String sender, String type) {
+        mEvents.put(eventId, createEvent(eventId, sender, type));
+    }
+
+    @Before
+    public void setUp() {
+        mEvents = new LinkedHashMap<>();
+
+        addEvent("$1", OTHER_USER_ID, Event.EVENT_TYPE_MESSAGE);
+        addEvent("$2", OTHER_USER_ID, Event.EVENT_TYPE_MESSAGE);
+        addEvent("$3", USER_ID, Event.EVENT_TYPE_MESSAGE);
+        addEvent("$4", OTHER_USER_ID, Event.EVENT_TYPE_STATE_ROOM_MEMBER);
+        addEvent("$5", OTHER_USER_ID, Event.EVENT_TYPE_MESSAGE);
+    }
+
+    @Test
+    public void testInitialCount() {
+        assertEquals(1, new RoomUnreadCounter(mEvents, "$2", USER_ID).getCount());
+
+        // unknown read event : all the events are unread
+        assertEquals(3, new RoomUnreadCounter(mEvents, "$unknown", USER_ID).getCount());
+        assertEquals(3, new RoomUnreadCounter(mEvents, null, USER_ID).getCount());
+    }
+
+    @Test
+    public void testLiveEvents() {
+        RoomUnreadCounter counter = new RoomUnreadCounter(mEvents, "$2", USER_ID);
+
+        Event event = createEvent("$6", OTHER_USER_ID, Event.EVENT_TYPE_MESSAGE);
+        mEvents.put(event.eventId, event);
+        counter.onLiveEvent(event);
+
+        event = createEvent("$7", USER_ID, Event.EVENT_TYPE_MESSAGE);
+        mEvents.put(event.eventId, event);
+        counter.onLiveEvent(event);
+
+        assertEquals(2, counter.getCount());
+        assertEquals(new RoomUnreadCounter(mEvents, "$2", USER_ID).getCount(), counter.getCount());
+    }
+
+    @Test
+    public void testReadReceipt() {
+        RoomUnreadCounter counter = new RoomUnreadCounter(mEvents, "$2", USER_ID);
+
+        // the latest event is read
+        assertTrue(counter.onReadReceipt("$5"));
+        assertEquals(0, counter.getCount());
+        assertTrue(counter.isValid(mEvents, "$5"));
+
+        // another event is read : the counter must be rebuilt
+        assertFalse(counter.onReadReceipt("$3"));
+    }
+
+    @Test
+    public void testValidity() {
+        RoomUnreadCounter counter = new RoomUnreadCounter(mEvents, "$2", USER_ID);
+
+        assertTrue(counter.isValid(mEvents, "$2"));
+        assertFalse(counter.isValid(mEvents, "$3"));
+        assertFalse(counter.isValid(new LinkedHashMap<>(mEvents), "$2"));
+    }
+}
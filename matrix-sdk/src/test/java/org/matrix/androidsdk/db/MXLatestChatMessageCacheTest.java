@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXLatestChatMessageCacheTest {
+
+    private static final String USER_ID = "@alice:matrix.org";
+
+    private Context mContext;
+    private File mDirectory;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDirectory = new File(new File(mContext.getFilesDir(), "MXLatestMessagesStore"), USER_ID);
+        mJournalFile = new File(mDirectory, "journal");
+        ContentUtils.deleteDirectory(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        ContentUtils.deleteDirectory(mDirectory);
+    }
+
+    private MXLatestChatMessageCache openCache() {
+        MXLatestChatMessageCache cache = new MXLatestChatMessageCache(USER_ID);
+        cache.openLatestMessagesDict(mContext);
+        return cache;
+    }
+
+    private void appendToJournal(int recordType, int length) throws Exception {
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(mJournalFile, true));
+        dos.write(recordType);
+        dos.writeInt(length);
+        dos.write(new byte[]{'!', 'r'});
+        dos.close();
+    }
+
+    @Test
+    public void testTruncatedTail() throws Exception {
+        MXLatestChatMessageCache cache = openCache();
+        cache.updateLatestMessage(mContext, "!room1:matrix.org", "Hello");
+        cache.flush();
+
+        long length = mJournalFile.length();
+
+        // a record partially written
+        appendToJournal(1, 1000);
+
+        cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+        // the invalid bytes have been removed
+        assertEquals(length, mJournalFile.length());
+
+        cache.updateLatestMessage(mContext, "!room2:matrix.org", "World");
+        cache.flush();
+
+        cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("World", cache.getLatestText(mContext, "!room2:matrix.org"));
+    }
+
+    @Test
+    public void testInvalidLengths() throws Exception {
+        MXLatestChatMessageCache cache = openCache();
+        cache.updateLatestMessage(mContext, "!room1:matrix.org", "Hello");
+        cache.flush();
+
+        long length = mJournalFile.length();
+
+        appendToJournal(1, -5);
+        assertEquals(1, MXLatestChatMessageCache.readJournal(mJournalFile, new HashMap<String, String>()));
+        assertEquals(length, mJournalFile.length());
+
+        appendToJournal(1, Integer.MAX_VALUE);
+        assertEquals(1, MXLatestChatMessageCache.readJournal(mJournalFile, new HashMap<String, String>()));
+        assertEquals(length, mJournalFile.length());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MXLatestChatMessageCache cache = openCache();
+
+        for (int i = 0; i < 200; i++) {
+            cache.updateLatestMessage(mContext, "!room1:matrix.org", "Hello " + i);
+            cache.updateLatestMessage(mContext, "!room2:matrix.org", (0 == (i % 2)) ? "World" : null);
+            cache.flush();
+        }
+
+        Map<String, String> messages = new HashMap<>();
+        int recordsCount = MXLatestChatMessageCache.readJournal(mJournalFile, messages);
+
+        // the deprecated records have been removed
+        assertTrue(recordsCount <= 64);
+        assertEquals(1, messages.size());
+        assertEquals("Hello 199", messages.get("!room1:matrix.org"));
+
+        cache = openCache();
+        assertEquals("Hello 199", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("", cache.getLatestText(mContext, "!room2:matrix.org"));
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        mDirectory.mkdirs();
+        File legacyFile = new File(mDirectory, "ConsoleLatestChatMessageCache".hashCode() + "");
+
+        HashMap<String, String> legacyMessages = new HashMap<>();
+        legacyMessages.put("!room1:matrix.org", "Hello");
+        legacyMessages.put("!room2:matrix.org", "");
+
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile));
+        oos.writeObject(legacyMessages);
+        oos.close();
+
+        MXLatestChatMessageCache cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("", cache.getLatestText(mContext, "!room2:matrix.org"));
+
+        // the legacy file is replaced by the journal
+        assertFalse(legacyFile.exists());
+        assertTrue(mJournalFile.exists());
+
+        cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+    }
+
+    @Test
+    public void testLegacyMigrationWithJournal() throws Exception {
+        // a journal written after a failed migration
+        MXLatestChatMessageCache cache = openCache();
+        cache.updateLatestMessage(mContext, "!room2:matrix.org", "World");
+        cache.flush();
+
+        File legacyFile = new File(mDirectory, "ConsoleLatestChatMessageCache".hashCode() + "");
+
+        HashMap<String, String> legacyMessages = new HashMap<>();
+        legacyMessages.put("!room1:matrix.org", "Hello");
+        legacyMessages.put("!room2:matrix.org", "Old");
+
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile));
+        oos.writeObject(legacyMessages);
+        oos.close();
+
+        // the journal updates are applied over the legacy messages
+        cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("World", cache.getLatestText(mContext, "!room2:matrix.org"));
+        assertFalse(legacyFile.exists());
+
+        cache = openCache();
+        assertEquals("Hello", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("World", cache.getLatestText(mContext, "!room2:matrix.org"));
+    }
+
+    @Test
+    public void testClearCache() throws Exception {
+        // the file operations are done in the test thread
+        MXLatestChatMessageCache cache = new MXLatestChatMessageCache(USER_ID, Looper.getMainLooper());
+        cache.updateLatestMessage(mContext, "!room1:matrix.org", "Hello");
+        cache.flush();
+        assertTrue(mJournalFile.exists());
+
+        cache.clearCache(mContext);
+        assertFalse(mJournalFile.exists());
+        assertEquals("", cache.getLatestText(mContext, "!room1:matrix.org"));
+
+        // the cache can still be used after being cleared
+        cache.updateLatestMessage(mContext, "!room2:matrix.org", "World");
+        cache.flush();
+        assertTrue(mJournalFile.exists());
+        assertEquals("World", cache.getLatestText(mContext, "!room2:matrix.org"));
+
+        cache.close();
+
+        cache = openCache();
+        assertEquals("", cache.getLatestText(mContext, "!room1:matrix.org"));
+        assertEquals("World", cache.getLatestText(mContext, "!room2:matrix.org"));
+    }
+}
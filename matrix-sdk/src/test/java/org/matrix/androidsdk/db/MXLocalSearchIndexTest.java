@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.crypto.MXEventDecryptionResult;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.Search.SearchResponse;
+import org.matrix.androidsdk.rest.model.Search.SearchRoomEventResults;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXLocalSearchIndexTest {
+
+    private MXLocalSearchIndex mIndex;
+
+    private static Event createMessage(String eventId, String roomId, long ts, String msgtype, String body) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = roomId;
+        event.sender = "@alice:matrix.org";
+        event.originServerTs = ts;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.content = new JsonParser().parse("{'msgtype': '" + msgtype + "', 'body': '" + body + "'}");
+        return event;
+    }
+
+    private SearchRoomEventResults search(String pattern, boolean isMediaSearch) {
+        SearchResponse response = mIndex.search(pattern, null, isMediaSearch, null);
+        return response.searchCategories.roomEvents;
+    }
+
+    @Before
+    public void setUp() {
+        mIndex = new MXLocalSearchIndex(RuntimeEnvironment.application, "@alice:matrix.org");
+
+        mIndex.indexEvent(createMessage("$1", "!room1", 1000, "m.text", "Hello World"));
+        mIndex.indexEvent(createMessage("$2", "!room2", 2000, "m.text", "hello, everybody!"));
+        mIndex.indexEvent(createMessage("$3", "!room1", 3000, "m.file", "world_map.pdf"));
+    }
+
+    @After
+    public void tearDown() {
+        mIndex.clear();
+        mIndex.close();
+    }
+
+    @Test
+    public void testWords() {
+        assertEquals(Arrays.asList("hello", "everybody"), MXLocalSearchIndex.getWords("Hello, everybody!"));
+        assertTrue(MXLocalSearchIndex.getWords(" ... ").isEmpty());
+    }
+
+    @Test
+    public void testSearch() {
+        SearchRoomEventResults results = search("HELLO", false);
+
+        assertEquals(2, (int) results.count);
+        // the latest events first
+        assertEquals("$2", results.results.get(0).result.eventId);
+        assertEquals("$1", results.results.get(1).result.eventId);
+        assertEquals("hello, everybody!", results.results.get(0).result.getContentAsJsonObject().get("body").getAsString());
+    }
+
+    @Test
+    public void testAllWordsMustMatch() {
+        assertEquals(1, (int) search("hello world", false).count);
+        assertEquals(0, (int) search("hello moon", false).count);
+    }
+
+    @Test
+    public void testPrefixSearch() {
+        assertEquals(2, (int) search("wor", false).count);
+        assertEquals(0, (int) search("orld", false).count);
+    }
+
+    @Test
+    public void testMediaSearch() {
+        SearchRoomEventResults results = search("world", true);
+
+        assertEquals(1, (int) results.count);
+        assertEquals("$3", results.results.get(0).result.eventId);
+    }
+
+    @Test
+    public void testRoomsFilter() {
+        SearchResponse response = mIndex.search("hello", Arrays.asList("!room2"), false, null);
+
+        assertEquals(1, (int) response.searchCategories.roomEvents.count);
+        assertEquals("!room2", response.searchCategories.roomEvents.results.get(0).result.roomId);
+    }
+
+    @Test
+    public void testRedaction() {
+        Event redaction = new Event();
+        redaction.eventId = "$4";
+        redaction.roomId = "!room1";
+        redaction.type = Event.EVENT_TYPE_REDACTION;
+        redaction.redacts = "$1";
+
+        mIndex.indexEvent(redaction);
+
+        assertEquals(1, (int) search("hello", false).count);
+    }
+
+    @Test
+    public void testPagination() {
+        for (int i = 0; i < MXLocalSearchIndex.RESULTS_PAGE_SIZE + 5; i++) {
+            mIndex.indexEvent(createMessage("$page" + i, "!room1", 10000 + i, "m.text", "page " + i));
+        }
+
+        SearchRoomEventResults firstPage = search("page", false);
+        assertEquals(MXLocalSearchIndex.RESULTS_PAGE_SIZE, firstPage.results.size());
+        assertNotNull(firstPage.nextBatch);
+
+        SearchResponse secondPage = mIndex.search("page", null, false, firstPage.nextBatch);
+        assertEquals(5, secondPage.searchCategories.roomEvents.results.size());
+        assertNull(secondPage.searchCategories.roomEvents.nextBatch);
+    }
+
+    @Test
+    public void testTrimTheOldestEvents() {
+        // a back paginated event is indexed after the latest ones
+        mIndex.indexEvent(createMessage("$0", "!room1", 500, "m.text", "hello again"));
+        mIndex.setMaxIndexedEvents(3);
+
+        SearchRoomEventResults results = search("hello", false);
+        assertEquals(2, (int) results.count);
+        assertEquals("$2", results.results.get(0).result.eventId);
+        assertEquals("$1", results.results.get(1).result.eventId);
+    }
+
+    @Test
+    public void testDecryptedEventsAreNotSaved() {
+        Event event = createMessage("$5", "!room3", 5000, "m.text", "secret");
+        event.type = Event.EVENT_TYPE_MESSAGE_ENCRYPTED;
+        event.content = new JsonParser().parse("{'algorithm': 'm.megolm.v1.aes-sha2', 'ciphertext': 'AAAA'}");
+
+        MXEventDecryptionResult decryptionResult = new MXEventDecryptionResult();
+        decryptionResult.mClearEvent = new JsonParser().parse("{'type': 'm.room.message', 'content': {'msgtype': 'm.text', 'body': 'secret'}}");
+        event.setClearData(decryptionResult);
+
+        mIndex.indexEvent(event);
+        assertEquals(1, (int) search("secret", false).count);
+
+        mIndex.save();
+
+        MXLocalSearchIndex index = new MXLocalSearchIndex(RuntimeEnvironment.application, "@alice:matrix.org");
+        index.load();
+
+        assertEquals(1, (int) index.search("hello world", null, false, null).searchCategories.roomEvents.count);
+        assertEquals(0, (int) index.search("secret", null, false, null).searchCategories.roomEvents.count);
+
+        index.close();
+    }
+
+    @Test
+    public void testIndexAfterClear() {
+        mIndex.clear();
+        assertEquals(0, mIndex.getIndexedEventsCount());
+
+        mIndex.indexEvent(createMessage("$6", "!room1", 6000, "m.text", "Hello again"));
+        assertEquals(1, (int) search("hello", false).count);
+    }
+
+    @Test
+    public void testMaxIndexedEvents() {
+        mIndex.setMaxIndexedEvents(2);
+
+        assertEquals(2, mIndex.getIndexedEventsCount());
+        // the oldest indexed event has been removed
+        assertEquals(1, (int) search("hello", false).count);
+    }
+}
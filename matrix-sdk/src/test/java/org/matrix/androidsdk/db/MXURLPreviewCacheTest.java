@@ -0,0 +1,275 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.URLPreview;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXURLPreviewCacheTest {
+
+    private static final String USER_ID = "@alice:matrix.org";
+
+    private Context mContext;
+    private File mDirectory;
+
+    // the callbacks of the requests sent to the server
+    private List<ApiCallback<URLPreview>> mServerCallbacks;
+
+    // true to reply to the requests as soon as they are sent
+    private boolean mAutoReply;
+
+    // the description of the auto replied previews
+    private String mDescription;
+
+    private EventsRestClient mEventsRestClient;
+
+    /**
+     * The callback of a getURLPreview request.
+     */
+    private static class PreviewCallback extends SimpleApiCallback<URLPreview> {
+        final List<URLPreview> mPreviews = new ArrayList<>();
+
+        @Override
+        public void onSuccess(URLPreview preview) {
+            mPreviews.add(preview);
+        }
+    }
+
+    private static URLPreview createPreview(String description) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("og:description", description);
+        return new URLPreview(map);
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDirectory = new File(new File(mContext.getFilesDir(), "MXURLPreviewCache"), USER_ID);
+        ContentUtils.deleteDirectory(mDirectory);
+
+        mServerCallbacks = new ArrayList<>();
+        mAutoReply = false;
+        mDescription = "Matrix";
+
+        mEventsRestClient = mock(EventsRestClient.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ApiCallback<URLPreview> callback = (ApiCallback<URLPreview>) invocation.getArguments()[2];
+
+                if (mAutoReply) {
+                    callback.onSuccess(createPreview(mDescription));
+                } else {
+                    mServerCallbacks.add(callback);
+                }
+                return null;
+            }
+        }).when(mEventsRestClient).getURLPreview(anyString(), anyLong(), any(ApiCallback.class));
+    }
+
+    @After
+    public void tearDown() {
+        ContentUtils.deleteDirectory(mDirectory);
+    }
+
+    /**
+     * Create a cache which performs its file operations in the test thread.
+     *
+     * @return the cache
+     */
+    private MXURLPreviewCache createCache() {
+        MXURLPreviewCache cache = new MXURLPreviewCache(mContext, null, USER_ID, mEventsRestClient, null, Looper.getMainLooper());
+        cache.setDownloadThumbnails(false);
+        return cache;
+    }
+
+    private static long getDirectorySize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+
+        return size;
+    }
+
+    @Test
+    public void testCacheKeyTimeBucket() {
+        long ts = 10 * MXURLPreviewCache.TIME_BUCKET_MS;
+
+        assertEquals(MXURLPreviewCache.getCacheKey("https://matrix.org", ts), MXURLPreviewCache.getCacheKey("https://matrix.org", ts + MXURLPreviewCache.TIME_BUCKET_MS - 1));
+        assertNotEquals(MXURLPreviewCache.getCacheKey("https://matrix.org", ts), MXURLPreviewCache.getCacheKey("https://matrix.org", ts + MXURLPreviewCache.TIME_BUCKET_MS));
+        assertNotEquals(MXURLPreviewCache.getCacheKey("https://matrix.org", ts), MXURLPreviewCache.getCacheKey("https://riot.im", ts));
+    }
+
+    @Test
+    public void testExpiration() {
+        assertFalse(MXURLPreviewCache.isExpired(1000, 1500, 1000));
+        assertFalse(MXURLPreviewCache.isExpired(1000, 2000, 1000));
+        assertTrue(MXURLPreviewCache.isExpired(1000, 2001, 1000));
+
+        // a preview fetched in the future (clock update) is not trusted
+        assertTrue(MXURLPreviewCache.isExpired(3000, 2000, 1000));
+    }
+
+    @Test
+    public void testConcurrentRequestsAreMerged() {
+        MXURLPreviewCache cache = createCache();
+        long ts = 10 * MXURLPreviewCache.TIME_BUCKET_MS;
+
+        PreviewCallback callback1 = new PreviewCallback();
+        PreviewCallback callback2 = new PreviewCallback();
+
+        cache.getURLPreview("https://matrix.org", ts, callback1);
+        // same time bucket
+        cache.getURLPreview("https://matrix.org", ts + 1, callback2);
+
+        // a single request is sent
+        assertEquals(1, mServerCallbacks.size());
+        assertTrue(callback1.mPreviews.isEmpty());
+
+        mServerCallbacks.get(0).onSuccess(createPreview("Matrix"));
+
+        assertEquals(1, callback1.mPreviews.size());
+        assertEquals(1, callback2.mPreviews.size());
+        assertEquals("Matrix", callback2.mPreviews.get(0).getDescription());
+
+        // the next requests are served by the memory cache
+        PreviewCallback callback3 = new PreviewCallback();
+        cache.getURLPreview("https://matrix.org", ts, callback3);
+
+        assertEquals(1, callback3.mPreviews.size());
+        verify(mEventsRestClient, times(1)).getURLPreview(anyString(), anyLong(), any(ApiCallback.class));
+
+        // another URL triggers another request
+        cache.getURLPreview("https://riot.im", ts, new PreviewCallback());
+        assertEquals(2, mServerCallbacks.size());
+    }
+
+    @Test
+    public void testDiskRoundTripAndExpiration() throws Exception {
+        mAutoReply = true;
+        long ts = 10 * MXURLPreviewCache.TIME_BUCKET_MS;
+
+        createCache().getURLPreview("https://matrix.org", ts, new PreviewCallback());
+        assertEquals(1, mDirectory.listFiles().length);
+
+        // a new cache instance reads the preview from the disk
+        PreviewCallback callback = new PreviewCallback();
+        createCache().getURLPreview("https://matrix.org", ts, callback);
+
+        assertEquals(1, callback.mPreviews.size());
+        assertEquals("Matrix", callback.mPreviews.get(0).getDescription());
+        verify(mEventsRestClient, times(1)).getURLPreview(anyString(), anyLong(), any(ApiCallback.class));
+
+        Thread.sleep(10);
+
+        // the expired preview is requested again
+        mDescription = "Matrix 2";
+        MXURLPreviewCache cache = createCache();
+        cache.setTtl(1);
+
+        callback = new PreviewCallback();
+        cache.getURLPreview("https://matrix.org", ts, callback);
+
+        assertEquals("Matrix 2", callback.mPreviews.get(0).getDescription());
+        verify(mEventsRestClient, times(2)).getURLPreview(anyString(), anyLong(), any(ApiCallback.class));
+    }
+
+    @Test
+    public void testDiskBudget() {
+        mAutoReply = true;
+
+        // about 64 KB per preview
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            builder.append('a');
+        }
+        mDescription = builder.toString();
+
+        MXURLPreviewCache cache = createCache();
+
+        for (int i = 0; i < 20; i++) {
+            cache.getURLPreview("https://matrix.org/" + i, 0, new PreviewCallback());
+        }
+
+        // the default budget is 1 MB
+        long size = getDirectorySize(mDirectory);
+        assertTrue(size > 0);
+        assertTrue(size <= 1024 * 1024);
+        assertTrue(mDirectory.listFiles().length < 20);
+
+        // a smaller budget is applied at the next save
+        cache.setMaxDiskSize(300 * 1024);
+        cache.getURLPreview("https://matrix.org/20", 0, new PreviewCallback());
+        assertTrue(getDirectorySize(mDirectory) <= 300 * 1024);
+    }
+
+    @Test
+    public void testClear() {
+        mAutoReply = true;
+
+        MXURLPreviewCache cache = createCache();
+        cache.getURLPreview("https://matrix.org", 0, new PreviewCallback());
+        assertTrue(mDirectory.exists());
+
+        cache.clear();
+        assertFalse(mDirectory.exists());
+
+        // the cache can still be used
+        PreviewCallback callback = new PreviewCallback();
+        cache.getURLPreview("https://matrix.org", 0, callback);
+
+        assertEquals(1, callback.mPreviews.size());
+        verify(mEventsRestClient, times(2)).getURLPreview(anyString(), anyLong(), any(ApiCallback.class));
+        cache.close();
+    }
+}
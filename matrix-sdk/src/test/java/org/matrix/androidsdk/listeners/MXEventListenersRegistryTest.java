@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXEventListenersRegistryTest {
+
+    private MXEventListenersRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new MXEventListenersRegistry();
+    }
+
+    @Test
+    public void testRoomListenersAreScoped() {
+        IMXEventListener globalListener = new MXEventListener();
+        IMXEventListener roomListener = new MXEventListener();
+
+        mRegistry.addListener(globalListener);
+        mRegistry.addListener("!room1", roomListener);
+
+        assertEquals(2, mRegistry.getListeners("!room1").size());
+        assertTrue(mRegistry.getListeners("!room1").contains(roomListener));
+
+        assertEquals(1, mRegistry.getListeners("!room2").size());
+        assertEquals(globalListener, mRegistry.getListeners("!room2").get(0));
+
+        assertEquals(1, mRegistry.getGlobalListeners().size());
+        assertEquals(2, mRegistry.getAllListeners().size());
+    }
+
+    @Test
+    public void testListenerIsAddedOnce() {
+        IMXEventListener listener = new MXEventListener();
+
+        mRegistry.addListener(listener);
+        mRegistry.addListener(listener);
+        mRegistry.addListener("!room1", listener);
+        mRegistry.addListener("!room1", listener);
+
+        assertEquals(1, mRegistry.getGlobalListeners().size());
+        assertEquals(2, mRegistry.getAllListeners().size());
+    }
+
+    @Test
+    public void testSnapshotIsNotUpdatedByLaterChanges() {
+        IMXEventListener listener = new MXEventListener();
+        mRegistry.addListener("!room1", listener);
+
+        List<IMXEventListener> snapshot = mRegistry.getListeners("!room1");
+
+        mRegistry.removeListener(listener);
+        mRegistry.addListener(new MXEventListener());
+
+        assertEquals(1, snapshot.size());
+        assertEquals(listener, snapshot.get(0));
+
+        assertEquals(1, mRegistry.getListeners("!room1").size());
+        assertFalse(mRegistry.getListeners("!room1").contains(listener));
+    }
+
+    @Test
+    public void testClear() {
+        mRegistry.addListener(new MXEventListener());
+        mRegistry.addListener("!room1", new MXEventListener());
+
+        mRegistry.clear();
+
+        assertTrue(mRegistry.getAllListeners().isEmpty());
+        assertTrue(mRegistry.getListeners("!room1").isEmpty());
+    }
+}
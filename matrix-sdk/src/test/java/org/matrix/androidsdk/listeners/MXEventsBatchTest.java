@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.listeners;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.bingrules.BingRule;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXEventsBatchTest {
+
+    private static Event createEvent(String eventId) {
+        Event event = new Event();
+        event.eventId = eventId;
+        return event;
+    }
+
+    @Test
+    public void testDispatchKeepsTheReceptionOrder() {
+        MXEventsBatch eventsBatch = new MXEventsBatch();
+
+        eventsBatch.addLiveEvent(createEvent("$1"), null);
+        eventsBatch.addBingEvent(createEvent("$1"), null, null);
+        eventsBatch.addReceiptEvent("!room", Arrays.asList("@bob:matrix.org"));
+        eventsBatch.addSentStateUpdatedEvent(createEvent("$2"));
+
+        assertEquals(4, eventsBatch.size());
+        assertEquals(1, eventsBatch.getLiveEvents().size());
+        assertEquals(1, eventsBatch.getBingEvents().size());
+        assertEquals(1, eventsBatch.getReceiptEvents().size());
+        assertEquals(1, eventsBatch.getSentStateUpdatedEvents().size());
+
+        final List<String> calls = new ArrayList<>();
+
+        eventsBatch.dispatch(new MXEventListener() {
+            @Override
+            public void onLiveEvent(Event event, RoomState roomState) {
+                calls.add("live " + event.eventId);
+            }
+
+            @Override
+            public void onBingEvent(Event event, RoomState roomState, BingRule bingRule) {
+                calls.add("bing " + event.eventId);
+            }
+
+            @Override
+            public void onReceiptEvent(String roomId, List<String> senderIds) {
+                calls.add("receipt " + roomId);
+            }
+
+            @Override
+            public void onEventSentStateUpdated(Event event) {
+                calls.add("sent " + event.eventId);
+            }
+        });
+
+        assertEquals(Arrays.asList("live $1", "bing $1", "receipt !room", "sent $2"), calls);
+    }
+
+    @Test
+    public void testListenerFailureDoesNotStopTheDispatch() {
+        MXEventsBatch eventsBatch = new MXEventsBatch();
+        eventsBatch.addLiveEvent(createEvent("$1"), null);
+        eventsBatch.addLiveEvent(createEvent("$2"), null);
+
+        final List<String> eventIds = new ArrayList<>();
+
+        eventsBatch.dispatch(new MXEventListener() {
+            @Override
+            public void onLiveEvent(Event event, RoomState roomState) {
+                eventIds.add(event.eventId);
+                throw new RuntimeException("failure");
+            }
+        });
+
+        assertEquals(Arrays.asList("$1", "$2"), eventIds);
+    }
+}
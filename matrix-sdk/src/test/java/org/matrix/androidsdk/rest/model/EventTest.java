@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model;
+
+import com.google.gson.JsonParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class EventTest {
+
+    private Event event;
+
+    @Before
+    public void setUp() {
+        event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.content = new JsonParser().parse("{'msgtype': 'm.image', 'body': 'image.png', 'url': 'mxc://matrix.org/image'}");
+    }
+
+    @Test
+    public void testMessageSubclass() {
+        Message message = event.getMessage();
+
+        assertTrue(message instanceof ImageMessage);
+        assertEquals("image.png", message.body);
+        assertEquals("mxc://matrix.org/image", ((ImageMessage) message).getUrl());
+    }
+
+    @Test
+    public void testMessageIsCached() {
+        assertSame(event.getMessage(), event.getMessage());
+        assertSame(event.getEventContent(), event.getEventContent());
+    }
+
+    @Test
+    public void testUpdateContentInvalidatesCache() {
+        Message message = event.getMessage();
+
+        event.updateContent(new JsonParser().parse("{'msgtype': 'm.text', 'body': 'hello'}"));
+
+        Message updatedMessage = event.getMessage();
+        assertNotSame(message, updatedMessage);
+        assertFalse(updatedMessage instanceof ImageMessage);
+        assertEquals("hello", updatedMessage.body);
+    }
+
+    @Test
+    public void testContentAssignmentInvalidatesCache() {
+        Message message = event.getMessage();
+
+        event.content = new JsonParser().parse("{'msgtype': 'm.file', 'body': 'file.txt'}");
+
+        Message updatedMessage = event.getMessage();
+        assertNotSame(message, updatedMessage);
+        assertTrue(updatedMessage instanceof FileMessage);
+    }
+
+    @Test
+    public void testPruneInvalidatesCache() {
+        assertNotNull(event.getMessage().body);
+
+        event.prune(null);
+
+        assertNull(event.getMessage().body);
+        assertTrue(event.getMediaUrls().isEmpty());
+    }
+
+    @Test
+    public void testMediaUrls() {
+        assertEquals(1, event.getMediaUrls().size());
+        assertEquals("mxc://matrix.org/image", event.getMediaUrls().get(0));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DefaultSyncPolicyTest {
+
+    private long mNow;
+    private DefaultSyncPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mNow = 1000;
+
+        DefaultSyncPolicy.Clock clock = new DefaultSyncPolicy.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return mNow;
+            }
+        };
+
+        // the jitter always uses the upper bound
+        Random random = new Random() {
+            @Override
+            public double nextDouble() {
+                return 1.0;
+            }
+        };
+
+        mPolicy = new DefaultSyncPolicy(clock, random);
+        mPolicy.setConfiguration(30000, 10000);
+    }
+
+    @Test
+    public void testBusyAccount() {
+        mPolicy.onSyncSuccess(5);
+
+        assertEquals(30000, mPolicy.getServerTimeoutMs());
+        assertEquals(5000, mPolicy.getSyncDelayMs());
+    }
+
+    @Test
+    public void testQuietAccount() {
+        mPolicy.onSyncSuccess(5);
+        mNow += DefaultSyncPolicy.QUIET_PERIOD_MS;
+        mPolicy.onSyncSuccess(0);
+
+        assertEquals(60000, mPolicy.getServerTimeoutMs());
+        assertEquals(20000, mPolicy.getSyncDelayMs());
+    }
+
+    @Test
+    public void testScreenOffAndMobileNetwork() {
+        mNow += DefaultSyncPolicy.BUSY_PERIOD_MS;
+
+        mPolicy.setIsScreenOn(false);
+        mPolicy.setIsOnWifi(false);
+
+        assertEquals(60000, mPolicy.getServerTimeoutMs());
+        assertEquals(15000, mPolicy.getSyncDelayMs());
+    }
+
+    @Test
+    public void testSyncDelayIsBounded() {
+        mNow += DefaultSyncPolicy.QUIET_PERIOD_MS;
+        mPolicy.setIsOnWifi(false);
+        mPolicy.setConfiguration(80000, 10000);
+
+        assertEquals(DefaultSyncPolicy.MAX_SERVER_TIMEOUT_MS, mPolicy.getServerTimeoutMs());
+        assertTrue(mPolicy.getSyncDelayMs() <= 10000 * DefaultSyncPolicy.MAX_SYNC_DELAY_FACTOR);
+    }
+
+    @Test
+    public void testNoSyncDelay() {
+        mPolicy.setConfiguration(30000, 0);
+        mNow += DefaultSyncPolicy.QUIET_PERIOD_MS;
+        mPolicy.setIsOnWifi(false);
+
+        assertEquals(0, mPolicy.getSyncDelayMs());
+    }
+
+    @Test
+    public void testRetryBackoff() {
+        mPolicy.onSyncFailure();
+        assertEquals(DefaultSyncPolicy.MIN_RETRY_DELAY_MS, mPolicy.getRetryDelayMs());
+
+        mPolicy.onSyncFailure();
+        assertEquals(DefaultSyncPolicy.MIN_RETRY_DELAY_MS * 2, mPolicy.getRetryDelayMs());
+
+        for (int i = 0; i < 20; i++) {
+            mPolicy.onSyncFailure();
+        }
+        assertEquals(DefaultSyncPolicy.MAX_RETRY_DELAY_MS, mPolicy.getRetryDelayMs());
+
+        mPolicy.onSyncSuccess(0);
+        mPolicy.onSyncFailure();
+        assertEquals(DefaultSyncPolicy.MIN_RETRY_DELAY_MS, mPolicy.getRetryDelayMs());
+    }
+
+    @Test
+    public void testStats() {
+        mPolicy.onSyncFailure();
+        mPolicy.getRetryDelayMs();
+
+        assertEquals(Long.valueOf(1), mPolicy.getStats().get("consecutiveFailures"));
+        assertEquals(Long.valueOf(DefaultSyncPolicy.MIN_RETRY_DELAY_MS), mPolicy.getStats().get("retryDelayMs"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import com.google.gson.JsonElement;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncFilterManagerTest {
+
+    private final SyncFilterManager filterManager = new SyncFilterManager(null, null, "@alice:matrix.org");
+
+    @Test
+    public void testDefaultDefinitions() {
+        assertNull(filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.FULL));
+
+        String lightFilter = "{\"presence\":{\"not_types\":[\"*\"]},\"room\":{\"ephemeral\":{\"types\":[\"m.receipt\"]}}}";
+        assertEquals(lightFilter, filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.LOW_BANDWIDTH));
+        assertEquals(lightFilter, filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.BACKGROUND_PUSH));
+        assertEquals(lightFilter, filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.INITIAL));
+    }
+
+    @Test
+    public void testTimelineLimit() {
+        filterManager.setTimelineLimit(20);
+
+        assertEquals("{\"room\":{\"timeline\":{\"limit\":20}}}", filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.FULL));
+        assertEquals("{\"presence\":{\"not_types\":[\"*\"]},\"room\":{\"ephemeral\":{\"types\":[\"m.receipt\"]},\"timeline\":{\"limit\":20}}}",
+                filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.LOW_BANDWIDTH));
+
+        // the background sync must not miss any notification
+        assertFalse(filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.BACKGROUND_PUSH).contains("timeline"));
+    }
+
+    private static MatrixError buildError(String errcode, int status) {
+        MatrixError error = new MatrixError();
+        error.errcode = errcode;
+        error.mStatus = status;
+        return error;
+    }
+
+    @Test
+    public void testRejectedFilterId() {
+        final Map<String, String> filters = new HashMap<>();
+        String definition = filterManager.getFilterDefinition(SyncFilterManager.FilterProfile.LOW_BANDWIDTH);
+        filters.put(definition, "1");
+
+        IMXStore store = mock(IMXStore.class);
+        when(store.getFilters()).thenReturn(filters);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                filters.remove((String) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(store).removeFilter(anyString());
+
+        EventsRestClient eventsRestClient = mock(EventsRestClient.class);
+        SyncFilterManager manager = new SyncFilterManager(store, eventsRestClient, "@alice:matrix.org");
+
+        assertEquals("1", manager.getFilter(SyncFilterManager.FilterProfile.LOW_BANDWIDTH));
+        verify(eventsRestClient, never()).createFilter(anyString(), any(JsonElement.class), any(ApiCallback.class));
+
+        // the errors which are not related to the filter
+        assertFalse(manager.onSyncError("1", buildError(MatrixError.LIMIT_EXCEEDED, 429)));
+        assertFalse(manager.onSyncError(definition, buildError(MatrixError.NOT_FOUND, 404)));
+        verify(store, never()).removeFilter(anyString());
+
+        // the server does not know the filter id anymore
+        assertTrue(manager.onSyncError("1", buildError(MatrixError.NOT_FOUND, 404)));
+        verify(store).removeFilter(definition);
+
+        // the inline definition is used and the filter is uploaded again
+        assertEquals(definition, manager.getFilter(SyncFilterManager.FilterProfile.LOW_BANDWIDTH));
+        verify(eventsRestClient, times(1)).createFilter(anyString(), any(JsonElement.class), any(ApiCallback.class));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class JsonUtilsTest {
+
+    private final Gson gson = new GsonBuilder()
+            .setFieldNamingStrategy(new JsonUtils.MatrixFieldNamingStrategy())
+            .disableHtmlEscaping()
+            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .create();
+
+    public static class Keys {
+        public String userId = "@alice:matrix.org";
+        public String deviceId = "ABCDEF";
+        public List<String> algorithms = Arrays.asList("m.olm.v1.curve25519-aes-sha2", "m.megolm.v1.aes-sha2");
+        public Map<String, String> keys = new HashMap<>();
+        public String displayName = null;
+    }
+
+    // the tree based implementation
+    private String legacyCanonicalizedJsonString(Object object) {
+        JsonElement tree = (object instanceof JsonElement) ? (JsonElement) object : gson.toJsonTree(object);
+        return gson.toJson(JsonUtils.canonicalize(tree)).replace("\\/", "/");
+    }
+
+    private void assertSameAsLegacy(Object object) {
+        assertEquals(legacyCanonicalizedJsonString(object), JsonUtils.getCanonicalizedJsonString(object));
+    }
+
+    @Test
+    public void testJsonElements() {
+        assertSameAsLegacy(new JsonParser().parse("{}"));
+        assertSameAsLegacy(new JsonParser().parse("[]"));
+        assertSameAsLegacy(new JsonParser().parse("{'b': 1, 'a': {'d': [1, 2.50, true, null, {'z': null, 'y': 'x'}], 'c': false}, 'A': 1e10}"));
+        assertEquals("{\"a\":1,\"b\":[2,\"c\"]}", JsonUtils.getCanonicalizedJsonString(new JsonParser().parse("{'b': [2, 'c'], 'a': 1}")));
+    }
+
+    @Test
+    public void testMaps() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("zeta", 1);
+        map.put("alpha", 2.5);
+        map.put("long", 123456789012345L);
+        map.put("bool", true);
+        map.put("null", null);
+        map.put("list", new ArrayList<>(Arrays.asList("a", null, 3, new HashMap<>())));
+
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("ed25519:ABCDEF", "base64+/signature");
+        nested.put("curve25519:ABCDEF", "key");
+        map.put("nested", nested);
+
+        Map<Integer, String> intKeys = new HashMap<>();
+        intKeys.put(2, "two");
+        intKeys.put(10, "ten");
+        map.put("intKeys", intKeys);
+
+        assertSameAsLegacy(map);
+    }
+
+    @Test
+    public void testPojo() {
+        Keys keys = new Keys();
+        keys.keys.put("ed25519:ABCDEF", "key1");
+        keys.keys.put("curve25519:ABCDEF", "key2");
+
+        assertSameAsLegacy(keys);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("device", keys);
+        assertSameAsLegacy(map);
+    }
+
+    @Test
+    public void testEscaping() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("quote\"", "back\\slash");
+        map.put("slash", "a/b a\\/b a\\\\/b a\\\\\\/b \\");
+        map.put("controls", "\t\b\n\r\f\u0000\u001f\u007f");
+        map.put("unicode", "<html> & \u00e9 \u2028 \u2029 \ud83d\ude00");
+
+        assertSameAsLegacy(map);
+        assertSameAsLegacy(gson.toJsonTree(map));
+    }
+}
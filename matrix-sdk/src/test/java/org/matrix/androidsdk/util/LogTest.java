@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class LogTest {
+
+    private File mLogDirectory;
+
+    @Before
+    public void setUp() {
+        Log.reset();
+        mLogDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "LogTest");
+        ContentUtils.deleteDirectory(mLogDirectory);
+        Log.setLogDirectory(mLogDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        Log.reset();
+        ContentUtils.deleteDirectory(mLogDirectory);
+    }
+
+    /**
+     * @return the content of the log files
+     */
+    private static String readLogs() throws Exception {
+        StringBuilder logs = new StringBuilder();
+
+        for (File file : Log.addLogFiles(new ArrayList<File>())) {
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream fis = new FileInputStream(file);
+            int offset = 0;
+
+            while (offset < bytes.length) {
+                offset += fis.read(bytes, offset, bytes.length - offset);
+            }
+
+            fis.close();
+            logs.append(new String(bytes, "UTF-8"));
+        }
+
+        return logs.toString();
+    }
+
+    private static int countOccurrences(String text, String pattern) {
+        int count = 0;
+        int index = text.indexOf(pattern);
+
+        while (index >= 0) {
+            count++;
+            index = text.indexOf(pattern, index + pattern.length());
+        }
+
+        return count;
+    }
+
+    @Test
+    public void testLogLevel() throws Exception {
+        Log.init("level");
+
+        assertTrue(Log.isLoggable(Log.VERBOSE));
+
+        Log.setLogLevel(Log.WARN);
+        assertFalse(Log.isLoggable(Log.DEBUG));
+        assertTrue(Log.isLoggable(Log.WARN));
+        assertTrue(Log.isLoggable(Log.ERROR));
+
+        Log.d("LogTest", "debug message");
+        Log.i("LogTest", "info message");
+        Log.w("LogTest", "warning message");
+        Log.e("LogTest", "error message");
+
+        String logs = readLogs();
+        assertFalse(logs.contains("debug message"));
+        assertFalse(logs.contains("info message"));
+        assertTrue(logs.contains("W/LogTest: warning message"));
+        assertTrue(logs.contains("E/LogTest: error message"));
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        Log.init("rate");
+        Log.setMaxLogsPerTagPerSecond(5);
+
+        long now = System.currentTimeMillis();
+
+        // the writer thread cannot report the suppressed logs before the end of the second
+        synchronized (Log.sWriteLock) {
+            for (int i = 0; i < 10; i++) {
+                Log.logToFile("D", "LogTest", "message " + i, now);
+            }
+
+            // the errors are never limited
+            Log.logToFile("E", "LogTest", "error", now);
+
+            // the next second
+            Log.logToFile("D", "LogTest", "message 10", now + 1000);
+        }
+
+        String logs = readLogs();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(logs.contains("D/LogTest: message " + i + System.getProperty("line.separator")));
+        }
+
+        for (int i = 5; i < 10; i++) {
+            assertFalse(logs.contains("D/LogTest: message " + i + System.getProperty("line.separator")));
+        }
+
+        assertTrue(logs.contains("E/LogTest: error"));
+        assertEquals(1, countOccurrences(logs, "W/LogTest: 5 logs suppressed"));
+        assertTrue(logs.contains("D/LogTest: message 10"));
+    }
+
+    @Test
+    public void testRingBufferOverflow() throws Exception {
+        Log.init("overflow");
+        Log.setMaxLogsPerTagPerSecond(0);
+
+        // the logs are queued while the writer thread is blocked
+        synchronized (Log.sWriteLock) {
+            for (int i = 0; i < Log.QUEUE_CAPACITY + 10; i++) {
+                Log.logToFile("D", "LogTest", "message " + i + ";");
+            }
+        }
+
+        String logs = readLogs();
+
+        // the oldest logs are dropped
+        assertTrue(logs.contains("W/Log: 10 logs dropped"));
+        assertFalse(logs.contains("D/LogTest: message 9;"));
+        assertTrue(logs.contains("D/LogTest: message 10;"));
+        assertTrue(logs.contains("D/LogTest: message " + (Log.QUEUE_CAPACITY + 9) + ";"));
+        assertEquals(Log.QUEUE_CAPACITY, countOccurrences(logs, "D/LogTest: "));
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        Log.setRotationPolicy(2048, 2);
+        Log.init("rotation");
+        Log.setMaxLogsPerTagPerSecond(0);
+
+        for (int i = 0; i < 200; i++) {
+            Log.logToFile("D", "LogTest", "a log message long enough to fill the log files " + i);
+        }
+
+        List<File> files = Log.addLogFiles(new ArrayList<File>());
+
+        // only the latest files are kept
+        assertEquals(2, files.size());
+        assertFalse(new File(mLogDirectory, "rotation.2.txt").exists());
+
+        for (File file : files) {
+            assertTrue(file.length() < 2 * 2048);
+        }
+
+        // the latest log is in the current file
+        assertTrue(readLogs().contains("D/LogTest: a log message long enough to fill the log files 199"));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import android.content.ComponentCallbacks2;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMemoryGovernorTest {
+
+    private final List<String> mTrimmedCaches = new ArrayList<>();
+    private final List<MXMemoryGovernor.ITrimmableCache> mCaches = new ArrayList<>();
+
+    private MXMemoryGovernor.ITrimmableCache registerCache(final String name, final long size, int priority) {
+        MXMemoryGovernor.ITrimmableCache cache = new MXMemoryGovernor.ITrimmableCache() {
+            private long mSize = size;
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public long getRetainedSize() {
+                return mSize;
+            }
+
+            @Override
+            public void trim(int level) {
+                mTrimmedCaches.add(name);
+                mSize = 0;
+            }
+        };
+
+        mCaches.add(cache);
+        MXMemoryGovernor.register(cache, priority);
+        return cache;
+    }
+
+    @After
+    public void tearDown() {
+        for (MXMemoryGovernor.ITrimmableCache cache : mCaches) {
+            MXMemoryGovernor.unregister(cache);
+        }
+    }
+
+    @Test
+    public void testTrimByPriority() {
+        registerCache("test.reloadable_count", 3, MXMemoryGovernor.PRIORITY_RELOADABLE);
+        registerCache("test.required_count", 4, MXMemoryGovernor.PRIORITY_REQUIRED);
+        registerCache("test.expendable_bytes", 1, MXMemoryGovernor.PRIORITY_EXPENDABLE);
+        registerCache("test.rebuildable_count", 2, MXMemoryGovernor.PRIORITY_REBUILDABLE);
+
+        MXMemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(1, mTrimmedCaches.size());
+        assertEquals("test.expendable_bytes", mTrimmedCaches.get(0));
+
+        mTrimmedCaches.clear();
+        MXMemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(2, mTrimmedCaches.size());
+        assertEquals("test.rebuildable_count", mTrimmedCaches.get(1));
+
+        // the lowest priorities are trimmed first, the required caches are never trimmed
+        mTrimmedCaches.clear();
+        MXMemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(3, mTrimmedCaches.size());
+        assertEquals("test.expendable_bytes", mTrimmedCaches.get(0));
+        assertEquals("test.rebuildable_count", mTrimmedCaches.get(1));
+        assertEquals("test.reloadable_count", mTrimmedCaches.get(2));
+    }
+
+    @Test
+    public void testRetainedSizes() {
+        registerCache("test.sessions_count", 3, MXMemoryGovernor.PRIORITY_RELOADABLE);
+        registerCache("test.sessions_count", 4, MXMemoryGovernor.PRIORITY_RELOADABLE);
+        MXMemoryGovernor.ITrimmableCache bitmaps = registerCache("test.bitmaps_bytes", 10, MXMemoryGovernor.PRIORITY_EXPENDABLE);
+
+        // a cache is registered once
+        MXMemoryGovernor.register(bitmaps, MXMemoryGovernor.PRIORITY_EXPENDABLE);
+
+        JsonObject sizes = MXMemoryGovernor.getRetainedSizes();
+        assertEquals(7, sizes.get("test.sessions_count").getAsLong());
+        assertEquals(10, sizes.get("test.bitmaps_bytes").getAsLong());
+
+        MXMemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(1, mTrimmedCaches.size());
+        assertEquals(0, MXMemoryGovernor.getRetainedSizes().get("test.bitmaps_bytes").getAsLong());
+
+        MXMemoryGovernor.unregister(bitmaps);
+        assertFalse(MXMemoryGovernor.getRetainedSizes().has("test.bitmaps_bytes"));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 New Vector Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMetricsTest {
+
+    @Before
+    public void setUp() {
+        MXMetrics.setEnabled(true);
+        MXMetrics.reset();
+    }
+
+    @Test
+    public void testBuckets() {
+        // each value is in a bucket whose highest value is greater, with a relative error lower than 12.5%
+        for (long value = 0; value < 1000000; value += 7) {
+            long highestValue = MXMetrics.Histogram.bucketHighestValue(MXMetrics.Histogram.bucketIndex(value));
+
+            assertTrue(highestValue >= value);
+            assertTrue((highestValue - value) <= (value / 8));
+        }
+
+        assertEquals(Long.MAX_VALUE, MXMetrics.Histogram.bucketHighestValue(MXMetrics.Histogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        MXMetrics.Histogram histogram = MXMetrics.histogram("test.percentiles");
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue((p50 >= 500) && (p50 <= 500 * 9 / 8));
+
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testSameInstance() {
+        assertSame(MXMetrics.counter("test.counter"), MXMetrics.counter("test.counter"));
+        assertSame(MXMetrics.histogram("test.histogram"), MXMetrics.histogram("test.histogram"));
+    }
+
+    @Test
+    public void testSnapshot() {
+        MXMetrics.counter("test.snapshot_counter").add(3);
+        MXMetrics.gauge("test.snapshot_gauge").set(5);
+        MXMetrics.histogram("test.snapshot_histogram").record(10);
+
+        JsonObject snapshot = MXMetrics.getSnapshot();
+
+        assertEquals(3, snapshot.getAsJsonObject("counters").get("test.snapshot_counter").getAsLong());
+        assertEquals(5, snapshot.getAsJsonObject("gauges").get("test.snapshot_gauge").getAsLong());
+        assertEquals(1, snapshot.getAsJsonObject("histograms").getAsJsonObject("test.snapshot_histogram").get("count").getAsLong());
+        assertEquals(10, snapshot.getAsJsonObject("histograms").getAsJsonObject("test.snapshot_histogram").get("max").getAsLong());
+    }
+
+    @Test
+    public void testDisabled() {
+        MXMetrics.Counter counter = MXMetrics.counter("test.disabled");
+
+        MXMetrics.setEnabled(false);
+        counter.inc();
+        MXMetrics.setEnabled(true);
+
+        assertEquals(0, counter.get());
+    }
+}